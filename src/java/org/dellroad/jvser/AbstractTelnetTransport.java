@@ -0,0 +1,624 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.Logger;
+import static org.dellroad.jvser.TelnetCodec.DO;
+import static org.dellroad.jvser.TelnetCodec.DONT;
+import static org.dellroad.jvser.TelnetCodec.IAC;
+import static org.dellroad.jvser.TelnetCodec.SB;
+import static org.dellroad.jvser.TelnetCodec.SE;
+import static org.dellroad.jvser.TelnetCodec.WILL;
+import static org.dellroad.jvser.TelnetCodec.WONT;
+
+/**
+ * Support superclass for {@link TelnetTransport}s that implement the telnet protocol themselves.
+ *
+ * <p>
+ * This class handles telnet decoding, option negotiation and buffering of received data; subclasses supply the
+ * network I/O. Data is encoded and decoded in bulk using {@link TelnetCodec}. The supported options are the same
+ * as for the commons-net based transport: {@code TRANSMIT-BINARY}, {@code SUPPRESS-GO-AHEAD}, {@code ECHO} (refused),
+ * {@code TERMINAL-TYPE} and {@code COM-PORT-OPTION}.
+ * </p>
+ *
+ * <p>
+ * Received data is decoded by a single thread at a time (the I/O thread) and handed to readers through an
+ * {@link InputRing}. Blocking operations use {@link java.util.concurrent.locks.ReentrantLock}s rather than object
+ * monitors, so that virtual threads blocked in them do not pin their carrier threads.
+ * </p>
+ */
+abstract class AbstractTelnetTransport implements TelnetTransport {
+
+    // Telnet options
+    static final int OPTION_BINARY = TransmitBinaryOptionHandler.TRANSMIT_BINARY_OPTION;
+    static final int OPTION_ECHO = 1;
+    static final int OPTION_SGA = 3;
+    static final int OPTION_TTYPE = 24;
+
+    // TERMINAL-TYPE subnegotiation commands
+    static final int TTYPE_IS = 0;
+    static final int TTYPE_SEND = 1;
+
+    private static final int MAX_SUBNEGOTIATION = 1024;
+
+    // Decoder states
+    private static final int STATE_DATA = 0;
+    private static final int STATE_IAC = 1;
+    private static final int STATE_OPTION = 2;
+    private static final int STATE_SB = 3;
+    private static final int STATE_SB_IAC = 4;
+
+    protected final Logger log = Logger.getLogger(getClass());
+    protected final TelnetSerialPort port;
+
+    private final String terminalType;
+    private final InputRing input = new InputRing();
+    private final Output output = new Output();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile boolean disconnected;
+
+    // Option state; accessed only by the I/O thread (or before the connection is started)
+    private final boolean[] localEnabled = new boolean[256];
+    private final boolean[] localRequested = new boolean[256];
+    private final boolean[] remoteEnabled = new boolean[256];
+    private final boolean[] remoteRequested = new boolean[256];
+
+    // Decoder state; accessed only by the I/O thread
+    private final byte[] subnegotiation = new byte[MAX_SUBNEGOTIATION];
+    private int decodeState;
+    private int optionCommand;
+    private int subnegotiationLength;
+
+    protected volatile boolean connected;
+
+    private volatile CaptureJournal journal;
+
+    protected AbstractTelnetTransport(TelnetSerialPort port, String terminalType) {
+        if (port == null)
+            throw new IllegalArgumentException("null port");
+        this.port = port;
+        this.terminalType = terminalType;
+        this.input.setDrainListener(new Runnable() {
+            @Override
+            public void run() {
+                AbstractTelnetTransport.this.inputDrained();
+            }
+        });
+    }
+
+    // TelnetTransport
+
+    @Override
+    public void reconnect(InetAddress host, int tcpPort) throws IOException {
+        if (!this.closed.get())
+            throw new IllegalStateException("connection has not been lost");
+
+        // Reset connection state; the order here avoids racing with disconnect()
+        this.closed.set(false);
+        if (this.disconnected) {
+            this.closed.set(true);
+            throw new IOException("transport is closed");
+        }
+        this.connected = false;
+        this.decodeState = STATE_DATA;
+        Arrays.fill(this.localEnabled, false);
+        Arrays.fill(this.localRequested, false);
+        Arrays.fill(this.remoteEnabled, false);
+        Arrays.fill(this.remoteRequested, false);
+        this.resetConnection();
+        this.connect(host, tcpPort);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        this.disconnected = true;
+        this.close(null, false);
+        this.input.setEOF();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.output;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return this.input.read(dst);
+    }
+
+    @Override
+    public int poll(ByteBuffer dst) {
+        return this.input.poll(dst);
+    }
+
+    @Override
+    public void setReceiveThreshold(int threshold) {
+        this.input.setReceiveThreshold(threshold);
+    }
+
+    @Override
+    public void setReceiveTimeout(long timeout) {
+        this.input.setReceiveTimeout(timeout);
+    }
+
+    @Override
+    public void setReceiveFraming(int framingByte) {
+        this.input.setReceiveFraming(framingByte);
+    }
+
+    @Override
+    public void setCaptureJournal(CaptureJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public InputRing getInputRing() {
+        return this.input;
+    }
+
+    @Override
+    public int available() {
+        return this.input.availableOrEOF();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+            this.recordOutput(srcs[i]);
+        }
+        if (total == 0)
+            return 0;
+        this.send(TelnetCodec.encode(srcs, offset, length));
+        return total;
+    }
+
+    /**
+     * Transmit serial data asynchronously.
+     *
+     * <p>
+     * The implementation in {@link AbstractTelnetTransport} writes the data using {@link #send} and then
+     * completes {@code future}; subclasses that can avoid blocking should override.
+     * </p>
+     */
+    @Override
+    public void writeAsync(ByteBuffer src, TelnetFuture<Integer> future) {
+        int length = src.remaining();
+        this.recordOutput(src);
+        try {
+            this.send(TelnetCodec.encode(new ByteBuffer[] { src }, 0, 1));
+        } catch (IOException e) {
+            future.fail(e);
+            return;
+        }
+        future.complete(length);
+    }
+
+    @Override
+    public void sendCommand(ComPortCommand command) throws IOException {
+        ByteBuffer buf = this.getCommandBuffer(command.getEncodedLength());
+        command.encode(buf);
+        buf.flip();
+        this.send(buf);
+    }
+
+    @Override
+    public void sendCommands(List<ComPortCommand> commands) throws IOException {
+        ByteBuffer buf = this.getCommandBuffer(encodedLength(commands));
+        for (int i = 0; i < commands.size(); i++)
+            commands.get(i).encode(buf);
+        buf.flip();
+        this.send(buf);
+    }
+
+    private static int encodedLength(List<ComPortCommand> commands) {
+        int length = 0;
+        for (int i = 0; i < commands.size(); i++)
+            length += commands.get(i).getEncodedLength();
+        return length;
+    }
+
+    /**
+     * Get an empty buffer with at least the given amount of room, into which commands will be encoded
+     * and then passed to {@link #send}.
+     *
+     * <p>
+     * The implementation in {@link AbstractTelnetTransport} allocates a new buffer. Subclasses whose {@link #send}
+     * method is finished with its buffer upon return may override to reuse a buffer.
+     * </p>
+     */
+    protected ByteBuffer getCommandBuffer(int length) {
+        return ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Record outbound serial data in the capture journal, if any. Does not modify {@code src}.
+     */
+    protected void recordOutput(ByteBuffer src) {
+        final CaptureJournal currentJournal = this.journal;
+        if (currentJournal != null)
+            currentJournal.record(CaptureJournal.OUTBOUND_DATA, src, src.position(), src.remaining());
+    }
+
+    // Subclass hooks
+
+    /**
+     * Send already-encoded bytes to the peer. May be invoked by any thread, including the I/O thread,
+     * and must not block the I/O thread.
+     */
+    protected abstract void send(ByteBuffer buf) throws IOException;
+
+    /**
+     * Close the underlying network connection and release any threads waiting on it.
+     * Invoked at most once.
+     *
+     * @param cause error that caused the close, or null if none
+     */
+    protected abstract void closeConnection(IOException cause);
+
+    /**
+     * Notification that the application has consumed received data after {@link #inputRoom} returned zero.
+     */
+    protected abstract void inputDrained();
+
+    /**
+     * Forget the previous, lost connection in preparation for a new connection. Invoked by {@link #reconnect}
+     * prior to {@link #connect connect()}.
+     */
+    protected abstract void resetConnection();
+
+    // Connection lifecycle
+
+    /**
+     * Prepare the input buffer and send our initial option negotiation, along with the port's configuration if
+     * it is negotiating optimistically, in a single write. Must be invoked before the I/O thread starts decoding input.
+     */
+    protected void startNegotiation() {
+        this.input.start();
+        final List<ComPortCommand> configuration = this.port.optimisticCommands();
+        final ByteBuffer buf = ByteBuffer.allocate(5 * 3 + (configuration != null ? encodedLength(configuration) : 0));
+        this.requestLocal(OPTION_BINARY, buf);
+        this.requestRemote(OPTION_BINARY, buf);
+        this.requestLocal(OPTION_SGA, buf);
+        this.requestRemote(OPTION_SGA, buf);
+        this.requestLocal(RFC2217.COM_PORT_OPTION, buf);
+        if (configuration != null) {
+            for (int i = 0; i < configuration.size(); i++)
+                configuration.get(i).encode(buf);
+        }
+        buf.flip();
+        try {
+            this.send(buf);
+        } catch (IOException e) {
+            this.log.debug(this.port.getName() + ": exception sending initial option negotiation", e);
+        }
+    }
+
+    protected boolean isClosed() {
+        return this.closed.get();
+    }
+
+    /**
+     * Close this transport due to a connection failure or loss.
+     *
+     * @param cause error that caused the close, or null if the connection was closed by the peer
+     */
+    void close(IOException cause) {
+        this.close(cause, true);
+    }
+
+    protected void close(IOException cause, boolean notifyPort) {
+        if (!this.closed.compareAndSet(false, true))
+            return;
+        if (cause != null)
+            this.log.debug(this.port.getName() + ": connection failed", cause);
+        this.closeConnection(cause);
+        if (!this.disconnected && this.port.connectionLost(cause))
+            return;                                             // port will reconnect, so input remains open
+        this.input.setEOF();
+        if (this.connected && notifyPort)
+            this.port.dataAvailable();
+    }
+
+    // Input processing
+
+    /**
+     * Get the number of received bytes that may be read from the network and decoded without overflowing
+     * the input buffer. If zero is returned, {@link #inputDrained} will be invoked once room becomes available.
+     */
+    protected int inputRoom() {
+        return this.input.room();
+    }
+
+    /**
+     * Wait until there is room in the input buffer.
+     */
+    protected void awaitInputRoom() throws InterruptedIOException {
+        this.input.awaitRoom();
+    }
+
+    /**
+     * Process bytes received from the network. Invoked by the I/O thread.
+     */
+    protected void processInput(ByteBuffer buf) {
+        if (this.decode(buf))
+            this.port.dataAvailable();
+    }
+
+    // Decode received bytes; return true if any data bytes were received
+    private boolean decode(ByteBuffer buf) {
+        final CaptureJournal currentJournal = this.journal;
+        boolean data = false;
+        while (buf.hasRemaining()) {
+
+            // Copy runs of plain data in bulk
+            if (this.decodeState == STATE_DATA) {
+                int start = buf.position();
+                int iac = TelnetCodec.indexOfIAC(buf, start, buf.limit());
+                int end = iac != -1 ? iac : buf.limit();
+                if (end > start) {
+                    if (currentJournal != null)
+                        currentJournal.record(CaptureJournal.INBOUND_DATA, buf, start, end - start);
+                    this.input.put(buf, end - start);
+                    data = true;
+                }
+                if (iac == -1)
+                    break;
+                buf.get();
+                this.decodeState = STATE_IAC;
+                continue;
+            }
+
+            // Handle telnet commands a byte at a time
+            int b = buf.get() & 0xff;
+            switch (this.decodeState) {
+            case STATE_IAC:
+                switch (b) {
+                case IAC:
+                    if (currentJournal != null)
+                        currentJournal.record(CaptureJournal.INBOUND_DATA, buf, buf.position() - 1, 1);
+                    this.input.put(b);
+                    data = true;
+                    this.decodeState = STATE_DATA;
+                    break;
+                case WILL:
+                case WONT:
+                case DO:
+                case DONT:
+                    this.optionCommand = b;
+                    this.decodeState = STATE_OPTION;
+                    break;
+                case SB:
+                    this.subnegotiationLength = 0;
+                    this.decodeState = STATE_SB;
+                    break;
+                default:                                        // NOP, GA, etc.
+                    this.decodeState = STATE_DATA;
+                    break;
+                }
+                break;
+            case STATE_OPTION:
+                this.decodeState = STATE_DATA;
+                this.handleOption(this.optionCommand, b);
+                break;
+            case STATE_SB:
+                if (b == IAC) {
+                    this.decodeState = STATE_SB_IAC;
+                    break;
+                }
+                this.addSubnegotiationByte(b);
+                break;
+            case STATE_SB_IAC:
+                switch (b) {
+                case IAC:
+                    this.addSubnegotiationByte(b);
+                    this.decodeState = STATE_SB;
+                    break;
+                case SE:
+                    this.decodeState = STATE_DATA;
+                    this.handleSubnegotiation();
+                    break;
+                default:
+                    this.log.warn(this.port.getName() + ": rec'd unterminated subnegotiation (ignoring)");
+                    this.decodeState = STATE_DATA;
+                    break;
+                }
+                break;
+            default:
+                throw new RuntimeException("impossible case");
+            }
+        }
+        return data;
+    }
+
+    private void addSubnegotiationByte(int b) {
+        if (this.subnegotiationLength < this.subnegotiation.length)
+            this.subnegotiation[this.subnegotiationLength] = (byte)b;
+        this.subnegotiationLength++;
+    }
+
+    private void handleSubnegotiation() {
+        if (this.subnegotiationLength > this.subnegotiation.length) {
+            this.log.warn(this.port.getName() + ": rec'd oversize subnegotiation (ignoring)");
+            return;
+        }
+        if (this.subnegotiationLength == 0)
+            return;
+        int option = this.subnegotiation[0] & 0xff;
+        switch (option) {
+        case OPTION_TTYPE:
+            if (this.localEnabled[OPTION_TTYPE] && this.subnegotiationLength >= 2
+              && (this.subnegotiation[1] & 0xff) == TTYPE_SEND)
+                this.sendTerminalType();
+            break;
+        case RFC2217.COM_PORT_OPTION:
+            this.port.handleCommand(this.subnegotiation, this.subnegotiationLength);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void sendTerminalType() {
+        byte[] name;
+        try {
+            name = this.terminalType.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("unexpected exception", e);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(6 + name.length);
+        buf.put((byte)IAC).put((byte)SB).put((byte)OPTION_TTYPE).put((byte)TTYPE_IS);
+        buf.put(name);
+        buf.put((byte)IAC).put((byte)SE);
+        buf.flip();
+        try {
+            this.send(buf);
+        } catch (IOException e) {
+            this.log.debug(this.port.getName() + ": exception sending terminal type", e);
+        }
+    }
+
+    // Option negotiation
+
+    private static boolean acceptLocal(int option) {
+        switch (option) {
+        case OPTION_BINARY:
+        case OPTION_SGA:
+        case OPTION_TTYPE:
+        case RFC2217.COM_PORT_OPTION:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean acceptRemote(int option) {
+        switch (option) {
+        case OPTION_BINARY:
+        case OPTION_SGA:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private void requestLocal(int option, ByteBuffer buf) {
+        this.localRequested[option] = true;
+        buf.put((byte)IAC).put((byte)WILL).put((byte)option);
+    }
+
+    private void requestRemote(int option, ByteBuffer buf) {
+        this.remoteRequested[option] = true;
+        buf.put((byte)IAC).put((byte)DO).put((byte)option);
+    }
+
+    private void handleOption(int command, int option) {
+        switch (command) {
+        case DO:
+            if (this.localEnabled[option]) {
+                this.localRequested[option] = false;
+                break;
+            }
+            if (!acceptLocal(option)) {
+                this.sendOption(WONT, option);
+                break;
+            }
+            this.localEnabled[option] = true;
+            if (!this.localRequested[option])
+                this.sendOption(WILL, option);
+            this.localRequested[option] = false;
+            if (option == RFC2217.COM_PORT_OPTION)
+                this.port.startSubnegotiation();
+            break;
+        case DONT:
+            this.localRequested[option] = false;
+            if (this.localEnabled[option]) {
+                this.localEnabled[option] = false;
+                this.sendOption(WONT, option);
+            }
+            if (option == RFC2217.COM_PORT_OPTION)
+                this.port.comPortOptionRefused();
+            break;
+        case WILL:
+            if (this.remoteEnabled[option]) {
+                this.remoteRequested[option] = false;
+                break;
+            }
+            if (!acceptRemote(option)) {
+                this.sendOption(DONT, option);
+                break;
+            }
+            this.remoteEnabled[option] = true;
+            if (!this.remoteRequested[option])
+                this.sendOption(DO, option);
+            this.remoteRequested[option] = false;
+            break;
+        case WONT:
+            this.remoteRequested[option] = false;
+            if (this.remoteEnabled[option]) {
+                this.remoteEnabled[option] = false;
+                this.sendOption(DONT, option);
+            }
+            break;
+        default:
+            throw new RuntimeException("impossible case");
+        }
+    }
+
+    private void sendOption(int command, int option) {
+        try {
+            this.send(ByteBuffer.wrap(new byte[] { (byte)IAC, (byte)command, (byte)option }));
+        } catch (IOException e) {
+            this.log.debug(this.port.getName() + ": exception sending option " + command + " " + option, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + this.port.getName() + "]";
+    }
+
+    // Output stream
+
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > data.length)
+                throw new IndexOutOfBoundsException();
+            final CaptureJournal currentJournal = AbstractTelnetTransport.this.journal;
+            if (currentJournal != null)
+                currentJournal.record(CaptureJournal.OUTBOUND_DATA, data, off, len);
+            AbstractTelnetTransport.this.send(TelnetCodec.encode(data, off, len));
+        }
+    }
+}
+
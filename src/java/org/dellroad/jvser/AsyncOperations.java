@@ -0,0 +1,261 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous reads and writes for a {@link TelnetSerialPort}.
+ *
+ * <p>
+ * Pending reads are queued in order and satisfied by the I/O thread as data arrives (see {@link #dataAvailable}),
+ * so no threads are blocked waiting for them. Deadlines are enforced by a single shared timer thread.
+ * </p>
+ */
+final class AsyncOperations {
+
+    private final TelnetTransport transport;
+    private final OutputBuffer outputBuffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayDeque<ReadOperation> reads = new ArrayDeque<ReadOperation>();
+    private final HashSet<TelnetFuture<Integer>> writes = new HashSet<TelnetFuture<Integer>>();
+
+    private volatile int size;                                      // number of pending reads, readable without locking
+    private boolean closed;
+
+    AsyncOperations(TelnetTransport transport, OutputBuffer outputBuffer) {
+        this.transport = transport;
+        this.outputBuffer = outputBuffer;
+    }
+
+    /**
+     * Start an asynchronous read.
+     *
+     * @param timeout deadline, or zero for none
+     */
+    TelnetFuture<Integer> read(ByteBuffer dst, long timeout, TimeUnit unit) {
+        final ReadOperation read = new ReadOperation(dst);
+        if (!dst.hasRemaining()) {
+            read.complete(0);
+            return read;
+        }
+        boolean alreadyClosed;
+        this.lock.lock();
+        try {
+            alreadyClosed = this.closed;
+            if (!alreadyClosed) {
+                this.reads.add(read);
+                this.size = this.reads.size();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (alreadyClosed) {
+            read.fail(new AsynchronousCloseException());
+            return read;
+        }
+        if (timeout > 0) {
+            read.deadline = Util.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (AsyncOperations.this.remove(read))
+                        read.fail(new TimeoutException("read timed out"));
+                }
+            }, timeout, unit);
+            if (read.isDone())                                      // in case it was cancelled or closed meanwhile
+                read.cancelDeadline();
+        }
+        this.dataAvailable();
+        return read;
+    }
+
+    /**
+     * Start an asynchronous write.
+     *
+     * @param timeout deadline, or zero for none
+     */
+    TelnetFuture<Integer> write(ByteBuffer src, long timeout, TimeUnit unit) {
+        final TelnetFuture<Integer> write = new TelnetFuture<Integer>() {
+            @Override
+            boolean cancelOperation() {
+                return false;                       // once handed to the transport, a write cannot be recalled
+            }
+        };
+        final ScheduledFuture<?> deadline = timeout > 0 ? Util.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                write.fail(new TimeoutException("write timed out"));
+            }
+        }, timeout, unit) : null;
+        this.lock.lock();
+        try {
+            this.writes.add(write);
+        } finally {
+            this.lock.unlock();
+        }
+        write.addListener(new TelnetFuture.Listener<Integer>() {
+            @Override
+            public void operationComplete(TelnetFuture<Integer> future) {
+                if (deadline != null)
+                    deadline.cancel(false);
+                AsyncOperations.this.lock.lock();
+                try {
+                    AsyncOperations.this.writes.remove(write);
+                } finally {
+                    AsyncOperations.this.lock.unlock();
+                }
+            }
+        });
+        try {
+            this.outputBuffer.flush();
+        } catch (IOException e) {
+            write.fail(e);
+            return write;
+        }
+        this.transport.writeAsync(src, write);
+        return write;
+    }
+
+    /**
+     * Satisfy as many pending reads as possible with the data currently available.
+     * Invoked by the I/O thread when new data arrives or the connection is lost.
+     * When there are no pending reads, this returns without locking.
+     */
+    void dataAvailable() {
+        if (this.size == 0)
+            return;
+        ArrayList<ReadOperation> finished = null;
+        this.lock.lock();
+        try {
+            while (!this.reads.isEmpty()) {
+                ReadOperation read = this.reads.peek();
+                try {
+                    int r = this.transport.poll(read.dst);
+                    if (r == 0)
+                        break;
+                    read.result = r;
+                } catch (IOException e) {
+                    read.error = e;
+                }
+                this.reads.remove();
+                if (finished == null)
+                    finished = new ArrayList<ReadOperation>();
+                finished.add(read);
+            }
+            this.size = this.reads.size();
+        } finally {
+            this.lock.unlock();
+        }
+        if (finished != null) {
+            for (ReadOperation read : finished)
+                read.finish();
+        }
+    }
+
+    /**
+     * Fail all pending reads. Invoked when the port is closed.
+     */
+    void close() {
+        ArrayList<ReadOperation> pending;
+        this.lock.lock();
+        try {
+            this.closed = true;
+            pending = new ArrayList<ReadOperation>(this.reads);
+            this.reads.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+        for (ReadOperation read : pending) {
+            read.cancelDeadline();
+            read.fail(new AsynchronousCloseException());
+        }
+    }
+
+    /**
+     * Cancel all pending reads and writes, leaving this instance usable. Data from cancelled writes that has already
+     * been handed to the transport may still be transmitted. Invoked when a pooled port is reset for its next user.
+     */
+    void cancelAll() {
+        ArrayList<ReadOperation> pendingReads;
+        ArrayList<TelnetFuture<Integer>> pendingWrites;
+        this.lock.lock();
+        try {
+            pendingReads = new ArrayList<ReadOperation>(this.reads);
+            pendingWrites = new ArrayList<TelnetFuture<Integer>>(this.writes);
+            this.reads.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+        for (ReadOperation read : pendingReads) {
+            read.cancelDeadline();
+            read.abandon();
+        }
+        for (TelnetFuture<Integer> write : pendingWrites)
+            write.abandon();
+    }
+
+    // Remove a pending read; returns false if it has already started
+    private boolean remove(ReadOperation read) {
+        this.lock.lock();
+        try {
+            boolean removed = this.reads.remove(read);
+            this.size = this.reads.size();
+            return removed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // A pending read
+
+    private final class ReadOperation extends TelnetFuture<Integer> {
+
+        final ByteBuffer dst;
+        volatile ScheduledFuture<?> deadline;
+        int result;
+        IOException error;
+
+        ReadOperation(ByteBuffer dst) {
+            this.dst = dst;
+        }
+
+        @Override
+        boolean cancelOperation() {
+            if (!AsyncOperations.this.remove(this))
+                return false;
+            this.cancelDeadline();
+            return true;
+        }
+
+        void finish() {
+            this.cancelDeadline();
+            if (this.error != null)
+                this.fail(this.error);
+            else
+                this.complete(this.result);
+        }
+
+        void cancelDeadline() {
+            ScheduledFuture<?> currentDeadline = this.deadline;
+            if (currentDeadline != null)
+                currentDeadline.cancel(false);
+        }
+    }
+}
+
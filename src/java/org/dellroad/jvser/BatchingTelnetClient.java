@@ -0,0 +1,79 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.net.telnet.TelnetClient;
+import static org.dellroad.jvser.TelnetCodec.IAC;
+import static org.dellroad.jvser.TelnetCodec.SB;
+import static org.dellroad.jvser.TelnetCodec.SE;
+
+/**
+ * {@link TelnetClient} that can send several subnegotiations with a single flush.
+ *
+ * <p>
+ * {@link TelnetClient#sendSubnegotiation} flushes the connection after every subnegotiation, so sending a burst
+ * of {@code COM-PORT-OPTION} commands results in a burst of small TCP segments. This class writes the whole burst
+ * into the client's buffered output stream, using the same lock as {@link TelnetClient}, and then flushes once.
+ * Commands are encoded directly into the stream without copying.
+ * </p>
+ */
+class BatchingTelnetClient extends TelnetClient {
+
+    BatchingTelnetClient(String termtype) {
+        super(termtype);
+    }
+
+    /**
+     * Send the given command to the peer and then flush the connection.
+     */
+    void sendCommand(ComPortCommand command) throws IOException {
+        synchronized (this) {
+            OutputStream output = this.getOutput();
+            this.writeCommand(output, command);
+            output.flush();
+        }
+    }
+
+    /**
+     * Send the given commands to the peer and then flush the connection.
+     */
+    void sendCommands(List<ComPortCommand> commands) throws IOException {
+        synchronized (this) {
+            OutputStream output = this.getOutput();
+            for (int i = 0; i < commands.size(); i++)
+                this.writeCommand(output, commands.get(i));
+            output.flush();
+        }
+    }
+
+    private OutputStream getOutput() throws IOException {
+        OutputStream output = this._output_;
+        if (output == null)
+            throw new IOException("not connected");
+        return output;
+    }
+
+    // Write the command's encoding directly into the (buffered) output stream
+    private void writeCommand(OutputStream output, ComPortCommand command) throws IOException {
+        final int[] bytes = command.bytes;
+        output.write(IAC);
+        output.write(SB);
+        for (int i = 0; i < bytes.length; i++) {
+            output.write(bytes[i]);
+            if ((bytes[i] & 0xff) == IAC)
+                output.write(bytes[i]);
+        }
+        output.write(IAC);
+        output.write(SE);
+    }
+}
+
@@ -0,0 +1,281 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory-mapped, append-only journal recording the traffic of one or more {@link TelnetSerialPort}s.
+ *
+ * <p>
+ * Each record contains a timestamp, a record type giving the direction and kind of traffic, and the data itself:
+ * either a chunk of serial data as sent or received, or the encoding of a {@link ComPortCommand} starting with the
+ * {@code COM-PORT-OPTION} byte. Timestamps are {@link System#nanoTime} based, measured from the creation of the
+ * journal. A sparse index of timestamps, one entry every {@link #INDEX_INTERVAL} bytes of data, allows
+ * {@link CaptureJournalReader} to quickly seek to a point in time.
+ * </p>
+ *
+ * <p>
+ * The journal has a fixed capacity, allocated when it is created. Recording is lock-free and does not allocate
+ * objects: space for each record is reserved with an atomic increment, then the record is copied directly into the
+ * mapped file. Once the journal fills up, further records are dropped and counted (see {@link #getDroppedCount});
+ * to rotate journals, create a new one and pass it to {@link TelnetSerialPort#setCaptureJournal}.
+ * Records from concurrent threads may appear slightly out of timestamp order.
+ * </p>
+ *
+ * <p>
+ * File format (all values big-endian):
+ * <ul>
+ *  <li>Header (64 bytes): magic number {@code 0x4a56534a}, format version, wall clock time
+ *      of creation in milliseconds, data capacity, index interval, and number of index slots</li>
+ *  <li>Index: one 16 byte slot per {@link #INDEX_INTERVAL} bytes of data capacity, containing the timestamp and
+ *      file offset of the record that spans the start of that interval, or zeroes if not yet reached</li>
+ *  <li>Data: records, each aligned to eight bytes, consisting of a four byte payload length, a four byte record
+ *      type, an eight byte timestamp, and the payload. The length is written last, so a zero length marks the
+ *      end of the journal.</li>
+ * </ul>
+ * </p>
+ *
+ * @see TelnetSerialPort#setCaptureJournal
+ * @see CaptureJournalReader
+ */
+public final class CaptureJournal implements Closeable {
+
+    /**
+     * Record type for serial data received from the access server.
+     */
+    public static final int INBOUND_DATA = 1;
+
+    /**
+     * Record type for serial data sent to the access server.
+     */
+    public static final int OUTBOUND_DATA = 2;
+
+    /**
+     * Record type for a {@link ComPortCommand} received from the access server.
+     */
+    public static final int INBOUND_COMMAND = 3;
+
+    /**
+     * Record type for a {@link ComPortCommand} sent to the access server.
+     */
+    public static final int OUTBOUND_COMMAND = 4;
+
+    /**
+     * Number of data bytes covered by each index slot.
+     */
+    public static final int INDEX_INTERVAL = 64 * 1024;
+
+    static final int MAGIC = 0x4a56534a;                            // "JVSJ"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int INDEX_SLOT_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 16;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final long startNanos = System.nanoTime();
+    private final int indexStart;
+    private final int dataStart;
+    private final int capacity;
+    private final AtomicLong position = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final ThreadLocal<ByteBuffer> views = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return CaptureJournal.this.map.duplicate();
+        }
+    };
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new journal. Any existing file is overwritten.
+     *
+     * @param file journal file
+     * @param capacity maximum number of bytes of record data (including record headers)
+     * @throws IllegalArgumentException if {@code file} is null
+     * @throws IllegalArgumentException if {@code capacity} is too small, or too large to map
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public CaptureJournal(File file, int capacity) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("null file");
+        if (capacity < RECORD_HEADER_SIZE)
+            throw new IllegalArgumentException("capacity < " + RECORD_HEADER_SIZE);
+        final int slots = (capacity + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        final long size = (long)HEADER_SIZE + (long)slots * INDEX_SLOT_SIZE + capacity;
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("capacity is too large");
+        this.file = file;
+        this.capacity = capacity & ~7;
+        this.indexStart = HEADER_SIZE;
+        this.dataStart = this.indexStart + slots * INDEX_SLOT_SIZE;
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            this.raf.setLength(0);
+            this.raf.setLength(size);
+            this.map = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            this.raf.close();
+            throw e;
+        }
+        this.map.putInt(0, MAGIC);
+        this.map.putInt(4, VERSION);
+        this.map.putLong(8, System.currentTimeMillis());
+        this.map.putInt(16, this.capacity);
+        this.map.putInt(20, INDEX_INTERVAL);
+        this.map.putInt(24, slots);
+    }
+
+    /**
+     * Get the journal file.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Get the data capacity of this journal.
+     */
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Get the number of bytes of data capacity used so far.
+     */
+    public long getSize() {
+        return Math.min(this.position.get(), this.capacity);
+    }
+
+    /**
+     * Get the number of records dropped because this journal was full or closed.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Force recorded data out to the underlying storage device.
+     */
+    public void force() {
+        this.map.force();
+    }
+
+    /**
+     * Close this journal. Recorded data is forced out to the underlying storage device.
+     * Subsequent records are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.closed)
+            return;
+        this.closed = true;
+        this.map.force();
+        this.raf.close();
+    }
+
+    // Recording
+
+    /**
+     * Record serial data.
+     */
+    void record(int type, byte[] data, int off, int len) {
+        if (len == 0)
+            return;
+        final int offset = this.reserve(len);
+        if (offset == -1)
+            return;
+        final ByteBuffer view = this.views.get();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.put(data, off, len);
+        this.commit(offset, type, len);
+    }
+
+    /**
+     * Record serial data from the given range of a buffer. Does not modify the buffer's position or limit.
+     */
+    void record(int type, ByteBuffer src, int off, int len) {
+        if (len == 0)
+            return;
+        final int offset = this.reserve(len);
+        if (offset == -1)
+            return;
+        final ByteBuffer view = this.views.get();
+        view.position(offset + RECORD_HEADER_SIZE);
+        final int position = src.position();
+        final int limit = src.limit();
+        src.limit(off + len).position(off);
+        view.put(src);
+        src.limit(limit).position(position);
+        this.commit(offset, type, len);
+    }
+
+    /**
+     * Record a {@link ComPortCommand}.
+     */
+    void record(int type, ComPortCommand command) {
+        final int[] bytes = command.bytes;
+        final int offset = this.reserve(bytes.length);
+        if (offset == -1)
+            return;
+        final int start = offset + RECORD_HEADER_SIZE;
+        for (int i = 0; i < bytes.length; i++)
+            this.map.put(start + i, (byte)bytes[i]);
+        this.commit(offset, type, bytes.length);
+    }
+
+    // Reserve space for a record with the given payload length; returns its file offset or -1 if it won't fit
+    private int reserve(int len) {
+        if (this.closed) {
+            this.dropped.incrementAndGet();
+            return -1;
+        }
+        final int size = (RECORD_HEADER_SIZE + len + 7) & ~7;
+        long start;
+        while (true) {
+            start = this.position.get();
+            if (start + size > this.capacity) {
+                this.dropped.incrementAndGet();
+                return -1;
+            }
+            if (this.position.compareAndSet(start, start + size))
+                break;
+        }
+        return this.dataStart + (int)start;
+    }
+
+    // Fill in the record header and any index slots whose interval starts within this record
+    private void commit(int offset, int type, int len) {
+        final long timestamp = System.nanoTime() - this.startNanos;
+        this.map.putInt(offset + 4, type);
+        this.map.putLong(offset + 8, timestamp);
+        final int start = offset - this.dataStart;
+        final int end = start + ((RECORD_HEADER_SIZE + len + 7) & ~7);
+        for (int slot = (start + INDEX_INTERVAL - 1) / INDEX_INTERVAL; slot * INDEX_INTERVAL < end; slot++) {
+            final int index = this.indexStart + slot * INDEX_SLOT_SIZE;
+            this.map.putLong(index, timestamp);
+            this.map.putLong(index + 8, offset);
+        }
+        this.map.putInt(offset, len);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + this.file + "]";
+    }
+}
@@ -0,0 +1,201 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.dellroad.jvser.CaptureJournal.HEADER_SIZE;
+import static org.dellroad.jvser.CaptureJournal.INDEX_SLOT_SIZE;
+import static org.dellroad.jvser.CaptureJournal.MAGIC;
+import static org.dellroad.jvser.CaptureJournal.RECORD_HEADER_SIZE;
+import static org.dellroad.jvser.CaptureJournal.VERSION;
+
+/**
+ * Reads the records in a {@link CaptureJournal} file.
+ *
+ * <p>
+ * Instances are cursors: after {@link #next} returns true, the current record's properties are available from
+ * {@link #getType}, {@link #getTimestamp}, and {@link #getData}. Use {@link #seek} to quickly position the cursor
+ * at a point in time. A journal that is still being written may be read; records added after the reader was
+ * opened may or may not be seen. Instances are not thread safe.
+ * </p>
+ *
+ * @see CaptureJournal
+ */
+public final class CaptureJournalReader implements Closeable {
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final long startTime;
+    private final int indexStart;
+    private final int slots;
+    private final int dataStart;
+    private final int dataEnd;
+
+    private int nextOffset;
+    private int offset = -1;
+
+    /**
+     * Open a journal file.
+     *
+     * @param file journal file
+     * @throws IllegalArgumentException if {@code file} is null
+     * @throws IOException if {@code file} cannot be read or is not a valid journal file
+     */
+    public CaptureJournalReader(File file) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("null file");
+        this.raf = new RandomAccessFile(file, "r");
+        try {
+            long size = this.raf.length();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+                throw new IOException("invalid journal file " + file);
+            this.map = this.raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (this.map.getInt(0) != MAGIC)
+                throw new IOException("invalid journal file " + file);
+            if (this.map.getInt(4) != VERSION)
+                throw new IOException("unsupported journal file version " + this.map.getInt(4));
+            this.startTime = this.map.getLong(8);
+            int capacity = this.map.getInt(16);
+            this.slots = this.map.getInt(24);
+            this.indexStart = HEADER_SIZE;
+            this.dataStart = this.indexStart + this.slots * INDEX_SLOT_SIZE;
+            this.dataEnd = this.dataStart + capacity;
+            if (this.slots < 0 || capacity < 0 || this.dataEnd > size)
+                throw new IOException("invalid journal file " + file);
+        } catch (IOException e) {
+            this.raf.close();
+            throw e;
+        }
+        this.nextOffset = this.dataStart;
+    }
+
+    /**
+     * Get the wall clock time at which the journal was created.
+     *
+     * @return creation time in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return this.startTime;
+    }
+
+    /**
+     * Advance to the next record.
+     *
+     * @return true if there is a next record, false if the end of the journal has been reached
+     */
+    public boolean next() {
+        if (this.nextOffset + RECORD_HEADER_SIZE > this.dataEnd || this.map.getInt(this.nextOffset) <= 0) {
+            this.offset = -1;
+            return false;
+        }
+        this.offset = this.nextOffset;
+        this.nextOffset += (RECORD_HEADER_SIZE + this.map.getInt(this.offset) + 7) & ~7;
+        return true;
+    }
+
+    /**
+     * Position this reader so that the next call to {@link #next} returns the first record having a timestamp
+     * greater than or equal to the given timestamp, using the journal's index to skip over earlier records.
+     *
+     * @param timestamp timestamp in nanoseconds since the journal was created
+     */
+    public void seek(long timestamp) {
+
+        // Binary search for the last index slot strictly before the timestamp; records having the same timestamp
+        // may precede the first slot that has it
+        int lo = 0;
+        int hi = this.slots - 1;
+        int start = this.dataStart;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int slot = this.indexStart + mid * INDEX_SLOT_SIZE;
+            int slotOffset = (int)this.map.getLong(slot + 8);
+            if (slotOffset == 0 || this.map.getLong(slot) >= timestamp)
+                hi = mid - 1;
+            else {
+                start = slotOffset;
+                lo = mid + 1;
+            }
+        }
+
+        // Scan forward from there
+        this.nextOffset = start;
+        while (true) {
+            int current = this.nextOffset;
+            if (!this.next() || this.getTimestamp() >= timestamp) {
+                this.nextOffset = current;
+                break;
+            }
+        }
+        this.offset = -1;
+    }
+
+    /**
+     * Position this reader back at the start of the journal.
+     */
+    public void rewind() {
+        this.nextOffset = this.dataStart;
+        this.offset = -1;
+    }
+
+    /**
+     * Get the type of the current record.
+     *
+     * @return one of {@link CaptureJournal#INBOUND_DATA}, {@link CaptureJournal#OUTBOUND_DATA},
+     *  {@link CaptureJournal#INBOUND_COMMAND}, or {@link CaptureJournal#OUTBOUND_COMMAND}
+     * @throws IllegalStateException if there is no current record
+     */
+    public int getType() {
+        return this.map.getInt(this.current() + 4);
+    }
+
+    /**
+     * Get the timestamp of the current record.
+     *
+     * @return timestamp in nanoseconds since the journal was created
+     * @throws IllegalStateException if there is no current record
+     */
+    public long getTimestamp() {
+        return this.map.getLong(this.current() + 8);
+    }
+
+    /**
+     * Get the data in the current record. For command records, this is the encoding of the command, starting with
+     * the {@code COM-PORT-OPTION} byte, which may be decoded using {@link RFC2217#decodeComPortCommand}.
+     *
+     * @return read-only buffer containing the record data
+     * @throws IllegalStateException if there is no current record
+     */
+    public ByteBuffer getData() {
+        int current = this.current();
+        ByteBuffer data = this.map.asReadOnlyBuffer();
+        data.limit(current + RECORD_HEADER_SIZE + this.map.getInt(current)).position(current + RECORD_HEADER_SIZE);
+        return data.slice();
+    }
+
+    /**
+     * Close this reader.
+     */
+    @Override
+    public void close() throws IOException {
+        this.raf.close();
+    }
+
+    private int current() {
+        if (this.offset == -1)
+            throw new IllegalStateException("no current record");
+        return this.offset;
+    }
+}
@@ -0,0 +1,305 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import static org.dellroad.jvser.TelnetCodec.DO;
+import static org.dellroad.jvser.TelnetCodec.IAC;
+import static org.dellroad.jvser.TelnetCodec.SB;
+import static org.dellroad.jvser.TelnetCodec.SE;
+import static org.dellroad.jvser.TelnetCodec.WILL;
+
+/**
+ * In-process stand-in for an access server that replays the inbound traffic recorded in a {@link CaptureJournal}.
+ *
+ * <p>
+ * The server listens on a loopback port and accepts a single connection, typically from a {@link TelnetSerialPort}.
+ * It agrees to {@code TRANSMIT-BINARY}, {@code SUPPRESS-GO-AHEAD} and {@code COM-PORT-OPTION}, and once the client
+ * has sent its first {@code COM-PORT-OPTION} command, sends the recorded {@link CaptureJournal#INBOUND_DATA} and
+ * {@link CaptureJournal#INBOUND_COMMAND} records (including {@code NOTIFY-LINESTATE} and {@code NOTIFY-MODEMSTATE})
+ * in order. Anything the client sends is read and discarded. When all records have been sent, the server shuts down
+ * its side of the connection, so the port sees end of stream.
+ * </p>
+ *
+ * <p>
+ * The original timing between records is preserved, scaled by the given speed factor; a speed of
+ * {@link #MAX_SPEED} sends the records as fast as possible, coalescing them into large network writes.
+ * </p>
+ *
+ * <p>
+ * Example:
+ * <blockquote><pre>
+ * CaptureReplayServer server = new CaptureReplayServer(new File("capture.jnl"), CaptureReplayServer.MAX_SPEED);
+ * server.start();
+ * TelnetSerialPort port = new TelnetSerialPort();
+ * port.connect(server.getAddress(), server.getPort());
+ * ...
+ * server.awaitCompletion(1, TimeUnit.MINUTES);
+ * server.close();
+ * </pre></blockquote>
+ * </p>
+ *
+ * @see CaptureJournal
+ */
+public final class CaptureReplayServer implements Closeable {
+
+    /**
+     * Speed factor meaning no delays between records.
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private static final int OPTION_BINARY = TransmitBinaryOptionHandler.TRANSMIT_BINARY_OPTION;
+    private static final int OPTION_SGA = 3;
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final File file;
+    private final double speed;
+    private final ServerSocket serverSocket;
+    private final CountDownLatch negotiated = new CountDownLatch(1);
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private final AtomicLong dataBytes = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+
+    private volatile Socket socket;
+    private volatile IOException error;
+    private volatile boolean closed;
+
+    /**
+     * Constructor. Opens the journal file and the listening socket.
+     *
+     * @param file journal file to replay
+     * @param speed speed factor relative to the original timing, or {@link #MAX_SPEED}
+     * @throws IllegalArgumentException if {@code file} is null
+     * @throws IllegalArgumentException if {@code speed} is not positive
+     * @throws IOException if {@code file} is not a readable journal file or the listening socket can't be created
+     */
+    public CaptureReplayServer(File file, double speed) throws IOException {
+        if (file == null)
+            throw new IllegalArgumentException("null file");
+        if (!(speed > 0))
+            throw new IllegalArgumentException("speed must be positive");
+        new CaptureJournalReader(file).close();                         // validate file now
+        this.file = file;
+        this.speed = speed;
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName(null));
+    }
+
+    /**
+     * Get the address on which this server is listening.
+     */
+    public InetAddress getAddress() {
+        return this.serverSocket.getInetAddress();
+    }
+
+    /**
+     * Get the TCP port on which this server is listening.
+     */
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Start accepting a connection in a new daemon thread. The replay begins once a client connects.
+     */
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                CaptureReplayServer.this.serve();
+            }
+        }, "jvser replay " + this.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wait for the replay to complete.
+     *
+     * @return true if the replay completed (or failed), false if the timeout expired first
+     * @throws IOException if the replay failed
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        if (!this.completed.await(timeout, unit))
+            return false;
+        if (this.error != null)
+            throw this.error;
+        return true;
+    }
+
+    /**
+     * Get the number of serial data bytes replayed so far.
+     */
+    public long getDataBytesReplayed() {
+        return this.dataBytes.get();
+    }
+
+    /**
+     * Get the number of {@link ComPortCommand}s replayed so far.
+     */
+    public long getCommandsReplayed() {
+        return this.commands.get();
+    }
+
+    /**
+     * Stop this server and close any connection.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        Socket currentSocket = this.socket;
+        if (currentSocket != null) {
+            try {
+                currentSocket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        this.negotiated.countDown();
+    }
+
+    // Replay thread
+
+    private void serve() {
+        try {
+            Socket newSocket = this.serverSocket.accept();
+            this.serverSocket.close();
+            this.socket = newSocket;
+            if (this.closed) {
+                newSocket.close();
+                return;
+            }
+            newSocket.setTcpNoDelay(true);
+            this.startDrain(newSocket.getInputStream());
+            this.replay(newSocket);
+        } catch (IOException e) {
+            if (!this.closed) {
+                this.log.debug("replay of " + this.file + " failed", e);
+                this.error = e;
+            }
+        } catch (InterruptedException e) {
+            this.error = new InterruptedIOException("replay interrupted");
+        } finally {
+            this.completed.countDown();
+        }
+    }
+
+    private void replay(Socket replaySocket) throws IOException, InterruptedException {
+        final OutputStream output = new BufferedOutputStream(replaySocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+
+        // Negotiate options and wait for the client to start using COM-PORT-OPTION
+        output.write(new byte[] {
+            (byte)IAC, (byte)WILL, (byte)OPTION_BINARY, (byte)IAC, (byte)DO, (byte)OPTION_BINARY,
+            (byte)IAC, (byte)WILL, (byte)OPTION_SGA, (byte)IAC, (byte)DO, (byte)OPTION_SGA,
+            (byte)IAC, (byte)DO, (byte)RFC2217.COM_PORT_OPTION,
+        });
+        output.flush();
+        this.negotiated.await();
+
+        // Send records
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            ByteBuffer encoded = ByteBuffer.allocate(1024);
+            long firstTimestamp = -1;
+            final long startNanos = System.nanoTime();
+            while (!this.closed && reader.next()) {
+                final int type = reader.getType();
+                if (type != CaptureJournal.INBOUND_DATA && type != CaptureJournal.INBOUND_COMMAND)
+                    continue;
+
+                // Wait until it's time for this record
+                if (firstTimestamp == -1)
+                    firstTimestamp = reader.getTimestamp();
+                if (this.speed != MAX_SPEED) {
+                    final long due = startNanos + (long)((reader.getTimestamp() - firstTimestamp) / this.speed);
+                    final long delay = due - System.nanoTime();
+                    if (delay > 0) {
+                        output.flush();
+                        TimeUnit.NANOSECONDS.sleep(delay);
+                    }
+                }
+
+                // Encode record
+                final ByteBuffer data = reader.getData();
+                final int maxLength = 4 + data.remaining() * 2;
+                if (encoded.capacity() < maxLength)
+                    encoded = ByteBuffer.allocate(maxLength);
+                encoded.clear();
+                if (type == CaptureJournal.INBOUND_COMMAND) {
+                    encoded.put((byte)IAC).put((byte)SB);
+                    TelnetCodec.encode(data, encoded);
+                    encoded.put((byte)IAC).put((byte)SE);
+                    this.commands.incrementAndGet();
+                } else {
+                    this.dataBytes.addAndGet(data.remaining());
+                    TelnetCodec.encode(data, encoded);
+                }
+                output.write(encoded.array(), 0, encoded.position());
+            }
+            output.flush();
+        } finally {
+            reader.close();
+        }
+        replaySocket.shutdownOutput();
+    }
+
+    // Read and discard client input, noting when the client sends its first COM-PORT-OPTION subnegotiation
+    private void startDrain(final InputStream input) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] buf = new byte[1024];
+                int state = 0;                                      // 1 = IAC, 2 = IAC SB
+                try {
+                    int r;
+                    while ((r = input.read(buf)) != -1) {
+                        for (int i = 0; i < r; i++) {
+                            final int b = buf[i] & 0xff;
+                            if (state == 2 && b == RFC2217.COM_PORT_OPTION)
+                                CaptureReplayServer.this.negotiated.countDown();
+                            state = state == 0 && b == IAC ? 1 : state == 1 && b == SB ? 2 : 0;
+                        }
+                    }
+                } catch (IOException e) {
+                    // connection closed
+                } finally {
+                    CaptureReplayServer.this.negotiated.countDown();
+                }
+            }
+        }, "jvser replay drain " + this.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + this.file + "]";
+    }
+}
@@ -7,10 +7,15 @@
 
 package org.dellroad.jvser;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static org.dellroad.jvser.RFC2217.COM_PORT_OPTION;
 import static org.dellroad.jvser.RFC2217.SERVER_OFFSET;
+import static org.dellroad.jvser.TelnetCodec.IAC;
+import static org.dellroad.jvser.TelnetCodec.SB;
+import static org.dellroad.jvser.TelnetCodec.SE;
 
 /**
  * Superclass for RFC 2217 commands.
@@ -26,6 +31,8 @@ public abstract class ComPortCommand {
     final String name;
     final int[] bytes;
 
+    private byte[] encoding;                        // see precomputeEncoding()
+
     /**
      * Constructor.
      *
@@ -74,6 +81,59 @@ public abstract class ComPortCommand {
         return this.bytes.clone();                  // maintain immutability
     }
 
+    /**
+     * Get the length of the telnet encoding of this instance produced by {@link #encode encode()}.
+     *
+     * @return encoded length in bytes
+     */
+    public final int getEncodedLength() {
+        if (this.encoding != null)
+            return this.encoding.length;
+        int length = 4 + this.bytes.length;
+        for (int i = 0; i < this.bytes.length; i++) {
+            if ((this.bytes[i] & 0xff) == IAC)
+                length++;
+        }
+        return length;
+    }
+
+    /**
+     * Write the telnet encoding of this instance into the given buffer. The encoding is a complete subnegotiation:
+     * {@code IAC SB}, the encoding returned by {@link #getBytes}, with {@code IAC} bytes doubled, then {@code IAC SE}.
+     * Nothing is allocated.
+     *
+     * @param buf destination buffer
+     * @throws BufferOverflowException if {@code buf} has fewer than {@link #getEncodedLength} bytes remaining,
+     *  in which case nothing is written
+     * @throws java.nio.ReadOnlyBufferException if {@code buf} is read-only
+     */
+    public final void encode(ByteBuffer buf) {
+        if (this.encoding != null) {
+            buf.put(this.encoding);
+            return;
+        }
+        if (buf.remaining() < this.getEncodedLength())
+            throw new BufferOverflowException();
+        buf.put((byte)IAC).put((byte)SB);
+        for (int i = 0; i < this.bytes.length; i++) {
+            final byte b = (byte)this.bytes[i];
+            buf.put(b);
+            if (b == (byte)IAC)
+                buf.put(b);
+        }
+        buf.put((byte)IAC).put((byte)SE);
+    }
+
+    /**
+     * Compute and save the telnet encoding of this instance, so {@link #encode encode()} can simply copy it.
+     * Intended for shared instances, and must be invoked before the instance is published.
+     */
+    final void precomputeEncoding() {
+        ByteBuffer buf = ByteBuffer.allocate(this.getEncodedLength());
+        this.encode(buf);
+        this.encoding = buf.array();
+    }
+
     /**
      * Get the command byte.
      *
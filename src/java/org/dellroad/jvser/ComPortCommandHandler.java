@@ -0,0 +1,42 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+/**
+ * Receives server-to-client {@code COM-PORT-OPTION} commands as primitive values.
+ *
+ * <p>
+ * Unlike {@link ComPortCommandSwitch}, no {@link ComPortCommand} objects are involved.
+ * </p>
+ *
+ * @see RFC2217#dispatchServerCommand
+ */
+interface ComPortCommandHandler {
+
+    void onBaudRate(int baudRate);
+
+    void onDataSize(int dataSize);
+
+    void onParity(int parity);
+
+    void onStopSize(int stopSize);
+
+    void onControl(int control);
+
+    void onLineState(int lineState);
+
+    void onModemState(int modemState);
+
+    /**
+     * Handle any other command, including client-to-server commands and invalid commands.
+     *
+     * @param buf encoded command starting with the {@code COM-PORT-OPTION} byte
+     * @param len length of the encoded command
+     */
+    void onOther(byte[] buf, int len);
+}
@@ -8,7 +8,6 @@
 package org.dellroad.jvser;
 
 import org.apache.commons.net.telnet.TelnetOptionHandler;
-import org.apache.log4j.Logger;
 
 /**
  * RFC 2217 telnet COM-PORT-OPTION.
@@ -17,9 +16,10 @@ import org.apache.log4j.Logger;
  */
 public class ComPortOptionHandler extends TelnetOptionHandler {
 
-    private final Logger log = Logger.getLogger(getClass());
     private final TelnetSerialPort port;
 
+    private byte[] buf = new byte[16];
+
     protected ComPortOptionHandler(TelnetSerialPort telnetSerialPort) {
         super(RFC2217.COM_PORT_OPTION, true, false, true, false);
         if (telnetSerialPort == null)
@@ -30,24 +30,14 @@ public class ComPortOptionHandler extends TelnetOptionHandler {
     @Override
     public int[] answerSubnegotiation(int[] data, int length) {
 
-        // Copy data into buffer of the correct size
-        if (data.length != length) {
-            int[] data2 = new int[length];
-            System.arraycopy(data, 0, data2, 0, length);
-            data = data2;
-        }
-
-        // Decode option
-        ComPortCommand command;
-        try {
-            command = RFC2217.decodeComPortCommand(data);
-        } catch (IllegalArgumentException e) {
-            log.error(this.port.getName() + ": rec'd invalid COM-PORT-OPTION command: " + e.getMessage());
-            return null;
-        }
+        // Copy data into byte buffer
+        if (this.buf.length < length)
+            this.buf = new byte[length];
+        for (int i = 0; i < length; i++)
+            this.buf[i] = (byte)data[i];
 
         // Notify port
-        this.port.handleCommand(command);
+        this.port.handleCommand(this.buf, length);
         return null;
     }
 
@@ -38,6 +38,20 @@ import static org.dellroad.jvser.RFC2217.SET_CONTROL;
  */
 public class ControlCommand extends ComPortCommand {
 
+    private static final ControlCommand[] CLIENT_INSTANCES = new ControlCommand[CONTROL_OUTBOUND_FLOW_DSR + 1];
+    private static final ControlCommand[] SERVER_INSTANCES = new ControlCommand[CONTROL_OUTBOUND_FLOW_DSR + 1];
+
+    static {
+        for (int value = 0; value <= CONTROL_OUTBOUND_FLOW_DSR; value++) {
+            if (isValid(value)) {
+                CLIENT_INSTANCES[value] = new ControlCommand(true, value);
+                SERVER_INSTANCES[value] = new ControlCommand(false, value);
+                CLIENT_INSTANCES[value].precomputeEncoding();
+                SERVER_INSTANCES[value].precomputeEncoding();
+            }
+        }
+    }
+
     private int control;
 
     /**
@@ -53,31 +67,8 @@ public class ControlCommand extends ComPortCommand {
     public ControlCommand(int[] bytes) {
         super("SET-CONTROL", SET_CONTROL, bytes);
         this.control = bytes[2];
-        switch (this.control) {
-        case CONTROL_OUTBOUND_FLOW_REQUEST:
-        case CONTROL_OUTBOUND_FLOW_NONE:
-        case CONTROL_OUTBOUND_FLOW_XON_XOFF:
-        case CONTROL_OUTBOUND_FLOW_HARDWARE:
-        case CONTROL_BREAK_REQUEST:
-        case CONTROL_BREAK_ON:
-        case CONTROL_BREAK_OFF:
-        case CONTROL_DTR_REQUEST:
-        case CONTROL_DTR_ON:
-        case CONTROL_DTR_OFF:
-        case CONTROL_RTS_REQUEST:
-        case CONTROL_RTS_ON:
-        case CONTROL_RTS_OFF:
-        case CONTROL_INBOUND_FLOW_REQUEST:
-        case CONTROL_INBOUND_FLOW_NONE:
-        case CONTROL_INBOUND_FLOW_XON_XOFF:
-        case CONTROL_INBOUND_FLOW_HARDWARE:
-        case CONTROL_OUTBOUND_FLOW_DCD:
-        case CONTROL_INBOUND_FLOW_DTR:
-        case CONTROL_OUTBOUND_FLOW_DSR:
-            break;
-        default:
+        if (!isValid(this.control))
             throw new IllegalArgumentException("invalid control value " + this.control);
-        }
     }
 
     /**
@@ -95,6 +86,36 @@ public class ControlCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance for the given value. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     * @param control control value
+     * @throws IllegalArgumentException if {@code control} is not a valid RFC 2217 control value
+     */
+    public static ControlCommand valueOf(boolean client, int control) {
+        if (control >= 0 && control <= CONTROL_OUTBOUND_FLOW_DSR) {
+            ControlCommand command = (client ? CLIENT_INSTANCES : SERVER_INSTANCES)[control];
+            if (command != null)
+                return command;
+        }
+        throw new IllegalArgumentException("invalid control value " + control);
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static ControlCommand lookup(int[] bytes) {
+        if (bytes.length != 3 || bytes[0] != COM_PORT_OPTION || bytes[2] < 0 || bytes[2] > CONTROL_OUTBOUND_FLOW_DSR)
+            return null;
+        switch (bytes[1]) {
+        case SET_CONTROL:
+            return CLIENT_INSTANCES[bytes[2]];
+        case SET_CONTROL + SERVER_OFFSET:
+            return SERVER_INSTANCES[bytes[2]];
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         String desc;
@@ -184,5 +205,32 @@ public class ControlCommand extends ComPortCommand {
     int getMaxPayloadLength() {
         return 1;
     }
-}
 
+    static boolean isValid(int control) {
+        switch (control) {
+        case CONTROL_OUTBOUND_FLOW_REQUEST:
+        case CONTROL_OUTBOUND_FLOW_NONE:
+        case CONTROL_OUTBOUND_FLOW_XON_XOFF:
+        case CONTROL_OUTBOUND_FLOW_HARDWARE:
+        case CONTROL_BREAK_REQUEST:
+        case CONTROL_BREAK_ON:
+        case CONTROL_BREAK_OFF:
+        case CONTROL_DTR_REQUEST:
+        case CONTROL_DTR_ON:
+        case CONTROL_DTR_OFF:
+        case CONTROL_RTS_REQUEST:
+        case CONTROL_RTS_ON:
+        case CONTROL_RTS_OFF:
+        case CONTROL_INBOUND_FLOW_REQUEST:
+        case CONTROL_INBOUND_FLOW_NONE:
+        case CONTROL_INBOUND_FLOW_XON_XOFF:
+        case CONTROL_INBOUND_FLOW_HARDWARE:
+        case CONTROL_OUTBOUND_FLOW_DCD:
+        case CONTROL_INBOUND_FLOW_DTR:
+        case CONTROL_OUTBOUND_FLOW_DSR:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
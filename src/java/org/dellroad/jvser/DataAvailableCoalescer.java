@@ -0,0 +1,153 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.comm.SerialPortEvent;
+
+/**
+ * Coalesces {@link SerialPortEvent#DATA_AVAILABLE} notifications for one {@link TelnetSerialPort}.
+ *
+ * <p>
+ * Once an event has been sent, no more are sent until the application has drained the input buffer. The event may
+ * also be held back until a minimum number of bytes is available, but no longer than a maximum delay, which is
+ * timed by the shared timer. All state is atomic or volatile, so none of this locks.
+ * </p>
+ */
+final class DataAvailableCoalescer {
+
+    private final TelnetSerialPort port;
+    private final TelnetTransport transport;
+    private final AtomicBoolean armed = new AtomicBoolean(true);    // next event may be sent
+    private final AtomicBoolean timer = new AtomicBoolean();        // max delay timer is scheduled
+
+    private volatile boolean enabled;
+    private volatile int minBytes = 1;
+    private volatile long maxDelay;                                 // nanoseconds, or zero for none
+
+    DataAvailableCoalescer(TelnetSerialPort port, TelnetTransport transport) {
+        this.port = port;
+        this.transport = transport;
+    }
+
+    void enable(int minBytes, long maxDelay) {
+        this.minBytes = minBytes;
+        this.maxDelay = maxDelay;
+        this.armed.set(true);
+        this.enabled = true;
+    }
+
+    void disable() {
+        this.enabled = false;
+    }
+
+    boolean isEnabled() {
+        return this.enabled;
+    }
+
+    // This is invoked when new data is available, or the connection is lost
+    void dataAvailable() {
+        this.check(false);
+    }
+
+    // This is invoked after the application reads received data, possibly draining the buffer
+    void inputConsumed() {
+        if (this.enabled && !this.armed.get())
+            this.check(false);
+    }
+
+    // Send a coalesced event if it's due
+    private void check(boolean maxDelayExpired) {
+        int available;
+        try {
+            available = this.transport.available();
+        } catch (IOException e) {
+            available = -1;                                         // let the application discover the problem
+        }
+
+        // If we've already notified, re-arm once the buffer is drained; re-check in case data arrived meanwhile
+        if (!this.armed.get()) {
+            if (available != 0)
+                return;
+            this.armed.set(true);
+            try {
+                available = this.transport.available();
+            } catch (IOException e) {
+                available = -1;
+            }
+        }
+        if (available == 0)
+            return;
+
+        // Wait for more data, if configured, but no longer than the maximum delay or until the buffer is full.
+        // A TelnetClient only tells us when data arrives in an empty buffer, so we would never see minBytes reached.
+        int currentMinBytes = this.minBytes;
+        final long currentMaxDelay = this.maxDelay;
+        final InputRing ring = this.transport.getInputRing();
+        if (ring != null)
+            currentMinBytes = Math.min(currentMinBytes, ring.getCapacity());
+        else if (currentMaxDelay == 0)
+            currentMinBytes = 1;
+        if (available > 0 && available < currentMinBytes && !maxDelayExpired) {
+            if (currentMaxDelay > 0 && this.timer.compareAndSet(false, true)) {
+                Util.scheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        DataAvailableCoalescer.this.timer.set(false);
+                        if (DataAvailableCoalescer.this.enabled)
+                            DataAvailableCoalescer.this.check(true);
+                    }
+                }, currentMaxDelay, TimeUnit.NANOSECONDS);
+            }
+            return;
+        }
+
+        // Notify
+        if (this.armed.compareAndSet(true, false))
+            this.port.sendEvent(SerialPortEvent.DATA_AVAILABLE);
+    }
+
+    /**
+     * Input stream that lets its port know when the application has read received data.
+     */
+    static final class DrainTrackingInputStream extends FilterInputStream {
+
+        private final TelnetSerialPort port;
+
+        DrainTrackingInputStream(InputStream in, TelnetSerialPort port) {
+            super(in);
+            this.port = port;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int r = this.in.read();
+            this.port.inputConsumed();
+            return r;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            final int r = this.in.read(buf, off, len);
+            this.port.inputConsumed();
+            return r;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long r = this.in.skip(n);
+            this.port.inputConsumed();
+            return r;
+        }
+    }
+}
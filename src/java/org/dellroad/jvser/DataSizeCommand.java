@@ -23,6 +23,20 @@ import static org.dellroad.jvser.RFC2217.SET_DATASIZE;
  */
 public class DataSizeCommand extends ComPortCommand {
 
+    private static final DataSizeCommand[] CLIENT_INSTANCES = new DataSizeCommand[DATASIZE_8 + 1];
+    private static final DataSizeCommand[] SERVER_INSTANCES = new DataSizeCommand[DATASIZE_8 + 1];
+
+    static {
+        for (int value = 0; value <= DATASIZE_8; value++) {
+            if (isValid(value)) {
+                CLIENT_INSTANCES[value] = new DataSizeCommand(true, value);
+                SERVER_INSTANCES[value] = new DataSizeCommand(false, value);
+                CLIENT_INSTANCES[value].precomputeEncoding();
+                SERVER_INSTANCES[value].precomputeEncoding();
+            }
+        }
+    }
+
     private int dataSize;
 
     /**
@@ -38,16 +52,8 @@ public class DataSizeCommand extends ComPortCommand {
     public DataSizeCommand(int[] bytes) {
         super("SET-DATASIZE", SET_DATASIZE, bytes);
         this.dataSize = bytes[2];
-        switch (this.dataSize) {
-        case DATASIZE_REQUEST:
-        case DATASIZE_5:
-        case DATASIZE_6:
-        case DATASIZE_7:
-        case DATASIZE_8:
-            break;
-        default:
+        if (!isValid(this.dataSize))
             throw new IllegalArgumentException("invalid data size value " + this.dataSize);
-        }
     }
 
     /**
@@ -65,6 +71,36 @@ public class DataSizeCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance for the given value. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     * @param dataSize data size value
+     * @throws IllegalArgumentException if {@code dataSize} is not a valid RFC 2217 data size value
+     */
+    public static DataSizeCommand valueOf(boolean client, int dataSize) {
+        if (dataSize >= 0 && dataSize <= DATASIZE_8) {
+            DataSizeCommand command = (client ? CLIENT_INSTANCES : SERVER_INSTANCES)[dataSize];
+            if (command != null)
+                return command;
+        }
+        throw new IllegalArgumentException("invalid data size value " + dataSize);
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static DataSizeCommand lookup(int[] bytes) {
+        if (bytes.length != 3 || bytes[0] != COM_PORT_OPTION || bytes[2] < 0 || bytes[2] > DATASIZE_8)
+            return null;
+        switch (bytes[1]) {
+        case SET_DATASIZE:
+            return CLIENT_INSTANCES[bytes[2]];
+        case SET_DATASIZE + SERVER_OFFSET:
+            return SERVER_INSTANCES[bytes[2]];
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         String desc;
@@ -109,5 +145,17 @@ public class DataSizeCommand extends ComPortCommand {
     int getMaxPayloadLength() {
         return 1;
     }
-}
 
+    static boolean isValid(int dataSize) {
+        switch (dataSize) {
+        case DATASIZE_REQUEST:
+        case DATASIZE_5:
+        case DATASIZE_6:
+        case DATASIZE_7:
+        case DATASIZE_8:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers a {@link TelnetSerialPort}'s events, either directly in the thread that generates them or, if an
+ * {@link Executor} is configured, via a bounded queue drained by one executor task at a time.
+ *
+ * <p>
+ * Because at most one drain task runs at a time, events are always delivered in order. The queue is a preallocated
+ * ring of primitive values, including each event's timestamp and sequence number, so queueing an event does not
+ * allocate. To be fair to other ports sharing the executor, a drain task delivers at most {@link #MAX_BATCH} events
+ * before resubmitting itself.
+ * </p>
+ */
+final class EventDispatcher {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_BATCH = 64;
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final TelnetSerialPort port;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            EventDispatcher.this.drain();
+        }
+    };
+
+    private volatile Executor executor;
+
+    // Protected by "lock"
+    private int[] ring = new int[DEFAULT_CAPACITY];                 // (event type << 1) | new value
+    private long[] times = new long[DEFAULT_CAPACITY];
+    private long[] seqs = new long[DEFAULT_CAPACITY];
+    private int head;
+    private int count;
+    private EventOverflowPolicy overflowPolicy = EventOverflowPolicy.DROP_OLDEST;
+    private boolean running;                                        // a drain task is scheduled or running
+
+    EventDispatcher(TelnetSerialPort port) {
+        this.port = port;
+    }
+
+    Executor getExecutor() {
+        return this.executor;
+    }
+
+    void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Change the queue capacity. Any queued events that no longer fit are dropped, oldest first.
+     */
+    void setCapacity(int capacity, EventOverflowPolicy overflowPolicy) {
+        this.lock.lock();
+        try {
+            final int[] newRing = new int[capacity];
+            final long[] newTimes = new long[capacity];
+            final long[] newSeqs = new long[capacity];
+            final int keep = Math.min(this.count, capacity);
+            this.dropped.addAndGet(this.count - keep);
+            for (int i = 0; i < keep; i++) {
+                final int index = (this.head + this.count - keep + i) % this.ring.length;
+                newRing[i] = this.ring[index];
+                newTimes[i] = this.times[index];
+                newSeqs[i] = this.seqs[index];
+            }
+            this.ring = newRing;
+            this.times = newTimes;
+            this.seqs = newSeqs;
+            this.head = 0;
+            this.count = keep;
+            this.overflowPolicy = overflowPolicy;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        this.lock.lock();
+        try {
+            return this.ring.length;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    EventOverflowPolicy getOverflowPolicy() {
+        this.lock.lock();
+        try {
+            return this.overflowPolicy;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Deliver an event, or queue it for delivery by the executor. Never waits for the application.
+     */
+    void dispatch(int type, boolean newValue, long nanoTime, long seq) {
+        final Executor currentExecutor = this.executor;
+        boolean direct;
+        boolean schedule = false;
+        this.lock.lock();
+        try {
+
+            // Deliver directly if there is no executor and nothing queued that should go first
+            direct = currentExecutor == null && !this.running;
+            if (!direct) {
+
+                // Make room if necessary
+                if (this.count == this.ring.length) {
+                    this.dropped.incrementAndGet();
+                    if (this.overflowPolicy == EventOverflowPolicy.DROP_NEWEST)
+                        return;
+                    this.head = (this.head + 1) % this.ring.length;
+                    this.count--;
+                }
+
+                // Add event and start a drain task if needed
+                final int index = (this.head + this.count) % this.ring.length;
+                this.ring[index] = (type << 1) | (newValue ? 1 : 0);
+                this.times[index] = nanoTime;
+                this.seqs[index] = seq;
+                this.count++;
+                if (!this.running) {
+                    this.running = true;
+                    schedule = true;
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (direct)
+            this.port.deliverEvent(type, newValue, nanoTime, seq);
+        else if (schedule && !this.submit(currentExecutor)) {
+            this.lock.lock();
+            try {
+                this.dropped.addAndGet(this.count);
+                this.count = 0;
+                this.running = false;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    // Submit the drain task to the executor
+    private boolean submit(Executor currentExecutor) {
+        try {
+            currentExecutor.execute(this.drainer);
+            return true;
+        } catch (RejectedExecutionException e) {
+            this.log.warn(this.port.getName() + ": event executor rejected task; dropping queued events", e);
+            return false;
+        }
+    }
+
+    // Deliver queued events
+    private void drain() {
+        int delivered = 0;
+        while (true) {
+
+            // Yield to other ports sharing the executor after a while
+            if (delivered == MAX_BATCH) {
+                final Executor currentExecutor = this.executor;
+                if (currentExecutor != null) {
+                    try {
+                        currentExecutor.execute(this.drainer);
+                        return;
+                    } catch (RejectedExecutionException e) {
+                        // keep going in this thread
+                    }
+                }
+                delivered = 0;
+            }
+
+            // Deliver next event
+            int event;
+            long nanoTime;
+            long seq;
+            this.lock.lock();
+            try {
+                if (this.count == 0) {
+                    this.running = false;
+                    return;
+                }
+                event = this.ring[this.head];
+                nanoTime = this.times[this.head];
+                seq = this.seqs[this.head];
+                this.head = (this.head + 1) % this.ring.length;
+                this.count--;
+            } finally {
+                this.lock.unlock();
+            }
+            this.port.deliverEvent(event >>> 1, (event & 1) != 0, nanoTime, seq);
+            delivered++;
+        }
+    }
+}
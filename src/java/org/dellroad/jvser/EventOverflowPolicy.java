@@ -0,0 +1,31 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+/**
+ * What a {@link TelnetSerialPort} does with a new event when its event queue is full.
+ *
+ * <p>
+ * Events are only queued when an {@linkplain TelnetSerialPort#setEventExecutor event executor} is configured.
+ * In no case does the thread receiving network data wait for the application to catch up.
+ * </p>
+ *
+ * @see TelnetSerialPort#setEventQueueCapacity
+ */
+public enum EventOverflowPolicy {
+
+    /**
+     * Discard the oldest queued event to make room for the new event. This favors the most recent state.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST;
+}
@@ -18,6 +18,14 @@ import static org.dellroad.jvser.RFC2217.SERVER_OFFSET;
  */
 public class FlowControlResumeCommand extends ComPortCommand {
 
+    private static final FlowControlResumeCommand CLIENT_INSTANCE = new FlowControlResumeCommand(true);
+    private static final FlowControlResumeCommand SERVER_INSTANCE = new FlowControlResumeCommand(false);
+
+    static {
+        CLIENT_INSTANCE.precomputeEncoding();
+        SERVER_INSTANCE.precomputeEncoding();
+    }
+
     /**
      * Decoding constructor.
      *
@@ -43,6 +51,29 @@ public class FlowControlResumeCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     */
+    public static FlowControlResumeCommand valueOf(boolean client) {
+        return client ? CLIENT_INSTANCE : SERVER_INSTANCE;
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static FlowControlResumeCommand lookup(int[] bytes) {
+        if (bytes.length != 2 || bytes[0] != COM_PORT_OPTION)
+            return null;
+        switch (bytes[1]) {
+        case FLOWCONTROL_RESUME:
+            return CLIENT_INSTANCE;
+        case FLOWCONTROL_RESUME + SERVER_OFFSET:
+            return SERVER_INSTANCE;
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return this.getName();
@@ -18,6 +18,14 @@ import static org.dellroad.jvser.RFC2217.SERVER_OFFSET;
  */
 public class FlowControlSuspendCommand extends ComPortCommand {
 
+    private static final FlowControlSuspendCommand CLIENT_INSTANCE = new FlowControlSuspendCommand(true);
+    private static final FlowControlSuspendCommand SERVER_INSTANCE = new FlowControlSuspendCommand(false);
+
+    static {
+        CLIENT_INSTANCE.precomputeEncoding();
+        SERVER_INSTANCE.precomputeEncoding();
+    }
+
     /**
      * Decoding constructor.
      *
@@ -43,6 +51,29 @@ public class FlowControlSuspendCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     */
+    public static FlowControlSuspendCommand valueOf(boolean client) {
+        return client ? CLIENT_INSTANCE : SERVER_INSTANCE;
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static FlowControlSuspendCommand lookup(int[] bytes) {
+        if (bytes.length != 2 || bytes[0] != COM_PORT_OPTION)
+            return null;
+        switch (bytes[1]) {
+        case FLOWCONTROL_SUSPEND:
+            return CLIENT_INSTANCE;
+        case FLOWCONTROL_SUSPEND + SERVER_OFFSET:
+            return SERVER_INSTANCE;
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         return this.getName();
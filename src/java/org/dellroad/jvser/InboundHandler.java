@@ -0,0 +1,196 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.comm.SerialPortEvent;
+
+import org.apache.log4j.Logger;
+
+import static org.dellroad.jvser.RFC2217.CONTROL_DTR_OFF;
+import static org.dellroad.jvser.RFC2217.CONTROL_DTR_ON;
+import static org.dellroad.jvser.RFC2217.CONTROL_RTS_OFF;
+import static org.dellroad.jvser.RFC2217.CONTROL_RTS_ON;
+import static org.dellroad.jvser.RFC2217.LINESTATE_BREAK_DETECT;
+import static org.dellroad.jvser.RFC2217.LINESTATE_FRAMING_ERROR;
+import static org.dellroad.jvser.RFC2217.LINESTATE_OVERRUN_ERROR;
+import static org.dellroad.jvser.RFC2217.LINESTATE_PARITY_ERROR;
+import static org.dellroad.jvser.RFC2217.LINESTATE_TRANSFER_SHIFT_REGISTER_EMPTY;
+import static org.dellroad.jvser.RFC2217.MODEMSTATE_CARRIER_DETECT;
+import static org.dellroad.jvser.RFC2217.MODEMSTATE_CTS;
+import static org.dellroad.jvser.RFC2217.MODEMSTATE_DSR;
+import static org.dellroad.jvser.RFC2217.MODEMSTATE_RING_INDICATOR;
+import static org.dellroad.jvser.TelnetSerialPort.SIGNAL_DTR;
+import static org.dellroad.jvser.TelnetSerialPort.SIGNAL_LINESTATE;
+import static org.dellroad.jvser.TelnetSerialPort.SIGNAL_LINESTATE_SHIFT;
+import static org.dellroad.jvser.TelnetSerialPort.SIGNAL_MODEMSTATE;
+import static org.dellroad.jvser.TelnetSerialPort.SIGNAL_RTS;
+
+/**
+ * Handles {@code COM-PORT-OPTION} commands received by a {@link TelnetSerialPort} from its access server,
+ * without creating any objects (except when debug logging).
+ */
+final class InboundHandler implements ComPortCommandHandler {
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final TelnetSerialPort port;
+    private final ReentrantLock lock;                               // the port's lock, which protects "serialSettings"
+    private final SerialSettings serialSettings;
+    private final ModemStateWaiters modemStateWaiters;
+    private final Purger purger;
+
+    InboundHandler(TelnetSerialPort port, ReentrantLock lock, SerialSettings serialSettings,
+      ModemStateWaiters modemStateWaiters, Purger purger) {
+        this.port = port;
+        this.lock = lock;
+        this.serialSettings = serialSettings;
+        this.modemStateWaiters = modemStateWaiters;
+        this.purger = purger;
+    }
+
+    @Override
+    public void onBaudRate(int baudRate) {
+        if (this.log.isDebugEnabled())
+            this.logReceived(new BaudRateCommand(false, baudRate), "");
+        this.lock.lock();
+        try {
+            this.serialSettings.setBaudRate(baudRate);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onDataSize(int dataSize) {
+        this.logReceived(DataSizeCommand.valueOf(false, dataSize), "");
+        this.lock.lock();
+        try {
+            this.serialSettings.setDataSize(dataSize);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onParity(int parity) {
+        this.logReceived(ParityCommand.valueOf(false, parity), "");
+        this.lock.lock();
+        try {
+            this.serialSettings.setParity(parity);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onStopSize(int stopSize) {
+        this.logReceived(StopSizeCommand.valueOf(false, stopSize), "");
+        this.lock.lock();
+        try {
+            this.serialSettings.setStopSize(stopSize);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void onControl(int control) {
+        this.lock.lock();
+        try {
+            switch (control) {
+            case CONTROL_DTR_ON:
+                this.port.updateSignals(SIGNAL_DTR, SIGNAL_DTR);
+                break;
+            case CONTROL_DTR_OFF:
+                this.port.updateSignals(SIGNAL_DTR, 0);
+                break;
+            case CONTROL_RTS_ON:
+                this.port.updateSignals(SIGNAL_RTS, SIGNAL_RTS);
+                break;
+            case CONTROL_RTS_OFF:
+                this.port.updateSignals(SIGNAL_RTS, 0);
+                break;
+            default:
+                if (this.serialSettings.setFlowControl(control))
+                    break;
+                this.logReceived(ControlCommand.valueOf(false, control), " (ignoring)");
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.logReceived(ControlCommand.valueOf(false, control), "");
+    }
+
+    @Override
+    public void onLineState(int lineState) {
+        if (this.log.isDebugEnabled())
+            this.logReceived(new NotifyLineStateCommand(false, lineState), "");
+        this.port.updateSignals(SIGNAL_LINESTATE, lineState << SIGNAL_LINESTATE_SHIFT);
+        final int notify = this.port.getLineStateNotify() & lineState;     // notify only if bit is equal to 1
+        if ((notify & LINESTATE_TRANSFER_SHIFT_REGISTER_EMPTY) != 0)
+            this.port.sendEvent(SerialPortEvent.OUTPUT_BUFFER_EMPTY);
+        if ((notify & LINESTATE_BREAK_DETECT) != 0)
+            this.port.sendEvent(SerialPortEvent.BI);
+        if ((notify & LINESTATE_FRAMING_ERROR) != 0)
+            this.port.sendEvent(SerialPortEvent.FE);
+        if ((notify & LINESTATE_PARITY_ERROR) != 0)
+            this.port.sendEvent(SerialPortEvent.PE);
+        if ((notify & LINESTATE_OVERRUN_ERROR) != 0)
+            this.port.sendEvent(SerialPortEvent.OE);
+    }
+
+    @Override
+    public void onModemState(int modemState) {
+        if (this.log.isDebugEnabled())
+            this.logReceived(new NotifyModemStateCommand(false, modemState), "");
+        final int previous = this.port.updateSignals(SIGNAL_MODEMSTATE, modemState);
+        this.modemStateWaiters.modemStateChanged(modemState);
+        final int notify = this.port.getModemStateNotify()
+          & (modemState ^ previous);                                // notify only if bit has changed
+        if ((notify & MODEMSTATE_CARRIER_DETECT) != 0)
+            this.port.sendEvent(SerialPortEvent.CD, (modemState & MODEMSTATE_CARRIER_DETECT) != 0);
+        if ((notify & MODEMSTATE_RING_INDICATOR) != 0)
+            this.port.sendEvent(SerialPortEvent.RI, (modemState & MODEMSTATE_RING_INDICATOR) != 0);
+        if ((notify & MODEMSTATE_DSR) != 0)
+            this.port.sendEvent(SerialPortEvent.DSR, (modemState & MODEMSTATE_DSR) != 0);
+        if ((notify & MODEMSTATE_CTS) != 0)
+            this.port.sendEvent(SerialPortEvent.CTS, (modemState & MODEMSTATE_CTS) != 0);
+    }
+
+    // Decode the command so we can log it properly
+    @Override
+    public void onOther(byte[] buf, int len) {
+        int[] bytes = new int[len];
+        for (int i = 0; i < len; i++)
+            bytes[i] = buf[i] & 0xff;
+        ComPortCommand command;
+        try {
+            command = RFC2217.decodeComPortCommand(bytes);
+        } catch (IllegalArgumentException e) {
+            this.log.error(this.port.getName() + ": rec'd invalid COM-PORT-OPTION command: " + e.getMessage());
+            return;
+        }
+        if (!command.isServerCommand()) {
+            this.log.warn(this.port.getName() + ": rec'd " + command + " (ignoring unexpected client command)");
+            return;
+        }
+        if (command instanceof PurgeDataCommand) {
+            this.logReceived(command, "");
+            this.purger.acknowledged();
+            return;
+        }
+        this.logReceived(command, " (ignoring)");
+    }
+
+    private void logReceived(ComPortCommand command, String suffix) {
+        if (this.log.isDebugEnabled())
+            this.log.debug(this.port.getName() + ": rec'd " + command + suffix);
+    }
+}
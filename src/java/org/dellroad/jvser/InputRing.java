@@ -0,0 +1,470 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Single-producer, single-consumer ring buffer for received serial data.
+ *
+ * <p>
+ * The producer is the transport's I/O thread; the consumer is whichever thread is reading from the port.
+ * Data is handed off without locking: the producer publishes new data by advancing the volatile {@code tail}
+ * position, and the consumer releases space by advancing the volatile {@code head} position. A lock is used only
+ * when one side must block waiting for the other, in which case it sets a "waiting" flag that the other side checks
+ * after advancing its position. Because the flag is set before, and the position checked after, at least one of the
+ * two sides always sees the other's update, so no wakeups are lost.
+ * </p>
+ *
+ * <p>
+ * Consumers are serialized with a separate lock that the producer never acquires, so the port may safely be read
+ * from more than one thread, although there is normally only one.
+ * </p>
+ */
+final class InputRing extends InputStream {
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    private final ReentrantLock readLock = new ReentrantLock();        // serializes consumers
+    private final ReentrantLock waitLock = new ReentrantLock();        // used only for blocking
+    private final Condition notEmpty = this.waitLock.newCondition();
+    private final Condition notFull = this.waitLock.newCondition();
+
+    private volatile byte[] buf;
+    private volatile ByteBuffer view;                                   // wraps "buf", for word-at-a-time scanning
+    private volatile long head;                                         // written only by the consumer
+    private volatile long tail;                                         // written only by the producer
+    private volatile boolean eof;
+    private volatile boolean readerWaiting;
+    private volatile boolean roomWanted;
+    private volatile boolean started;
+    private volatile int peak;                                          // written only by the producer
+    private volatile int receiveThreshold;
+    private volatile long receiveTimeout = -1;
+    private volatile int framingByte = -1;
+    private int mask;
+
+    private Runnable drainListener;
+
+    InputRing() {
+        this.setCapacity(DEFAULT_CAPACITY);
+    }
+
+    // Configuration
+
+    /**
+     * Set the capacity of this ring. The actual capacity is rounded up to a power of two.
+     *
+     * @throws IllegalStateException if {@link #start} has been invoked
+     */
+    void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity < 1");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        this.waitLock.lock();
+        try {
+            if (this.started)
+                throw new IllegalStateException("already started");
+            this.mask = size - 1;
+            this.buf = new byte[size];
+            this.view = ByteBuffer.wrap(this.buf);
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    /**
+     * Prepare for use by the producer. After this method is invoked, the capacity may no longer be changed.
+     */
+    void start() {
+        this.waitLock.lock();
+        try {
+            this.started = true;
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return this.buf.length;
+    }
+
+    /**
+     * Get the number of bytes currently buffered.
+     */
+    int getOccupancy() {
+        return (int)(this.tail - this.head);
+    }
+
+    /**
+     * Get the largest number of bytes that have been buffered at one time.
+     */
+    int getPeakOccupancy() {
+        return this.peak;
+    }
+
+    /**
+     * Set the listener notified, by the consumer thread, when space becomes available after {@link #room}
+     * returned zero.
+     */
+    void setDrainListener(Runnable drainListener) {
+        this.drainListener = drainListener;
+    }
+
+    // Producer side
+
+    /**
+     * Get the amount of free space. If zero is returned, the {@linkplain #setDrainListener drain listener}
+     * will be notified once space becomes available.
+     */
+    int room() {
+        assert this.started;
+        int room = this.buf.length - (int)(this.tail - this.head);
+        if (room == 0) {
+            this.roomWanted = true;
+            room = this.buf.length - (int)(this.tail - this.head);
+        }
+        return room;
+    }
+
+    /**
+     * Wait until there is free space or end of stream has been signaled.
+     */
+    void awaitRoom() throws InterruptedIOException {
+        if (this.room() > 0)
+            return;
+        this.waitLock.lock();
+        try {
+            while (!this.eof) {
+                this.roomWanted = true;
+                if (this.tail - this.head < this.buf.length)
+                    break;
+                this.notFull.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for input buffer space");
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    /**
+     * Add one byte. There must be room for it.
+     */
+    void put(int b) {
+        final long t = this.tail;
+        assert t - this.head < this.buf.length;
+        this.buf[(int)t & this.mask] = (byte)b;
+        this.publish(t + 1);
+    }
+
+    /**
+     * Transfer {@code len} bytes from {@code src}. There must be room for them.
+     */
+    void put(ByteBuffer src, int len) {
+        final long t = this.tail;
+        final byte[] array = this.buf;
+        assert t - this.head + len <= array.length;
+        int index = (int)t & this.mask;
+        int chunk = Math.min(len, array.length - index);
+        src.get(array, index, chunk);
+        src.get(array, 0, len - chunk);
+        this.publish(t + len);
+    }
+
+    private void publish(long newTail) {
+        this.tail = newTail;
+        int occupancy = (int)(newTail - this.head);
+        if (occupancy > this.peak)
+            this.peak = occupancy;
+        if (this.readerWaiting) {
+            this.waitLock.lock();
+            try {
+                this.notEmpty.signalAll();
+            } finally {
+                this.waitLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Signal end of stream. Data already buffered may still be read.
+     */
+    void setEOF() {
+        this.eof = true;
+        this.waitLock.lock();
+        try {
+            this.notEmpty.signalAll();
+            this.notFull.signalAll();
+        } finally {
+            this.waitLock.unlock();
+        }
+    }
+
+    // Consumer side
+
+    /**
+     * Set the receive threshold: the number of bytes {@link #read(ByteBuffer)} waits for before returning.
+     *
+     * @param threshold receive threshold, or zero to return as soon as any data is available
+     */
+    void setReceiveThreshold(int threshold) {
+        this.receiveThreshold = threshold;
+    }
+
+    /**
+     * Set the receive timeout: the maximum time {@link #read(ByteBuffer)} waits for its receive condition.
+     *
+     * @param timeout timeout in nanoseconds, or -1 to wait indefinitely
+     */
+    void setReceiveTimeout(long timeout) {
+        this.receiveTimeout = timeout;
+    }
+
+    /**
+     * Set the framing byte: the byte value which, when received, causes {@link #read(ByteBuffer)} to return.
+     *
+     * @param framingByte framing byte, or -1 to disable framing
+     */
+    void setReceiveFraming(int framingByte) {
+        this.framingByte = framingByte;
+    }
+
+    /**
+     * Read a single byte, subject to the receive timeout.
+     *
+     * @return byte read, or -1 on end of stream or if the receive timeout expired
+     */
+    @Override
+    public int read() throws InterruptedIOException {
+        final int b;
+        this.readLock.lock();
+        try {
+            final long h = this.head;
+            long t = this.tail;
+            if (t == h && (t = this.awaitData(h + 1, this.receiveTimeout)) == h)
+                return -1;
+            b = this.buf[(int)h & this.mask] & 0xff;
+            this.head = h + 1;
+        } finally {
+            this.readLock.unlock();
+        }
+        this.released();
+        return b;
+    }
+
+    /**
+     * Read into the given array, blocking until the receive condition is satisfied, as for {@link #read(ByteBuffer)}.
+     *
+     * @return number of bytes read (zero only if the receive timeout expired or {@code len} is zero), or -1 on end of stream
+     */
+    @Override
+    public int read(byte[] data, int off, int len) throws InterruptedIOException {
+        if (off < 0 || len < 0 || off + len > data.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        int total;
+        this.readLock.lock();
+        try {
+            final long h = this.head;
+            final long t = this.awaitReceive(h, len);
+            if (t == h)
+                return this.eof ? -1 : 0;
+            total = (int)Math.min(t - h, len);
+            final byte[] array = this.buf;
+            final int index = (int)h & this.mask;
+            final int chunk = Math.min(total, array.length - index);
+            System.arraycopy(array, index, data, off, chunk);
+            System.arraycopy(array, 0, data, off + chunk, total - chunk);
+            this.head = h + total;
+        } finally {
+            this.readLock.unlock();
+        }
+        this.released();
+        return total;
+    }
+
+    /**
+     * Read into the given buffer, blocking until the receive condition is satisfied. By default, that is
+     * when at least one byte is available; if a receive threshold is set, when the lesser of the threshold and
+     * the space remaining in {@code dst} is available. If a framing byte is set, the read also returns as soon as
+     * the framing byte is received, and the data returned stops just after it; in that case, without a receive
+     * threshold the read otherwise waits until {@code dst} is full. The read also returns if this ring fills up.
+     * If a receive timeout is set and expires first, whatever data is available is returned, possibly none.
+     *
+     * @return number of bytes read (zero only if the receive timeout expired), or -1 on end of stream
+     */
+    int read(ByteBuffer dst) throws InterruptedIOException {
+        if (!dst.hasRemaining())
+            return 0;
+        int total;
+        this.readLock.lock();
+        try {
+            final long h = this.head;
+            final long t = this.awaitReceive(h, dst.remaining());
+            if (t == h)
+                return this.eof ? -1 : 0;
+            total = this.transfer(h, t, dst);
+        } finally {
+            this.readLock.unlock();
+        }
+        this.released();
+        return total;
+    }
+
+    // Wait until the receive condition is satisfied for a read of up to "remaining" bytes at "h"; returns the position
+    // to read up to. Caller must hold the read lock.
+    private long awaitReceive(long h, int remaining) throws InterruptedIOException {
+        final int framing = this.framingByte;
+        final int threshold = this.receiveThreshold;
+        int want = threshold > 0 ? Math.min(threshold, remaining) : framing != -1 ? remaining : 1;
+        want = Math.min(want, this.buf.length);                         // a full buffer always satisfies a read
+        final long timeout = this.receiveTimeout;
+        if (framing != -1)
+            return this.awaitFrame(h, remaining, want, (byte)framing, timeout);
+        final long t = this.tail;
+        return t - h < want ? this.awaitData(h + want, timeout) : t;
+    }
+
+    /**
+     * Read whatever data is available into the given buffer without blocking, ignoring the receive settings.
+     *
+     * @return number of bytes read, or -1 if none are available and end of stream has been signaled
+     */
+    int poll(ByteBuffer dst) {
+        if (!dst.hasRemaining())
+            return 0;
+        int total;
+        this.readLock.lock();
+        try {
+            final long h = this.head;
+            final long t = this.tail;
+            if (t == h)
+                return this.eof && this.tail == h ? -1 : 0;
+            total = this.transfer(h, t, dst);
+        } finally {
+            this.readLock.unlock();
+        }
+        this.released();
+        return total;
+    }
+
+    // Copy up to t - h bytes into dst and advance head; caller must hold the read lock
+    private int transfer(long h, long t, ByteBuffer dst) {
+        final byte[] array = this.buf;
+        final int total = (int)Math.min(t - h, dst.remaining());
+        final int index = (int)h & this.mask;
+        final int chunk = Math.min(total, array.length - index);
+        dst.put(array, index, chunk);
+        dst.put(array, 0, total - chunk);
+        this.head = h + total;
+        return total;
+    }
+
+    // Wake up the producer if it is waiting for space
+    private void released() {
+        if (!this.roomWanted)
+            return;
+        this.roomWanted = false;
+        this.waitLock.lock();
+        try {
+            this.notFull.signalAll();
+        } finally {
+            this.waitLock.unlock();
+        }
+        if (this.drainListener != null)
+            this.drainListener.run();
+    }
+
+    // Wait until the tail reaches "target", end of stream, or timeout; returns the tail position
+    private long awaitData(long target, long timeout) throws InterruptedIOException {
+        this.waitLock.lock();
+        try {
+            this.readerWaiting = true;
+            if (timeout < 0) {
+                while (this.tail < target && !this.eof)
+                    this.notEmpty.await();
+            } else {
+                long nanos = timeout;
+                while (this.tail < target && !this.eof && nanos > 0)
+                    nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.tail;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while reading");
+        } finally {
+            this.readerWaiting = false;
+            this.waitLock.unlock();
+        }
+    }
+
+    // Wait until the framing byte or "want" bytes are available, end of stream, or timeout; returns the position
+    // to read up to. Data is scanned only once, as it arrives.
+    private long awaitFrame(long h, int remaining, int want, byte framing, long timeout) throws InterruptedIOException {
+        final long deadline = timeout >= 0 ? System.nanoTime() + timeout : 0;
+        long scanned = h;
+        while (true) {
+            final boolean done = this.eof;                                  // check before reading tail
+            final long limit = Math.min(this.tail, h + remaining);
+            final long index = this.indexOf(scanned, limit, framing);
+            if (index != -1)
+                return index + 1;
+            if (limit - h >= want || done)
+                return limit;
+            scanned = limit;
+            long nanos = -1;
+            if (timeout >= 0 && (nanos = deadline - System.nanoTime()) <= 0)
+                return limit;
+            this.awaitData(limit + 1, nanos);
+        }
+    }
+
+    // Find the first occurrence of "b" at positions [from, to), or -1 if not found; caller must hold the read lock
+    private long indexOf(long from, long to, byte b) {
+        final ByteBuffer array = this.view;
+        while (from < to) {
+            final int start = (int)from & this.mask;
+            final int end = start + (int)Math.min(to - from, array.capacity() - start);
+            final int index = TelnetCodec.indexOf(array, start, end, b);
+            if (index != -1)
+                return from + (index - start);
+            from += end - start;
+        }
+        return -1;
+    }
+
+    @Override
+    public int available() {
+        return (int)(this.tail - this.head);
+    }
+
+    /**
+     * Get the number of bytes available, or -1 if there are none and end of stream has been signaled.
+     */
+    int availableOrEOF() {
+        int available = this.available();
+        if (available == 0 && this.eof && this.available() == 0)
+            return -1;
+        return available;
+    }
+
+    @Override
+    public void close() {
+        this.setEOF();
+    }
+}
+
@@ -0,0 +1,209 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.ArrayList;
+import java.util.TooManyListenersException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The event listeners registered with one {@link TelnetSerialPort}, each with its own event mask.
+ *
+ * <p>
+ * Registrations are kept in a copy-on-write array, so delivering an event, and checking whether any listener
+ * is interested in an event type, does not lock. A {@link SerialPortEventListener} is adapted to the
+ * {@link TelnetSerialEventListener} interface when it is registered, so the adapter is the only place
+ * {@link SerialPortEvent} objects are created.
+ * </p>
+ */
+final class ListenerRegistry {
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile Registration[] registrations = new Registration[0];   // copy on write, under "lock"
+    private volatile int eventMask;                                 // union of all listeners' event masks
+
+    /**
+     * Add the primary listener, which receives all event types.
+     *
+     * @param listener primary listener, or null to only check that there isn't one already
+     * @throws TooManyListenersException if there is already a primary listener
+     */
+    void addPrimary(SerialPortEventListener listener, int allEvents) throws TooManyListenersException {
+        this.lock.lock();
+        try {
+            for (Registration registration : this.registrations) {
+                if (registration.primary)
+                    throw new TooManyListenersException("only one listener allowed");
+            }
+            if (listener != null)
+                this.update(null, new Registration(listener, new SerialPortEventAdapter(listener), allEvents, true));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void removePrimary() {
+        this.lock.lock();
+        try {
+            for (Registration registration : this.registrations) {
+                if (registration.primary) {
+                    this.update(registration, null);
+                    break;
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Add a non-primary listener, or replace its event mask if already registered.
+     */
+    void add(SerialPortEventListener listener, int eventMask) {
+        this.add(listener, new SerialPortEventAdapter(listener), eventMask);
+    }
+
+    /**
+     * Add a non-primary listener, or replace its event mask if already registered.
+     */
+    void add(TelnetSerialEventListener listener, int eventMask) {
+        this.add(listener, listener, eventMask);
+    }
+
+    private void add(Object key, TelnetSerialEventListener listener, int eventMask) {
+        this.lock.lock();
+        try {
+            this.update(this.find(key), new Registration(key, listener, eventMask, false));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove a non-primary listener.
+     *
+     * @return true if {@code key} was registered
+     */
+    boolean remove(Object key) {
+        this.lock.lock();
+        try {
+            final Registration registration = this.find(key);
+            if (registration == null)
+                return false;
+            this.update(registration, null);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void removeAll() {
+        this.lock.lock();
+        try {
+            this.registrations = new Registration[0];
+            this.eventMask = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Determine whether any listener is interested in the given event type. Does not lock.
+     */
+    boolean isInterested(int type) {
+        return (this.eventMask & (1 << type)) != 0;
+    }
+
+    /**
+     * Notify the interested listeners of an event, in the order they were registered.
+     * Exceptions thrown by listeners are logged and otherwise ignored.
+     */
+    void deliver(TelnetSerialPort port, int type, boolean newValue, long nanoTime, long seq) {
+        final int bit = 1 << type;
+        for (Registration registration : this.registrations) {
+            if ((registration.eventMask & bit) == 0)
+                continue;
+            try {
+                registration.listener.onSerialEvent(port, type, !newValue, newValue, nanoTime, seq);
+            } catch (Exception e) {
+                this.log.warn(port.getName() + ": exception from listener " + registration.key, e);
+            }
+        }
+    }
+
+    // Find the non-primary registration for the given listener, if any; caller must hold the lock
+    private Registration find(Object key) {
+        assert this.lock.isHeldByCurrentThread();
+        for (Registration registration : this.registrations) {
+            if (registration.key == key && !registration.primary)
+                return registration;
+        }
+        return null;
+    }
+
+    // Replace a registration (either may be null) and publish a new array; caller must hold the lock
+    private void update(Registration oldRegistration, Registration newRegistration) {
+        assert this.lock.isHeldByCurrentThread();
+        final ArrayList<Registration> list = new ArrayList<Registration>(this.registrations.length + 1);
+        int mask = 0;
+        for (Registration registration : this.registrations) {
+            if (registration == oldRegistration) {
+                if (newRegistration == null)
+                    continue;
+                registration = newRegistration;
+                newRegistration = null;
+            }
+            list.add(registration);
+            mask |= registration.eventMask;
+        }
+        if (newRegistration != null) {
+            list.add(newRegistration);
+            mask |= newRegistration.eventMask;
+        }
+        this.registrations = list.toArray(new Registration[list.size()]);
+        this.eventMask = mask;
+    }
+
+    private static final class Registration {
+
+        final Object key;                                           // the listener as registered by the application
+        final TelnetSerialEventListener listener;
+        final int eventMask;
+        final boolean primary;                                      // registered via addEventListener(listener)
+
+        Registration(Object key, TelnetSerialEventListener listener, int eventMask, boolean primary) {
+            this.key = key;
+            this.listener = listener;
+            this.eventMask = eventMask;
+            this.primary = primary;
+        }
+    }
+
+    // Adapts a javax.comm listener
+    private static final class SerialPortEventAdapter implements TelnetSerialEventListener {
+
+        private final SerialPortEventListener listener;
+
+        SerialPortEventAdapter(SerialPortEventListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+          long nanoTime, long seq) {
+            this.listener.serialEvent(new SerialPortEvent(port, type, oldValue, newValue));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pending {@link TelnetSerialPort#awaitModemStateAsync} operations for one port.
+ *
+ * <p>
+ * Waiters are completed directly by the thread that processes {@code NOTIFY-MODEMSTATE} commands.
+ * When there are no waiters, {@link #modemStateChanged} returns without locking.
+ * </p>
+ */
+final class ModemStateWaiters {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+
+    private volatile int size;                                      // number of waiters, readable without locking
+    private boolean closed;
+
+    /**
+     * Add a waiter. The caller must then invoke {@link #modemStateChanged} with the current modem state,
+     * in case the modem state changed before the waiter was added.
+     *
+     * @param timeout deadline, or zero for none
+     */
+    TelnetFuture<Integer> add(int mask, int expected, long timeout, TimeUnit unit) {
+        final Waiter waiter = new Waiter(mask, expected);
+        boolean alreadyClosed;
+        this.lock.lock();
+        try {
+            alreadyClosed = this.closed;
+            if (!alreadyClosed) {
+                this.waiters.add(waiter);
+                this.size = this.waiters.size();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        if (alreadyClosed) {
+            waiter.fail(new AsynchronousCloseException());
+            return waiter;
+        }
+        if (timeout > 0) {
+            waiter.deadline = Util.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (ModemStateWaiters.this.remove(waiter))
+                        waiter.fail(new TimeoutException("modem state wait timed out"));
+                }
+            }, timeout, unit);
+            if (waiter.isDone())                                    // in case it was cancelled or closed meanwhile
+                waiter.cancelDeadline();
+        }
+        return waiter;
+    }
+
+    /**
+     * Complete all waiters satisfied by the given modem state.
+     */
+    void modemStateChanged(int modemState) {
+        if (this.size == 0)
+            return;
+        ArrayList<Waiter> finished = null;
+        this.lock.lock();
+        try {
+            for (Iterator<Waiter> i = this.waiters.iterator(); i.hasNext(); ) {
+                Waiter waiter = i.next();
+                if ((modemState & waiter.mask) != waiter.expected)
+                    continue;
+                i.remove();
+                if (finished == null)
+                    finished = new ArrayList<Waiter>();
+                finished.add(waiter);
+            }
+            this.size = this.waiters.size();
+        } finally {
+            this.lock.unlock();
+        }
+        if (finished != null) {
+            for (Waiter waiter : finished)
+                waiter.finish(modemState);
+        }
+    }
+
+    /**
+     * Fail all waiters. Invoked when the port is closed.
+     */
+    void close() {
+        ArrayList<Waiter> pending;
+        this.lock.lock();
+        try {
+            this.closed = true;
+            pending = new ArrayList<Waiter>(this.waiters);
+            this.waiters.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+        for (Waiter waiter : pending) {
+            waiter.cancelDeadline();
+            waiter.fail(new AsynchronousCloseException());
+        }
+    }
+
+    /**
+     * Cancel all waiters, leaving this instance usable. Invoked when a pooled port is reset for its next user.
+     */
+    void cancelAll() {
+        ArrayList<Waiter> pending;
+        this.lock.lock();
+        try {
+            pending = new ArrayList<Waiter>(this.waiters);
+            this.waiters.clear();
+            this.size = 0;
+        } finally {
+            this.lock.unlock();
+        }
+        for (Waiter waiter : pending) {
+            waiter.cancelDeadline();
+            waiter.abandon();
+        }
+    }
+
+    // Remove a waiter; returns false if it has already been removed
+    private boolean remove(Waiter waiter) {
+        this.lock.lock();
+        try {
+            boolean removed = this.waiters.remove(waiter);
+            this.size = this.waiters.size();
+            return removed;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // A pending wait
+
+    private final class Waiter extends TelnetFuture<Integer> {
+
+        final int mask;
+        final int expected;
+        volatile ScheduledFuture<?> deadline;
+
+        Waiter(int mask, int expected) {
+            this.mask = mask;
+            this.expected = expected;
+        }
+
+        @Override
+        boolean cancelOperation() {
+            ModemStateWaiters.this.remove(this);
+            this.cancelDeadline();
+            return true;
+        }
+
+        void finish(int modemState) {
+            this.cancelDeadline();
+            this.complete(modemState);
+        }
+
+        void cancelDeadline() {
+            ScheduledFuture<?> currentDeadline = this.deadline;
+            if (currentDeadline != null)
+                currentDeadline.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * {@code COM-PORT-OPTION} negotiation settings and outcome for one {@link TelnetSerialPort}: optimistic negotiation,
+ * the negotiation deadline, raw data mode fallback, and the port's ready future.
+ *
+ * <p>
+ * Whether negotiation is still in progress is determined by the port. This class never calls into the port
+ * while holding its own lock.
+ * </p>
+ */
+final class Negotiator {
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TelnetSerialPort port;
+    private final TelnetFuture<TelnetSerialPort> readyFuture = new TelnetFuture<TelnetSerialPort>();
+
+    // Protected by "lock"
+    private boolean optimistic;
+    private List<ComPortCommand> optimisticConfiguration;       // configuration sent with WILL COM-PORT-OPTION, if any
+    private long timeout;                                       // nanoseconds, or zero for none
+    private boolean rawFallback;
+    private ScheduledFuture<?> deadline;
+
+    Negotiator(TelnetSerialPort port) {
+        this.port = port;
+    }
+
+    TelnetFuture<TelnetSerialPort> getReadyFuture() {
+        return this.readyFuture;
+    }
+
+    boolean isOptimistic() {
+        this.lock.lock();
+        try {
+            return this.optimistic;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setOptimistic(boolean optimistic) {
+        this.lock.lock();
+        try {
+            this.optimistic = optimistic;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    long getTimeout() {
+        this.lock.lock();
+        try {
+            return this.timeout;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setTimeout(long timeout) {
+        this.lock.lock();
+        try {
+            this.timeout = timeout;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    boolean isRawFallback() {
+        this.lock.lock();
+        try {
+            return this.rawFallback;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setRawFallback(boolean rawFallback) {
+        this.lock.lock();
+        try {
+            this.rawFallback = rawFallback;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Start the negotiation deadline, if any. Invoked once the TCP connection is established.
+     */
+    void connected() {
+        this.lock.lock();
+        try {
+            if (this.timeout <= 0)
+                return;
+            this.deadline = Util.scheduler().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Negotiator.this.failed(new TimeoutException("access server did not accept COM-PORT-OPTION in time"));
+                }
+            }, this.timeout, TimeUnit.NANOSECONDS);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the configuration to send optimistically, if enabled. Invoked when the transport starts negotiation.
+     *
+     * @return configuration commands, or null to send nothing
+     */
+    List<ComPortCommand> optimisticCommands() {
+        this.lock.lock();
+        try {
+            this.optimisticConfiguration = null;
+            if (!this.optimistic)
+                return null;
+        } finally {
+            this.lock.unlock();
+        }
+        final List<ComPortCommand> configuration = this.port.getConfiguration();
+        if (configuration == null)
+            return null;
+        this.log.debug(this.port.getName() + ": sending serial configuration to peer optimistically");
+        this.lock.lock();
+        try {
+            this.optimisticConfiguration = configuration;
+        } finally {
+            this.lock.unlock();
+        }
+        return configuration;
+    }
+
+    /**
+     * Stop the negotiation deadline. Invoked when the access server accepts {@code COM-PORT-OPTION}.
+     *
+     * @return configuration already sent optimistically, or null if none
+     */
+    List<ComPortCommand> accepted() {
+        this.lock.lock();
+        try {
+            if (this.deadline != null)
+                this.deadline.cancel(false);
+            final List<ComPortCommand> alreadySent = this.optimisticConfiguration;
+            this.optimisticConfiguration = null;
+            return alreadySent;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Handle the access server refusing {@code COM-PORT-OPTION}.
+     */
+    void refused() {
+        this.log.debug(this.port.getName() + ": server refused COM-PORT-OPTION");
+        this.lock.lock();
+        try {
+            this.optimisticConfiguration = null;                // server ignored it
+        } finally {
+            this.lock.unlock();
+        }
+        this.failed(new IOException("access server refused COM-PORT-OPTION"));
+    }
+
+    /**
+     * Stop the negotiation deadline and fail the ready future. Invoked when the port is closed.
+     */
+    void close() {
+        this.lock.lock();
+        try {
+            if (this.deadline != null)
+                this.deadline.cancel(false);
+        } finally {
+            this.lock.unlock();
+        }
+        this.readyFuture.fail(new AsynchronousCloseException());
+    }
+
+    // Negotiation failed or timed out; fall back to raw data mode or fail the ready future
+    private void failed(Exception reason) {
+        if (!this.port.isNegotiating())
+            return;
+        if (!this.isRawFallback()) {
+            this.readyFuture.fail(reason);
+            return;
+        }
+        if (this.readyFuture.complete(this.port))
+            this.log.info(this.port.getName() + ": " + reason.getMessage() + ", continuing in raw data mode");
+    }
+}
@@ -0,0 +1,372 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link TelnetTransport} that performs all network I/O on a {@link TelnetEventLoop} using a non-blocking
+ * {@link SocketChannel}, so that no per-connection threads are required.
+ */
+class NioTelnetTransport extends AbstractTelnetTransport {
+
+    private static final int MAX_OUTPUT_PENDING = 64 * 1024;
+
+    private final TelnetEventLoop loop;
+
+    // Output state; protected by "outputLock"
+    private final ReentrantLock outputLock = new ReentrantLock();
+    private final Condition outputNotFull = this.outputLock.newCondition();
+    private final ArrayDeque<PendingOutput> outputQueue = new ArrayDeque<PendingOutput>();
+    private int outputPending;
+    private boolean writeInterest;
+
+    private volatile CountDownLatch connectLatch = new CountDownLatch(1);
+    private volatile SocketChannel channel;
+    private volatile IOException connectError;
+    private SelectionKey key;
+    private boolean readSuspended;
+
+    NioTelnetTransport(TelnetSerialPort port, TelnetEventLoop loop, String terminalType) {
+        super(port, terminalType);
+        if (loop == null)
+            throw new IllegalArgumentException("null loop");
+        this.loop = loop;
+    }
+
+    // TelnetTransport
+
+    @Override
+    public void connect(InetAddress host, int tcpPort) throws IOException {
+        if (this.loop.inEventLoop())
+            throw new IllegalStateException("connect() invoked from event loop thread");
+        final InetSocketAddress address = new InetSocketAddress(host, tcpPort);
+        this.outputLock.lock();
+        try {
+            if (this.isClosed())
+                throw new IOException("transport is closed");
+            if (this.channel != null)
+                throw new IllegalStateException("already connected");
+            this.channel = SocketChannel.open();
+        } finally {
+            this.outputLock.unlock();
+        }
+        this.channel.configureBlocking(false);
+        this.channel.socket().setTcpNoDelay(true);
+
+        // Queue initial option negotiation; it will be sent as soon as the connection is established
+        this.startNegotiation();
+
+        // Initiate connection from the event loop thread
+        final boolean scheduled = this.loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                NioTelnetTransport.this.startConnect(address);
+            }
+        });
+        if (!scheduled) {
+            final IOException e = new IOException("event loop has been shutdown");
+            this.close(e, false);
+            throw e;
+        }
+
+        // Wait for connection to complete
+        try {
+            this.connectLatch.await();
+        } catch (InterruptedException e) {
+            this.close(null, false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while connecting");
+        }
+        if (this.connectError != null)
+            throw this.connectError;
+    }
+
+    @Override
+    protected void resetConnection() {
+        this.outputLock.lock();
+        try {
+            this.channel = null;
+            this.connectError = null;
+            this.connectLatch = new CountDownLatch(1);
+            this.writeInterest = false;
+        } finally {
+            this.outputLock.unlock();
+        }
+        this.loop.execute(new Runnable() {                      // if the loop is gone, connect() will fail anyway
+            @Override
+            public void run() {
+                NioTelnetTransport.this.key = null;
+                NioTelnetTransport.this.readSuspended = false;
+            }
+        });
+    }
+
+    // Event loop processing
+
+    private void startConnect(InetSocketAddress address) {
+        if (this.isClosed())
+            return;
+        try {
+            this.key = this.channel.register(this.loop.getSelector(), SelectionKey.OP_CONNECT, this);
+            if (this.channel.connect(address))
+                this.finishConnect();
+        } catch (IOException e) {
+            this.close(e);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (!this.channel.finishConnect())
+            return;
+        this.log.debug(this.port.getName() + ": connected to " + this.channel.socket().getRemoteSocketAddress());
+        ArrayList<PendingOutput> written = new ArrayList<PendingOutput>();
+        this.outputLock.lock();
+        try {
+            this.connected = true;
+            this.flushOutput(written);
+        } finally {
+            this.outputLock.unlock();
+        }
+        this.completeOutput(written);
+        this.updateInterestOps();
+        this.connectLatch.countDown();
+    }
+
+    /**
+     * Handle a ready selection key. Invoked by the event loop thread.
+     */
+    void handleSelect(SelectionKey readyKey) {
+        try {
+            if (!readyKey.isValid() || readyKey != this.key)            // ignore keys from previous connections
+                return;
+            if (readyKey.isConnectable()) {
+                this.finishConnect();
+                return;
+            }
+            if (readyKey.isWritable()) {
+                ArrayList<PendingOutput> written = new ArrayList<PendingOutput>();
+                this.outputLock.lock();
+                try {
+                    this.flushOutput(written);
+                } finally {
+                    this.outputLock.unlock();
+                }
+                this.completeOutput(written);
+                this.updateInterestOps();
+            }
+            if (readyKey.isValid() && readyKey.isReadable())
+                this.readInput();
+        } catch (CancelledKeyException e) {
+            // Another thread closed the channel while we were handling it; closeConnection() takes care of the rest
+        } catch (IOException e) {
+            this.close(e);
+        }
+    }
+
+    private void readInput() throws IOException {
+
+        // Only read as much as we can be sure to have room for after decoding
+        int room = this.inputRoom();
+        if (room == 0) {
+            this.readSuspended = true;
+            this.updateInterestOps();
+            return;
+        }
+        ByteBuffer buf = this.loop.getReadBuffer();
+        buf.clear();
+        if (buf.limit() > room)
+            buf.limit(room);
+        int r = this.channel.read(buf);
+        if (r == -1) {
+            this.log.debug(this.port.getName() + ": connection closed by peer");
+            this.close(null);
+            return;
+        }
+        buf.flip();
+        this.processInput(buf);
+    }
+
+    @Override
+    protected void inputDrained() {
+        this.executeOrClose(new Runnable() {
+            @Override
+            public void run() {
+                NioTelnetTransport.this.readSuspended = false;
+                NioTelnetTransport.this.updateInterestOps();
+            }
+        });
+    }
+
+    // Hand a task to the event loop. If the loop has been shutdown, this connection is dead, so close it rather than
+    // throwing into the application thread that got us here; that thread will see a closed connection instead.
+    private void executeOrClose(Runnable task) {
+        if (!this.loop.execute(task))
+            this.close(new IOException("event loop has been shutdown"));
+    }
+
+    // Update selection key interest set; must be invoked by the event loop thread
+    private void updateInterestOps() {
+        if (this.key == null || !this.key.isValid() || !this.connected)
+            return;
+        int ops = 0;
+        if (!this.readSuspended)
+            ops |= SelectionKey.OP_READ;
+        this.outputLock.lock();
+        try {
+            if (this.writeInterest)
+                ops |= SelectionKey.OP_WRITE;
+        } finally {
+            this.outputLock.unlock();
+        }
+        this.key.interestOps(ops);
+    }
+
+    // Output
+
+    @Override
+    protected void send(ByteBuffer buf) throws IOException {
+        this.enqueue(new PendingOutput(buf, null, 0), !this.loop.inEventLoop());
+    }
+
+    // Unlike send(), this never waits for the output queue to drain
+    @Override
+    public void writeAsync(ByteBuffer src, TelnetFuture<Integer> future) {
+        int length = src.remaining();
+        this.recordOutput(src);
+        try {
+            this.enqueue(new PendingOutput(TelnetCodec.encode(new ByteBuffer[] { src }, 0, 1), future, length), false);
+        } catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
+    private void enqueue(PendingOutput output, boolean block) throws IOException {
+        boolean needInterest = false;
+        boolean written = false;
+        this.outputLock.lock();
+        try {
+            while (block && !this.isClosed() && this.outputPending > MAX_OUTPUT_PENDING)
+                this.outputNotFull.await();
+            if (this.isClosed())
+                throw new IOException("connection is closed");
+            if (this.connected && this.outputQueue.isEmpty())
+                this.channel.write(output.buf);
+            if (output.buf.hasRemaining()) {
+                this.outputQueue.add(output);
+                this.outputPending += output.buf.remaining();
+                if (this.connected && !this.writeInterest) {
+                    this.writeInterest = true;
+                    needInterest = true;
+                }
+            } else
+                written = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to write");
+        } finally {
+            this.outputLock.unlock();
+        }
+        if (written && output.future != null)
+            output.future.complete(output.length);
+        if (needInterest) {
+            if (this.loop.inEventLoop())
+                this.updateInterestOps();
+            else {
+                this.executeOrClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        NioTelnetTransport.this.updateInterestOps();
+                    }
+                });
+            }
+        }
+    }
+
+    // Write as much queued output as possible, adding fully written entries to "written"; caller must hold "outputLock"
+    private void flushOutput(ArrayList<PendingOutput> written) throws IOException {
+        while (!this.outputQueue.isEmpty()) {
+            PendingOutput output = this.outputQueue.peek();
+            int r = this.channel.write(output.buf);
+            this.outputPending -= r;
+            if (output.buf.hasRemaining())
+                break;
+            this.outputQueue.remove();
+            if (output.future != null)
+                written.add(output);
+        }
+        this.writeInterest = !this.outputQueue.isEmpty();
+        this.outputNotFull.signalAll();
+    }
+
+    // Complete the futures of fully written output; caller must not hold "outputLock"
+    private void completeOutput(ArrayList<PendingOutput> written) {
+        for (PendingOutput output : written)
+            output.future.complete(output.length);
+    }
+
+    // Shutdown
+
+    @Override
+    protected void closeConnection(IOException cause) {
+        if (this.connectLatch.getCount() > 0)
+            this.connectError = cause != null ? cause : new ClosedChannelException();
+        SocketChannel ch = this.channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                this.log.debug(this.port.getName() + ": exception closing channel (ignoring)", e);
+            }
+        }
+        ArrayList<PendingOutput> discarded;
+        this.outputLock.lock();
+        try {
+            discarded = new ArrayList<PendingOutput>(this.outputQueue);
+            this.outputQueue.clear();
+            this.outputPending = 0;
+            this.outputNotFull.signalAll();
+        } finally {
+            this.outputLock.unlock();
+        }
+        for (PendingOutput output : discarded) {
+            if (output.future != null)
+                output.future.fail(new AsynchronousCloseException());
+        }
+        this.connectLatch.countDown();
+    }
+
+    // Encoded output waiting to be written, with the future to complete once it has been written, if any
+    private static final class PendingOutput {
+
+        final ByteBuffer buf;
+        final TelnetFuture<Integer> future;
+        final int length;
+
+        PendingOutput(ByteBuffer buf, TelnetFuture<Integer> future, int length) {
+            this.buf = buf;
+            this.future = future;
+            this.length = length;
+        }
+    }
+}
+
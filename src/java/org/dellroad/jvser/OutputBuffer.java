@@ -0,0 +1,220 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Output stream for a {@link TelnetSerialPort} that coalesces small writes.
+ *
+ * <p>
+ * When the buffer size is zero, writes are passed directly through to the transport. Otherwise, data is accumulated
+ * and written to the transport when the buffer fills, when {@link #flush} is invoked, or when the oldest buffered
+ * byte has been waiting for the configured maximum latency, whichever comes first. An error that occurs during
+ * a timer-initiated flush is thrown by the next write or flush.
+ * </p>
+ *
+ * <p>
+ * Timer-initiated flushes are not performed by the shared timer thread, which must never block on the network.
+ * Instead they are handed to the flush executor given to the constructor, e.g., the port's event loop.
+ * </p>
+ */
+final class OutputBuffer extends OutputStream {
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final TelnetTransport transport;
+    private final Executor flushExecutor;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Protected by "lock"
+    private byte[] buf = new byte[0];
+    private int count;
+    private long latency;                                           // nanoseconds, or zero for none
+    private ScheduledFuture<?> flushTask;
+    private IOException flushError;
+
+    /**
+     * Constructor.
+     *
+     * @param transport underlying transport
+     * @param latency initial maximum latency in nanoseconds, or zero for none
+     * @param flushExecutor executor for timer-initiated flushes; if it is the thread that performs the transport's
+     *  network I/O, then writes to the transport from that thread must not block
+     */
+    OutputBuffer(TelnetTransport transport, long latency, Executor flushExecutor) {
+        this.transport = transport;
+        this.latency = latency;
+        this.flushExecutor = flushExecutor;
+    }
+
+    int getSize() {
+        this.lock.lock();
+        try {
+            return this.buf.length;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Any data already buffered is written out first
+    void setSize(int size) throws IOException {
+        if (size < 0)
+            throw new IllegalArgumentException("size < 0");
+        this.lock.lock();
+        try {
+            this.writeBuffer();
+            this.buf = new byte[size];
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    long getLatency() {
+        this.lock.lock();
+        try {
+            return this.latency;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setLatency(long latency) {
+        if (latency < 0)
+            throw new IllegalArgumentException("latency < 0");
+        this.lock.lock();
+        try {
+            this.latency = latency;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > data.length)
+            throw new IndexOutOfBoundsException();
+        this.lock.lock();
+        try {
+            this.checkFlushError();
+
+            // Bypass buffer if data won't fit after flushing
+            if (this.count + len > this.buf.length) {
+                this.writeBuffer();
+                if (len >= this.buf.length) {
+                    this.transport.getOutputStream().write(data, off, len);
+                    if (this.buf.length > 0)
+                        this.transport.getOutputStream().flush();
+                    return;
+                }
+            }
+
+            // Add data to buffer and schedule a flush if needed
+            System.arraycopy(data, off, this.buf, this.count, len);
+            if (this.count == 0 && len > 0 && this.latency > 0)
+                this.flushTask = this.scheduleFlush(this.latency);
+            this.count += len;
+            if (this.count == this.buf.length)
+                this.writeBuffer();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.lock.lock();
+        try {
+            this.checkFlushError();
+            this.writeBuffer();
+            this.transport.getOutputStream().flush();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.lock.lock();
+        try {
+            this.writeBuffer();
+            this.transport.getOutputStream().close();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // The timer thread only hands the flush off to the flush executor
+    private ScheduledFuture<?> scheduleFlush(final long delay) {
+        return Util.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                OutputBuffer.this.flushExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        OutputBuffer.this.timerFlush(delay);
+                    }
+                });
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+    }
+
+    // Never waits for the lock: its holder may itself be waiting for the flush executor's thread to write to the network.
+    // Instead, try again later; flushing whatever is buffered by then a little early does no harm.
+    private void timerFlush(long delay) {
+        if (!this.lock.tryLock()) {
+            this.scheduleFlush(delay);
+            return;
+        }
+        try {
+            this.writeBuffer();
+        } catch (IOException e) {
+            this.log.debug("exception flushing output", e);
+            this.flushError = e;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Write out buffered data, if any; caller must hold the lock
+    private void writeBuffer() throws IOException {
+        assert this.lock.isHeldByCurrentThread();
+        if (this.flushTask != null) {
+            this.flushTask.cancel(false);
+            this.flushTask = null;
+        }
+        if (this.count == 0)
+            return;
+        int len = this.count;
+        this.count = 0;
+        OutputStream output = this.transport.getOutputStream();
+        output.write(this.buf, 0, len);
+        output.flush();
+    }
+
+    // Caller must hold the lock
+    private void checkFlushError() throws IOException {
+        IOException e = this.flushError;
+        if (e != null) {
+            this.flushError = null;
+            throw e;
+        }
+    }
+}
+
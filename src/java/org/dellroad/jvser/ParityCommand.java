@@ -24,6 +24,20 @@ import static org.dellroad.jvser.RFC2217.SET_PARITY;
  */
 public class ParityCommand extends ComPortCommand {
 
+    private static final ParityCommand[] CLIENT_INSTANCES = new ParityCommand[PARITY_SPACE + 1];
+    private static final ParityCommand[] SERVER_INSTANCES = new ParityCommand[PARITY_SPACE + 1];
+
+    static {
+        for (int value = 0; value <= PARITY_SPACE; value++) {
+            if (isValid(value)) {
+                CLIENT_INSTANCES[value] = new ParityCommand(true, value);
+                SERVER_INSTANCES[value] = new ParityCommand(false, value);
+                CLIENT_INSTANCES[value].precomputeEncoding();
+                SERVER_INSTANCES[value].precomputeEncoding();
+            }
+        }
+    }
+
     private int parity;
 
     /**
@@ -39,17 +53,8 @@ public class ParityCommand extends ComPortCommand {
     public ParityCommand(int[] bytes) {
         super("SET-PARITY", SET_PARITY, bytes);
         this.parity = bytes[2];
-        switch (this.parity) {
-        case PARITY_REQUEST:
-        case PARITY_NONE:
-        case PARITY_ODD:
-        case PARITY_EVEN:
-        case PARITY_MARK:
-        case PARITY_SPACE:
-            break;
-        default:
+        if (!isValid(this.parity))
             throw new IllegalArgumentException("invalid parity value " + this.parity);
-        }
     }
 
     /**
@@ -67,6 +72,36 @@ public class ParityCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance for the given value. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     * @param parity parity value
+     * @throws IllegalArgumentException if {@code parity} is not a valid RFC 2217 parity value
+     */
+    public static ParityCommand valueOf(boolean client, int parity) {
+        if (parity >= 0 && parity <= PARITY_SPACE) {
+            ParityCommand command = (client ? CLIENT_INSTANCES : SERVER_INSTANCES)[parity];
+            if (command != null)
+                return command;
+        }
+        throw new IllegalArgumentException("invalid parity value " + parity);
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static ParityCommand lookup(int[] bytes) {
+        if (bytes.length != 3 || bytes[0] != COM_PORT_OPTION || bytes[2] < 0 || bytes[2] > PARITY_SPACE)
+            return null;
+        switch (bytes[1]) {
+        case SET_PARITY:
+            return CLIENT_INSTANCES[bytes[2]];
+        case SET_PARITY + SERVER_OFFSET:
+            return SERVER_INSTANCES[bytes[2]];
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         String desc;
@@ -114,5 +149,18 @@ public class ParityCommand extends ComPortCommand {
     int getMaxPayloadLength() {
         return 1;
     }
-}
 
+    static boolean isValid(int parity) {
+        switch (parity) {
+        case PARITY_REQUEST:
+        case PARITY_NONE:
+        case PARITY_ODD:
+        case PARITY_EVEN:
+        case PARITY_MARK:
+        case PARITY_SPACE:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
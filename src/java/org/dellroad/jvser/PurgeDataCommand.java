@@ -21,6 +21,20 @@ import static org.dellroad.jvser.RFC2217.SERVER_OFFSET;
  */
 public class PurgeDataCommand extends ComPortCommand {
 
+    private static final PurgeDataCommand[] CLIENT_INSTANCES = new PurgeDataCommand[PURGE_DATA_BOTH_DATA_BUFFERS + 1];
+    private static final PurgeDataCommand[] SERVER_INSTANCES = new PurgeDataCommand[PURGE_DATA_BOTH_DATA_BUFFERS + 1];
+
+    static {
+        for (int value = 0; value <= PURGE_DATA_BOTH_DATA_BUFFERS; value++) {
+            if (isValid(value)) {
+                CLIENT_INSTANCES[value] = new PurgeDataCommand(true, value);
+                SERVER_INSTANCES[value] = new PurgeDataCommand(false, value);
+                CLIENT_INSTANCES[value].precomputeEncoding();
+                SERVER_INSTANCES[value].precomputeEncoding();
+            }
+        }
+    }
+
     private int purgeData;
 
     /**
@@ -36,14 +50,8 @@ public class PurgeDataCommand extends ComPortCommand {
     public PurgeDataCommand(int[] bytes) {
         super("PURGE-DATA", PURGE_DATA, bytes);
         this.purgeData = bytes[2];
-        switch (this.purgeData) {
-        case PURGE_DATA_RECEIVE_DATA_BUFFER:
-        case PURGE_DATA_TRANSMIT_DATA_BUFFER:
-        case PURGE_DATA_BOTH_DATA_BUFFERS:
-            break;
-        default:
+        if (!isValid(this.purgeData))
             throw new IllegalArgumentException("invalid purge data value " + this.purgeData);
-        }
     }
 
     /**
@@ -61,6 +69,36 @@ public class PurgeDataCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance for the given value. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     * @param purgeData purge data value
+     * @throws IllegalArgumentException if {@code purgeData} is not a valid RFC 2217 purge data value
+     */
+    public static PurgeDataCommand valueOf(boolean client, int purgeData) {
+        if (purgeData >= 0 && purgeData <= PURGE_DATA_BOTH_DATA_BUFFERS) {
+            PurgeDataCommand command = (client ? CLIENT_INSTANCES : SERVER_INSTANCES)[purgeData];
+            if (command != null)
+                return command;
+        }
+        throw new IllegalArgumentException("invalid purge data value " + purgeData);
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static PurgeDataCommand lookup(int[] bytes) {
+        if (bytes.length != 3 || bytes[0] != COM_PORT_OPTION || bytes[2] < 0 || bytes[2] > PURGE_DATA_BOTH_DATA_BUFFERS)
+            return null;
+        switch (bytes[1]) {
+        case PURGE_DATA:
+            return CLIENT_INSTANCES[bytes[2]];
+        case PURGE_DATA + SERVER_OFFSET:
+            return SERVER_INSTANCES[bytes[2]];
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         String desc;
@@ -103,5 +141,15 @@ public class PurgeDataCommand extends ComPortCommand {
     int getMaxPayloadLength() {
         return 1;
     }
-}
 
+    static boolean isValid(int purgeData) {
+        switch (purgeData) {
+        case PURGE_DATA_RECEIVE_DATA_BUFFER:
+        case PURGE_DATA_TRANSMIT_DATA_BUFFER:
+        case PURGE_DATA_BOTH_DATA_BUFFERS:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
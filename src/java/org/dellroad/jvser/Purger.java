@@ -0,0 +1,104 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Discards received data after a {@link TelnetSerialPort} asks the access server to purge its buffers.
+ *
+ * <p>
+ * Data the access server sent before it purged may still be in transit, so data is discarded until the access server
+ * acknowledges the purge, or the connection goes quiet, or a timeout expires.
+ * </p>
+ */
+final class Purger {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    private static final long QUIET_PERIOD = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long POLL_INTERVAL = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition acknowledged = this.lock.newCondition();
+
+    private int acknowledgements;                                   // number of PURGE-DATA replies rec'd so far
+
+    /**
+     * Get the number of purge acknowledgements received so far.
+     */
+    int getAcknowledgements() {
+        this.lock.lock();
+        try {
+            return this.acknowledgements;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Record a purge acknowledgement from the access server.
+     */
+    void acknowledged() {
+        this.lock.lock();
+        try {
+            this.acknowledgements++;
+            this.acknowledged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Discard received data.
+     *
+     * @param transport the port's transport
+     * @param name port name, for logging
+     * @param acknowledgements {@link #getAcknowledgements} before the purge was requested,
+     *  or -1 if no purge was requested and no acknowledgement is expected
+     * @throws InterruptedIOException if the current thread is interrupted
+     */
+    void discard(TelnetTransport transport, String name, int acknowledgements) throws InterruptedIOException {
+        final ByteBuffer buf = ByteBuffer.allocate(1024);
+        final long deadline = System.nanoTime() + TIMEOUT;
+        long lastReceived = System.nanoTime();
+        while (true) {
+            boolean done = acknowledgements == -1;
+            this.lock.lock();
+            try {
+                if (!done && this.acknowledgements == acknowledgements)
+                    this.acknowledged.awaitNanos(POLL_INTERVAL);
+                done |= this.acknowledgements != acknowledgements;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while purging");
+            } finally {
+                this.lock.unlock();
+            }
+            final long now = System.nanoTime();
+            try {
+                while (transport.poll(buf) > 0) {
+                    buf.clear();
+                    lastReceived = now;
+                }
+            } catch (IOException e) {
+                this.log.debug(name + ": exception discarding received data", e);
+                return;
+            }
+            if (done || now - lastReceived >= QUIET_PERIOD || now - deadline >= 0)
+                return;
+        }
+    }
+}
@@ -103,15 +103,20 @@ public final class RFC2217 {
     public static final int PURGE_DATA_TRANSMIT_DATA_BUFFER = 0x02;
     public static final int PURGE_DATA_BOTH_DATA_BUFFERS = 0x03;
 
+    // Payload length of each command, indexed by (client) command byte; -1 means variable
+    private static final int[] PAYLOAD_LENGTHS = { -1, 4, 1, 1, 1, 1, 1, 1, 0, 0, 1, 1, 1 };
+
     private RFC2217() {
     }
 
     /**
-     * Decode an RFC 2217 {@code COM-PORT-OPTION} command.
+     * Decode an RFC 2217 {@code COM-PORT-OPTION} command. Commands having a fixed value, such as {@link ControlCommand},
+     * are decoded into their shared canonical instances.
      *
      * @throws IllegalArgumentException if the bytes are not a valid encoded RFC 2217 {@link #COM_PORT_OPTION}
      */
     public static ComPortCommand decodeComPortCommand(int[] bytes) {
+        ComPortCommand command;
         if (bytes.length < 2)
             throw new IllegalArgumentException("length < 2");
         if (bytes[0] != COM_PORT_OPTION)
@@ -125,16 +130,20 @@ public final class RFC2217 {
             return new BaudRateCommand(bytes);
         case SET_DATASIZE:
         case SET_DATASIZE + SERVER_OFFSET:
-            return new DataSizeCommand(bytes);
+            command = DataSizeCommand.lookup(bytes);
+            return command != null ? command : new DataSizeCommand(bytes);
         case SET_PARITY:
         case SET_PARITY + SERVER_OFFSET:
-            return new ParityCommand(bytes);
+            command = ParityCommand.lookup(bytes);
+            return command != null ? command : new ParityCommand(bytes);
         case SET_STOPSIZE:
         case SET_STOPSIZE + SERVER_OFFSET:
-            return new StopSizeCommand(bytes);
+            command = StopSizeCommand.lookup(bytes);
+            return command != null ? command : new StopSizeCommand(bytes);
         case SET_CONTROL:
         case SET_CONTROL + SERVER_OFFSET:
-            return new ControlCommand(bytes);
+            command = ControlCommand.lookup(bytes);
+            return command != null ? command : new ControlCommand(bytes);
         case NOTIFY_LINESTATE:
         case NOTIFY_LINESTATE + SERVER_OFFSET:
             return new NotifyLineStateCommand(bytes);
@@ -143,10 +152,12 @@ public final class RFC2217 {
             return new NotifyModemStateCommand(bytes);
         case FLOWCONTROL_SUSPEND:
         case FLOWCONTROL_SUSPEND + SERVER_OFFSET:
-            return new FlowControlSuspendCommand(bytes);
+            command = FlowControlSuspendCommand.lookup(bytes);
+            return command != null ? command : new FlowControlSuspendCommand(bytes);
         case FLOWCONTROL_RESUME:
         case FLOWCONTROL_RESUME + SERVER_OFFSET:
-            return new FlowControlResumeCommand(bytes);
+            command = FlowControlResumeCommand.lookup(bytes);
+            return command != null ? command : new FlowControlResumeCommand(bytes);
         case SET_LINESTATE_MASK:
         case SET_LINESTATE_MASK + SERVER_OFFSET:
             return new LineStateMaskCommand(bytes);
@@ -155,10 +166,66 @@ public final class RFC2217 {
             return new ModemStateMaskCommand(bytes);
         case PURGE_DATA:
         case PURGE_DATA + SERVER_OFFSET:
-            return new PurgeDataCommand(bytes);
+            command = PurgeDataCommand.lookup(bytes);
+            return command != null ? command : new PurgeDataCommand(bytes);
         default:
             throw new IllegalArgumentException("unrecognized COM-PORT-OPTION command " + bytes[1]);
         }
     }
-}
 
+    /**
+     * Dispatch an encoded server-to-client {@code COM-PORT-OPTION} command to the given handler, without creating any
+     * objects. Dispatch is by table lookup on the command byte. Commands that have no primitive handler method,
+     * client-to-server commands, and invalid commands are passed to {@link ComPortCommandHandler#onOther}.
+     *
+     * @param buf encoded command starting with the {@code COM-PORT-OPTION} byte
+     * @param len length of the encoded command
+     * @param handler command handler
+     */
+    static void dispatchServerCommand(byte[] buf, int len, ComPortCommandHandler handler) {
+        final int command = len >= 2 && (buf[0] & 0xff) == COM_PORT_OPTION ? (buf[1] & 0xff) - SERVER_OFFSET : -1;
+        if (command < 0 || command >= PAYLOAD_LENGTHS.length || PAYLOAD_LENGTHS[command] != len - 2) {
+            handler.onOther(buf, len);
+            return;
+        }
+        final int value = buf[len - 1] & 0xff;
+        switch (command) {
+        case SET_BAUDRATE:
+            handler.onBaudRate(((buf[2] & 0xff) << 24) | ((buf[3] & 0xff) << 16) | ((buf[4] & 0xff) << 8) | value);
+            return;
+        case SET_DATASIZE:
+            if (DataSizeCommand.isValid(value)) {
+                handler.onDataSize(value);
+                return;
+            }
+            break;
+        case SET_PARITY:
+            if (ParityCommand.isValid(value)) {
+                handler.onParity(value);
+                return;
+            }
+            break;
+        case SET_STOPSIZE:
+            if (StopSizeCommand.isValid(value)) {
+                handler.onStopSize(value);
+                return;
+            }
+            break;
+        case SET_CONTROL:
+            if (ControlCommand.isValid(value)) {
+                handler.onControl(value);
+                return;
+            }
+            break;
+        case NOTIFY_LINESTATE:
+            handler.onLineState(value);
+            return;
+        case NOTIFY_MODEMSTATE:
+            handler.onModemState(value);
+            return;
+        default:
+            break;
+        }
+        handler.onOther(buf, len);
+    }
+}
@@ -0,0 +1,106 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Receive threshold, timeout and framing settings for one {@link TelnetSerialPort}.
+ *
+ * <p>
+ * Settings are remembered here in {@link javax.comm.SerialPort} terms and passed on to the transport,
+ * which applies them to blocking reads. Each value is -1 when the corresponding setting is disabled.
+ * </p>
+ */
+final class ReceiveSettings {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TelnetTransport transport;
+
+    // Protected by "lock"
+    private int threshold = -1;
+    private int timeout = -1;                                   // milliseconds
+    private int framingByte = -1;
+
+    ReceiveSettings(TelnetTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Set the receive threshold.
+     *
+     * @param threshold threshold in bytes, or -1 to disable
+     */
+    void setThreshold(int threshold) {
+        this.lock.lock();
+        try {
+            this.threshold = threshold;
+            this.transport.setReceiveThreshold(Math.max(threshold, 0));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getThreshold() {
+        this.lock.lock();
+        try {
+            return this.threshold;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set the receive timeout.
+     *
+     * @param timeout timeout in milliseconds, or -1 to disable
+     */
+    void setTimeout(int timeout) {
+        this.lock.lock();
+        try {
+            this.timeout = timeout;
+            this.transport.setReceiveTimeout(timeout != -1 ? TimeUnit.MILLISECONDS.toNanos(timeout) : -1);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getTimeout() {
+        this.lock.lock();
+        try {
+            return this.timeout;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Set the receive framing byte.
+     *
+     * @param framingByte framing byte, or -1 to disable
+     */
+    void setFramingByte(int framingByte) {
+        this.lock.lock();
+        try {
+            this.framingByte = framingByte;
+            this.transport.setReceiveFraming(framingByte);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    int getFramingByte() {
+        this.lock.lock();
+        try {
+            return this.framingByte;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
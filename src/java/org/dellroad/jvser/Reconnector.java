@@ -0,0 +1,234 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Automatic reconnection with jittered exponential backoff for one {@link TelnetSerialPort}.
+ *
+ * <p>
+ * No thread waits out the backoff delay: each attempt is scheduled on the shared timer, which hands it to the
+ * attempt executor given to the constructor. Connecting may block, so that executor must not be the shared timer
+ * thread or the port's event loop.
+ * </p>
+ */
+final class Reconnector {
+
+    static final long DEFAULT_INITIAL_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long DEFAULT_MAX_DELAY = TimeUnit.SECONDS.toNanos(10);
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TelnetSerialPort port;
+    private final TelnetTransport transport;
+    private final Executor attemptExecutor;
+
+    // Protected by "lock"
+    private boolean enabled;
+    private long initialDelay = DEFAULT_INITIAL_DELAY;          // nanoseconds
+    private long maxDelay = DEFAULT_MAX_DELAY;                  // nanoseconds
+    private InetAddress host;
+    private int tcpPort;
+    private boolean reconnecting;                               // an attempt is scheduled or in progress
+    private boolean connectionLost;                             // connection lost during current attempt
+    private boolean closed;
+    private long delay;                                         // current backoff delay in nanoseconds
+    private int attempt;
+    private ScheduledFuture<?> timer;
+    private Random random;
+
+    /**
+     * Constructor.
+     *
+     * @param port the port to reconnect
+     * @param transport the port's transport
+     * @param attemptExecutor executor for connection attempts, which may block
+     */
+    Reconnector(TelnetSerialPort port, TelnetTransport transport, Executor attemptExecutor) {
+        this.port = port;
+        this.transport = transport;
+        this.attemptExecutor = attemptExecutor;
+    }
+
+    boolean isEnabled() {
+        this.lock.lock();
+        try {
+            return this.enabled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setEnabled(boolean enabled) {
+        this.lock.lock();
+        try {
+            this.enabled = enabled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    long getInitialDelay() {
+        this.lock.lock();
+        try {
+            return this.initialDelay;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    long getMaxDelay() {
+        this.lock.lock();
+        try {
+            return this.maxDelay;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    void setDelay(long initialDelay, long maxDelay) {
+        this.lock.lock();
+        try {
+            this.initialDelay = initialDelay;
+            this.maxDelay = maxDelay;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Start reconnecting to the given access server, unless already doing so.
+     */
+    void connectionLost(InetAddress host, int tcpPort) {
+        this.lock.lock();
+        try {
+            if (this.closed)
+                return;
+            this.host = host;
+            this.tcpPort = tcpPort;
+            this.connectionLost = true;
+            if (this.reconnecting)
+                return;
+            this.reconnecting = true;
+            this.delay = this.initialDelay;
+            this.attempt = 0;
+            if (this.random == null)
+                this.random = new Random();
+            this.scheduleAttempt();
+        } finally {
+            this.lock.unlock();
+        }
+        this.log.info(this.port.getName() + ": connection lost, reconnecting");
+    }
+
+    /**
+     * Stop reconnecting. An attempt already in progress is not interrupted, but no more are made.
+     */
+    void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            this.reconnecting = false;
+            if (this.timer != null) {
+                this.timer.cancel(false);
+                this.timer = null;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Schedule the next attempt after the backoff delay with jitter; the caller must hold the lock
+    private void scheduleAttempt() {
+        final long nanos = this.delay / 2 + (long)(this.random.nextDouble() * (this.delay / 2));
+        this.delay = Math.min(this.delay * 2, this.maxDelay);
+        this.timer = Util.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                Reconnector.this.startAttempt();
+            }
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    // Invoked by the shared timer thread
+    private void startAttempt() {
+        try {
+            this.attemptExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Reconnector.this.attempt();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.log.error(this.port.getName() + ": can't reconnect, executor rejected attempt", e);
+            this.lock.lock();
+            try {
+                this.reconnecting = false;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private void attempt() {
+        final InetAddress attemptHost;
+        final int attemptPort;
+        final int attemptNumber;
+        this.lock.lock();
+        try {
+            this.timer = null;
+            if (this.closed)
+                return;
+            this.connectionLost = false;
+            attemptHost = this.host;
+            attemptPort = this.tcpPort;
+            attemptNumber = ++this.attempt;
+        } finally {
+            this.lock.unlock();
+        }
+
+        // Try to reconnect; negotiation will then replay our configuration via startSubnegotiation()
+        this.log.debug(this.port.getName() + ": reconnect attempt #" + attemptNumber);
+        boolean retry = true;
+        try {
+            this.transport.reconnect(attemptHost, attemptPort);
+            this.lock.lock();
+            try {
+                retry = this.connectionLost;
+            } finally {
+                this.lock.unlock();
+            }
+        } catch (IOException e) {
+            this.log.debug(this.port.getName() + ": reconnect attempt #" + attemptNumber + " failed: " + e);
+        } catch (RuntimeException e) {
+            this.log.error(this.port.getName() + ": reconnect attempt #" + attemptNumber + " failed unexpectedly", e);
+        } finally {
+            this.lock.lock();
+            try {
+                if (retry && !this.closed)
+                    this.scheduleAttempt();
+                else
+                    this.reconnecting = false;
+            } finally {
+                this.lock.unlock();
+            }
+        }
+        if (!retry)
+            this.log.info(this.port.getName() + ": reconnected to " + attemptHost + ":" + attemptPort);
+    }
+}
@@ -0,0 +1,83 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Channel view of a {@link TelnetSerialPort}'s serial data.
+ *
+ * <p>
+ * Reads block until at least one byte is available, subject to the port's receive settings. Writes always
+ * transmit all of the remaining data; the data from all of the buffers given to a gathering write is escaped together
+ * and handed to the network as a single write, after any data buffered by the port's {@link OutputBuffer}.
+ * Closing the channel closes the port.
+ * </p>
+ *
+ * @see TelnetSerialPort#getReadableChannel
+ * @see TelnetSerialPort#getWritableChannel
+ */
+final class SerialPortChannel implements ByteChannel, GatheringByteChannel {
+
+    private final TelnetSerialPort port;
+    private final TelnetTransport transport;
+    private final OutputBuffer outputBuffer;
+
+    SerialPortChannel(TelnetSerialPort port, TelnetTransport transport, OutputBuffer outputBuffer) {
+        this.port = port;
+        this.transport = transport;
+        this.outputBuffer = outputBuffer;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        this.checkOpen();
+        final int r = this.transport.read(dst);
+        this.port.inputConsumed();
+        return r;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int)this.write(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return this.write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > srcs.length - length)
+            throw new IndexOutOfBoundsException();
+        this.checkOpen();
+        this.outputBuffer.flush();
+        return this.transport.write(srcs, offset, length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this.port.isClosed();
+    }
+
+    @Override
+    public void close() {
+        this.port.close();
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (!this.isOpen())
+            throw new ClosedChannelException();
+    }
+}
+
@@ -0,0 +1,280 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.List;
+
+import javax.comm.SerialPort;
+import javax.comm.UnsupportedCommOperationException;
+
+import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_HARDWARE;
+import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_NONE;
+import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_XON_XOFF;
+import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_HARDWARE;
+import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_NONE;
+import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_XON_XOFF;
+import static org.dellroad.jvser.RFC2217.DATASIZE_5;
+import static org.dellroad.jvser.RFC2217.DATASIZE_6;
+import static org.dellroad.jvser.RFC2217.DATASIZE_7;
+import static org.dellroad.jvser.RFC2217.DATASIZE_8;
+import static org.dellroad.jvser.RFC2217.STOPSIZE_1;
+import static org.dellroad.jvser.RFC2217.STOPSIZE_1_5;
+import static org.dellroad.jvser.RFC2217.STOPSIZE_2;
+
+/**
+ * Serial port parameters and flow control for one {@link TelnetSerialPort}.
+ *
+ * <p>
+ * Values are kept in RFC 2217 terms, and converted from and to {@link SerialPort} constants here.
+ * Instances are not thread safe; the port guards its instance with its own lock.
+ * </p>
+ */
+final class SerialSettings {
+
+    private static final int DEFAULT_BAUD_RATE = 9600;
+
+    private int baudRate = DEFAULT_BAUD_RATE;
+    private int dataSize = DATASIZE_8;
+    private int parity = RFC2217.PARITY_NONE;
+    private int stopSize = STOPSIZE_1;
+    private int flowControlInbound = CONTROL_INBOUND_FLOW_NONE;
+    private int flowControlOutbound = CONTROL_OUTBOUND_FLOW_NONE;
+
+    /**
+     * Set the serial port parameters.
+     *
+     * @return true if any parameter changed
+     * @throws UnsupportedCommOperationException if any parameter is invalid, in which case nothing changes
+     */
+    boolean setParams(int baudRate, int dataBits, int stopBits, int parity) throws UnsupportedCommOperationException {
+
+        // Validate parameters and convert to RFC 2217 values
+        if (baudRate <= 0)
+            throw new UnsupportedCommOperationException("invalid baud rate " + baudRate);
+        switch (dataBits) {
+        case SerialPort.DATABITS_5:
+            dataBits = DATASIZE_5;
+            break;
+        case SerialPort.DATABITS_6:
+            dataBits = DATASIZE_6;
+            break;
+        case SerialPort.DATABITS_7:
+            dataBits = DATASIZE_7;
+            break;
+        case SerialPort.DATABITS_8:
+            dataBits = DATASIZE_8;
+            break;
+        default:
+            throw new UnsupportedCommOperationException("invalid data bits " + dataBits);
+        }
+        switch (stopBits) {
+        case SerialPort.STOPBITS_1:
+            stopBits = STOPSIZE_1;
+            break;
+        case SerialPort.STOPBITS_2:
+            stopBits = STOPSIZE_2;
+            break;
+        case SerialPort.STOPBITS_1_5:
+            stopBits = STOPSIZE_1_5;
+            break;
+        default:
+            throw new UnsupportedCommOperationException("invalid stop bits " + stopBits);
+        }
+        switch (parity) {
+        case SerialPort.PARITY_NONE:
+            parity = RFC2217.PARITY_NONE;
+            break;
+        case SerialPort.PARITY_ODD:
+            parity = RFC2217.PARITY_ODD;
+            break;
+        case SerialPort.PARITY_EVEN:
+            parity = RFC2217.PARITY_EVEN;
+            break;
+        case SerialPort.PARITY_MARK:
+            parity = RFC2217.PARITY_MARK;
+            break;
+        case SerialPort.PARITY_SPACE:
+            parity = RFC2217.PARITY_SPACE;
+            break;
+        default:
+            throw new UnsupportedCommOperationException("invalid parity " + parity);
+        }
+
+        // Update
+        final boolean changed = baudRate != this.baudRate || dataBits != this.dataSize
+          || stopBits != this.stopSize || parity != this.parity;
+        this.baudRate = baudRate;
+        this.dataSize = dataBits;
+        this.stopSize = stopBits;
+        this.parity = parity;
+        return changed;
+    }
+
+    int getBaudRate() {
+        return this.baudRate;
+    }
+
+    int getDataBits() {
+        switch (this.dataSize) {
+        case DATASIZE_5:
+            return SerialPort.DATABITS_5;
+        case DATASIZE_6:
+            return SerialPort.DATABITS_6;
+        case DATASIZE_7:
+            return SerialPort.DATABITS_7;
+        case DATASIZE_8:
+            return SerialPort.DATABITS_8;
+        default:
+            throw new RuntimeException("impossible case");
+        }
+    }
+
+    int getStopBits() {
+        switch (this.stopSize) {
+        case STOPSIZE_1:
+            return SerialPort.STOPBITS_1;
+        case STOPSIZE_2:
+            return SerialPort.STOPBITS_2;
+        case STOPSIZE_1_5:
+            return SerialPort.STOPBITS_1_5;
+        default:
+            throw new RuntimeException("impossible case");
+        }
+    }
+
+    int getParity() {
+        switch (this.parity) {
+        case RFC2217.PARITY_NONE:
+            return SerialPort.PARITY_NONE;
+        case RFC2217.PARITY_ODD:
+            return SerialPort.PARITY_ODD;
+        case RFC2217.PARITY_EVEN:
+            return SerialPort.PARITY_EVEN;
+        case RFC2217.PARITY_MARK:
+            return SerialPort.PARITY_MARK;
+        case RFC2217.PARITY_SPACE:
+            return SerialPort.PARITY_SPACE;
+        default:
+            throw new RuntimeException("impossible case");
+        }
+    }
+
+    /**
+     * Set the flow control mode.
+     *
+     * @param flowControl {@link SerialPort} flow control bits
+     * @param changes list to which to add the commands that update the access server (outbound first, per RFC 2217)
+     * @throws UnsupportedCommOperationException if {@code flowControl} is invalid
+     */
+    void setFlowControlMode(int flowControl, List<ComPortCommand> changes) throws UnsupportedCommOperationException {
+
+        // Validate bit combination
+        final int rtsctsXonxoffOut = SerialPort.FLOWCONTROL_RTSCTS_OUT | SerialPort.FLOWCONTROL_XONXOFF_OUT;
+        final int rtsctsXonxoffIn = SerialPort.FLOWCONTROL_RTSCTS_IN | SerialPort.FLOWCONTROL_XONXOFF_IN;
+        if ((flowControl & rtsctsXonxoffOut) == rtsctsXonxoffOut || (flowControl & rtsctsXonxoffIn) == rtsctsXonxoffIn)
+            throw new UnsupportedCommOperationException("invalid flow control value " + flowControl);
+
+        // Convert to RFC 2217 values
+        final int outbound = (flowControl & SerialPort.FLOWCONTROL_RTSCTS_OUT) != 0 ? CONTROL_OUTBOUND_FLOW_HARDWARE :
+          (flowControl & SerialPort.FLOWCONTROL_XONXOFF_OUT) != 0 ? CONTROL_OUTBOUND_FLOW_XON_XOFF : CONTROL_OUTBOUND_FLOW_NONE;
+        final int inbound = (flowControl & SerialPort.FLOWCONTROL_RTSCTS_IN) != 0 ? CONTROL_INBOUND_FLOW_HARDWARE :
+          (flowControl & SerialPort.FLOWCONTROL_XONXOFF_IN) != 0 ? CONTROL_INBOUND_FLOW_XON_XOFF : CONTROL_INBOUND_FLOW_NONE;
+        if (outbound != this.flowControlOutbound)
+            changes.add(ControlCommand.valueOf(true, outbound));
+        if (inbound != this.flowControlInbound)
+            changes.add(ControlCommand.valueOf(true, inbound));
+        this.flowControlOutbound = outbound;
+        this.flowControlInbound = inbound;
+    }
+
+    int getFlowControlMode() {
+        int value = SerialPort.FLOWCONTROL_NONE;
+        switch (this.flowControlOutbound) {
+        case CONTROL_OUTBOUND_FLOW_HARDWARE:
+            value |= SerialPort.FLOWCONTROL_RTSCTS_OUT;
+            break;
+        case CONTROL_OUTBOUND_FLOW_XON_XOFF:
+            value |= SerialPort.FLOWCONTROL_XONXOFF_OUT;
+            break;
+        default:
+            break;
+        }
+        switch (this.flowControlInbound) {
+        case CONTROL_INBOUND_FLOW_HARDWARE:
+            value |= SerialPort.FLOWCONTROL_RTSCTS_IN;
+            break;
+        case CONTROL_INBOUND_FLOW_XON_XOFF:
+            value |= SerialPort.FLOWCONTROL_XONXOFF_IN;
+            break;
+        default:
+            break;
+        }
+        return value;
+    }
+
+    // Values reported by the access server
+
+    void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    void setDataSize(int dataSize) {
+        this.dataSize = dataSize;
+    }
+
+    void setParity(int parity) {
+        this.parity = parity;
+    }
+
+    void setStopSize(int stopSize) {
+        this.stopSize = stopSize;
+    }
+
+    /**
+     * Record a flow control setting reported by the access server.
+     *
+     * @param control {@code SET-CONTROL} value
+     * @return true if {@code control} is a flow control setting
+     */
+    boolean setFlowControl(int control) {
+        switch (control) {
+        case CONTROL_OUTBOUND_FLOW_NONE:
+        case CONTROL_OUTBOUND_FLOW_XON_XOFF:
+        case CONTROL_OUTBOUND_FLOW_HARDWARE:
+            this.flowControlOutbound = control;
+            return true;
+        case CONTROL_INBOUND_FLOW_NONE:
+        case CONTROL_INBOUND_FLOW_XON_XOFF:
+        case CONTROL_INBOUND_FLOW_HARDWARE:
+            this.flowControlInbound = control;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // Commands
+
+    /**
+     * Add the commands that send the serial port "geometry", in the order recommended by RFC 2217 (section 2).
+     */
+    void addGeometry(List<ComPortCommand> commands) {
+        commands.add(new BaudRateCommand(true, this.baudRate));
+        commands.add(DataSizeCommand.valueOf(true, this.dataSize));
+        commands.add(ParityCommand.valueOf(true, this.parity));
+        commands.add(StopSizeCommand.valueOf(true, this.stopSize));
+    }
+
+    /**
+     * Add the commands that send the flow control settings.
+     */
+    void addFlowControl(List<ComPortCommand> commands) {
+        commands.add(ControlCommand.valueOf(true, this.flowControlInbound));
+        commands.add(ControlCommand.valueOf(true, this.flowControlOutbound));
+    }
+}
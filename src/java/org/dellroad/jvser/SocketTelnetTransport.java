@@ -0,0 +1,190 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link TelnetTransport} using a blocking {@link Socket} and a reader thread obtained from a {@link ThreadFactory}.
+ *
+ * <p>
+ * When the {@link ThreadFactory} creates virtual threads, blocked readers (both the transport's reader thread and
+ * application threads reading from the port's {@link InputStream}) do not tie up any platform threads.
+ * </p>
+ */
+class SocketTelnetTransport extends AbstractTelnetTransport implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int COMMAND_BUFFER_SIZE = 256;
+
+    private final ThreadFactory threadFactory;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile Socket socket;
+    private OutputStream socketOutput;
+    private ByteBuffer commandBuffer;                   // protected by writeLock
+
+    SocketTelnetTransport(TelnetSerialPort port, ThreadFactory threadFactory, String terminalType) {
+        super(port, terminalType);
+        if (threadFactory == null)
+            throw new IllegalArgumentException("null threadFactory");
+        this.threadFactory = threadFactory;
+    }
+
+    // TelnetTransport
+
+    @Override
+    public void connect(InetAddress host, int tcpPort) throws IOException {
+        Socket newSocket = new Socket();
+        this.writeLock.lock();
+        try {
+            if (this.isClosed())
+                throw new IOException("transport is closed");
+            if (this.socket != null)
+                throw new IllegalStateException("already connected");
+            this.socket = newSocket;
+        } finally {
+            this.writeLock.unlock();
+        }
+        try {
+            newSocket.connect(new InetSocketAddress(host, tcpPort));
+            newSocket.setTcpNoDelay(true);
+        } catch (IOException e) {
+            this.close(e, false);
+            throw e;
+        }
+        this.log.debug(this.port.getName() + ": connected to " + newSocket.getRemoteSocketAddress());
+        this.writeLock.lock();
+        try {
+            this.socketOutput = newSocket.getOutputStream();
+            this.connected = true;
+        } finally {
+            this.writeLock.unlock();
+        }
+        this.startNegotiation();
+        Thread reader = this.threadFactory.newThread(this);
+        reader.start();
+    }
+
+    // Reader thread
+
+    // After a reconnect, a reader thread from a previous connection may still be exiting; it must not close the new one
+    @Override
+    public void run() {
+        final Socket readerSocket = this.socket;
+        byte[] data = new byte[READ_BUFFER_SIZE];
+        try {
+            InputStream input = readerSocket.getInputStream();
+            while (!this.isClosed() && this.socket == readerSocket) {
+                int room;
+                while ((room = this.inputRoom()) == 0 && !this.isClosed())
+                    this.awaitInputRoom();
+                int r = input.read(data, 0, Math.min(room, data.length));
+                if (r == -1) {
+                    this.log.debug(this.port.getName() + ": connection closed by peer");
+                    if (this.socket == readerSocket)
+                        this.close(null);
+                    break;
+                }
+                this.processInput(ByteBuffer.wrap(data, 0, r));
+            }
+        } catch (IOException e) {
+            if (this.socket == readerSocket)
+                this.close(e);
+        } catch (RuntimeException e) {
+            this.log.error(this.port.getName() + ": unexpected exception in reader thread", e);
+            if (this.socket == readerSocket)
+                this.close(null);
+        }
+    }
+
+    @Override
+    protected void inputDrained() {
+        // the reader thread is woken up directly
+    }
+
+    @Override
+    protected void resetConnection() {
+        this.writeLock.lock();
+        try {
+            this.socket = null;
+            this.socketOutput = null;
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    // Output
+
+    // Commands are encoded into a reusable buffer while holding the write lock, since send() is done with it on return
+    @Override
+    public void sendCommand(ComPortCommand command) throws IOException {
+        this.writeLock.lock();
+        try {
+            super.sendCommand(command);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void sendCommands(List<ComPortCommand> commands) throws IOException {
+        this.writeLock.lock();
+        try {
+            super.sendCommands(commands);
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    @Override
+    protected ByteBuffer getCommandBuffer(int length) {
+        assert this.writeLock.isHeldByCurrentThread();
+        if (this.commandBuffer == null || this.commandBuffer.capacity() < length)
+            this.commandBuffer = ByteBuffer.allocate(Math.max(length, COMMAND_BUFFER_SIZE));
+        this.commandBuffer.clear();
+        return this.commandBuffer;
+    }
+
+    @Override
+    protected void send(ByteBuffer buf) throws IOException {
+        this.writeLock.lock();
+        try {
+            if (this.isClosed() || this.socketOutput == null)
+                throw new IOException("connection is closed");
+            this.socketOutput.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.limit());
+        } finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    // Shutdown
+
+    @Override
+    protected void closeConnection(IOException cause) {
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                this.log.debug(this.port.getName() + ": exception closing socket (ignoring)", e);
+            }
+        }
+    }
+}
+
@@ -22,6 +22,20 @@ import static org.dellroad.jvser.RFC2217.STOPSIZE_REQUEST;
  */
 public class StopSizeCommand extends ComPortCommand {
 
+    private static final StopSizeCommand[] CLIENT_INSTANCES = new StopSizeCommand[STOPSIZE_1_5 + 1];
+    private static final StopSizeCommand[] SERVER_INSTANCES = new StopSizeCommand[STOPSIZE_1_5 + 1];
+
+    static {
+        for (int value = 0; value <= STOPSIZE_1_5; value++) {
+            if (isValid(value)) {
+                CLIENT_INSTANCES[value] = new StopSizeCommand(true, value);
+                SERVER_INSTANCES[value] = new StopSizeCommand(false, value);
+                CLIENT_INSTANCES[value].precomputeEncoding();
+                SERVER_INSTANCES[value].precomputeEncoding();
+            }
+        }
+    }
+
     private int stopSize;
 
     /**
@@ -37,15 +51,8 @@ public class StopSizeCommand extends ComPortCommand {
     public StopSizeCommand(int[] bytes) {
         super("SET-STOPSIZE", SET_STOPSIZE, bytes);
         this.stopSize = bytes[2];
-        switch (this.stopSize) {
-        case STOPSIZE_REQUEST:
-        case STOPSIZE_1:
-        case STOPSIZE_2:
-        case STOPSIZE_1_5:
-            break;
-        default:
+        if (!isValid(this.stopSize))
             throw new IllegalArgumentException("invalid stop size value " + this.stopSize);
-        }
     }
 
     /**
@@ -63,6 +70,36 @@ public class StopSizeCommand extends ComPortCommand {
         });
     }
 
+    /**
+     * Get the canonical instance for the given value. Instances are shared and have their encoding precomputed.
+     *
+     * @param client true for the client-to-server command, false for the server-to-client command
+     * @param stopSize stop size value
+     * @throws IllegalArgumentException if {@code stopSize} is not a valid RFC 2217 stop size value
+     */
+    public static StopSizeCommand valueOf(boolean client, int stopSize) {
+        if (stopSize >= 0 && stopSize <= STOPSIZE_1_5) {
+            StopSizeCommand command = (client ? CLIENT_INSTANCES : SERVER_INSTANCES)[stopSize];
+            if (command != null)
+                return command;
+        }
+        throw new IllegalArgumentException("invalid stop size value " + stopSize);
+    }
+
+    // Get the canonical instance having the given encoding, or null if the encoding is invalid
+    static StopSizeCommand lookup(int[] bytes) {
+        if (bytes.length != 3 || bytes[0] != COM_PORT_OPTION || bytes[2] < 0 || bytes[2] > STOPSIZE_1_5)
+            return null;
+        switch (bytes[1]) {
+        case SET_STOPSIZE:
+            return CLIENT_INSTANCES[bytes[2]];
+        case SET_STOPSIZE + SERVER_OFFSET:
+            return SERVER_INSTANCES[bytes[2]];
+        default:
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
         String desc;
@@ -104,5 +141,16 @@ public class StopSizeCommand extends ComPortCommand {
     int getMaxPayloadLength() {
         return 1;
     }
-}
 
+    static boolean isValid(int stopSize) {
+        switch (stopSize) {
+        case STOPSIZE_REQUEST:
+        case STOPSIZE_1:
+        case STOPSIZE_2:
+        case STOPSIZE_1_5:
+            return true;
+        default:
+            return false;
+        }
+    }
+}
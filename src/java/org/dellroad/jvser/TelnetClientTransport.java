@@ -0,0 +1,345 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.net.telnet.TelnetClient;
+
+/**
+ * {@link TelnetTransport} based on a commons-net {@link TelnetClient}, which uses a dedicated reader thread.
+ */
+class TelnetClientTransport implements TelnetTransport {
+
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    private final TelnetSerialPort serialPort;
+    private final TelnetClient telnetClient;
+    private final Input input = new Input();
+    private final Output output = new Output();
+
+    private volatile CaptureJournal journal;
+
+    TelnetClientTransport(TelnetSerialPort serialPort, TelnetClient telnetClient) {
+        if (serialPort == null)
+            throw new IllegalArgumentException("null serialPort");
+        if (telnetClient == null)
+            throw new IllegalArgumentException("null telnetClient");
+        this.serialPort = serialPort;
+        this.telnetClient = telnetClient;
+    }
+
+    @Override
+    public void connect(InetAddress host, int port) throws IOException {
+        this.telnetClient.connect(host, port);
+
+        // TelnetClient sends its initial option negotiation while connecting, so send this right behind it
+        final List<ComPortCommand> configuration = this.serialPort.optimisticCommands();
+        if (configuration != null)
+            this.sendCommands(configuration);
+    }
+
+    // TelnetClient does not notify us when the connection is lost, so we don't try
+    @Override
+    public void reconnect(InetAddress host, int port) {
+        throw new UnsupportedOperationException("reconnect not supported");
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+        this.telnetClient.disconnect();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.output;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining())
+            return 0;
+        if (dst.hasArray()) {
+            int r = this.input.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (r > 0)
+                dst.position(dst.position() + r);
+            return r;
+        }
+        byte[] buf = new byte[Math.min(dst.remaining(), READ_BUFFER_SIZE)];
+        int r = this.input.read(buf);
+        if (r > 0)
+            dst.put(buf, 0, r);
+        return r;
+    }
+
+    @Override
+    public int poll(ByteBuffer dst) throws IOException {
+        int available = this.available();
+        if (available <= 0 || !dst.hasRemaining())
+            return available == -1 ? -1 : 0;
+        byte[] buf = new byte[Math.min(available, dst.remaining())];
+        int r = this.telnetClient.getInputStream().read(buf);
+        if (r > 0) {
+            this.recordInput(buf, 0, r);
+            dst.put(buf, 0, r);
+        }
+        return r;
+    }
+
+    @Override
+    public void setReceiveThreshold(int threshold) {
+        this.input.threshold = threshold;
+    }
+
+    @Override
+    public void setReceiveTimeout(long timeout) {
+        this.input.timeout = timeout;
+    }
+
+    @Override
+    public void setReceiveFraming(int framingByte) {
+        this.input.framing = framingByte;
+    }
+
+    @Override
+    public void setCaptureJournal(CaptureJournal journal) {
+        this.journal = journal;
+    }
+
+    // Received data is not visible to us until it is read, so that's when we record it
+    private void recordInput(byte[] data, int off, int len) {
+        final CaptureJournal currentJournal = this.journal;
+        if (currentJournal != null && len > 0)
+            currentJournal.record(CaptureJournal.INBOUND_DATA, data, off, len);
+    }
+
+    /**
+     * Notification from the {@link TelnetClient}'s reader thread that new data is available.
+     */
+    void inputAvailable() {
+        if (this.input.waiting) {
+            this.input.lock.lock();
+            try {
+                this.input.dataArrived.signalAll();
+            } finally {
+                this.input.lock.unlock();
+            }
+        }
+    }
+
+    // Received data is buffered by the TelnetClient
+    @Override
+    public InputRing getInputRing() {
+        return null;
+    }
+
+    // TelnetClient's input stream does not report EOF via available(), so we check the connection instead
+    @Override
+    public int available() throws IOException {
+        int available = this.telnetClient.getInputStream().available();
+        return available == 0 && !this.telnetClient.isConnected() ? -1 : available;
+    }
+
+    // TelnetClient does its own IAC escaping, so we just gather the data into one array and flush it
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        int total = 0;
+        for (int i = offset; i < offset + length; i++)
+            total += srcs[i].remaining();
+        if (total == 0)
+            return 0;
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (int i = offset; i < offset + length; i++)
+            buf.put(srcs[i]);
+        this.output.write(buf.array(), 0, total);
+        this.output.flush();
+        return total;
+    }
+
+    // The write is performed by the calling thread
+    @Override
+    public void writeAsync(ByteBuffer src, TelnetFuture<Integer> future) {
+        try {
+            future.complete((int)this.write(new ByteBuffer[] { src }, 0, 1));
+        } catch (IOException e) {
+            future.fail(e);
+        }
+    }
+
+    // If the client is not a BatchingTelnetClient (see TelnetSerialPort.createTelnetClient()), send one at a time
+    @Override
+    public void sendCommand(ComPortCommand command) throws IOException {
+        if (this.telnetClient instanceof BatchingTelnetClient) {
+            ((BatchingTelnetClient)this.telnetClient).sendCommand(command);
+            return;
+        }
+        this.telnetClient.sendSubnegotiation(command.getBytes());
+    }
+
+    @Override
+    public void sendCommands(List<ComPortCommand> commands) throws IOException {
+        if (this.telnetClient instanceof BatchingTelnetClient) {
+            ((BatchingTelnetClient)this.telnetClient).sendCommands(commands);
+            return;
+        }
+        for (ComPortCommand command : commands)
+            this.telnetClient.sendSubnegotiation(command.getBytes());
+    }
+
+    // Input stream
+
+    /**
+     * Applies the receive threshold, timeout, and framing byte on top of the {@link TelnetClient}'s input stream.
+     * When a timeout is set, we wait for {@link TelnetClientTransport#inputAvailable} notifications rather than block
+     * in the {@link TelnetClient}'s input stream, which cannot be interrupted by a timeout. In that case, end of stream
+     * cannot be detected until the connection is closed. Because we can't look ahead in the {@link TelnetClient}'s
+     * input stream, framed reads are performed one byte at a time.
+     */
+    private class Input extends InputStream {
+
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition dataArrived = this.lock.newCondition();
+
+        volatile boolean waiting;
+        volatile int threshold;
+        volatile long timeout = -1;
+        volatile int framing = -1;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int r = this.read(b, 0, 1);
+            return r == 1 ? b[0] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] data, int off, int len) throws IOException {
+            int r = this.readData(data, off, len);
+            TelnetClientTransport.this.recordInput(data, off, r);
+            return r;
+        }
+
+        private int readData(byte[] data, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > data.length)
+                throw new IndexOutOfBoundsException();
+            if (len == 0)
+                return 0;
+            final InputStream input = TelnetClientTransport.this.telnetClient.getInputStream();
+            final int currentFraming = this.framing;
+            final int currentThreshold = this.threshold;
+            final int want = currentThreshold > 0 ? Math.min(currentThreshold, len) : currentFraming != -1 ? len : 1;
+            final long currentTimeout = this.timeout;
+            final long deadline = currentTimeout >= 0 ? System.nanoTime() + currentTimeout : 0;
+
+            // Read one byte at a time until we see the framing byte
+            if (currentFraming != -1) {
+                int total = 0;
+                while (total < want) {
+                    if (currentTimeout >= 0) {
+                        int available = this.awaitAvailable(1, deadline);
+                        if (available <= 0)
+                            return total > 0 ? total : available;
+                    }
+                    int b = input.read();
+                    if (b == -1)
+                        return total > 0 ? total : -1;
+                    data[off + total++] = (byte)b;
+                    if (b == currentFraming)
+                        break;
+                }
+                return total;
+            }
+
+            // Without a timeout, block in the TelnetClient until we have enough
+            if (currentTimeout < 0) {
+                int total = 0;
+                while (total < want) {
+                    int r = input.read(data, off + total, len - total);
+                    if (r == -1)
+                        return total > 0 ? total : -1;
+                    total += r;
+                }
+                return total;
+            }
+
+            // Wait for notification that enough data is available, or timeout
+            int available = this.awaitAvailable(want, deadline);
+            if (available <= 0)
+                return available;
+            return input.read(data, off, Math.min(available, len));
+        }
+
+        // Wait until "want" bytes are available, end of stream, or the deadline; returns TelnetClientTransport.available()
+        private int awaitAvailable(int want, long deadline) throws IOException {
+            int available;
+            this.lock.lock();
+            try {
+                this.waiting = true;
+                long nanos = deadline - System.nanoTime();
+                while ((available = TelnetClientTransport.this.available()) < want && available != -1 && nanos > 0)
+                    nanos = this.dataArrived.awaitNanos(nanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reading");
+            } finally {
+                this.waiting = false;
+                this.lock.unlock();
+            }
+            return available;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return TelnetClientTransport.this.telnetClient.getInputStream().available();
+        }
+    }
+
+    // Output stream
+
+    // Records outbound data in the capture journal, if any
+    private class Output extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            this.write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] data, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > data.length)
+                throw new IndexOutOfBoundsException();
+            final CaptureJournal currentJournal = TelnetClientTransport.this.journal;
+            if (currentJournal != null)
+                currentJournal.record(CaptureJournal.OUTBOUND_DATA, data, off, len);
+            TelnetClientTransport.this.telnetClient.getOutputStream().write(data, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            TelnetClientTransport.this.telnetClient.getOutputStream().flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            TelnetClientTransport.this.telnetClient.getOutputStream().close();
+        }
+    }
+}
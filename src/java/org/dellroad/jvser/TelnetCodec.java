@@ -0,0 +1,183 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Bulk telnet data encoding and decoding support.
+ *
+ * <p>
+ * Telnet data is transparent except for the {@code IAC} byte (0xff), which is doubled on the wire. Rather than
+ * processing data a byte at a time, the methods in this class scan whole buffers for {@code IAC} eight bytes at a time
+ * (using "SIMD within a register" word operations) and copy the runs in between using bulk {@link ByteBuffer} copies.
+ * </p>
+ */
+final class TelnetCodec {
+
+    // Telnet commands
+    static final int SE = 240;
+    static final int SB = 250;
+    static final int WILL = 251;
+    static final int WONT = 252;
+    static final int DO = 253;
+    static final int DONT = 254;
+    static final int IAC = 255;
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+    private static final long IAC_WORD = broadcast((byte)IAC);
+
+    private TelnetCodec() {
+    }
+
+    /**
+     * Find the first {@code IAC} byte in the given range of a buffer. Does not modify the buffer.
+     *
+     * @param buf buffer to search
+     * @param from starting index (inclusive)
+     * @param to ending index (exclusive)
+     * @return index of the first {@code IAC} byte, or -1 if none is found
+     */
+    static int indexOfIAC(ByteBuffer buf, int from, int to) {
+        return indexOf(buf, from, to, (byte)IAC);
+    }
+
+    /**
+     * Find the first occurrence of a byte value in the given range of a buffer, eight bytes at a time.
+     * Does not modify the buffer.
+     *
+     * @param buf buffer to search
+     * @param from starting index (inclusive)
+     * @param to ending index (exclusive)
+     * @param b byte value to find
+     * @return index of the first byte equal to {@code b}, or -1 if none is found
+     */
+    static int indexOf(ByteBuffer buf, int from, int to, byte b) {
+        int i = from;
+        if (to - i >= 8) {
+            final long pattern = broadcast(b);
+            final boolean bigEndian = buf.order() == ByteOrder.BIG_ENDIAN;
+            for (int last = to - 8; i <= last; i += 8) {
+                long mask = matchMask(buf.getLong(i), pattern);
+                if (mask != 0)
+                    return i + ((bigEndian ? Long.numberOfLeadingZeros(mask) : Long.numberOfTrailingZeros(mask)) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Count the {@code IAC} bytes in the given range of a buffer. Does not modify the buffer.
+     *
+     * @param buf buffer to search
+     * @param from starting index (inclusive)
+     * @param to ending index (exclusive)
+     */
+    static int countIAC(ByteBuffer buf, int from, int to) {
+        int count = 0;
+        int i = from;
+        for (int last = to - 8; i <= last; i += 8)
+            count += Long.bitCount(matchMask(buf.getLong(i), IAC_WORD));
+        for (; i < to; i++) {
+            if (buf.get(i) == (byte)IAC)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Get the encoded length of the remaining bytes in the given buffer. Does not modify the buffer.
+     */
+    static int encodedLength(ByteBuffer src) {
+        return src.remaining() + countIAC(src, src.position(), src.limit());
+    }
+
+    /**
+     * Encode data, doubling any {@code IAC} bytes. All remaining bytes in {@code src} are consumed.
+     *
+     * @param src data to encode
+     * @param dst destination buffer; must have at least {@link #encodedLength encodedLength(src)} bytes remaining
+     * @throws java.nio.BufferOverflowException if {@code dst} does not have enough room
+     */
+    static void encode(ByteBuffer src, ByteBuffer dst) {
+        while (src.hasRemaining()) {
+            int iac = indexOfIAC(src, src.position(), src.limit());
+            if (iac == -1) {
+                dst.put(src);
+                break;
+            }
+            copy(src, iac + 1 - src.position(), dst);
+            dst.put((byte)IAC);
+        }
+    }
+
+    /**
+     * Encode data into a new buffer, doubling any {@code IAC} bytes.
+     *
+     * @return encoded data, ready for reading
+     */
+    static ByteBuffer encode(byte[] data, int off, int len) {
+        ByteBuffer src = ByteBuffer.wrap(data, off, len);
+        int escapes = countIAC(src, off, off + len);
+        if (escapes == 0)
+            return ByteBuffer.wrap(Arrays.copyOfRange(data, off, off + len));
+        ByteBuffer dst = ByteBuffer.allocate(len + escapes);
+        encode(src, dst);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Encode the remaining data in the given buffers into a single new buffer, doubling any {@code IAC} bytes.
+     * All remaining bytes in the given buffers are consumed.
+     *
+     * @return encoded data, ready for reading
+     */
+    static ByteBuffer encode(ByteBuffer[] srcs, int offset, int length) {
+        int encodedLength = 0;
+        for (int i = offset; i < offset + length; i++)
+            encodedLength += encodedLength(srcs[i]);
+        ByteBuffer dst = ByteBuffer.allocate(encodedLength);
+        for (int i = offset; i < offset + length; i++)
+            encode(srcs[i], dst);
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * Copy {@code len} bytes from {@code src} to {@code dst} in bulk, advancing both positions.
+     */
+    static void copy(ByteBuffer src, int len, ByteBuffer dst) {
+        int limit = src.limit();
+        src.limit(src.position() + len);
+        try {
+            dst.put(src);
+        } finally {
+            src.limit(limit);
+        }
+    }
+
+    // Returns a word with every byte equal to "b"
+    private static long broadcast(byte b) {
+        return (b & 0xffL) * ONES;
+    }
+
+    // Returns a word with the high bit set in exactly those bytes of "word" that equal the corresponding byte of "pattern"
+    private static long matchMask(long word, long pattern) {
+        long diff = word ^ pattern;                                 // matching bytes are now zero
+        return ~(((diff & LOW7) + LOW7) | diff | LOW7);
+    }
+}
+
@@ -0,0 +1,153 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A single event loop thread that performs the network I/O for any number of {@link NioTelnetTransport}s.
+ *
+ * <p>
+ * All selector and {@link SelectionKey} manipulation happens on the event loop thread; other threads
+ * hand work to the loop via {@link #execute}.
+ * </p>
+ */
+final class TelnetEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Selector selector;
+    private final Thread thread;
+
+    private volatile boolean shutdown;
+
+    TelnetEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    void shutdown() {
+        this.shutdown = true;
+        this.selector.wakeup();
+    }
+
+    /**
+     * Release the resources of an event loop whose thread was never {@linkplain #start started}.
+     * Once started, the event loop thread itself closes the selector on its way out.
+     */
+    void closeUnstarted() {
+        assert !this.thread.isAlive();
+        this.shutdown = true;
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            this.log.debug(this.thread.getName() + ": exception closing selector (ignoring)", e);
+        }
+    }
+
+    Selector getSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Get the buffer used for reading from the network. Because only one connection is serviced at a time,
+     * all connections on this loop share the same buffer. Only valid within the event loop thread.
+     */
+    ByteBuffer getReadBuffer() {
+        assert this.inEventLoop();
+        return this.readBuffer;
+    }
+
+    /**
+     * Determine if the current thread is this event loop's thread.
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Schedule a task to be executed by the event loop thread.
+     *
+     * <p>
+     * This may be invoked by application threads in the middle of I/O calls, so it does not throw if this event loop
+     * has been shutdown; instead the task is dropped and the caller decides how to fail.
+     * </p>
+     *
+     * @return true if the task was scheduled, false if this event loop has been shutdown
+     */
+    boolean execute(Runnable task) {
+        if (this.shutdown)
+            return false;
+        this.taskQueue.add(task);
+        if (!this.inEventLoop())
+            this.selector.wakeup();
+        return true;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.shutdown) {
+                this.runTasks();
+                this.selector.select();
+
+                // Once shutdown, don't service connections any further, even if their keys were selected
+                for (Iterator<SelectionKey> i = this.selector.selectedKeys().iterator(); i.hasNext() && !this.shutdown; ) {
+                    SelectionKey key = i.next();
+                    i.remove();
+                    NioTelnetTransport transport = (NioTelnetTransport)key.attachment();
+                    try {
+                        transport.handleSelect(key);
+                    } catch (RuntimeException e) {
+                        this.log.error(this.thread.getName() + ": unexpected exception from " + transport, e);
+                        transport.close(null);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            this.log.error(this.thread.getName() + ": fatal selector error", e);
+        } finally {
+            this.runTasks();
+            for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys()))
+                ((NioTelnetTransport)key.attachment()).close(null);
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                this.log.debug(this.thread.getName() + ": exception closing selector (ignoring)", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = this.taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                this.log.error(this.thread.getName() + ": unexpected exception from task", e);
+            }
+        }
+    }
+}
+
@@ -0,0 +1,93 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loop threads, each of which multiplexes the network I/O for many
+ * {@link TelnetSerialPort}s using a single {@link java.nio.channels.Selector}.
+ *
+ * <p>
+ * Ports created via {@link TelnetSerialPort#TelnetSerialPort(TelnetEventLoopGroup)} do not consume any threads of
+ * their own; instead, telnet option negotiation, {@code COM-PORT-OPTION} subnegotiation, and data I/O are all
+ * performed by one of the event loops in this group. Ports are assigned to event loops in round-robin fashion.
+ * </p>
+ *
+ * <p>
+ * Note that {@link javax.comm.SerialPortEventListener}s registered with such ports are notified from the event loop
+ * thread, and therefore should not block.
+ * </p>
+ *
+ * @see TelnetSerialPort#TelnetSerialPort(TelnetEventLoopGroup)
+ */
+public class TelnetEventLoopGroup {
+
+    private final TelnetEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Convenience constructor. Creates one event loop per available processor.
+     *
+     * @throws IOException if a {@link java.nio.channels.Selector} cannot be opened
+     */
+    public TelnetEventLoopGroup() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numLoops number of event loop threads
+     * @throws IllegalArgumentException if {@code numLoops} is less than one
+     * @throws IOException if a {@link java.nio.channels.Selector} cannot be opened
+     */
+    public TelnetEventLoopGroup(int numLoops) throws IOException {
+        if (numLoops < 1)
+            throw new IllegalArgumentException("numLoops < 1");
+        this.loops = new TelnetEventLoop[numLoops];
+        try {
+            for (int i = 0; i < numLoops; i++)
+                this.loops[i] = new TelnetEventLoop("jvser event loop #" + (i + 1));
+        } catch (IOException e) {
+
+            // None of the threads have been started yet, so we must close the selectors ourselves
+            for (TelnetEventLoop loop : this.loops) {
+                if (loop != null)
+                    loop.closeUnstarted();
+            }
+            throw e;
+        }
+        for (TelnetEventLoop loop : this.loops)
+            loop.start();
+    }
+
+    /**
+     * Get the number of event loop threads in this group.
+     */
+    public int getNumLoops() {
+        return this.loops.length;
+    }
+
+    /**
+     * Shutdown all event loops in this group. Any ports still connected via this group are closed.
+     */
+    public void shutdown() {
+        for (TelnetEventLoop loop : this.loops) {
+            if (loop != null)
+                loop.shutdown();
+        }
+    }
+
+    // Choose the event loop for a new connection
+    TelnetEventLoop next() {
+        return this.loops[(this.next.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+    }
+}
+
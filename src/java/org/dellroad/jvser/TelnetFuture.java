@@ -0,0 +1,241 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The result of an asynchronous {@link TelnetSerialPort} operation.
+ *
+ * <p>
+ * In addition to the usual {@link Future} methods, {@link Listener}s may be registered to be notified when the
+ * operation completes. Listeners are notified by the thread that completes the operation, which is normally the
+ * port's I/O thread, and therefore should not block. A listener added after the operation has already completed
+ * is notified immediately by the thread adding it.
+ * </p>
+ *
+ * @param <V> result type
+ * @see TelnetSerialPort#readAsync
+ * @see TelnetSerialPort#writeAsync
+ * @see TelnetSerialPort#awaitModemStateAsync
+ */
+public class TelnetFuture<V> implements Future<V> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition completed = this.lock.newCondition();
+
+    private ArrayList<Listener<V>> listeners;
+    private boolean done;
+    private boolean cancelled;
+    private V value;
+    private Throwable cause;
+
+    TelnetFuture() {
+    }
+
+    /**
+     * Register a listener to be notified when this operation completes.
+     *
+     * @param listener completion listener
+     * @throws IllegalArgumentException if {@code listener} is null
+     */
+    public void addListener(Listener<V> listener) {
+        if (listener == null)
+            throw new IllegalArgumentException("null listener");
+        this.lock.lock();
+        try {
+            if (!this.done) {
+                if (this.listeners == null)
+                    this.listeners = new ArrayList<Listener<V>>(1);
+                this.listeners.add(listener);
+                return;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.notify(listener);
+    }
+
+    /**
+     * Get the exception that caused this operation to fail.
+     *
+     * @return failure cause, or null if this operation has not completed, succeeded, or was cancelled
+     */
+    public Throwable getCause() {
+        this.lock.lock();
+        try {
+            return this.cancelled ? null : this.cause;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Attempt to cancel this operation. An operation can only be cancelled before it has started transferring data.
+     *
+     * @param mayInterruptIfRunning ignored
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (this.isDone() || !this.cancelOperation())
+            return false;
+        return this.finish(null, new CancellationException(), true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        this.lock.lock();
+        try {
+            return this.cancelled;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        this.lock.lock();
+        try {
+            return this.done;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        this.lock.lock();
+        try {
+            while (!this.done)
+                this.completed.await();
+            return this.getResult();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lock();
+        try {
+            while (!this.done) {
+                if (nanos <= 0)
+                    throw new TimeoutException();
+                nanos = this.completed.awaitNanos(nanos);
+            }
+            return this.getResult();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Caller must hold the lock
+    private V getResult() throws ExecutionException {
+        if (this.cancelled)
+            throw (CancellationException)new CancellationException().initCause(this.cause);
+        if (this.cause != null)
+            throw new ExecutionException(this.cause);
+        return this.value;
+    }
+
+    // Completion
+
+    /**
+     * Complete this operation successfully.
+     *
+     * @return true if completed, false if already completed
+     */
+    boolean complete(V result) {
+        return this.finish(result, null, false);
+    }
+
+    /**
+     * Complete this operation unsuccessfully.
+     *
+     * @return true if completed, false if already completed
+     */
+    boolean fail(Throwable failure) {
+        return this.finish(null, failure, false);
+    }
+
+    /**
+     * Cancel this operation even if it has already started; data already handed off may still be transferred.
+     *
+     * @return true if cancelled, false if already completed
+     */
+    boolean abandon() {
+        return this.finish(null, new CancellationException(), true);
+    }
+
+    /**
+     * Prevent the operation from starting, if possible, in preparation for cancellation.
+     * The default implementation returns true.
+     *
+     * @return true if the operation may be cancelled
+     */
+    boolean cancelOperation() {
+        return true;
+    }
+
+    private boolean finish(V result, Throwable failure, boolean cancel) {
+        ArrayList<Listener<V>> listenersToNotify;
+        this.lock.lock();
+        try {
+            if (this.done)
+                return false;
+            this.done = true;
+            this.value = result;
+            this.cause = failure;
+            this.cancelled = cancel;
+            listenersToNotify = this.listeners;
+            this.listeners = null;
+            this.completed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        if (listenersToNotify != null) {
+            for (Listener<V> listener : listenersToNotify)
+                this.notify(listener);
+        }
+        return true;
+    }
+
+    private void notify(Listener<V> listener) {
+        try {
+            listener.operationComplete(this);
+        } catch (RuntimeException e) {
+            Logger.getLogger(getClass()).warn("exception from listener " + listener, e);
+        }
+    }
+
+    /**
+     * Listener notified when a {@link TelnetFuture} completes.
+     *
+     * @param <V> result type
+     */
+    public interface Listener<V> {
+
+        /**
+         * Notification that the operation has completed, successfully or not.
+         *
+         * @param future the completed operation
+         */
+        void operationComplete(TelnetFuture<V> future);
+    }
+}
+
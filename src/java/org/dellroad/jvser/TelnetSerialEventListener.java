@@ -0,0 +1,37 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+/**
+ * Receives {@link TelnetSerialPort} events as primitive values.
+ *
+ * <p>
+ * This is the native jvser alternative to {@link javax.comm.SerialPortEventListener}: no event object is allocated,
+ * and each event carries the time at which it was generated, i.e., when the triggering data or command was received
+ * from the access server, and a per-port sequence number. Since the sequence number increases by one for every event
+ * generated for any listener, gaps reveal events that were {@linkplain TelnetSerialPort#getDroppedEventCount dropped}.
+ * {@link javax.comm.SerialPortEventListener}s registered with a port are notified via an adapter implementing this
+ * interface.
+ * </p>
+ *
+ * @see TelnetSerialPort#addEventListener(TelnetSerialEventListener, int)
+ */
+public interface TelnetSerialEventListener {
+
+    /**
+     * Receive an event.
+     *
+     * @param port the port generating the event
+     * @param type event type, e.g., {@link javax.comm.SerialPortEvent#CTS}
+     * @param oldValue previous value of the state represented by {@code type}
+     * @param newValue new value of the state represented by {@code type}
+     * @param nanoTime {@link System#nanoTime} when the event was generated
+     * @param seq event sequence number, starting at one
+     */
+    void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue, long nanoTime, long seq);
+}
@@ -9,9 +9,25 @@ package org.dellroad.jvser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.TooManyListenersException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.comm.SerialPort;
 import javax.comm.SerialPortEvent;
@@ -29,18 +45,8 @@ import static org.dellroad.jvser.RFC2217.CONTROL_BREAK_OFF;
 import static org.dellroad.jvser.RFC2217.CONTROL_BREAK_ON;
 import static org.dellroad.jvser.RFC2217.CONTROL_DTR_OFF;
 import static org.dellroad.jvser.RFC2217.CONTROL_DTR_ON;
-import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_HARDWARE;
-import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_NONE;
-import static org.dellroad.jvser.RFC2217.CONTROL_INBOUND_FLOW_XON_XOFF;
-import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_HARDWARE;
-import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_NONE;
-import static org.dellroad.jvser.RFC2217.CONTROL_OUTBOUND_FLOW_XON_XOFF;
 import static org.dellroad.jvser.RFC2217.CONTROL_RTS_OFF;
 import static org.dellroad.jvser.RFC2217.CONTROL_RTS_ON;
-import static org.dellroad.jvser.RFC2217.DATASIZE_5;
-import static org.dellroad.jvser.RFC2217.DATASIZE_6;
-import static org.dellroad.jvser.RFC2217.DATASIZE_7;
-import static org.dellroad.jvser.RFC2217.DATASIZE_8;
 import static org.dellroad.jvser.RFC2217.LINESTATE_BREAK_DETECT;
 import static org.dellroad.jvser.RFC2217.LINESTATE_DATA_READY;
 import static org.dellroad.jvser.RFC2217.LINESTATE_FRAMING_ERROR;
@@ -51,9 +57,6 @@ import static org.dellroad.jvser.RFC2217.MODEMSTATE_CARRIER_DETECT;
 import static org.dellroad.jvser.RFC2217.MODEMSTATE_CTS;
 import static org.dellroad.jvser.RFC2217.MODEMSTATE_DSR;
 import static org.dellroad.jvser.RFC2217.MODEMSTATE_RING_INDICATOR;
-import static org.dellroad.jvser.RFC2217.STOPSIZE_1;
-import static org.dellroad.jvser.RFC2217.STOPSIZE_1_5;
-import static org.dellroad.jvser.RFC2217.STOPSIZE_2;
 
 /**
  * Implements the client side of the <a href="http://tools.ietf.org/html/rfc2217">RFC 2217</a>
@@ -65,9 +68,9 @@ import static org.dellroad.jvser.RFC2217.STOPSIZE_2;
  * <ul>
  * <li>
  * To "open" a serial port, create an instance of this class, configure it as required,
- * and then get the {@link TelnetClient} via {@link #getTelnetClient} and invoke
+ * and then invoke {@link #connect connect()}. This will create the telnet connection to the access server.
+ * Alternately, get the {@link TelnetClient} via {@link #getTelnetClient} and invoke
  * {@link TelnetClient#connect(java.net.InetAddress, int) TelnetClient.connect()} (or one of its variants).
- * This will create the telnet connection to the access server.
  * </li>
  *
  * <li>
@@ -79,18 +82,14 @@ import static org.dellroad.jvser.RFC2217.STOPSIZE_2;
  * </p>
  *
  * <p>
- * The following optional functionality is not implemented and/or inappropriate for a networked connection:
- * <ul>
- * <li>Receive threshold</li>
- * <li>Receive timeout</li>
- * <li>Receive framing byte</li>
- * <li>Input buffer size</li>
- * <li>Output buffer size</li>
- * </ul>
+ * Access servers typically don't support {@link #notifyOnOutputEmpty}.
  * </p>
  *
  * <p>
- * In addition, access servers typically don't support {@link #notifyOnOutputEmpty}.
+ * By default, each instance uses a commons-net {@link TelnetClient}, which requires a dedicated reader thread
+ * per port. To support large numbers of ports, instances may instead be constructed with a shared
+ * {@link TelnetEventLoopGroup}, in which case all network I/O is performed by the group's event loop threads,
+ * or with a {@link ThreadFactory} (e.g., one that creates virtual threads) for the reader thread.
  * </p>
  *
  * <p>
@@ -103,10 +102,21 @@ import static org.dellroad.jvser.RFC2217.STOPSIZE_2;
  */
 public class TelnetSerialPort extends SerialPort {
 
-    private static final int DEFAULT_BAUD_RATE = 9600;
+    /**
+     * Event mask containing all {@link SerialPortEvent} types.
+     *
+     * @see #addEventListener(SerialPortEventListener, int)
+     */
+    public static final int ALL_EVENTS = 0x7fe;
 
     private static final String DEFAULT_TERMINAL_TYPE = "VT100";
 
+    private static final long DEFAULT_OUTPUT_BUFFER_LATENCY = TimeUnit.MICROSECONDS.toNanos(500);
+
+
+    // How long purge() waits for the access server to acknowledge PURGE-DATA; servers that don't acknowledge it
+    // are assumed to be done once nothing has been received for the quiet period
+
     // Modem state bits we always want the server to report to us regardless of what listener wants.
     // This is so we can always stay up-to-date with their values in case isCD(), etc. is invoked.
     private static final int MODEMSTATE_ALWAYS_MONITOR
@@ -116,6 +126,14 @@ public class TelnetSerialPort extends SerialPort {
     // we use the LINESTATE_DATA_READY bit only to indicate the listener wants DATA_AVAILABLE notifications.
     private static final int LINESTATE_NEVER_MONITOR = LINESTATE_DATA_READY;
 
+    // Layout of the signal state word: the most recent modem state and line state rec'd from the access server,
+    // plus the DTR and RTS values we last set (or the access server last reported)
+    static final int SIGNAL_MODEMSTATE = 0x000000ff;
+    static final int SIGNAL_LINESTATE = 0x0000ff00;
+    static final int SIGNAL_LINESTATE_SHIFT = 8;
+    static final int SIGNAL_DTR = 0x00010000;
+    static final int SIGNAL_RTS = 0x00020000;
+
     // States
     private enum State {
         INITIAL(false, false),
@@ -141,54 +159,136 @@ public class TelnetSerialPort extends SerialPort {
     }
 
     private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition stateChanged = this.lock.newCondition();
     private final TelnetClient telnetClient;
-
-    private String name;
-    private String signature;
-    private State state;
-    private SerialPortEventListener listener;
-
-    private int baudRate = DEFAULT_BAUD_RATE;
-    private int dataSize = DATASIZE_8;
-    private int flowControlInbound = CONTROL_INBOUND_FLOW_NONE;
-    private int flowControlOutbound = CONTROL_OUTBOUND_FLOW_NONE;
-    private int parity = RFC2217.PARITY_NONE;
-    private int stopSize = STOPSIZE_1;
-
-    private boolean cd;
-    private boolean cts;
-    private boolean dsr;
-    private boolean dtr;
-    private boolean ri;
-    private boolean rts;
-
-    private int lineStateNotify;                                // which line state changes we notify listener about
+    private final TelnetTransport transport;
+    private final OutputBuffer outputBuffer;
+    private final SerialPortChannel channel;
+    private final AsyncOperations asyncOperations;
+    private final Reconnector reconnector;
+    private final ModemStateWaiters modemStateWaiters = new ModemStateWaiters();
+    private final EventDispatcher eventDispatcher = new EventDispatcher(this);
+    private final Negotiator negotiator = new Negotiator(this);
+    private final ListenerRegistry listeners = new ListenerRegistry();
+    private final SerialSettings serialSettings = new SerialSettings();     // protected by "lock"
+    private final ReceiveSettings receiveSettings;
+    private final DataAvailableCoalescer dataAvailableCoalescer;
+    private final Purger purger = new Purger();
+    private final InboundHandler inboundHandler
+      = new InboundHandler(this, this.lock, this.serialSettings, this.modemStateWaiters, this.purger);
+    private final AtomicInteger signals = new AtomicInteger();      // see SIGNAL_* for layout; readable without locking
+    private final AtomicLong eventSequence = new AtomicLong();
+
+    private String name = getClass().getSimpleName();
+    private String signature = "jvser v" + Version.JVSER_VERSION;
+    private volatile State state = State.INITIAL;
+    private volatile CaptureJournal journal;
+
+    private volatile int lineStateNotify;                       // which line state changes we notify listener about
     private int lineStateMask;                                  // which line state changes access server notifies us about
-    private int lineStateLast;                                  // most recent line state rec'd from access server
-    private int modemStateNotify;                               // which modem state changes we notify listener about
+    private volatile int modemStateNotify;                      // which modem state changes we notify listener about
     private int modemStateMask = MODEMSTATE_ALWAYS_MONITOR;     // which modem state changes access server notifies us about
-    private int modemStateLast;                                 // most recent modem state rec'd from access server
+
+    private InetAddress remoteHost;                             // where we're connected, once connected
+    private int remotePort;
+
+    private InputStream input;                                  // wraps transport input stream, created on demand
 
     /**
      * Constructor.
      */
     public TelnetSerialPort() {
-        this.state = State.INITIAL;
-        this.name = getClass().getSimpleName();
-        this.signature = "jvser v" + Version.JVSER_VERSION;
         this.telnetClient = this.createTelnetClient();
+        final TelnetClientTransport clientTransport = new TelnetClientTransport(this, this.telnetClient);
         this.telnetClient.registerInputListener(new TelnetInputListener() {
 
             @Override
             public void telnetInputAvailable() {
-                boolean notify;
-                synchronized (TelnetSerialPort.this) {
-                    notify = (TelnetSerialPort.this.lineStateNotify & LINESTATE_DATA_READY) != 0;
-                }
-                if (notify)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.DATA_AVAILABLE);
+                clientTransport.inputAvailable();
+                TelnetSerialPort.this.dataAvailable();
+            }
+        });
+        this.transport = clientTransport;
+        this.outputBuffer = new OutputBuffer(this.transport, DEFAULT_OUTPUT_BUFFER_LATENCY, Util.eventExecutor());
+        this.channel = new SerialPortChannel(this, this.transport, this.outputBuffer);
+        this.asyncOperations = new AsyncOperations(this.transport, this.outputBuffer);
+        this.receiveSettings = new ReceiveSettings(this.transport);
+        this.dataAvailableCoalescer = new DataAvailableCoalescer(this, this.transport);
+        this.reconnector = new Reconnector(this, this.transport, Util.eventExecutor());
+    }
+
+    /**
+     * Constructor for ports whose network I/O is performed by a shared event loop.
+     *
+     * <p>
+     * Instances created using this constructor have no associated {@link TelnetClient}; use {@link #connect connect()}
+     * to connect to the access server.
+     * </p>
+     *
+     * @param eventLoopGroup event loops that will perform network I/O for this port
+     * @throws IllegalArgumentException if {@code eventLoopGroup} is null
+     */
+    public TelnetSerialPort(TelnetEventLoopGroup eventLoopGroup) {
+        if (eventLoopGroup == null)
+            throw new IllegalArgumentException("null eventLoopGroup");
+        this.telnetClient = null;
+        final TelnetEventLoop loop = eventLoopGroup.next();
+        this.transport = new NioTelnetTransport(this, loop, DEFAULT_TERMINAL_TYPE);
+        this.outputBuffer = new OutputBuffer(this.transport, DEFAULT_OUTPUT_BUFFER_LATENCY, new Executor() {
+            @Override
+            public void execute(Runnable action) {
+                loop.execute(action);                           // if the loop has shutdown, so has the connection
             }
         });
+        this.channel = new SerialPortChannel(this, this.transport, this.outputBuffer);
+        this.asyncOperations = new AsyncOperations(this.transport, this.outputBuffer);
+        this.receiveSettings = new ReceiveSettings(this.transport);
+        this.dataAvailableCoalescer = new DataAvailableCoalescer(this, this.transport);
+        this.reconnector = new Reconnector(this, this.transport, Util.eventExecutor());
+    }
+
+    /**
+     * Constructor for ports whose network reader runs in a thread created by the given {@link ThreadFactory}.
+     *
+     * <p>
+     * Instances created using this constructor have no associated {@link TelnetClient}; use {@link #connect connect()}
+     * to connect to the access server. Unless an {@linkplain #setEventExecutor event executor} is configured,
+     * {@link SerialPortEventListener} notifications are delivered in the reader thread.
+     * {@linkplain #setAutoReconnect Reconnection} attempts also run in threads created by {@code threadFactory}.
+     * </p>
+     *
+     * <p>
+     * In particular, if {@code threadFactory} creates virtual threads (see {@link #getVirtualThreadFactory}),
+     * the reader thread and listener notifications run in a virtual thread, and application threads blocked reading
+     * from the {@linkplain #getInputStream input stream} do not pin their carrier threads. This allows simple
+     * thread-per-port code to scale to very large numbers of ports.
+     * </p>
+     *
+     * @param threadFactory factory for the reader thread
+     * @throws IllegalArgumentException if {@code threadFactory} is null
+     */
+    public TelnetSerialPort(ThreadFactory threadFactory) {
+        if (threadFactory == null)
+            throw new IllegalArgumentException("null threadFactory");
+        this.telnetClient = null;
+        this.transport = new SocketTelnetTransport(this, threadFactory, DEFAULT_TERMINAL_TYPE);
+        this.outputBuffer = new OutputBuffer(this.transport, DEFAULT_OUTPUT_BUFFER_LATENCY, Util.eventExecutor());
+        this.channel = new SerialPortChannel(this, this.transport, this.outputBuffer);
+        this.asyncOperations = new AsyncOperations(this.transport, this.outputBuffer);
+        this.receiveSettings = new ReceiveSettings(this.transport);
+        this.dataAvailableCoalescer = new DataAvailableCoalescer(this, this.transport);
+        this.reconnector = new Reconnector(this, this.transport, Util.threadPerTaskExecutor(threadFactory));
+    }
+
+    /**
+     * Get a {@link ThreadFactory} that creates virtual threads, if the current JVM supports them.
+     *
+     * @return virtual thread factory, or null if virtual threads are not supported
+     * @see #TelnetSerialPort(ThreadFactory)
+     */
+    public static ThreadFactory getVirtualThreadFactory() {
+        return Util.virtualThreadFactory("jvser-");
     }
 
     /**
@@ -222,18 +322,217 @@ public class TelnetSerialPort extends SerialPort {
         this.signature = signature;
     }
 
+    /**
+     * Enable or disable optimistic negotiation.
+     *
+     * <p>
+     * Normally, the serial port configuration is not sent until the access server has agreed to {@code COM-PORT-OPTION},
+     * so the port is not usable until at least two round trips after the TCP connection is established. When optimistic
+     * negotiation is enabled, the current configuration (signature, serial port parameters, line and modem state masks,
+     * flow control, DTR and RTS) is sent together with our initial option negotiation, in the same network write.
+     * When the access server agrees to {@code COM-PORT-OPTION}, the configuration is sent again only if it changed in the
+     * meantime. If the access server refuses, it ignores the configuration, as required by RFC 854, and the port remains
+     * unconfigured just as it would without optimistic negotiation.
+     * </p>
+     *
+     * <p>
+     * This setting takes effect the next time this port {@linkplain #connect connects}. It is disabled by default,
+     * because some access servers may mishandle subnegotiations received before they have agreed to the option.
+     * </p>
+     *
+     * @param optimisticNegotiation true to send the configuration without waiting for the access server
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setOptimisticNegotiation(boolean optimisticNegotiation) {
+        this.state.checkNotClosed();
+        this.negotiator.setOptimistic(optimisticNegotiation);
+    }
+
+    /**
+     * Determine whether optimistic negotiation is enabled.
+     *
+     * @throws IllegalStateException if this port is closed
+     * @see #setOptimisticNegotiation
+     */
+    public boolean isOptimisticNegotiation() {
+        this.state.checkNotClosed();
+        return this.negotiator.isOptimistic();
+    }
+
+    /**
+     * Configure the deadline for the access server to accept {@code COM-PORT-OPTION}, measured from when the
+     * TCP connection is established. If the deadline passes first, the {@linkplain #getReadyFuture ready future}
+     * fails with a {@link TimeoutException}, or, if {@linkplain #setRawFallback raw fallback} is enabled,
+     * completes with the port in raw data mode. By default there is no deadline.
+     *
+     * <p>
+     * This setting takes effect the next time this port {@linkplain #connect connects}.
+     * </p>
+     *
+     * @param timeout negotiation deadline, or zero for none
+     * @param unit {@code timeout} units
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setNegotiationTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout < 0");
+        this.state.checkNotClosed();
+        this.negotiator.setTimeout(unit.toNanos(timeout));
+    }
+
+    /**
+     * Get the negotiation deadline.
+     *
+     * @param unit desired units
+     * @return negotiation deadline, or zero for none
+     * @throws IllegalStateException if this port is closed
+     * @see #setNegotiationTimeout
+     */
+    public long getNegotiationTimeout(TimeUnit unit) {
+        this.state.checkNotClosed();
+        return unit.convert(this.negotiator.getTimeout(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Enable or disable falling back to raw data mode.
+     *
+     * <p>
+     * When enabled, if the access server refuses {@code COM-PORT-OPTION}, or does not accept it before the
+     * {@linkplain #setNegotiationTimeout negotiation deadline}, the {@linkplain #getReadyFuture ready future} completes
+     * successfully instead of failing. The port then works as a plain telnet data connection: serial data flows as
+     * usual, but serial port configuration is only cached (and is sent if the access server accepts
+     * {@code COM-PORT-OPTION} later), and no line or modem state is received. Use {@link #isEstablished} to determine
+     * which mode the port is in. Disabled by default.
+     * </p>
+     *
+     * @param rawFallback true to fall back to raw data mode
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setRawFallback(boolean rawFallback) {
+        this.state.checkNotClosed();
+        this.negotiator.setRawFallback(rawFallback);
+    }
+
+    /**
+     * Determine whether falling back to raw data mode is enabled.
+     *
+     * @throws IllegalStateException if this port is closed
+     * @see #setRawFallback
+     */
+    public boolean isRawFallback() {
+        this.state.checkNotClosed();
+        return this.negotiator.isRawFallback();
+    }
+
+    /**
+     * Get the future that completes when this port is ready for use.
+     *
+     * <p>
+     * The future completes with this port once the access server accepts {@code COM-PORT-OPTION} and the serial port
+     * configuration has been sent. If the access server refuses {@code COM-PORT-OPTION}, the future fails with an
+     * {@link IOException} (ports using a {@link TelnetClient} can't detect this, and rely on the deadline); if the
+     * {@linkplain #setNegotiationTimeout negotiation deadline} passes first, it fails with a {@link TimeoutException}.
+     * In either case, if {@linkplain #setRawFallback raw fallback} is enabled, it instead completes with this port in
+     * raw data mode. If this port is closed first, the future fails with an {@link AsynchronousCloseException}.
+     * </p>
+     *
+     * <p>
+     * The future reflects the initial connection only; see {@link #isEstablished} for the current state after
+     * {@linkplain #setAutoReconnect reconnecting}.
+     * </p>
+     *
+     * @return future completing with this instance
+     */
+    public TelnetFuture<TelnetSerialPort> getReadyFuture() {
+        return this.negotiator.getReadyFuture();
+    }
+
+    /**
+     * Wait until the access server has accepted {@code COM-PORT-OPTION}.
+     *
+     * @param timeout maximum time to wait
+     * @param unit {@code timeout} units
+     * @return true if this port is established, false if the timeout expired or this port was closed first
+     * @throws InterruptedException if the current thread is interrupted
+     */
+    public boolean awaitEstablished(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lock();
+        try {
+            while (this.state == State.INITIAL) {
+                if (nanos <= 0)
+                    return false;
+                nanos = this.stateChanged.awaitNanos(nanos);
+            }
+            return this.state.isEstablished();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Determine whether the access server has accepted {@code COM-PORT-OPTION} on the current connection.
+     *
+     * @return true if serial port configuration is being sent to the access server, false if this port is not
+     *  connected, is still negotiating, is in raw data mode, or is closed
+     */
+    public boolean isEstablished() {
+        return this.state.isEstablished();
+    }
+
     /**
      * Get the {@link TelnetClient} associated with this instance.
+     *
+     * @return associated {@link TelnetClient}, or null if this instance was constructed with a {@link TelnetEventLoopGroup}
      */
     public TelnetClient getTelnetClient() {
         return this.telnetClient;
     }
 
+    /**
+     * Connect to the access server. This method blocks until the TCP connection is established;
+     * telnet option negotiation then proceeds in the background. Use {@link #getReadyFuture} or
+     * {@link #awaitEstablished awaitEstablished()} to wait for it to complete.
+     *
+     * @param host access server host
+     * @param port access server TCP port
+     * @throws IOException if the connection fails
+     * @throws IllegalStateException if this port is closed
+     */
+    public void connect(InetAddress host, int port) throws IOException {
+        this.state.checkNotClosed();
+        this.transport.connect(host, port);
+        final boolean negotiating;
+        this.lock.lock();
+        try {
+            this.remoteHost = host;
+            this.remotePort = port;
+            negotiating = this.state == State.INITIAL;
+        } finally {
+            this.lock.unlock();
+        }
+        if (negotiating)
+            this.negotiator.connected();
+    }
+
+    /**
+     * Connect to the access server. Equivalent to {@code connect(InetAddress.getByName(host), port)}.
+     *
+     * @param host access server host name
+     * @param port access server TCP port
+     * @throws IOException if the connection fails
+     * @throws IllegalStateException if this port is closed
+     */
+    public void connect(String host, int port) throws IOException {
+        this.connect(InetAddress.getByName(host), port);
+    }
+
     /**
      * Construct and configure the {@link TelnetClient} to be used for this instance.
      */
     protected TelnetClient createTelnetClient() {
-        TelnetClient tc = new TelnetClient(DEFAULT_TERMINAL_TYPE);
+        TelnetClient tc = new BatchingTelnetClient(DEFAULT_TERMINAL_TYPE);
         tc.setReaderThread(true);                                   // allows immediate option negotiation
         try {
             tc.addOptionHandler(new TerminalTypeOptionHandler(DEFAULT_TERMINAL_TYPE, false, false, true, false));
@@ -249,643 +548,1229 @@ public class TelnetSerialPort extends SerialPort {
         return tc;
     }
 
-    // We wrap the telnet port's InputStream in a NotifyInputStream so we can detect when there
-    // is new data available to be read. It would be nice if the TelnetClient provided a way to
-    // notify us directly, but it doesn't, so we have to use this hack.
+    // We wrap the transport's InputStream in a DrainTrackingInputStream so we find out when the application
+    // has read received data. Arrivals are reported by the transport; what we need to know here is when the
+    // buffer has been drained, so that a coalesced DATA_AVAILABLE event can be re-armed.
     @Override
-    public synchronized InputStream getInputStream() throws IOException {
-        this.state.checkNotClosed();
-        return this.telnetClient.getInputStream();
+    public InputStream getInputStream() throws IOException {
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.input == null)
+                this.input = new DataAvailableCoalescer.DrainTrackingInputStream(this.transport.getInputStream(), this);
+            return this.input;
+        } finally {
+            this.lock.unlock();
+        }
     }
 
     @Override
-    public synchronized OutputStream getOutputStream() throws IOException {
+    public OutputStream getOutputStream() throws IOException {
         this.state.checkNotClosed();
-        return this.telnetClient.getOutputStream();
+        return this.outputBuffer;
     }
 
+    /**
+     * Set the input buffer size.
+     *
+     * <p>
+     * For ports using a {@link TelnetEventLoopGroup} or {@link ThreadFactory}, received data is handed to readers
+     * through a lock-free ring buffer of this size (rounded up to a power of two); when the buffer is full, reading
+     * from the network is suspended until the application catches up. The size can only be changed before
+     * the port is {@linkplain #connect connected}; later changes are ignored. For ports using a {@link TelnetClient},
+     * received data is buffered by the {@link TelnetClient} and this setting is ignored.
+     * </p>
+     *
+     * @param size buffer size in bytes
+     * @throws IllegalArgumentException if {@code size} is less than one
+     * @throws IllegalStateException if this port is closed
+     * @see #getInputBufferOccupancy
+     */
     @Override
-    public synchronized void close() {
-        if (this.state == State.CLOSED)
+    public void setInputBufferSize(int size) {
+        this.state.checkNotClosed();
+        InputRing ring = this.transport.getInputRing();
+        if (ring == null)
             return;
-        this.state = State.CLOSED;
-        this.log.debug(this.name + ": closing connection");
         try {
-            this.telnetClient.disconnect();
-        } catch (IOException e) {
-            this.log.debug(this.name + ": exception closing TelnetClient (ignoring)", e);
+            ring.setCapacity(size);
+        } catch (IllegalStateException e) {
+            this.log.warn(this.name + ": can't change input buffer size after connecting (ignoring)");
         }
     }
 
+    /**
+     * Get the input buffer size.
+     *
+     * @return buffer size in bytes, or zero if this port uses a {@link TelnetClient}
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized int getBaudRate() {
+    public int getInputBufferSize() {
         this.state.checkNotClosed();
-        return this.baudRate;
+        InputRing ring = this.transport.getInputRing();
+        return ring != null ? ring.getCapacity() : 0;
     }
 
-    @Override
-    public synchronized int getDataBits() {
+    /**
+     * Get the number of received bytes currently waiting in the input buffer to be read.
+     *
+     * @throws IllegalStateException if this port is closed
+     */
+    public int getInputBufferOccupancy() {
         this.state.checkNotClosed();
-        switch (this.dataSize) {
-        case DATASIZE_5:
-            return DATABITS_5;
-        case DATASIZE_6:
-            return DATABITS_6;
-        case DATASIZE_7:
-            return DATABITS_7;
-        case DATASIZE_8:
-            return DATABITS_8;
-        default:
-            throw new RuntimeException("impossible case");
+        InputRing ring = this.transport.getInputRing();
+        if (ring != null)
+            return ring.getOccupancy();
+        try {
+            return Math.max(this.transport.available(), 0);
+        } catch (IOException e) {
+            return 0;
         }
     }
 
-    @Override
-    public synchronized int getStopBits() {
+    /**
+     * Get the largest number of received bytes that have been waiting in the input buffer at one time.
+     * This can be compared to {@link #getInputBufferSize} to determine whether the input buffer is large enough.
+     *
+     * @return peak occupancy, or -1 if this port uses a {@link TelnetClient}
+     * @throws IllegalStateException if this port is closed
+     */
+    public int getInputBufferPeakOccupancy() {
         this.state.checkNotClosed();
-        switch (this.stopSize) {
-        case STOPSIZE_1:
-            return STOPBITS_1;
-        case STOPSIZE_2:
-            return STOPBITS_2;
-        case STOPSIZE_1_5:
-            return STOPBITS_1_5;
-        default:
-            throw new RuntimeException("impossible case");
-        }
+        InputRing ring = this.transport.getInputRing();
+        return ring != null ? ring.getPeakOccupancy() : -1;
     }
 
+    /**
+     * Set the output buffer size.
+     *
+     * <p>
+     * When the size is non-zero, small writes to the {@linkplain #getOutputStream output stream} are coalesced and sent
+     * when the buffer fills, when the output stream is {@linkplain OutputStream#flush flushed}, or when the oldest
+     * buffered byte has waited for the {@linkplain #setOutputBufferLatency maximum latency}, whichever comes first.
+     * Data written via {@link #getWritableChannel} or {@link #writeAsync writeAsync()} causes any buffered data
+     * to be sent first. When the size is zero (the default), output is not buffered by this class.
+     * </p>
+     *
+     * @param size buffer size in bytes, or zero to disable buffering
+     * @throws IllegalArgumentException if {@code size} is negative
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized int getParity() {
+    public void setOutputBufferSize(int size) {
         this.state.checkNotClosed();
-        switch (this.parity) {
-        case RFC2217.PARITY_NONE:
-            return SerialPort.PARITY_NONE;
-        case RFC2217.PARITY_ODD:
-            return SerialPort.PARITY_ODD;
-        case RFC2217.PARITY_EVEN:
-            return SerialPort.PARITY_EVEN;
-        case RFC2217.PARITY_MARK:
-            return SerialPort.PARITY_MARK;
-        case RFC2217.PARITY_SPACE:
-            return SerialPort.PARITY_SPACE;
-        default:
-            throw new RuntimeException("impossible case");
+        try {
+            this.outputBuffer.setSize(size);
+        } catch (IOException e) {
+            this.log.warn(this.name + ": exception flushing output buffer", e);
         }
     }
 
     @Override
-    public void sendBreak(int millis) {
-        CommandList commandList = new CommandList(2);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (this.state != State.ESTABLISHED)
-                return;
-            commandList.add(new ControlCommand(true, CONTROL_BREAK_ON));
-            commandList.add(new ControlCommand(true, CONTROL_BREAK_OFF));
-        }
-        commandList.send();
+    public int getOutputBufferSize() {
+        this.state.checkNotClosed();
+        return this.outputBuffer.getSize();
     }
 
-    @Override
-    public void setFlowControlMode(int flowControl) throws UnsupportedCommOperationException {
-
-        // Validate bit combination
-        if ((flowControl & (FLOWCONTROL_RTSCTS_OUT | FLOWCONTROL_XONXOFF_OUT)) == (FLOWCONTROL_RTSCTS_OUT | FLOWCONTROL_XONXOFF_OUT)
-         || (flowControl & (FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_XONXOFF_IN)) == (FLOWCONTROL_RTSCTS_IN | FLOWCONTROL_XONXOFF_IN))
-            throw new UnsupportedCommOperationException("invalid flow control value " + flowControl);
-
-        // Apply changes
-        CommandList commandList = new CommandList(2);
-        synchronized (this) {
-            this.state.checkNotClosed();
-
-            // Convert to RFC 2217 values
-            int previousFlowControlOutbound = this.flowControlOutbound;
-            int previousFlowControlInbound = this.flowControlInbound;
-            this.flowControlOutbound = (flowControl & FLOWCONTROL_RTSCTS_OUT) != 0 ? CONTROL_OUTBOUND_FLOW_HARDWARE :
-              (flowControl & FLOWCONTROL_XONXOFF_OUT) != 0 ? CONTROL_OUTBOUND_FLOW_XON_XOFF : CONTROL_OUTBOUND_FLOW_NONE;
-            this.flowControlInbound = (flowControl & FLOWCONTROL_RTSCTS_IN) != 0 ? CONTROL_INBOUND_FLOW_HARDWARE :
-              (flowControl & FLOWCONTROL_XONXOFF_IN) != 0 ? CONTROL_INBOUND_FLOW_XON_XOFF : CONTROL_INBOUND_FLOW_NONE;
-
-            // Update server (outbound first per RFC 2217)
-            if (this.flowControlOutbound != previousFlowControlOutbound && this.state.isEstablished())
-                commandList.add(new ControlCommand(true, this.flowControlOutbound));
-            if (this.flowControlInbound != previousFlowControlInbound && this.state.isEstablished())
-                commandList.add(new ControlCommand(true, this.flowControlInbound));
-        }
-        commandList.send();
+    /**
+     * Set the maximum time that buffered output may wait before being sent. Only relevant when the
+     * {@linkplain #setOutputBufferSize output buffer size} is non-zero. The default is 500 microseconds.
+     *
+     * @param latency maximum latency, or zero to only send buffered output when the buffer fills or is flushed
+     * @param unit {@code latency} units
+     * @throws IllegalArgumentException if {@code latency} is negative
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setOutputBufferLatency(long latency, TimeUnit unit) {
+        this.state.checkNotClosed();
+        this.outputBuffer.setLatency(unit.toNanos(latency));
     }
 
-    @Override
-    public synchronized int getFlowControlMode() {
+    /**
+     * Get the maximum time that buffered output may wait before being sent.
+     *
+     * @param unit desired units
+     * @throws IllegalStateException if this port is closed
+     * @see #setOutputBufferLatency
+     */
+    public long getOutputBufferLatency(TimeUnit unit) {
         this.state.checkNotClosed();
-        int value = FLOWCONTROL_NONE;
-        switch (this.flowControlOutbound) {
-        case CONTROL_OUTBOUND_FLOW_HARDWARE:
-            value |= FLOWCONTROL_RTSCTS_OUT;
-            break;
-        case CONTROL_OUTBOUND_FLOW_XON_XOFF:
-            value |= FLOWCONTROL_XONXOFF_OUT;
-            break;
-        default:
-            break;
-        }
-        switch (this.flowControlInbound) {
-        case CONTROL_INBOUND_FLOW_HARDWARE:
-            value |= FLOWCONTROL_RTSCTS_IN;
-            break;
-        case CONTROL_INBOUND_FLOW_XON_XOFF:
-            value |= FLOWCONTROL_XONXOFF_IN;
-            break;
-        default:
-            break;
-        }
-        return value;
+        return unit.convert(this.outputBuffer.getLatency(), TimeUnit.NANOSECONDS);
     }
 
-    @Override
-    public void setSerialPortParams(int baudRate, int dataBits, int stopBits, int parity)
-      throws UnsupportedCommOperationException {
-        CommandList commandList = new CommandList(4);
-        synchronized (this) {
-            this.state.checkNotClosed();
+    /**
+     * Get a channel from which received serial data may be read. Reads block until at least one byte is available,
+     * subject to the {@linkplain #enableReceiveThreshold receive threshold} and {@linkplain #enableReceiveTimeout
+     * receive timeout}.
+     * This is an alternative to {@link #getInputStream} that allows reading directly into {@link java.nio.ByteBuffer}s,
+     * including direct buffers. Closing the returned channel closes this port.
+     *
+     * @throws IllegalStateException if this port is closed
+     */
+    public ReadableByteChannel getReadableChannel() {
+        this.state.checkNotClosed();
+        return this.channel;
+    }
 
-            // Validate parameters and convert to RFC 2217 values
-            if (baudRate <= 0)
-                throw new UnsupportedCommOperationException("invalid baud rate " + baudRate);
-            switch (dataBits) {
-            case DATABITS_5:
-                dataBits = DATASIZE_5;
-                break;
-            case DATABITS_6:
-                dataBits = DATASIZE_6;
-                break;
-            case DATABITS_7:
-                dataBits = DATASIZE_7;
-                break;
-            case DATABITS_8:
-                dataBits = DATASIZE_8;
-                break;
-            default:
-                throw new UnsupportedCommOperationException("invalid data bits " + dataBits);
-            }
-            switch (stopBits) {
-            case STOPBITS_1:
-                stopBits = STOPSIZE_1;
-                break;
-            case STOPBITS_2:
-                stopBits = STOPSIZE_2;
-                break;
-            case STOPBITS_1_5:
-                stopBits = STOPSIZE_1_5;
-                break;
-            default:
-                throw new UnsupportedCommOperationException("invalid stop bits " + stopBits);
-            }
-            switch (parity) {
-            case SerialPort.PARITY_NONE:
-                parity = RFC2217.PARITY_NONE;
-                break;
-            case SerialPort.PARITY_ODD:
-                parity = RFC2217.PARITY_ODD;
-                break;
-            case SerialPort.PARITY_EVEN:
-                parity = RFC2217.PARITY_EVEN;
-                break;
-            case SerialPort.PARITY_MARK:
-                parity = RFC2217.PARITY_MARK;
-                break;
-            case SerialPort.PARITY_SPACE:
-                parity = RFC2217.PARITY_SPACE;
-                break;
-            default:
-                throw new UnsupportedCommOperationException("invalid parity " + parity);
-            }
+    /**
+     * Get a channel to which serial data to be transmitted may be written. This is an alternative to
+     * {@link #getOutputStream} that allows writing directly from {@link java.nio.ByteBuffer}s, including direct buffers.
+     * All of the data in a gathering write (e.g., header, payload and checksum) is escaped together and sent to the
+     * access server in a single network write. Closing the returned channel closes this port.
+     *
+     * @throws IllegalStateException if this port is closed
+     */
+    public GatheringByteChannel getWritableChannel() {
+        this.state.checkNotClosed();
+        return this.channel;
+    }
 
-            // Update my state
-            boolean changed = false;
-            if (this.baudRate != baudRate) {
-                this.baudRate = baudRate;
-                changed = true;
-            }
-            if (this.dataSize != dataBits) {
-                this.dataSize = dataBits;
-                changed = true;
-            }
-            if (this.stopSize != stopBits) {
-                this.stopSize = stopBits;
-                changed = true;
-            }
-            if (this.parity != parity) {
-                this.parity = parity;
-                changed = true;
-            }
+    /**
+     * Read received serial data asynchronously, without a deadline.
+     * Equivalent to {@code readAsync(dst, 0, TimeUnit.MILLISECONDS)}.
+     *
+     * @see #readAsync(ByteBuffer, long, TimeUnit)
+     */
+    public TelnetFuture<Integer> readAsync(ByteBuffer dst) {
+        return this.readAsync(dst, 0, TimeUnit.MILLISECONDS);
+    }
 
-            // Update access server if there was a change
-            if (changed && this.state.isEstablished())
-                this.addSerialPortGeometry(commandList);
-        }
-        commandList.send();
+    /**
+     * Read received serial data asynchronously.
+     *
+     * <p>
+     * The returned future completes, from the port's I/O thread, as soon as at least one byte has been read into
+     * {@code dst}; its result is the number of bytes read, or -1 on end of stream. If no data arrives before the
+     * deadline, the future fails with a {@link java.util.concurrent.TimeoutException} and {@code dst} is not
+     * modified. Pending reads are satisfied in the order they were started, and may be cancelled until they do.
+     * Pending reads fail with an {@link java.nio.channels.AsynchronousCloseException} when this port is closed.
+     * </p>
+     *
+     * <p>
+     * Asynchronous reads should not be mixed with concurrent blocking reads from the {@linkplain #getInputStream input
+     * stream} or {@linkplain #getReadableChannel channel}.
+     * </p>
+     *
+     * @param dst buffer into which to read data
+     * @param timeout deadline for the read, or zero for none
+     * @param unit {@code timeout} units
+     * @throws IllegalStateException if this port is closed
+     */
+    public TelnetFuture<Integer> readAsync(ByteBuffer dst, long timeout, TimeUnit unit) {
+        this.state.checkNotClosed();
+        final TelnetFuture<Integer> future = this.asyncOperations.read(dst, timeout, unit);
+        this.inputConsumed();
+        return future;
     }
 
-    @Override
-    public void setDTR(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (this.dtr != value) {
-                this.dtr = value;
-                if (this.state.isEstablished())
-                    commandList.add(new ControlCommand(true, this.dtr ? CONTROL_DTR_ON : CONTROL_DTR_OFF));
-            }
-        }
-        commandList.send();
+    /**
+     * Transmit serial data asynchronously, without a deadline.
+     * Equivalent to {@code writeAsync(src, 0, TimeUnit.MILLISECONDS)}.
+     *
+     * @see #writeAsync(ByteBuffer, long, TimeUnit)
+     */
+    public TelnetFuture<Integer> writeAsync(ByteBuffer src) {
+        return this.writeAsync(src, 0, TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    public synchronized boolean isDTR() {
+    /**
+     * Transmit serial data asynchronously.
+     *
+     * <p>
+     * All of the remaining data in {@code src} is consumed immediately. The returned future completes with the number
+     * of bytes written once the data has been written to the network. If that has not happened before the deadline,
+     * the future fails with a {@link java.util.concurrent.TimeoutException}, but the data may still be transmitted.
+     * </p>
+     *
+     * <p>
+     * For ports using a {@link TelnetEventLoopGroup}, this method never blocks and the future is completed
+     * by the event loop thread. For other ports, the data is written by the calling thread.
+     * </p>
+     *
+     * @param src data to transmit
+     * @param timeout deadline for the write, or zero for none
+     * @param unit {@code timeout} units
+     * @throws IllegalStateException if this port is closed
+     */
+    public TelnetFuture<Integer> writeAsync(ByteBuffer src, long timeout, TimeUnit unit) {
         this.state.checkNotClosed();
-        return this.dtr;
+        return this.asyncOperations.write(src, timeout, unit);
     }
 
-    @Override
-    public void setRTS(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
+    /**
+     * Set the journal in which to record this port's traffic: serial data sent and received, and
+     * {@link ComPortCommand}s sent and received. The journal is not closed when this port is closed,
+     * and may be shared by multiple ports.
+     *
+     * <p>
+     * For ports using a {@link TelnetClient}, received data is recorded when it is read by the application
+     * rather than when it arrives.
+     * </p>
+     *
+     * @param journal capture journal, or null to stop recording
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setCaptureJournal(CaptureJournal journal) {
+        this.lock.lock();
+        try {
             this.state.checkNotClosed();
-            if (this.rts != value) {
-                this.rts = value;
-                if (this.state.isEstablished())
-                    commandList.add(new ControlCommand(true, this.rts ? CONTROL_RTS_ON : CONTROL_RTS_OFF));
-            }
+            this.journal = journal;
+            this.transport.setCaptureJournal(journal);
+        } finally {
+            this.lock.unlock();
         }
-        commandList.send();
     }
 
-    @Override
-    public synchronized boolean isRTS() {
+    /**
+     * Get the journal in which this port's traffic is being recorded, if any.
+     *
+     * @return capture journal, or null if none
+     * @throws IllegalStateException if this port is closed
+     */
+    public CaptureJournal getCaptureJournal() {
         this.state.checkNotClosed();
-        return this.rts;
+        return this.journal;
     }
 
-    @Override
-    public synchronized boolean isCTS() {
+    /**
+     * Enable or disable automatic reconnection.
+     *
+     * <p>
+     * When enabled, if the connection to the access server is lost after {@link #connect connect()} succeeds, this
+     * port reconnects in the background, retrying with jittered exponential backoff (see {@link #setReconnectDelay}).
+     * Once the access server accepts {@code COM-PORT-OPTION} again, the current serial port parameters, flow control,
+     * DTR and RTS, and line and modem state masks are sent to it in a single batch, exactly as on the original
+     * connection. The {@linkplain #getInputStream input stream}, {@linkplain #getOutputStream output stream}, channels
+     * and event listener remain valid throughout: unread received data remains available, and reads block until new
+     * data arrives on the new connection. Writes while disconnected fail with an {@link IOException}. Configuration
+     * changes while disconnected take effect on reconnection.
+     * </p>
+     *
+     * <p>
+     * Reconnection continues until it succeeds or this port is {@linkplain #close closed}.
+     * </p>
+     *
+     * @param autoReconnect true to reconnect automatically
+     * @throws UnsupportedCommOperationException if this port uses a {@link TelnetClient}, which does not
+     *  report connection loss
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setAutoReconnect(boolean autoReconnect) throws UnsupportedCommOperationException {
+        if (this.telnetClient != null)
+            throw new UnsupportedCommOperationException("automatic reconnection requires a non-TelnetClient transport");
         this.state.checkNotClosed();
-        return this.cts;
+        this.reconnector.setEnabled(autoReconnect);
     }
 
-    @Override
-    public synchronized boolean isDSR() {
+    /**
+     * Determine whether automatic reconnection is enabled.
+     *
+     * @throws IllegalStateException if this port is closed
+     */
+    public boolean isAutoReconnect() {
         this.state.checkNotClosed();
-        return this.dsr;
+        return this.reconnector.isEnabled();
     }
 
-    @Override
-    public synchronized boolean isRI() {
+    /**
+     * Configure the delay between automatic reconnection attempts. The delay starts at {@code initialDelay} and
+     * doubles after each failed attempt, up to {@code maxDelay}; each actual delay is chosen randomly between
+     * one half and all of the current delay, so that many ports reconnecting to a rebooted access server
+     * don't all retry at once. Defaults are 100 milliseconds and 10 seconds.
+     *
+     * @param initialDelay delay before the first attempt
+     * @param maxDelay maximum delay between attempts
+     * @param unit delay units
+     * @throws IllegalArgumentException if {@code initialDelay} is not positive or {@code maxDelay < initialDelay}
+     * @throws IllegalStateException if this port is closed
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay <= 0)
+            throw new IllegalArgumentException("initialDelay <= 0");
+        if (maxDelay < initialDelay)
+            throw new IllegalArgumentException("maxDelay < initialDelay");
         this.state.checkNotClosed();
-        return this.ri;
+        this.reconnector.setDelay(unit.toNanos(initialDelay), unit.toNanos(maxDelay));
     }
 
-    @Override
-    public synchronized boolean isCD() {
+    /**
+     * Get the delay before the first automatic reconnection attempt.
+     *
+     * @param unit desired units
+     * @throws IllegalStateException if this port is closed
+     * @see #setReconnectDelay
+     */
+    public long getReconnectInitialDelay(TimeUnit unit) {
         this.state.checkNotClosed();
-        return this.cd;
+        return unit.convert(this.reconnector.getInitialDelay(), TimeUnit.NANOSECONDS);
     }
 
-    // This is invoked by the ComPortOptionHandler once the server has agreed to accept COM-PORT-OPTION subnegotiation commands
-
-    void startSubnegotiation() {
-        CommandList commandList = new CommandList(12);
-        synchronized (this) {
+    /**
+     * Get the maximum delay between automatic reconnection attempts.
+     *
+     * @param unit desired units
+     * @throws IllegalStateException if this port is closed
+     * @see #setReconnectDelay
+     */
+    public long getReconnectMaxDelay(TimeUnit unit) {
+        this.state.checkNotClosed();
+        return unit.convert(this.reconnector.getMaxDelay(), TimeUnit.NANOSECONDS);
+    }
 
-            // Log
-            this.log.debug(this.name + ": server accepted COM-PORT-OPTION, sending serial configuration to peer");
+    @Override
+    public void close() {
+        this.lock.lock();
+        try {
+            if (this.state == State.CLOSED)
+                return;
+            this.state = State.CLOSED;
+            this.stateChanged.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        this.reconnector.close();
+        this.negotiator.close();
+        this.log.debug(this.name + ": closing connection");
+        try {
+            this.transport.disconnect();
+        } catch (IOException e) {
+            this.log.debug(this.name + ": exception closing connection (ignoring)", e);
+        }
+        this.asyncOperations.close();
+        this.modemStateWaiters.close();
+    }
 
-            // Update state
+    @Override
+    public int getBaudRate() {
+        this.lock.lock();
+        try {
             this.state.checkNotClosed();
-            this.state = State.ESTABLISHED;
+            return this.serialSettings.getBaudRate();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int getDataBits() {
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            return this.serialSettings.getDataBits();
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
-            // Request signature from peer
-            commandList.add(new SignatureCommand(true));
+    @Override
+    public int getStopBits() {
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            return this.serialSettings.getStopBits();
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
-            // Send signature if desired
-            if (this.signature != null && this.signature.length() > 0)
-                commandList.add(new SignatureCommand(true, this.signature));
+    @Override
+    public int getParity() {
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            return this.serialSettings.getParity();
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
-            // Send all configuration information
-            this.addSerialPortGeometry(commandList);
-            commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
-            commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
-            commandList.add(new ControlCommand(true, this.flowControlInbound));
-            commandList.add(new ControlCommand(true, this.flowControlOutbound));
-            commandList.add(new ControlCommand(true, this.dtr ? CONTROL_DTR_ON : CONTROL_DTR_OFF));
-            commandList.add(new ControlCommand(true, this.rts ? CONTROL_RTS_ON : CONTROL_RTS_OFF));
+    @Override
+    public void sendBreak(int millis) {
+        CommandList commandList = new CommandList(2);
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.state != State.ESTABLISHED)
+                return;
+            commandList.add(ControlCommand.valueOf(true, CONTROL_BREAK_ON));
+            commandList.add(ControlCommand.valueOf(true, CONTROL_BREAK_OFF));
+        } finally {
+            this.lock.unlock();
         }
         commandList.send();
     }
 
-    // Method to send serial port "geometry" in the order recommended by RFC 2217 (section 2)
-
-    private void addSerialPortGeometry(CommandList commandList) {
-        commandList.add(new BaudRateCommand(true, this.baudRate));
-        commandList.add(new DataSizeCommand(true, this.dataSize));
-        commandList.add(new ParityCommand(true, this.parity));
-        commandList.add(new StopSizeCommand(true, this.stopSize));
+    @Override
+    public void setFlowControlMode(int flowControl) throws UnsupportedCommOperationException {
+        CommandList commandList = new CommandList(2);
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            this.serialSettings.setFlowControlMode(flowControl, commandList);
+            if (!this.state.isEstablished())
+                commandList.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        commandList.send();
     }
 
-    // This is invoked by the ComPortOptionHandler when we receive a command from the server
+    @Override
+    public int getFlowControlMode() {
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            return this.serialSettings.getFlowControlMode();
+        } finally {
+            this.lock.unlock();
+        }
+    }
 
-    void handleCommand(ComPortCommand command) {
+    @Override
+    public void setSerialPortParams(int baudRate, int dataBits, int stopBits, int parity)
+      throws UnsupportedCommOperationException {
+        CommandList commandList = new CommandList(4);
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.serialSettings.setParams(baudRate, dataBits, stopBits, parity) && this.state.isEstablished())
+                this.serialSettings.addGeometry(commandList);
+        } finally {
+            this.lock.unlock();
+        }
+        commandList.send();
+    }
 
-        // Incoming commands should be server versions
-        if (!command.isServerCommand()) {
-            this.log.warn(TelnetSerialPort.this.name + ": rec'd " + command + " (ignoring unexpected client command)");
-            return;
+    @Override
+    public void setDTR(boolean value) {
+        ComPortCommand command = null;
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.isSignal(SIGNAL_DTR) != value) {
+                this.updateSignals(SIGNAL_DTR, value ? SIGNAL_DTR : 0);
+                if (this.state.isEstablished())
+                    command = ControlCommand.valueOf(true, value ? CONTROL_DTR_ON : CONTROL_DTR_OFF);
+            }
+        } finally {
+            this.lock.unlock();
         }
+        this.sendCommand(command);
+    }
 
-        // Handle command
-        command.visit(new AbstractComPortCommandSwitch() {
+    @Override
+    public boolean isDTR() {
+        this.state.checkNotClosed();
+        return this.isSignal(SIGNAL_DTR);
+    }
 
-            @Override
-            public void caseBaudRate(BaudRateCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                synchronized (TelnetSerialPort.this) {
-                    TelnetSerialPort.this.baudRate = command.getBaudRate();
-                }
+    @Override
+    public void setRTS(boolean value) {
+        ComPortCommand command = null;
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.isSignal(SIGNAL_RTS) != value) {
+                this.updateSignals(SIGNAL_RTS, value ? SIGNAL_RTS : 0);
+                if (this.state.isEstablished())
+                    command = ControlCommand.valueOf(true, value ? CONTROL_RTS_ON : CONTROL_RTS_OFF);
             }
+        } finally {
+            this.lock.unlock();
+        }
+        this.sendCommand(command);
+    }
 
-            @Override
-            public void caseDataSize(DataSizeCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                synchronized (TelnetSerialPort.this) {
-                    TelnetSerialPort.this.dataSize = command.getDataSize();
-                }
-            }
+    @Override
+    public boolean isRTS() {
+        this.state.checkNotClosed();
+        return this.isSignal(SIGNAL_RTS);
+    }
 
-            @Override
-            public void caseParity(ParityCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                synchronized (TelnetSerialPort.this) {
-                    TelnetSerialPort.this.parity = command.getParity();
-                }
-            }
+    @Override
+    public boolean isCTS() {
+        this.state.checkNotClosed();
+        return this.isSignal(MODEMSTATE_CTS);
+    }
 
-            @Override
-            public void caseStopSize(StopSizeCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                synchronized (TelnetSerialPort.this) {
-                    TelnetSerialPort.this.stopSize = command.getStopSize();
-                }
-            }
+    @Override
+    public boolean isDSR() {
+        this.state.checkNotClosed();
+        return this.isSignal(MODEMSTATE_DSR);
+    }
 
-            @Override
-            public void caseControl(ControlCommand command) {
-                synchronized (TelnetSerialPort.this) {
-                    switch (command.getControl()) {
-                    case CONTROL_OUTBOUND_FLOW_NONE:
-                    case CONTROL_OUTBOUND_FLOW_XON_XOFF:
-                    case CONTROL_OUTBOUND_FLOW_HARDWARE:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.flowControlOutbound = command.getControl();
-                        break;
-                    case CONTROL_INBOUND_FLOW_NONE:
-                    case CONTROL_INBOUND_FLOW_XON_XOFF:
-                    case CONTROL_INBOUND_FLOW_HARDWARE:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.flowControlInbound = command.getControl();
-                        break;
-                    case CONTROL_DTR_ON:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.dtr = true;
-                        break;
-                    case CONTROL_DTR_OFF:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.dtr = false;
-                        break;
-                    case CONTROL_RTS_ON:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.rts = true;
-                        break;
-                    case CONTROL_RTS_OFF:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                        TelnetSerialPort.this.rts = false;
-                        break;
-                    default:
-                        TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command + " (ignoring)");
-                        break;
-                    }
-                }
-            }
+    @Override
+    public boolean isRI() {
+        this.state.checkNotClosed();
+        return this.isSignal(MODEMSTATE_RING_INDICATOR);
+    }
 
-            @Override
-            public void caseNotifyLineState(NotifyLineStateCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                int lineState = command.getLineState();
-                int notify;
-                synchronized (TelnetSerialPort.this) {
-                    notify = TelnetSerialPort.this.lineStateNotify;
-                    TelnetSerialPort.this.lineStateLast = lineState;
-                }
-                notify &= lineState;                                    // notify only if bit is equal to 1
-                if ((notify & LINESTATE_TRANSFER_SHIFT_REGISTER_EMPTY) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.OUTPUT_BUFFER_EMPTY);
-                if ((notify & LINESTATE_BREAK_DETECT) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.BI);
-                if ((notify & LINESTATE_FRAMING_ERROR) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.FE);
-                if ((notify & LINESTATE_PARITY_ERROR) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.PE);
-                if ((notify & LINESTATE_OVERRUN_ERROR) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.OE);
-            }
+    @Override
+    public boolean isCD() {
+        this.state.checkNotClosed();
+        return this.isSignal(MODEMSTATE_CARRIER_DETECT);
+    }
 
-            @Override
-            public void caseNotifyModemState(NotifyModemStateCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command);
-                int modemState = command.getModemState();
-                int notify;
-                synchronized (TelnetSerialPort.this) {
-                    notify = TelnetSerialPort.this.modemStateNotify;
-                    TelnetSerialPort.this.modemStateLast = modemState;
-                }
-                notify &= modemState ^ modemStateLast;                  // notify only if bit has changed
-                if ((notify & MODEMSTATE_CARRIER_DETECT) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.CD, (modemState & MODEMSTATE_CARRIER_DETECT) != 0);
-                if ((notify & MODEMSTATE_RING_INDICATOR) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.RI, (modemState & MODEMSTATE_RING_INDICATOR) != 0);
-                if ((notify & MODEMSTATE_DSR) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.DSR, (modemState & MODEMSTATE_DSR) != 0);
-                if ((notify & MODEMSTATE_CTS) != 0)
-                    TelnetSerialPort.this.sendEvent(SerialPortEvent.CTS, (modemState & MODEMSTATE_CTS) != 0);
-            }
+    /**
+     * Get the most recent modem state reported by the access server.
+     *
+     * <p>
+     * Like {@link #isCTS}, {@link #isDSR}, {@link #isRI}, and {@link #isCD}, this method reads a single
+     * atomically updated value and does not lock this port, so it is suitable for frequent polling.
+     * </p>
+     *
+     * @return modem state bits, e.g., {@link RFC2217#MODEMSTATE_CTS}
+     * @throws IllegalStateException if this port is closed
+     */
+    public int getModemState() {
+        this.state.checkNotClosed();
+        return this.signals.get() & SIGNAL_MODEMSTATE;
+    }
 
-            @Override
-            protected void caseDefault(ComPortCommand command) {
-                TelnetSerialPort.this.log.debug(TelnetSerialPort.this.name + ": rec'd " + command + " (ignoring)");
-            }
-        });
+    /**
+     * Get the most recent line state reported by the access server. The access server only reports line state
+     * changes for which notifications are enabled, e.g., via {@link #notifyOnBreakInterrupt}.
+     *
+     * @return line state bits, e.g., {@link RFC2217#LINESTATE_BREAK_DETECT}
+     * @throws IllegalStateException if this port is closed
+     */
+    public int getLineState() {
+        this.state.checkNotClosed();
+        return (this.signals.get() & SIGNAL_LINESTATE) >>> SIGNAL_LINESTATE_SHIFT;
+    }
+
+    /**
+     * Wait until the modem state reported by the access server matches the given value.
+     *
+     * <p>
+     * For example, {@code awaitModemState(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS, 5, TimeUnit.SECONDS)}
+     * waits up to five seconds for CTS to be asserted. The waiting thread is woken directly when the access server's
+     * {@code NOTIFY-MODEMSTATE} command is received, so there is no need to poll {@link #isCTS}, etc.
+     * </p>
+     *
+     * @param mask modem state bits to compare
+     * @param expected expected values of the {@code mask} bits
+     * @param timeout maximum time to wait
+     * @param unit {@code timeout} units
+     * @return true if the modem state matched, false if the timeout expired or this port was closed first
+     * @throws IllegalArgumentException if {@code mask} has bits other than the low eight bits set,
+     *  or {@code expected} has bits not in {@code mask} set
+     * @throws IllegalStateException if this port is closed
+     * @throws InterruptedException if the current thread is interrupted
+     * @see #awaitModemStateAsync
+     */
+    public boolean awaitModemState(int mask, int expected, long timeout, TimeUnit unit) throws InterruptedException {
+        final TelnetFuture<Integer> future = this.awaitModemStateAsync(mask, expected, 0, TimeUnit.MILLISECONDS);
+        try {
+            future.get(timeout, unit);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            return false;
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait asynchronously until the modem state reported by the access server matches the given value.
+     *
+     * <p>
+     * The returned future completes with the matching modem state, from the thread that received the access server's
+     * {@code NOTIFY-MODEMSTATE} command, or immediately if the current modem state already matches. If there is no
+     * match before the deadline, the future fails with a {@link TimeoutException}. Pending waits may be cancelled, and
+     * fail with an {@link AsynchronousCloseException} when this port is closed.
+     * </p>
+     *
+     * @param mask modem state bits to compare
+     * @param expected expected values of the {@code mask} bits
+     * @param timeout deadline for the wait, or zero for none
+     * @param unit {@code timeout} units
+     * @throws IllegalArgumentException if {@code mask} has bits other than the low eight bits set,
+     *  or {@code expected} has bits not in {@code mask} set
+     * @throws IllegalStateException if this port is closed
+     * @see #awaitModemState
+     */
+    public TelnetFuture<Integer> awaitModemStateAsync(int mask, int expected, long timeout, TimeUnit unit) {
+        if ((mask & ~SIGNAL_MODEMSTATE) != 0)
+            throw new IllegalArgumentException("invalid mask 0x" + Integer.toHexString(mask));
+        if ((expected & ~mask) != 0)
+            throw new IllegalArgumentException("expected value has bits not in mask");
+        this.state.checkNotClosed();
+        final TelnetFuture<Integer> future = this.modemStateWaiters.add(mask, expected, timeout, unit);
+        this.modemStateWaiters.modemStateChanged(this.signals.get() & SIGNAL_MODEMSTATE);  // in case already matching
+        return future;
+    }
+
+    // This is invoked by the transport once the server has agreed to accept COM-PORT-OPTION subnegotiation commands
+
+    void startSubnegotiation() {
+        CommandList commandList = new CommandList(12);
+        List<ComPortCommand> alreadySent;
+        this.lock.lock();
+        try {
+
+            // Log
+            this.log.debug(this.name + ": server accepted COM-PORT-OPTION, sending serial configuration to peer");
+
+            // Update state
+            this.state.checkNotClosed();
+            this.state = State.ESTABLISHED;
+            this.stateChanged.signalAll();
+            alreadySent = this.negotiator.accepted();
+
+            // Send all configuration information
+            this.addConfiguration(commandList);
+        } finally {
+            this.lock.unlock();
+        }
+
+        // Avoid sending the same configuration twice
+        if (commandList.equals(alreadySent))
+            this.log.debug(this.name + ": serial configuration was already sent optimistically");
+        else
+            commandList.send();
+
+        // Notify waiters
+        this.negotiator.getReadyFuture().complete(this);
+    }
+
+    // This is invoked by the transport when it starts negotiation; returns configuration to send optimistically, or null
+    List<ComPortCommand> optimisticCommands() {
+        final List<ComPortCommand> commands = this.negotiator.optimisticCommands();
+        if (commands != null) {
+            for (ComPortCommand command : commands)
+                this.commandSent(command);
+        }
+        return commands;
+    }
+
+    // This is invoked by the transport when the server refuses COM-PORT-OPTION
+    void comPortOptionRefused() {
+        this.negotiator.refused();
+    }
+
+    // Get all of our configuration, or null if closed
+    List<ComPortCommand> getConfiguration() {
+        CommandList commandList = new CommandList(12);
+        this.lock.lock();
+        try {
+            if (this.state == State.CLOSED)
+                return null;
+            this.addConfiguration(commandList);
+            return commandList;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Determine whether we are still waiting for the server to accept COM-PORT-OPTION
+    boolean isNegotiating() {
+        return this.state == State.INITIAL;
+    }
+
+    // Add all of our configuration to the given list; caller must hold the lock
+    private void addConfiguration(CommandList commandList) {
+        assert this.lock.isHeldByCurrentThread();
+
+        // Request signature from peer
+        commandList.add(new SignatureCommand(true));
+
+        // Send signature if desired
+        if (this.signature != null && this.signature.length() > 0)
+            commandList.add(new SignatureCommand(true, this.signature));
+
+        // Send all configuration information
+        this.serialSettings.addGeometry(commandList);
+        commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
+        commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
+        this.serialSettings.addFlowControl(commandList);
+        commandList.add(ControlCommand.valueOf(true, this.isSignal(SIGNAL_DTR) ? CONTROL_DTR_ON : CONTROL_DTR_OFF));
+        commandList.add(ControlCommand.valueOf(true, this.isSignal(SIGNAL_RTS) ? CONTROL_RTS_ON : CONTROL_RTS_OFF));
+    }
+
+    // This is invoked by the transport when we receive a command from the server, starting with the COM-PORT-OPTION byte
+
+    void handleCommand(byte[] buf, int len) {
+
+        // Record command
+        final CaptureJournal currentJournal = this.journal;
+        if (currentJournal != null)
+            currentJournal.record(CaptureJournal.INBOUND_COMMAND, buf, 0, len);
+
+        // Handle command
+        RFC2217.dispatchServerCommand(buf, len, this.inboundHandler);
     }
 
     // Listener management
 
+    /**
+     * Register the event listener.
+     *
+     * <p>
+     * As required by {@link SerialPort}, only one listener may be registered using this method; it receives all event
+     * types. Any number of additional listeners may be registered using
+     * {@link #addEventListener(SerialPortEventListener, int)}.
+     * </p>
+     *
+     * @throws TooManyListenersException if a listener has already been registered using this method
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized void addEventListener(SerialPortEventListener listener) throws TooManyListenersException {
+    public void addEventListener(SerialPortEventListener listener) throws TooManyListenersException {
         this.state.checkNotClosed();
-        if (this.listener != null)
-            throw new TooManyListenersException("only one listener allowed");
-        this.listener = listener;
+        this.listeners.addPrimary(listener, ALL_EVENTS);
     }
 
+    /**
+     * Unregister the event listener registered using {@link #addEventListener(SerialPortEventListener)}, if any.
+     * Listeners registered using {@link #addEventListener(SerialPortEventListener, int)} are not affected.
+     */
     @Override
-    public synchronized void removeEventListener() {
-        this.listener = null;
+    public void removeEventListener() {
+        this.listeners.removePrimary();
     }
 
-    // Notification configuration
+    /**
+     * Register an additional event listener that receives only the given event types.
+     *
+     * <p>
+     * Any number of listeners may be registered; each event is delivered to the interested listeners in the order
+     * they were registered. Events are only generated for types enabled via {@link #notifyOnDataAvailable}, etc.;
+     * registering a listener does not enable any notifications. If {@code listener} is already registered,
+     * its event mask is replaced.
+     * </p>
+     *
+     * @param listener event listener
+     * @param eventMask event types of interest, e.g., {@code 1 << SerialPortEvent.CTS}, or {@link #ALL_EVENTS}
+     * @throws IllegalArgumentException if {@code listener} is null
+     * @throws IllegalArgumentException if {@code eventMask} contains bits not in {@link #ALL_EVENTS}
+     * @throws IllegalStateException if this port is closed
+     * @see #eventMask
+     */
+    public void addEventListener(SerialPortEventListener listener, int eventMask) {
+        if (listener == null)
+            throw new IllegalArgumentException("null listener");
+        if ((eventMask & ~ALL_EVENTS) != 0)
+            throw new IllegalArgumentException("invalid eventMask 0x" + Integer.toHexString(eventMask));
+        this.state.checkNotClosed();
+        this.listeners.add(listener, eventMask);
+    }
 
-    @Override
-    public synchronized void notifyOnDataAvailable(boolean value) {
+    /**
+     * Register a {@link TelnetSerialEventListener} that receives only the given event types.
+     *
+     * <p>
+     * This method works like {@link #addEventListener(SerialPortEventListener, int)}, except that {@code listener}
+     * is notified without allocating any event objects, and each event includes its timestamp and sequence number.
+     * When an {@linkplain #setEventExecutor event executor} is configured, queued events are stored in a preallocated
+     * ring, so no objects are allocated on the way to the listener.
+     * </p>
+     *
+     * @param listener event listener
+     * @param eventMask event types of interest, e.g., {@code 1 << SerialPortEvent.CTS}, or {@link #ALL_EVENTS}
+     * @throws IllegalArgumentException if {@code listener} is null
+     * @throws IllegalArgumentException if {@code eventMask} contains bits not in {@link #ALL_EVENTS}
+     * @throws IllegalStateException if this port is closed
+     * @see #eventMask
+     */
+    public void addEventListener(TelnetSerialEventListener listener, int eventMask) {
+        if (listener == null)
+            throw new IllegalArgumentException("null listener");
+        if ((eventMask & ~ALL_EVENTS) != 0)
+            throw new IllegalArgumentException("invalid eventMask 0x" + Integer.toHexString(eventMask));
         this.state.checkNotClosed();
-        updateLineStateMask(LINESTATE_DATA_READY, value);
+        this.listeners.add(listener, eventMask);
+    }
+
+    /**
+     * Unregister an event listener registered using {@link #addEventListener(SerialPortEventListener, int)}.
+     *
+     * @param listener event listener
+     * @return true if {@code listener} was registered, otherwise false
+     */
+    public boolean removeEventListener(SerialPortEventListener listener) {
+        return this.listeners.remove(listener);
+    }
+
+    /**
+     * Unregister an event listener registered using {@link #addEventListener(TelnetSerialEventListener, int)}.
+     *
+     * @param listener event listener
+     * @return true if {@code listener} was registered, otherwise false
+     */
+    public boolean removeEventListener(TelnetSerialEventListener listener) {
+        return this.listeners.remove(listener);
+    }
+
+    /**
+     * Unregister all event listeners, including any listener registered using
+     * {@link #addEventListener(SerialPortEventListener)}.
+     */
+    public void removeAllEventListeners() {
+        this.listeners.removeAll();
+    }
+
+    /**
+     * Build an event mask from {@link SerialPortEvent} types.
+     *
+     * @param eventTypes event types, e.g., {@link SerialPortEvent#CTS}
+     * @return event mask for {@link #addEventListener(SerialPortEventListener, int)}
+     * @throws IllegalArgumentException if any event type is invalid
+     */
+    public static int eventMask(int... eventTypes) {
+        int mask = 0;
+        for (int eventType : eventTypes) {
+            if (eventType < 0 || eventType >= 32 || ((1 << eventType) & ALL_EVENTS) == 0)
+                throw new IllegalArgumentException("invalid event type " + eventType);
+            mask |= 1 << eventType;
+        }
+        return mask;
+    }
+
+    /**
+     * Configure how {@link SerialPortEventListener} notifications are delivered.
+     *
+     * <p>
+     * By default ({@code executor} null), the listener is notified directly by the thread that receives data and
+     * commands from the access server, so a slow listener delays all further processing for this port. Otherwise,
+     * events are placed on a bounded queue (see {@link #setEventQueueCapacity}) and delivered by tasks run by the
+     * given executor. Events are always delivered in order, one at a time, even if the executor has multiple threads;
+     * this makes it safe to share one executor, such as {@link #getSharedEventExecutor}, among many ports.
+     * </p>
+     *
+     * @param executor executor for listener notifications, or null to notify the listener directly
+     * @see #getSharedEventExecutor
+     * @see #getVirtualThreadEventExecutor
+     */
+    public void setEventExecutor(Executor executor) {
+        this.eventDispatcher.setExecutor(executor);
+    }
+
+    /**
+     * Get the executor used for {@link SerialPortEventListener} notifications.
+     *
+     * @return event executor, or null if the listener is notified directly
+     * @see #setEventExecutor
+     */
+    public Executor getEventExecutor() {
+        return this.eventDispatcher.getExecutor();
+    }
+
+    /**
+     * Configure the queue of events awaiting delivery by the {@linkplain #setEventExecutor event executor}.
+     * The default is a capacity of 1024 events with policy
+     * {@link EventOverflowPolicy#DROP_OLDEST}.
+     *
+     * @param capacity maximum number of queued events; if currently more events are queued, the oldest are dropped
+     * @param overflowPolicy what to do with a new event when the queue is full
+     * @throws IllegalArgumentException if {@code capacity} is not positive
+     * @throws IllegalArgumentException if {@code overflowPolicy} is null
+     */
+    public void setEventQueueCapacity(int capacity, EventOverflowPolicy overflowPolicy) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity <= 0");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("null overflowPolicy");
+        this.eventDispatcher.setCapacity(capacity, overflowPolicy);
+    }
+
+    /**
+     * Get the capacity of the queue of events awaiting delivery by the {@linkplain #setEventExecutor event executor}.
+     */
+    public int getEventQueueCapacity() {
+        return this.eventDispatcher.getCapacity();
     }
 
+    /**
+     * Get the policy for handling new events when the event queue is full.
+     */
+    public EventOverflowPolicy getEventOverflowPolicy() {
+        return this.eventDispatcher.getOverflowPolicy();
+    }
+
+    /**
+     * Get the number of events dropped because the event queue was full or the event executor rejected a task.
+     */
+    public long getDroppedEventCount() {
+        return this.eventDispatcher.getDroppedCount();
+    }
+
+    /**
+     * Get an executor suitable for delivering events for any number of ports, backed by a shared pool of
+     * daemon threads that grows on demand and shrinks when idle.
+     *
+     * @see #setEventExecutor
+     */
+    public static Executor getSharedEventExecutor() {
+        return Util.eventExecutor();
+    }
+
+    /**
+     * Get an executor that delivers events in a new virtual thread each time events become pending,
+     * if the current JVM supports virtual threads.
+     *
+     * @return virtual thread executor, or null if virtual threads are not supported
+     * @see #setEventExecutor
+     */
+    public static Executor getVirtualThreadEventExecutor() {
+        final ThreadFactory threadFactory = Util.virtualThreadFactory("jvser-event-");
+        return threadFactory != null ? Util.threadPerTaskExecutor(threadFactory) : null;
+    }
+
+    // Notification configuration
+
     @Override
-    public void notifyOnOutputEmpty(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
+    public void notifyOnDataAvailable(boolean value) {
+        this.lock.lock();
+        try {
             this.state.checkNotClosed();
-            if (this.updateLineStateMask(LINESTATE_TRANSFER_SHIFT_REGISTER_EMPTY, value) && this.state.isEstablished())
-                commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
+            this.updateLineStateMask(LINESTATE_DATA_READY, value);
+        } finally {
+            this.lock.unlock();
         }
-        commandList.send();
+    }
+
+    @Override
+    public void notifyOnOutputEmpty(boolean value) {
+        this.notifyOnLineState(LINESTATE_TRANSFER_SHIFT_REGISTER_EMPTY, value);
     }
 
     @Override
     public void notifyOnCTS(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (updateModemStateMask(MODEMSTATE_CTS, value) && this.state.isEstablished())
-                commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
-        }
-        commandList.send();
+        this.notifyOnModemState(MODEMSTATE_CTS, value);
     }
 
     @Override
     public void notifyOnDSR(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (updateModemStateMask(MODEMSTATE_DSR, value) && this.state.isEstablished())
-                commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
-        }
-        commandList.send();
+        this.notifyOnModemState(MODEMSTATE_DSR, value);
     }
 
     @Override
     public void notifyOnRingIndicator(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (updateModemStateMask(MODEMSTATE_RING_INDICATOR, value) && this.state.isEstablished())
-                commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
-        }
-        commandList.send();
+        this.notifyOnModemState(MODEMSTATE_RING_INDICATOR, value);
     }
 
     @Override
     public void notifyOnCarrierDetect(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (updateModemStateMask(MODEMSTATE_CARRIER_DETECT, value) && this.state.isEstablished())
-                commandList.add(new ModemStateMaskCommand(true, this.modemStateMask));
-        }
-        commandList.send();
+        this.notifyOnModemState(MODEMSTATE_CARRIER_DETECT, value);
     }
 
     @Override
     public void notifyOnOverrunError(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (this.updateLineStateMask(LINESTATE_OVERRUN_ERROR, value) && this.state.isEstablished())
-                commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
-        }
-        commandList.send();
+        this.notifyOnLineState(LINESTATE_OVERRUN_ERROR, value);
     }
 
     @Override
     public void notifyOnParityError(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (this.updateLineStateMask(LINESTATE_PARITY_ERROR, value) && this.state.isEstablished())
-                commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
-        }
-        commandList.send();
+        this.notifyOnLineState(LINESTATE_PARITY_ERROR, value);
     }
 
     @Override
     public void notifyOnFramingError(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
-            this.state.checkNotClosed();
-            if (this.updateLineStateMask(LINESTATE_FRAMING_ERROR, value) && this.state.isEstablished())
-                commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
-        }
-        commandList.send();
+        this.notifyOnLineState(LINESTATE_FRAMING_ERROR, value);
     }
 
     @Override
     public void notifyOnBreakInterrupt(boolean value) {
-        CommandList commandList = new CommandList(1);
-        synchronized (this) {
+        this.notifyOnLineState(LINESTATE_BREAK_DETECT, value);
+    }
+
+    // Update line state notifications and send the new mask to the access server if needed
+    private void notifyOnLineState(int bit, boolean value) {
+        ComPortCommand command = null;
+        this.lock.lock();
+        try {
             this.state.checkNotClosed();
-            if (this.updateLineStateMask(LINESTATE_BREAK_DETECT, value) && this.state.isEstablished())
-                commandList.add(new LineStateMaskCommand(true, this.lineStateMask));
+            if (this.updateLineStateMask(bit, value) && this.state.isEstablished())
+                command = new LineStateMaskCommand(true, this.lineStateMask);
+        } finally {
+            this.lock.unlock();
         }
-        commandList.send();
+        this.sendCommand(command);
     }
 
-    // Methods for sending event notifications
+    // Update modem state notifications and send the new mask to the access server if needed
+    private void notifyOnModemState(int bit, boolean value) {
+        ComPortCommand command = null;
+        this.lock.lock();
+        try {
+            this.state.checkNotClosed();
+            if (this.updateModemStateMask(bit, value) && this.state.isEstablished())
+                command = new ModemStateMaskCommand(true, this.modemStateMask);
+        } finally {
+            this.lock.unlock();
+        }
+        this.sendCommand(command);
+    }
 
-    private void sendEvent(int type) {
-        this.sendEvent(type, true);
+    // Reconnection
+
+    // This is invoked by the transport when the connection is lost; returns true if we will reconnect
+    boolean connectionLost(IOException cause) {
+        final InetAddress host;
+        final int port;
+        this.lock.lock();
+        try {
+            if (!this.reconnector.isEnabled() || this.remoteHost == null || this.state == State.CLOSED)
+                return false;
+            this.state = State.INITIAL;
+            host = this.remoteHost;
+            port = this.remotePort;
+        } finally {
+            this.lock.unlock();
+        }
+        this.reconnector.connectionLost(host, port);
+        return true;
+    }
+
+    // Determine whether this port has been closed
+
+    boolean isClosed() {
+        return this.state == State.CLOSED;
     }
 
-    private void sendEvent(int type, boolean newValue) {
-        SerialPortEventListener currentListener;
-        synchronized (this) {
-            currentListener = this.listener;
+    // Pooling support; see TelnetSerialPortPool
+
+    // Determine whether this port is established and its connection is still open
+    boolean isReusable() {
+        if (!this.state.isEstablished())
+            return false;
+        try {
+            return this.transport.available() != -1;
+        } catch (IOException e) {
+            return false;
         }
-        if (currentListener == null)
-            return;
-        SerialPortEvent event = new SerialPortEvent(this, type, !newValue, newValue);
+    }
+
+    // Cancel the previous user's asynchronous reads, writes and modem state waits
+    void cancelAsyncOperations() {
+        this.asyncOperations.cancelAll();
+        this.modemStateWaiters.cancelAll();
+    }
+
+    // Ask the access server to purge its buffers and discard any unread received data
+    void purge() throws InterruptedIOException {
+        ComPortCommand command = null;
+        int acknowledgements = -1;
+        this.lock.lock();
         try {
-            currentListener.serialEvent(event);
-        } catch (Exception e) {
-            this.log.warn(this.name + ": exception from listener " + listener, e);
+            this.state.checkNotClosed();
+            if (this.state.isEstablished()) {
+                command = PurgeDataCommand.valueOf(true, RFC2217.PURGE_DATA_BOTH_DATA_BUFFERS);
+                acknowledgements = this.purger.getAcknowledgements();
+            }
+        } finally {
+            this.lock.unlock();
         }
+        this.sendCommand(command);
+        this.purger.discard(this.transport, this.name, acknowledgements);
+    }
+
+    // This is invoked by the transport when new data is available, or the connection is lost
+
+    void dataAvailable() {
+        this.asyncOperations.dataAvailable();
+        if ((this.lineStateNotify & LINESTATE_DATA_READY) == 0)
+            return;
+        if (this.dataAvailableCoalescer.isEnabled())
+            this.dataAvailableCoalescer.dataAvailable();
+        else
+            this.sendEvent(SerialPortEvent.DATA_AVAILABLE);
+    }
+
+    // This is invoked after the application reads received data, possibly draining the buffer
+    void inputConsumed() {
+        if ((this.lineStateNotify & LINESTATE_DATA_READY) != 0)
+            this.dataAvailableCoalescer.inputConsumed();
+    }
+
+    // Methods for sending event notifications
+
+    void sendEvent(int type) {
+        this.sendEvent(type, true);
+    }
+
+    void sendEvent(int type, boolean newValue) {
+        if (this.listeners.isInterested(type))
+            this.eventDispatcher.dispatch(type, newValue, System.nanoTime(), this.eventSequence.incrementAndGet());
+    }
+
+    // This is invoked by the event dispatcher to notify the listeners, possibly in an executor thread
+    void deliverEvent(int type, boolean newValue, long nanoTime, long seq) {
+        this.listeners.deliver(this, type, newValue, nanoTime, seq);
     }
 
     // Internal utility methods
 
-    // Send a subnegotiation to the peer
-    private void sendSubnegotiation(ComPortCommand command) {
-        assert !Thread.holdsLock(TelnetSerialPort.this);            // otherwise we can deadlock
+    // Send a command to the peer, if not null
+    private void sendCommand(ComPortCommand command) {
+        assert !this.lock.isHeldByCurrentThread();                  // otherwise we can deadlock
+        if (command == null)
+            return;
+        this.commandSent(command);
+        try {
+            this.transport.sendCommand(command);
+        } catch (IOException e) {
+            this.log.warn(this.name + ": exception sending subcommand", e);
+        }
+    }
+
+    // Send commands to the peer, all in a single write if possible
+    private void sendCommands(List<ComPortCommand> commands) {
+        assert !this.lock.isHeldByCurrentThread();                  // otherwise we can deadlock
+        if (commands.isEmpty())
+            return;
+        for (int i = 0; i < commands.size(); i++)
+            this.commandSent(commands.get(i));
         try {
-            if (log.isDebugEnabled())
-                this.log.debug(this.name + ": send " + command);
-            this.telnetClient.sendSubnegotiation(command.getBytes());
+            this.transport.sendCommands(commands);
         } catch (IOException e) {
             this.log.warn(this.name + ": exception sending subcommand", e);
         }
     }
 
+    // Log and record a command that is about to be sent
+    private void commandSent(ComPortCommand command) {
+        if (this.log.isDebugEnabled())
+            this.log.debug(this.name + ": send " + command);
+        final CaptureJournal currentJournal = this.journal;
+        if (currentJournal != null)
+            currentJournal.record(CaptureJournal.OUTBOUND_COMMAND, command);
+    }
+
+    // Determine whether the given signal state bit is set
+    private boolean isSignal(int bit) {
+        return (this.signals.get() & bit) != 0;
+    }
+
+    // Atomically replace the given signal state bits; return the previous signal state
+    int updateSignals(int mask, int value) {
+        while (true) {
+            final int previous = this.signals.get();
+            if (this.signals.compareAndSet(previous, (previous & ~mask) | (value & mask)))
+                return previous;
+        }
+    }
+
+    // Get which line state changes we notify listeners about
+    int getLineStateNotify() {
+        return this.lineStateNotify;
+    }
+
+    // Get which modem state changes we notify listeners about
+    int getModemStateNotify() {
+        return this.modemStateNotify;
+    }
+
     // Update line state notifications; return true if we need to send new mask to access server
-    private synchronized boolean updateLineStateMask(int bit, boolean value) {
+    // Caller must hold the lock
+    private boolean updateLineStateMask(int bit, boolean value) {
+        assert this.lock.isHeldByCurrentThread();
         int previous = this.lineStateMask;
         if (value) {
             this.lineStateNotify |= bit;
@@ -899,7 +1784,9 @@ public class TelnetSerialPort extends SerialPort {
     }
 
     // Update modem state notifications; return true if we need to send new mask to access server
-    private synchronized boolean updateModemStateMask(int bit, boolean value) {
+    // Caller must hold the lock
+    private boolean updateModemStateMask(int bit, boolean value) {
+        assert this.lock.isHeldByCurrentThread();
         int previous = this.modemStateMask;
         if (value) {
             this.modemStateNotify |= bit;
@@ -912,100 +1799,185 @@ public class TelnetSerialPort extends SerialPort {
         return this.modemStateMask != previous;
     }
 
-    // Unimplemented methods
+    // DATA_AVAILABLE coalescing
 
-    @Override
-    public synchronized void enableReceiveThreshold(int threshold) throws UnsupportedCommOperationException {
-        this.state.checkNotClosed();
-        throw new UnsupportedCommOperationException();
+    /**
+     * Enable coalescing of {@link SerialPortEvent#DATA_AVAILABLE} notifications.
+     * Equivalent to {@code enableDataAvailableCoalescing(1, 0, TimeUnit.MILLISECONDS)}.
+     *
+     * @see #enableDataAvailableCoalescing(int, long, TimeUnit)
+     */
+    public void enableDataAvailableCoalescing() {
+        this.enableDataAvailableCoalescing(1, 0, TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    public synchronized void disableReceiveThreshold() {
-        this.state.checkNotClosed();
+    /**
+     * Enable coalescing of {@link SerialPortEvent#DATA_AVAILABLE} notifications.
+     *
+     * <p>
+     * Normally, when {@linkplain #notifyOnDataAvailable enabled}, a {@link SerialPortEvent#DATA_AVAILABLE} event is
+     * sent every time data is received from the access server, which at high data rates can mean many thousands of
+     * redundant events per second. When coalescing is enabled, notifications are instead edge-triggered: after one
+     * event is sent, no more are sent until the application has read all of the available data, using the
+     * {@linkplain #getInputStream input stream}, the {@linkplain #getReadableChannel readable channel}, or
+     * {@link #readAsync readAsync()}. Listeners should therefore read until no more data is available.
+     * </p>
+     *
+     * <p>
+     * In addition, the event may be held back until at least {@code minBytes} bytes are available, but no longer than
+     * {@code maxDelay} after the data becomes available. If {@code maxDelay} is zero, there is no limit, and the event
+     * is not sent until {@code minBytes} bytes are available (or end of stream is reached). For ports having an
+     * {@linkplain #setInputBufferSize input buffer}, a full buffer always triggers the event. Ports using a
+     * {@link TelnetClient} only learn of data arriving in an empty buffer, so for them the event is held back for
+     * {@code maxDelay} whatever {@code minBytes} is, or not at all if {@code maxDelay} is zero; {@code maxDelay}
+     * should be short, as the {@link TelnetClient} fails if its own buffer overflows.
+     * </p>
+     *
+     * @param minBytes number of bytes available that triggers the event
+     * @param maxDelay maximum time to hold back the event for lack of data, or zero for no limit
+     * @param unit {@code maxDelay} units
+     * @throws IllegalArgumentException if {@code minBytes} is not positive
+     * @throws IllegalArgumentException if {@code maxDelay} is negative
+     */
+    public void enableDataAvailableCoalescing(int minBytes, long maxDelay, TimeUnit unit) {
+        if (minBytes <= 0)
+            throw new IllegalArgumentException("minBytes <= 0");
+        if (maxDelay < 0)
+            throw new IllegalArgumentException("maxDelay < 0");
+        this.dataAvailableCoalescer.enable(minBytes, unit.toNanos(maxDelay));
     }
 
-    @Override
-    public synchronized boolean isReceiveThresholdEnabled() {
-        this.state.checkNotClosed();
-        return false;
+    /**
+     * Disable coalescing of {@link SerialPortEvent#DATA_AVAILABLE} notifications.
+     *
+     * @see #enableDataAvailableCoalescing(int, long, TimeUnit)
+     */
+    public void disableDataAvailableCoalescing() {
+        this.dataAvailableCoalescer.disable();
     }
 
-    @Override
-    public synchronized int getReceiveThreshold() {
-        this.state.checkNotClosed();
-        return 0;
+    /**
+     * Determine whether {@link SerialPortEvent#DATA_AVAILABLE} notifications are coalesced.
+     *
+     * @see #enableDataAvailableCoalescing(int, long, TimeUnit)
+     */
+    public boolean isDataAvailableCoalescing() {
+        return this.dataAvailableCoalescer.isEnabled();
     }
 
+    // Receive threshold and timeout
+
+    /**
+     * Enable the receive threshold. Reads from the {@linkplain #getInputStream input stream} and the
+     * {@linkplain #getReadableChannel readable channel} block until the lesser of {@code threshold} bytes and
+     * the requested length is available, subject to the receive timeout if enabled.
+     *
+     * @throws IllegalArgumentException if {@code threshold} is negative
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized void enableReceiveTimeout(int timeout) throws UnsupportedCommOperationException {
+    public void enableReceiveThreshold(int threshold) throws UnsupportedCommOperationException {
+        if (threshold < 0)
+            throw new IllegalArgumentException("threshold < 0");
         this.state.checkNotClosed();
-        throw new UnsupportedCommOperationException();
+        this.receiveSettings.setThreshold(threshold);
     }
 
     @Override
-    public synchronized void disableReceiveTimeout() {
+    public void disableReceiveThreshold() {
         this.state.checkNotClosed();
+        this.receiveSettings.setThreshold(-1);
     }
 
     @Override
-    public synchronized boolean isReceiveTimeoutEnabled() {
+    public boolean isReceiveThresholdEnabled() {
         this.state.checkNotClosed();
-        return false;
+        return this.receiveSettings.getThreshold() != -1;
     }
 
     @Override
-    public synchronized int getReceiveTimeout() {
+    public int getReceiveThreshold() {
         this.state.checkNotClosed();
-        return 0;
+        return Math.max(this.receiveSettings.getThreshold(), 0);
     }
 
+    /**
+     * Enable the receive timeout. Reads from the {@linkplain #getInputStream input stream} and the
+     * {@linkplain #getReadableChannel readable channel} return whatever data is available, possibly none,
+     * once {@code timeout} milliseconds have elapsed; a timeout of zero means return immediately.
+     * A single byte read from the input stream returns -1 if the timeout expires.
+     *
+     * <p>
+     * When this port uses a {@link TelnetClient}, a read with the receive timeout enabled does not detect
+     * end of stream until the connection is closed.
+     * </p>
+     *
+     * @throws IllegalArgumentException if {@code timeout} is negative
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized void enableReceiveFraming(int framingByte) throws UnsupportedCommOperationException {
+    public void enableReceiveTimeout(int timeout) throws UnsupportedCommOperationException {
+        if (timeout < 0)
+            throw new IllegalArgumentException("timeout < 0");
         this.state.checkNotClosed();
-        throw new UnsupportedCommOperationException();
+        this.receiveSettings.setTimeout(timeout);
     }
 
     @Override
-    public synchronized void disableReceiveFraming() {
+    public void disableReceiveTimeout() {
         this.state.checkNotClosed();
+        this.receiveSettings.setTimeout(-1);
     }
 
     @Override
-    public synchronized boolean isReceiveFramingEnabled() {
+    public boolean isReceiveTimeoutEnabled() {
         this.state.checkNotClosed();
-        return false;
+        return this.receiveSettings.getTimeout() != -1;
     }
 
     @Override
-    public synchronized int getReceiveFramingByte() {
+    public int getReceiveTimeout() {
         this.state.checkNotClosed();
-        return 0;
+        return Math.max(this.receiveSettings.getTimeout(), 0);
     }
 
+    // Receive framing
+
+    /**
+     * Enable receive framing. Reads from the {@linkplain #getInputStream input stream} and the
+     * {@linkplain #getReadableChannel readable channel} return as soon as {@code framingByte} is received,
+     * with the returned data ending with the framing byte. Otherwise, a read returns when the requested length
+     * is available, or as determined by the receive threshold and timeout if enabled.
+     * The scan for the framing byte is done inside the port as data arrives.
+     *
+     * @param framingByte framing byte; only the low eight bits are significant
+     * @throws IllegalStateException if this port is closed
+     */
     @Override
-    public synchronized void setInputBufferSize(int size) {
+    public void enableReceiveFraming(int framingByte) throws UnsupportedCommOperationException {
         this.state.checkNotClosed();
+        this.receiveSettings.setFramingByte(framingByte & 0xff);
     }
 
     @Override
-    public synchronized int getInputBufferSize() {
+    public void disableReceiveFraming() {
         this.state.checkNotClosed();
-        return 0;
+        this.receiveSettings.setFramingByte(-1);
     }
 
     @Override
-    public synchronized void setOutputBufferSize(int size) {
+    public boolean isReceiveFramingEnabled() {
         this.state.checkNotClosed();
+        return this.receiveSettings.getFramingByte() != -1;
     }
 
     @Override
-    public synchronized int getOutputBufferSize() {
+    public int getReceiveFramingByte() {
         this.state.checkNotClosed();
-        return 0;
+        return Math.max(this.receiveSettings.getFramingByte(), 0);
     }
 
-    // Utility class
+    // Utility classes
 
     @SuppressWarnings("serial")
     private class CommandList extends ArrayList<ComPortCommand> {
@@ -1015,8 +1987,7 @@ public class TelnetSerialPort extends SerialPort {
         }
 
         public void send() {
-            for (ComPortCommand command : this)
-                TelnetSerialPort.this.sendSubnegotiation(command);
+            TelnetSerialPort.this.sendCommands(this);
             this.clear();
         }
     }
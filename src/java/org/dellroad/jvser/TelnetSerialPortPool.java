@@ -0,0 +1,352 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.comm.UnsupportedCommOperationException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of connected {@link TelnetSerialPort}s, keyed by access server host and TCP port.
+ *
+ * <p>
+ * Opening a {@link TelnetSerialPort} requires a TCP connection and telnet option negotiation before the serial port
+ * configuration can be sent. This pool keeps released ports connected and negotiated, so that {@link #lease lease()}
+ * can usually return a ready-to-use port without any network round trips.
+ * </p>
+ *
+ * <p>
+ * Ports returned by {@link #lease lease()} are in the established state, i.e., the access server has accepted
+ * {@code COM-PORT-OPTION} and the port's configuration has been sent. When a port is {@linkplain #release released},
+ * the access server is asked to purge its buffers, any unread data is discarded, and the port is reset to the
+ * configuration it had when it was {@linkplain #createPort created}: pending asynchronous operations are cancelled,
+ * serial port parameters, flow control, DTR and RTS, capture journal, event executor and queue, reconnection,
+ * negotiation, and buffer settings are restored, all event listeners and event notifications are removed,
+ * and receive threshold, timeout and framing and {@code DATA_AVAILABLE} coalescing are disabled.
+ * Released ports whose connection has been lost are closed.
+ * </p>
+ *
+ * <p>
+ * Instances are thread safe.
+ * </p>
+ */
+public class TelnetSerialPortPool {
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxIdle;
+    private final TelnetEventLoopGroup eventLoopGroup;
+
+    // Protected by "lock"
+    private final HashMap<String, ArrayDeque<TelnetSerialPort>> idle = new HashMap<String, ArrayDeque<TelnetSerialPort>>();
+    private final IdentityHashMap<TelnetSerialPort, Entry> entries = new IdentityHashMap<TelnetSerialPort, Entry>();
+    private boolean closed;
+
+    /**
+     * Constructor. Ports will use a commons-net {@link org.apache.commons.net.telnet.TelnetClient}.
+     *
+     * @param maxIdle maximum number of idle ports to keep for each access server host and TCP port
+     * @throws IllegalArgumentException if {@code maxIdle} is negative
+     */
+    public TelnetSerialPortPool(int maxIdle) {
+        this(null, maxIdle);
+    }
+
+    /**
+     * Constructor. Ports will perform their network I/O using the given event loops.
+     *
+     * @param eventLoopGroup event loops for port network I/O, or null to use commons-net
+     *  {@link org.apache.commons.net.telnet.TelnetClient}s
+     * @param maxIdle maximum number of idle ports to keep for each access server host and TCP port
+     * @throws IllegalArgumentException if {@code maxIdle} is negative
+     */
+    public TelnetSerialPortPool(TelnetEventLoopGroup eventLoopGroup, int maxIdle) {
+        if (maxIdle < 0)
+            throw new IllegalArgumentException("maxIdle < 0");
+        this.eventLoopGroup = eventLoopGroup;
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Lease a port connected to the given access server. An idle port is returned if one is available;
+     * otherwise, a new port is created, connected, and negotiated.
+     *
+     * @param host access server host name
+     * @param port access server TCP port
+     * @param timeout maximum time to wait for a new port's telnet negotiation to complete
+     * @param unit {@code timeout} units
+     * @return established port, which must eventually be passed to {@link #release release()}
+     * @throws IOException if the connection fails, or negotiation does not complete before the timeout
+     * @throws IllegalStateException if this pool is closed
+     */
+    public TelnetSerialPort lease(String host, int port, long timeout, TimeUnit unit) throws IOException {
+        final String key = host + ":" + port;
+
+        // Look for an idle port
+        while (true) {
+            TelnetSerialPort serialPort;
+            this.lock.lock();
+            try {
+                if (this.closed)
+                    throw new IllegalStateException("pool is closed");
+                ArrayDeque<TelnetSerialPort> ports = this.idle.get(key);
+                serialPort = ports != null ? ports.pollFirst() : null;
+                if (serialPort == null)
+                    break;
+                this.entries.get(serialPort).leased = true;
+            } finally {
+                this.lock.unlock();
+            }
+            if (serialPort.isReusable())
+                return serialPort;
+            this.discard(serialPort);
+        }
+
+        // Create a new port
+        final TelnetSerialPort serialPort = this.createPort(host, port);
+        final Entry entry = new Entry(key, serialPort);
+        boolean success = false;
+        try {
+            serialPort.connect(host, port);
+            try {
+                if (!serialPort.awaitEstablished(timeout, unit))
+                    throw new IOException("access server " + key + " did not accept COM-PORT-OPTION in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while connecting to " + key);
+            }
+            this.lock.lock();
+            try {
+                if (this.closed)
+                    throw new IllegalStateException("pool is closed");
+                entry.leased = true;
+                this.entries.put(serialPort, entry);
+            } finally {
+                this.lock.unlock();
+            }
+            success = true;
+        } finally {
+            if (!success)
+                serialPort.close();
+        }
+        return serialPort;
+    }
+
+    /**
+     * Return a port to this pool. The port is reset and kept for reuse, or closed if its connection has been lost,
+     * this pool already has the maximum number of idle ports for its access server, or this pool is closed.
+     *
+     * @param serialPort port previously returned by {@link #lease lease()}
+     * @throws IllegalArgumentException if {@code serialPort} is not currently leased from this pool
+     */
+    public void release(TelnetSerialPort serialPort) {
+        Entry entry;
+        this.lock.lock();
+        try {
+            entry = this.entries.get(serialPort);
+            if (entry == null || !entry.leased)
+                throw new IllegalArgumentException("port is not leased from this pool");
+            entry.leased = false;
+        } finally {
+            this.lock.unlock();
+        }
+
+        // Reset port
+        if (!serialPort.isReusable()) {
+            this.discard(serialPort);
+            return;
+        }
+        try {
+            entry.reset(serialPort);
+        } catch (Exception e) {
+            this.log.debug("exception resetting " + serialPort.getName() + " (closing it)", e);
+            this.discard(serialPort);
+            return;
+        }
+
+        // Keep it if there's room
+        this.lock.lock();
+        try {
+            if (!this.closed) {
+                ArrayDeque<TelnetSerialPort> ports = this.idle.get(entry.key);
+                if (ports == null) {
+                    ports = new ArrayDeque<TelnetSerialPort>();
+                    this.idle.put(entry.key, ports);
+                }
+                if (ports.size() < this.maxIdle) {
+                    ports.addLast(serialPort);
+                    return;
+                }
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        this.discard(serialPort);
+    }
+
+    /**
+     * Get the number of idle ports currently kept for the given access server.
+     */
+    public int getIdleCount(String host, int port) {
+        this.lock.lock();
+        try {
+            ArrayDeque<TelnetSerialPort> ports = this.idle.get(host + ":" + port);
+            return ports != null ? ports.size() : 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Close this pool and all idle ports. Ports currently leased are closed when released.
+     */
+    public void close() {
+        ArrayList<TelnetSerialPort> ports = new ArrayList<TelnetSerialPort>();
+        this.lock.lock();
+        try {
+            this.closed = true;
+            for (ArrayDeque<TelnetSerialPort> list : this.idle.values())
+                ports.addAll(list);
+            this.idle.clear();
+        } finally {
+            this.lock.unlock();
+        }
+        for (TelnetSerialPort serialPort : ports)
+            this.discard(serialPort);
+    }
+
+    /**
+     * Create a new, unconnected port for the given access server.
+     *
+     * <p>
+     * The implementation in {@link TelnetSerialPortPool} creates a port using this pool's {@link TelnetEventLoopGroup},
+     * if any. Subclasses may override to configure the port further; the port's configuration at the time this method
+     * returns is the configuration it will be reset to when released.
+     * </p>
+     *
+     * @param host access server host name
+     * @param port access server TCP port
+     */
+    protected TelnetSerialPort createPort(String host, int port) {
+        TelnetSerialPort serialPort = this.eventLoopGroup != null ?
+          new TelnetSerialPort(this.eventLoopGroup) : new TelnetSerialPort();
+        serialPort.setName(serialPort.getName() + "[" + host + ":" + port + "]");
+        return serialPort;
+    }
+
+    private void discard(TelnetSerialPort serialPort) {
+        this.lock.lock();
+        try {
+            this.entries.remove(serialPort);
+        } finally {
+            this.lock.unlock();
+        }
+        serialPort.close();
+    }
+
+    // Pool entry, which remembers a port's original configuration
+
+    private static final class Entry {
+
+        final String key;
+        final int baudRate;
+        final int dataBits;
+        final int stopBits;
+        final int parity;
+        final int flowControl;
+        final boolean dtr;
+        final boolean rts;
+        final CaptureJournal journal;
+        final Executor eventExecutor;
+        final int eventQueueCapacity;
+        final EventOverflowPolicy eventOverflowPolicy;
+        final boolean autoReconnect;
+        final long reconnectInitialDelay;                           // nanoseconds
+        final long reconnectMaxDelay;                               // nanoseconds
+        final boolean optimisticNegotiation;
+        final long negotiationTimeout;                              // nanoseconds
+        final boolean rawFallback;
+        final int inputBufferSize;
+        final int outputBufferSize;
+        final long outputBufferLatency;                             // nanoseconds
+
+        boolean leased;
+
+        Entry(String key, TelnetSerialPort serialPort) {
+            this.key = key;
+            this.baudRate = serialPort.getBaudRate();
+            this.dataBits = serialPort.getDataBits();
+            this.stopBits = serialPort.getStopBits();
+            this.parity = serialPort.getParity();
+            this.flowControl = serialPort.getFlowControlMode();
+            this.dtr = serialPort.isDTR();
+            this.rts = serialPort.isRTS();
+            this.journal = serialPort.getCaptureJournal();
+            this.eventExecutor = serialPort.getEventExecutor();
+            this.eventQueueCapacity = serialPort.getEventQueueCapacity();
+            this.eventOverflowPolicy = serialPort.getEventOverflowPolicy();
+            this.autoReconnect = serialPort.isAutoReconnect();
+            this.reconnectInitialDelay = serialPort.getReconnectInitialDelay(TimeUnit.NANOSECONDS);
+            this.reconnectMaxDelay = serialPort.getReconnectMaxDelay(TimeUnit.NANOSECONDS);
+            this.optimisticNegotiation = serialPort.isOptimisticNegotiation();
+            this.negotiationTimeout = serialPort.getNegotiationTimeout(TimeUnit.NANOSECONDS);
+            this.rawFallback = serialPort.isRawFallback();
+            this.inputBufferSize = serialPort.getInputBufferSize();
+            this.outputBufferSize = serialPort.getOutputBufferSize();
+            this.outputBufferLatency = serialPort.getOutputBufferLatency(TimeUnit.NANOSECONDS);
+        }
+
+        void reset(TelnetSerialPort serialPort) throws IOException, UnsupportedCommOperationException {
+            serialPort.cancelAsyncOperations();
+            serialPort.removeAllEventListeners();
+            serialPort.notifyOnDataAvailable(false);
+            serialPort.notifyOnOutputEmpty(false);
+            serialPort.notifyOnCTS(false);
+            serialPort.notifyOnDSR(false);
+            serialPort.notifyOnRingIndicator(false);
+            serialPort.notifyOnCarrierDetect(false);
+            serialPort.notifyOnOverrunError(false);
+            serialPort.notifyOnParityError(false);
+            serialPort.notifyOnFramingError(false);
+            serialPort.notifyOnBreakInterrupt(false);
+            serialPort.disableReceiveThreshold();
+            serialPort.disableReceiveTimeout();
+            serialPort.disableReceiveFraming();
+            serialPort.disableDataAvailableCoalescing();
+            serialPort.getOutputStream().flush();
+            serialPort.purge();
+            serialPort.setSerialPortParams(this.baudRate, this.dataBits, this.stopBits, this.parity);
+            serialPort.setFlowControlMode(this.flowControl);
+            serialPort.setDTR(this.dtr);
+            serialPort.setRTS(this.rts);
+            serialPort.setCaptureJournal(this.journal);
+            serialPort.setEventExecutor(this.eventExecutor);
+            serialPort.setEventQueueCapacity(this.eventQueueCapacity, this.eventOverflowPolicy);
+            if (serialPort.isAutoReconnect() != this.autoReconnect)
+                serialPort.setAutoReconnect(this.autoReconnect);
+            serialPort.setReconnectDelay(this.reconnectInitialDelay, this.reconnectMaxDelay, TimeUnit.NANOSECONDS);
+            serialPort.setOptimisticNegotiation(this.optimisticNegotiation);
+            serialPort.setNegotiationTimeout(this.negotiationTimeout, TimeUnit.NANOSECONDS);
+            serialPort.setRawFallback(this.rawFallback);
+            if (serialPort.getInputBufferSize() != this.inputBufferSize)     // normally fixed once connected
+                serialPort.setInputBufferSize(this.inputBufferSize);
+            serialPort.setOutputBufferSize(this.outputBufferSize);
+            serialPort.setOutputBufferLatency(this.outputBufferLatency, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * The network connection underlying a {@link TelnetSerialPort}.
+ *
+ * <p>
+ * Implementations are responsible for telnet option negotiation and for notifying the associated
+ * {@link TelnetSerialPort} when the server agrees to {@code COM-PORT-OPTION}, when a
+ * {@code COM-PORT-OPTION} command is received, and when new data is available.
+ * </p>
+ */
+interface TelnetTransport {
+
+    /**
+     * Connect to the access server. Blocks until the connection is established.
+     */
+    void connect(InetAddress host, int port) throws IOException;
+
+    /**
+     * Re-establish the connection after it has been lost. Received data that has not yet been read remains available.
+     *
+     * @throws IOException if the connection fails, or this transport has been {@linkplain #disconnect disconnected}
+     * @throws UnsupportedOperationException if this transport does not support reconnecting
+     */
+    void reconnect(InetAddress host, int port) throws IOException;
+
+    /**
+     * Close the connection.
+     */
+    void disconnect() throws IOException;
+
+    /**
+     * Get the stream from which received serial data is read.
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Get the stream to which serial data to be transmitted is written.
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Read received serial data into the given buffer, blocking according to the receive threshold, timeout,
+     * and framing byte.
+     * By default, blocks until at least one byte is available.
+     *
+     * @return number of bytes read (zero only if the receive timeout expired), or -1 on end of stream
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Read whatever received serial data is available into the given buffer without blocking,
+     * ignoring the receive threshold, timeout, and framing byte.
+     *
+     * @return number of bytes read, or -1 if none are available and the end of stream has been reached
+     */
+    int poll(ByteBuffer dst) throws IOException;
+
+    /**
+     * Set the number of bytes a blocking read waits for before returning.
+     *
+     * @param threshold receive threshold, or zero to return as soon as any data is available
+     */
+    void setReceiveThreshold(int threshold);
+
+    /**
+     * Set the maximum time a blocking read waits for data.
+     *
+     * @param timeout timeout in nanoseconds, or -1 to wait indefinitely
+     */
+    void setReceiveTimeout(long timeout);
+
+    /**
+     * Set the byte value which, when received, ends a blocking read.
+     *
+     * @param framingByte framing byte, or -1 to disable framing
+     */
+    void setReceiveFraming(int framingByte);
+
+    /**
+     * Set the journal in which to record serial data sent and received.
+     *
+     * @param journal capture journal, or null for none
+     */
+    void setCaptureJournal(CaptureJournal journal);
+
+    /**
+     * Get the buffer into which received serial data is placed, if this transport has one.
+     *
+     * @return receive buffer, or null if received data is buffered by some other means
+     */
+    InputRing getInputRing();
+
+    /**
+     * Get the number of bytes of received serial data that may be read without blocking.
+     *
+     * @return number of bytes available, or -1 if none are available and the end of stream has been reached
+     */
+    int available() throws IOException;
+
+    /**
+     * Transmit the remaining serial data in the given buffers as a single write.
+     *
+     * @return number of bytes written
+     */
+    long write(ByteBuffer[] srcs, int offset, int length) throws IOException;
+
+    /**
+     * Transmit the remaining serial data in the given buffer, completing the given future with the number
+     * of bytes written (or the failure) once the data has been written to the network.
+     * Should not block unless the underlying connection is inherently blocking.
+     */
+    void writeAsync(ByteBuffer src, TelnetFuture<Integer> future);
+
+    /**
+     * Send a {@code COM-PORT-OPTION} command to the peer.
+     */
+    void sendCommand(ComPortCommand command) throws IOException;
+
+    /**
+     * Send {@code COM-PORT-OPTION} commands to the peer, using a single network write if possible.
+     */
+    void sendCommands(List<ComPortCommand> commands) throws IOException;
+}
+
@@ -8,6 +8,15 @@
 package org.dellroad.jvser;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility methods.
@@ -57,6 +66,38 @@ final class Util {
         return buf.toString();
     }
 
+    // Get a factory for virtual threads, or null if the JVM does not support them (requires Java 21)
+    static ThreadFactory virtualThreadFactory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Get the shared timer used for operation deadlines
+    static ScheduledExecutorService scheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    // Get the shared pool used for event delivery and other work that may block
+    static ExecutorService eventExecutor() {
+        return EventExecutorHolder.EXECUTOR;
+    }
+
+    // Get an executor that runs each task in a new thread from the given factory
+    static Executor threadPerTaskExecutor(final ThreadFactory threadFactory) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable action) {
+                threadFactory.newThread(action).start();
+            }
+        };
+    }
+
     static String rawBytes(int[] data, int off, int len) {
         StringBuilder buf = new StringBuilder();
         for (int i = 0; i < len; i++) {
@@ -66,5 +107,57 @@ final class Util {
         }
         return buf.toString();
     }
-}
 
+    // Lazily created on first use
+    private static final class SchedulerHolder {
+
+        private static final long PURGE_INTERVAL = 10;              // seconds
+
+        static final ScheduledExecutorService SCHEDULER = SchedulerHolder.createScheduler();
+
+        private SchedulerHolder() {
+        }
+
+        // Deadlines are usually cancelled long before they expire, so cancelled tasks must not pile up in the queue
+        private static ScheduledExecutorService createScheduler() {
+            final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable action) {
+                    Thread thread = new Thread(action, "jvser timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                ScheduledThreadPoolExecutor.class.getMethod("setRemoveOnCancelPolicy", boolean.class)
+                  .invoke(scheduler, true);                         // requires Java 7
+            } catch (Exception e) {
+                scheduler.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduler.purge();
+                    }
+                }, PURGE_INTERVAL, PURGE_INTERVAL, TimeUnit.SECONDS);
+            }
+            return scheduler;
+        }
+    }
+
+    // Lazily created on first use
+    private static final class EventExecutorHolder {
+
+        static final ExecutorService EXECUTOR = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+          60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger next = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable action) {
+                Thread thread = new Thread(action, "jvser event #" + this.next.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        private EventExecutorHolder() {
+        }
+    }
+}
@@ -0,0 +1,183 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests {@link TelnetSerialPort#readAsync readAsync()} deadlines, cancellation and closing.
+ */
+public class AsyncOperationsTest extends TestSupport {
+
+    private static final long SHORT_DELAY = 100;                    // milliseconds
+    private static final long TIMEOUT = 5000;                       // milliseconds
+    private static final int NUM_DEADLINES = 1000;
+
+    private TestAccessServer server;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        this.server = new TestAccessServer();
+    }
+
+    @AfterClass
+    public void stopServer() {
+        this.server.close();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final TestAccessServer.Connection connection = this.connect(port);
+            final ByteBuffer dst = ByteBuffer.allocate(16);
+            final TelnetFuture<Integer> read = port.readAsync(dst, SHORT_DELAY, TimeUnit.MILLISECONDS);
+            try {
+                read.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected timeout");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException, "unexpected exception " + e.getCause());
+            }
+            assertEquals(dst.position(), 0);
+
+            // Data arriving afterwards is not lost
+            connection.send(new byte[] { 1, 2, 3 });
+            assertEquals(port.readAsync(dst).get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(3));
+            assertEquals(dst.get(2), (byte)3);
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final TestAccessServer.Connection connection = this.connect(port);
+            final ByteBuffer dst1 = ByteBuffer.allocate(16);
+            final TelnetFuture<Integer> read = port.readAsync(dst1, TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(read.cancel(false));
+            assertTrue(read.isCancelled());
+            assertTrue(read.isDone());
+
+            // The cancelled read takes nothing; the next one gets the data
+            connection.send(new byte[] { 42 });
+            final ByteBuffer dst2 = ByteBuffer.allocate(16);
+            assertEquals(port.readAsync(dst2).get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(1));
+            assertEquals(dst1.position(), 0);
+            assertEquals(dst2.get(0), (byte)42);
+
+            // A completed read can't be cancelled
+            assertFalse(read.cancel(false));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final TestAccessServer.Connection connection = this.connect(port);
+            final ByteBuffer dst1 = ByteBuffer.allocate(16);
+            final ByteBuffer dst2 = ByteBuffer.allocate(16);
+            final TelnetFuture<Integer> read1 = port.readAsync(dst1);
+            final TelnetFuture<Integer> read2 = port.readAsync(dst2);
+            connection.send(new byte[] { 1 });
+            assertEquals(read1.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(1));
+            Thread.sleep(SHORT_DELAY);
+            assertFalse(read2.isDone());
+            connection.send(new byte[] { 2 });
+            assertEquals(read2.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(1));
+            assertEquals(dst1.get(0), (byte)1);
+            assertEquals(dst2.get(0), (byte)2);
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testCloseWhilePending() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            this.connect(port);
+            final TelnetFuture<Integer> read1 = port.readAsync(ByteBuffer.allocate(16));
+            final TelnetFuture<Integer> read2 = port.readAsync(ByteBuffer.allocate(16), TIMEOUT, TimeUnit.MILLISECONDS);
+            port.close();
+            this.assertClosed(read1);
+            this.assertClosed(read2);
+
+            // Reads started after closing fail immediately
+            try {
+                port.readAsync(ByteBuffer.allocate(16));
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    // Deadlines of reads that finish early must not stay queued in the shared timer until they would have expired
+    @Test
+    public void testDeadlinesDiscarded() throws Exception {
+        final ScheduledThreadPoolExecutor scheduler = (ScheduledThreadPoolExecutor)Util.scheduler();
+        final int queued = scheduler.getQueue().size();
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            this.connect(port);
+            for (int i = 0; i < NUM_DEADLINES; i++)
+                port.readAsync(ByteBuffer.allocate(1), 1, TimeUnit.HOURS).cancel(false);
+            final List<TelnetFuture<Integer>> reads = new ArrayList<TelnetFuture<Integer>>(NUM_DEADLINES);
+            for (int i = 0; i < NUM_DEADLINES; i++)
+                reads.add(port.readAsync(ByteBuffer.allocate(1), 1, TimeUnit.HOURS));
+            port.close();
+            for (TelnetFuture<Integer> read : reads)
+                assertTrue(read.isDone());
+            assertTrue(scheduler.getQueue().size() < queued + NUM_DEADLINES / 10,
+              "timer queue grew from " + queued + " to " + scheduler.getQueue().size());
+        } finally {
+            port.close();
+        }
+    }
+
+    private TestAccessServer.Connection connect(TelnetSerialPort port) throws Exception {
+        port.connect(this.server.getAddress(), this.server.getPort());
+        final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+        return connection;
+    }
+
+    private void assertClosed(TelnetFuture<Integer> read) throws Exception {
+        try {
+            read.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("expected exception");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AsynchronousCloseException, "unexpected exception " + e.getCause());
+        }
+    }
+}
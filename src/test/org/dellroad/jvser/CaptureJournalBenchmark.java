@@ -0,0 +1,111 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Measures the cost of recording into a {@link CaptureJournal}, which must be well under a microsecond per chunk
+ * and must not allocate.
+ */
+public class CaptureJournalBenchmark extends TestSupport {
+
+    private static final int WARMUP = 200000;
+    private static final int RECORDS = 1000000;
+    private static final int CHUNK_SIZE = 64;
+    private static final long MAX_NANOS_PER_RECORD = 1000;
+    private static final long MAX_ALLOCATED_BYTES = 64 * 1024;     // slack for JIT and timer activity, not per record
+
+    @Test(groups = "benchmark")
+    public void benchmarkByteArrayChunks() throws Exception {
+        final byte[] data = new byte[CHUNK_SIZE];
+        this.random.nextBytes(data);
+        this.run("byte[] chunks", new Recorder() {
+            @Override
+            public void record(CaptureJournal journal) {
+                journal.record(CaptureJournal.INBOUND_DATA, data, 0, data.length);
+            }
+        }, CHUNK_SIZE);
+    }
+
+    @Test(groups = "benchmark")
+    public void benchmarkDirectBufferChunks() throws Exception {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK_SIZE * 2);
+        this.run("direct ByteBuffer chunks", new Recorder() {
+            @Override
+            public void record(CaptureJournal journal) {
+                journal.record(CaptureJournal.OUTBOUND_DATA, buf, CHUNK_SIZE / 2, CHUNK_SIZE);
+            }
+        }, CHUNK_SIZE);
+    }
+
+    @Test(groups = "benchmark")
+    public void benchmarkCommands() throws Exception {
+        final ComPortCommand command = new BaudRateCommand(true, 115200);
+        this.run("commands", new Recorder() {
+            @Override
+            public void record(CaptureJournal journal) {
+                journal.record(CaptureJournal.OUTBOUND_COMMAND, command);
+            }
+        }, command.getBytes().length);
+    }
+
+    private void run(String label, Recorder recorder, int payloadLength) throws Exception {
+        final int recordSize = (CaptureJournal.RECORD_HEADER_SIZE + payloadLength + 7) & ~7;
+        final File file = File.createTempFile("jvser", ".jnl");
+        try {
+            final CaptureJournal journal = new CaptureJournal(file, (WARMUP + RECORDS) * recordSize);
+            try {
+                for (int i = 0; i < WARMUP; i++)
+                    recorder.record(journal);
+                final long allocated = allocatedBytes();
+                final long start = System.nanoTime();
+                for (int i = 0; i < RECORDS; i++)
+                    recorder.record(journal);
+                final long nanos = System.nanoTime() - start;
+                final long allocatedDuring = allocatedBytes() - allocated;
+                assertEquals(journal.getDroppedCount(), 0);
+                assertEquals(journal.getSize(), journal.getCapacity());
+                final double perRecord = (double)nanos / RECORDS;
+                this.log.info(String.format("CaptureJournal %s: %.1f ns/record, %d bytes allocated for %d records",
+                  label, perRecord, allocatedDuring, RECORDS));
+                assertTrue(perRecord < MAX_NANOS_PER_RECORD, "too slow: " + perRecord + " ns/record");
+                if (allocatedDuring >= 0)
+                    assertTrue(allocatedDuring < MAX_ALLOCATED_BYTES, "recording allocated " + allocatedDuring + " bytes");
+            } finally {
+                journal.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    // Get the number of bytes allocated by the current thread so far, or -1 if the JVM can't tell us
+    static long allocatedBytes() {
+        final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        final com.sun.management.ThreadMXBean sunThreadMXBean = (com.sun.management.ThreadMXBean)threadMXBean;
+        if (!sunThreadMXBean.isThreadAllocatedMemorySupported() || !sunThreadMXBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private interface Recorder {
+        void record(CaptureJournal journal);
+    }
+}
+
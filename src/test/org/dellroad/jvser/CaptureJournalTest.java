@@ -0,0 +1,406 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class CaptureJournalTest extends TestSupport {
+
+    private File file;
+
+    @BeforeMethod
+    public void createFile() throws IOException {
+        this.file = File.createTempFile("jvser", ".jnl");
+    }
+
+    @AfterMethod
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final CaptureJournal journal = new CaptureJournal(this.file, 4096);
+        final List<Record> records = new ArrayList<Record>();
+        long size = 0;
+
+        // Byte arrays of every length up to a few words, so records end at every alignment
+        for (int len = 1; len <= 20; len++) {
+            final byte[] data = this.randomBytes(len + 2);
+            journal.record(CaptureJournal.INBOUND_DATA, data, 1, len);
+            records.add(new Record(CaptureJournal.INBOUND_DATA, data, 1, len));
+            size += (CaptureJournal.RECORD_HEADER_SIZE + len + 7) & ~7;
+            assertEquals(journal.getSize(), size);
+            assertEquals(journal.getSize() % 8, 0);
+        }
+
+        // Heap and direct buffers; the source buffer's position and limit are not modified
+        for (boolean direct : new boolean[] { false, true }) {
+            final byte[] data = this.randomBytes(37);
+            final ByteBuffer src = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+            src.put(data).position(3).limit(30);
+            journal.record(CaptureJournal.OUTBOUND_DATA, src, 5, 23);
+            assertEquals(src.position(), 3);
+            assertEquals(src.limit(), 30);
+            records.add(new Record(CaptureJournal.OUTBOUND_DATA, data, 5, 23));
+        }
+
+        // Commands
+        final ComPortCommand[] commands = new ComPortCommand[] {
+            new BaudRateCommand(true, 115200),
+            new ControlCommand(false, RFC2217.CONTROL_DTR_ON),
+            new SignatureCommand(true, "hello"),
+        };
+        for (int i = 0; i < commands.length; i++) {
+            final int type = i % 2 == 0 ? CaptureJournal.OUTBOUND_COMMAND : CaptureJournal.INBOUND_COMMAND;
+            journal.record(type, commands[i]);
+            final int[] bytes = commands[i].getBytes();
+            final byte[] data = new byte[bytes.length];
+            for (int j = 0; j < bytes.length; j++)
+                data[j] = (byte)bytes[j];
+            records.add(new Record(type, data, 0, data.length));
+        }
+
+        // Empty chunks are not recorded
+        journal.record(CaptureJournal.INBOUND_DATA, new byte[0], 0, 0);
+        journal.record(CaptureJournal.INBOUND_DATA, ByteBuffer.allocate(0), 0, 0);
+        assertEquals(journal.getDroppedCount(), 0);
+
+        // Read back, both while the journal is open and after it's closed
+        this.verify(records);
+        journal.close();
+        this.verify(records);
+
+        // Commands decode back to the originals
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            while (reader.next()) {
+                if (reader.getType() != CaptureJournal.OUTBOUND_COMMAND && reader.getType() != CaptureJournal.INBOUND_COMMAND)
+                    continue;
+                final ByteBuffer data = reader.getData();
+                final int[] bytes = new int[data.remaining()];
+                for (int i = 0; i < bytes.length; i++)
+                    bytes[i] = data.get(i) & 0xff;
+                assertEquals(RFC2217.decodeComPortCommand(bytes).toString(), commands[0].toString());
+                break;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testCapacityTruncation() throws Exception {
+        try {
+            new CaptureJournal(this.file, CaptureJournal.RECORD_HEADER_SIZE - 1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // Capacity is rounded down to a multiple of eight, and a record that exactly fills it still fits
+        final CaptureJournal journal = new CaptureJournal(this.file, CaptureJournal.RECORD_HEADER_SIZE + 8 + 5);
+        assertEquals(journal.getCapacity(), CaptureJournal.RECORD_HEADER_SIZE + 8);
+        journal.record(CaptureJournal.INBOUND_DATA, new byte[8], 0, 8);
+        assertEquals(journal.getSize(), journal.getCapacity());
+        assertEquals(journal.getDroppedCount(), 0);
+        journal.record(CaptureJournal.INBOUND_DATA, new byte[1], 0, 1);
+        assertEquals(journal.getDroppedCount(), 1);
+        journal.close();
+
+        // Reader stops at the truncated capacity rather than reading the slack at the end of the file
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            assertTrue(reader.next());
+            assertEquals(reader.getData().remaining(), 8);
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testDropCounting() throws Exception {
+        final CaptureJournal journal = new CaptureJournal(this.file, 100);
+        assertEquals(journal.getCapacity(), 96);
+        final List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 6; i++) {
+            final byte[] data = this.randomBytes(5);
+            journal.record(CaptureJournal.INBOUND_DATA, data, 0, data.length);
+            if (i < 4)
+                records.add(new Record(CaptureJournal.INBOUND_DATA, data, 0, data.length));
+        }
+        assertEquals(journal.getSize(), 96);
+        assertEquals(journal.getDroppedCount(), 2);
+        journal.close();
+        this.verify(records);
+
+        // A smaller record that would still fit is recorded, even after a larger one was dropped
+        final CaptureJournal journal2 = new CaptureJournal(this.file, 64);
+        journal2.record(CaptureJournal.INBOUND_DATA, new byte[50], 0, 50);
+        journal2.record(CaptureJournal.INBOUND_DATA, new byte[8], 0, 8);
+        assertEquals(journal2.getDroppedCount(), 1);
+        assertEquals(journal2.getSize(), 24);
+        journal2.close();
+
+        // Records after close are dropped
+        final File file2 = File.createTempFile("jvser", ".jnl");
+        try {
+            final CaptureJournal journal3 = new CaptureJournal(file2, 1024);
+            journal3.close();
+            journal3.record(CaptureJournal.OUTBOUND_DATA, new byte[1], 0, 1);
+            journal3.record(CaptureJournal.OUTBOUND_COMMAND, new BaudRateCommand(true, 9600));
+            assertEquals(journal3.getDroppedCount(), 2);
+            assertEquals(journal3.getSize(), 0);
+        } finally {
+            file2.delete();
+        }
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+
+        // Fill a journal spanning several index intervals, with records of varying sizes
+        final int capacity = 4 * CaptureJournal.INDEX_INTERVAL + 1000;
+        final CaptureJournal journal = new CaptureJournal(this.file, capacity);
+        while (journal.getDroppedCount() == 0) {
+            final byte[] data = this.randomBytes(1 + this.random.nextInt(3000));
+            journal.record(CaptureJournal.INBOUND_DATA, data, 0, data.length);
+        }
+        journal.close();
+
+        // Read all timestamps
+        final List<Long> timestamps = new ArrayList<Long>();
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            while (reader.next())
+                timestamps.add(reader.getTimestamp());
+            assertTrue(timestamps.size() > 4 * CaptureJournal.INDEX_INTERVAL / 3000);
+            for (int i = 1; i < timestamps.size(); i++)
+                assertTrue(timestamps.get(i) >= timestamps.get(i - 1));
+
+            // Every index slot that was reached points at the record spanning the start of its interval
+            this.verifyIndex(journal);
+
+            // Seek to every record's timestamp, and just past it, and compare with a linear search
+            for (int i = 0; i < timestamps.size(); i++) {
+                final long timestamp = timestamps.get(i);
+                this.checkSeek(reader, timestamps, timestamp);
+                this.checkSeek(reader, timestamps, timestamp + 1);
+            }
+            this.checkSeek(reader, timestamps, 0);
+            this.checkSeek(reader, timestamps, Long.MAX_VALUE);
+
+            // Rewind
+            reader.rewind();
+            assertTrue(reader.next());
+            assertEquals(reader.getTimestamp(), (long)timestamps.get(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testSeekEqualTimestamps() throws Exception {
+
+        // Fill a journal spanning several index intervals
+        final CaptureJournal journal = new CaptureJournal(this.file, 4 * CaptureJournal.INDEX_INTERVAL);
+        while (journal.getDroppedCount() == 0)
+            journal.record(CaptureJournal.INBOUND_DATA, new byte[1000], 0, 1000);
+        journal.close();
+
+        // Coarsen the timestamps so that runs of equal timestamps straddle the index interval boundaries
+        final List<Long> timestamps = new ArrayList<Long>();
+        final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            final int slots = readInt(raf, 24);
+            final int dataStart = CaptureJournal.HEADER_SIZE + slots * CaptureJournal.INDEX_SLOT_SIZE;
+            long offset = dataStart;
+            for (int i = 0; offset + CaptureJournal.RECORD_HEADER_SIZE <= dataStart + journal.getCapacity(); i++) {
+                final int len = readInt(raf, offset);
+                if (len == 0)
+                    break;
+                final long timestamp = (i / 50) * 1000L;
+                raf.seek(offset + 8);
+                raf.writeLong(timestamp);
+                timestamps.add(timestamp);
+                offset += (CaptureJournal.RECORD_HEADER_SIZE + len + 7) & ~7;
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                final long index = CaptureJournal.HEADER_SIZE + slot * CaptureJournal.INDEX_SLOT_SIZE;
+                final long recordOffset = readLong(raf, index + 8);
+                if (recordOffset != 0) {
+                    final long timestamp = readLong(raf, recordOffset + 8);
+                    raf.seek(index);
+                    raf.writeLong(timestamp);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        // Seek must find the first of several records having the same timestamp, even in an earlier interval
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            for (long timestamp = 0; timestamp <= timestamps.get(timestamps.size() - 1) + 1000; timestamp += 500)
+                this.checkSeek(reader, timestamps, timestamp);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception {
+        final RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        try {
+            raf.write(new byte[CaptureJournal.HEADER_SIZE]);
+        } finally {
+            raf.close();
+        }
+        try {
+            new CaptureJournalReader(this.file);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        final CaptureJournalReader reader = new CaptureJournalReader(this.newEmptyJournal());
+        try {
+            assertFalse(reader.next());
+            try {
+                reader.getType();
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Verify the reader returns the expected records
+    private void verify(List<Record> records) throws IOException {
+        final CaptureJournalReader reader = new CaptureJournalReader(this.file);
+        try {
+            long previous = 0;
+            for (Record record : records) {
+                assertTrue(reader.next());
+                assertEquals(reader.getType(), record.type);
+                assertTrue(reader.getTimestamp() >= previous);
+                previous = reader.getTimestamp();
+                final ByteBuffer data = reader.getData();
+                assertTrue(data.isReadOnly());
+                final byte[] actual = new byte[data.remaining()];
+                data.get(actual);
+                assertEquals(actual, record.data);
+            }
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Check the index slots directly against the record layout
+    private void verifyIndex(CaptureJournal journal) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try {
+            final int slots = readInt(raf, 24);
+            assertEquals(slots, (journal.getCapacity() + CaptureJournal.INDEX_INTERVAL - 1) / CaptureJournal.INDEX_INTERVAL);
+            final int dataStart = CaptureJournal.HEADER_SIZE + slots * CaptureJournal.INDEX_SLOT_SIZE;
+            int reached = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                final long timestamp = readLong(raf, CaptureJournal.HEADER_SIZE + slot * CaptureJournal.INDEX_SLOT_SIZE);
+                final long offset = readLong(raf, CaptureJournal.HEADER_SIZE + slot * CaptureJournal.INDEX_SLOT_SIZE + 8);
+                if (offset == 0) {
+                    assertTrue(slot * (long)CaptureJournal.INDEX_INTERVAL >= journal.getSize());
+                    continue;
+                }
+                reached++;
+                final long boundary = dataStart + slot * (long)CaptureJournal.INDEX_INTERVAL;
+                final int len = readInt(raf, offset);
+                assertEquals(offset % 8, 0);
+                assertTrue(offset <= boundary);
+                assertTrue(offset + ((CaptureJournal.RECORD_HEADER_SIZE + len + 7) & ~7) > boundary);
+                assertEquals(readLong(raf, offset + 8), timestamp);
+            }
+            assertEquals(reached, (int)((journal.getSize() + CaptureJournal.INDEX_INTERVAL - 1) / CaptureJournal.INDEX_INTERVAL));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void checkSeek(CaptureJournalReader reader, List<Long> timestamps, long timestamp) {
+        int expected = 0;
+        while (expected < timestamps.size() && timestamps.get(expected) < timestamp)
+            expected++;
+        reader.seek(timestamp);
+        if (expected == timestamps.size()) {
+            assertFalse(reader.next());
+            return;
+        }
+        assertTrue(reader.next());
+        assertEquals(reader.getTimestamp(), (long)timestamps.get(expected));
+
+        // Must be the first record with that timestamp, not just one of them
+        int first = expected;
+        int count = 0;
+        while (first + count < timestamps.size() && timestamps.get(first + count).longValue() == timestamps.get(first))
+            count++;
+        int following = 0;
+        while (reader.next() && reader.getTimestamp() == timestamps.get(expected))
+            following++;
+        assertEquals(following, count - 1, "seek(" + timestamp + ") skipped records with equal timestamps");
+    }
+
+    private File newEmptyJournal() throws IOException {
+        new CaptureJournal(this.file, 1024).close();
+        return this.file;
+    }
+
+    private byte[] randomBytes(int len) {
+        final byte[] data = new byte[len];
+        this.random.nextBytes(data);
+        return data;
+    }
+
+    private static int readInt(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        return raf.readInt();
+    }
+
+    private static long readLong(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        return raf.readLong();
+    }
+
+    private static final class Record {
+
+        final int type;
+        final byte[] data;
+
+        Record(int type, byte[] data, int off, int len) {
+            this.type = type;
+            this.data = new byte[len];
+            System.arraycopy(data, off, this.data, 0, len);
+        }
+    }
+}
+
@@ -0,0 +1,113 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.comm.SerialPort;
+
+import org.apache.commons.net.telnet.TelnetClient;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * Compares sending the 12-command configuration burst with one flush ({@link BatchingTelnetClient#sendCommands})
+ * against one flush per command ({@link TelnetClient#sendSubnegotiation}), counting the socket writes made.
+ *
+ * <p>
+ * The connection has {@code TCP_NODELAY} set, so each socket write is one {@code send()} system call and
+ * at least one TCP segment.
+ * </p>
+ */
+public class CommandBatchingBenchmark extends TestSupport {
+
+    private static final int WARMUP = 2000;
+    private static final int BURSTS = 20000;
+
+    @Test(groups = "benchmark")
+    public void benchmarkConfigurationBurst() throws Exception {
+        final TestAccessServer server = new TestAccessServer();
+        final TelnetSerialPort port = new TelnetSerialPort();
+        try {
+            final CommandBatchingTest.CountingSocketFactory socketFactory = new CommandBatchingTest.CountingSocketFactory();
+            final BatchingTelnetClient client = (BatchingTelnetClient)port.getTelnetClient();
+            client.setSocketFactory(socketFactory);
+            port.setSerialPortParams(115200, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+            port.connect(server.getAddress(), server.getPort());
+            client.setTcpNoDelay(true);
+            final TestAccessServer.Connection connection = server.awaitConnection(5, TimeUnit.SECONDS);
+            final List<ComPortCommand> commands = CommandBatchingTest.configurationBurst(port.getSignature(), 115200);
+            final int burstSize = commands.size();
+            connection.awaitCommands(burstSize, 5, TimeUnit.SECONDS);          // the port's own configuration
+            final int[][] messages = CommandBatchingTest.subnegotiations(commands);
+
+            final Burst batched = new Burst() {
+                @Override
+                public void send() throws Exception {
+                    client.sendCommands(commands);
+                }
+            };
+            final Burst unbatched = new Burst() {
+                @Override
+                public void send() throws Exception {
+                    for (int[] message : messages)
+                        client.sendSubnegotiation(message);
+                }
+            };
+            int expected = connection.getCommands().size();
+            expected = this.run(batched, WARMUP, socketFactory, connection, expected, burstSize, null);
+            expected = this.run(unbatched, WARMUP, socketFactory, connection, expected, burstSize, null);
+            final double[] batchedResult = new double[2];
+            final double[] unbatchedResult = new double[2];
+            expected = this.run(batched, BURSTS, socketFactory, connection, expected, burstSize, batchedResult);
+            expected = this.run(unbatched, BURSTS, socketFactory, connection, expected, burstSize, unbatchedResult);
+            this.log.info(String.format("%d-command burst, one flush: %.2f socket writes/burst, %.0f ns/burst",
+              burstSize, batchedResult[0], batchedResult[1]));
+            this.log.info(String.format("%d-command burst, flush per command: %.2f socket writes/burst, %.0f ns/burst",
+              burstSize, unbatchedResult[0], unbatchedResult[1]));
+            assertEquals(batchedResult[0], 1.0, 0.0);
+            assertEquals(unbatchedResult[0], (double)burstSize, 0.0);
+        } finally {
+            port.close();
+            server.close();
+        }
+    }
+
+    // Returns the number of commands the server should have received afterward; fills in writes/burst and ns/burst
+    private int run(Burst burst, int count, CommandBatchingTest.CountingSocketFactory socketFactory,
+      TestAccessServer.Connection connection, int expected, int burstSize, double[] result) throws Exception {
+        final int writes = countWrites(socketFactory.getEvents());
+        final long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+            burst.send();
+        final long nanos = System.nanoTime() - start;
+        expected += count * burstSize;
+        connection.awaitCommands(expected, 30, TimeUnit.SECONDS);
+        if (result != null) {
+            result[0] = (double)(countWrites(socketFactory.getEvents()) - writes) / count;
+            result[1] = (double)nanos / count;
+        }
+        return expected;
+    }
+
+    private static int countWrites(List<byte[]> events) {
+        int count = 0;
+        for (byte[] event : events) {
+            if (event != null)
+                count++;
+        }
+        return count;
+    }
+
+    private interface Burst {
+        void send() throws Exception;
+    }
+}
+
@@ -0,0 +1,315 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.comm.SerialPort;
+import javax.net.SocketFactory;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Verifies that a burst of {@code COM-PORT-OPTION} commands goes out in a single write and flush,
+ * with {@code IAC} bytes in the command payloads doubled.
+ */
+public class CommandBatchingTest extends TestSupport {
+
+    // Baud rate and signature chosen so the configuration burst contains IAC bytes that must be escaped
+    private static final int BAUD_RATE = 0xffff;
+    private static final String SIGNATURE = "jvser \u00ff test";
+
+    private static final int BURST_SIZE = 12;
+
+    @Test
+    public void testTransportSendsCommandListInOneWrite() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<ComPortCommand> commands = configurationBurst(SIGNATURE, BAUD_RATE);
+            assertEquals(commands.size(), BURST_SIZE);
+
+            final CountingTransport transport = new CountingTransport(port);
+            transport.sendCommands(commands);
+            assertEquals(transport.sends.size(), 1, "expected one write for the whole command list");
+            final byte[] payload = transport.sends.get(0);
+            assertEquals(payload, encode(commands));
+            assertTrue(countEscapedIAC(payload) >= 3, "configuration contains no escaped IAC bytes");
+
+            // Single commands get one write each
+            transport.sendCommand(commands.get(2));
+            assertEquals(transport.sends.size(), 2);
+            assertEquals(transport.sends.get(1), encode(commands.subList(2, 3)));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testTelnetClientSendsConfigurationInOneFlush() throws Exception {
+        final TestAccessServer server = new TestAccessServer();
+        final TelnetSerialPort port = new TelnetSerialPort();
+        try {
+            final CountingSocketFactory socketFactory = new CountingSocketFactory();
+            port.getTelnetClient().setSocketFactory(socketFactory);
+            this.configure(port);
+            port.connect(server.getAddress(), server.getPort());
+            final TestAccessServer.Connection connection = server.awaitConnection(5, TimeUnit.SECONDS);
+            final List<int[]> received = connection.awaitCommands(BURST_SIZE, 5, TimeUnit.SECONDS);
+            assertEquals(received.size(), BURST_SIZE);
+
+            // The server decoded the escaped IAC bytes correctly
+            assertEquals(received.get(2), new BaudRateCommand(true, BAUD_RATE).getBytes());
+            assertEquals(received.get(1), new SignatureCommand(true, SIGNATURE).getBytes());
+
+            // Exactly one socket write carried the configuration subnegotiations, and it was flushed immediately.
+            // TelnetClient's reader thread also issues flushes of its own, but these have nothing to write.
+            final List<byte[]> events = socketFactory.awaitFlushed(5, TimeUnit.SECONDS);
+            int burstIndex = -1;
+            for (int i = 0; i < events.size(); i++) {
+                final byte[] event = events.get(i);
+                if (event == null || countSubnegotiations(event) == 0)
+                    continue;
+                assertEquals(burstIndex, -1, "configuration was split across more than one write");
+                burstIndex = i;
+            }
+            assertTrue(burstIndex != -1, "configuration was never written");
+            final byte[] burst = events.get(burstIndex);
+            assertEquals(countSubnegotiations(burst), BURST_SIZE);
+            assertEquals(slice(burst, indexOfSubnegotiation(burst), burst.length), encode(received));
+            assertTrue(burstIndex + 1 < events.size() && events.get(burstIndex + 1) == null, "write was not flushed");
+        } finally {
+            port.close();
+            server.close();
+        }
+    }
+
+    private void configure(TelnetSerialPort port) throws Exception {
+        port.setSignature(SIGNATURE);
+        port.setSerialPortParams(BAUD_RATE, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+    }
+
+    // The same commands that startSubnegotiation() sends to the access server
+    static List<ComPortCommand> configurationBurst(String signature, int baudRate) {
+        return Arrays.<ComPortCommand>asList(
+          new SignatureCommand(true),
+          new SignatureCommand(true, signature),
+          new BaudRateCommand(true, baudRate),
+          new DataSizeCommand(true, RFC2217.DATASIZE_8),
+          new ParityCommand(true, RFC2217.PARITY_NONE),
+          new StopSizeCommand(true, RFC2217.STOPSIZE_1),
+          new LineStateMaskCommand(true, 0),
+          new ModemStateMaskCommand(true, RFC2217.MODEMSTATE_CARRIER_DETECT | RFC2217.MODEMSTATE_RING_INDICATOR
+            | RFC2217.MODEMSTATE_DSR | RFC2217.MODEMSTATE_CTS),
+          new ControlCommand(true, RFC2217.CONTROL_INBOUND_FLOW_NONE),
+          new ControlCommand(true, RFC2217.CONTROL_OUTBOUND_FLOW_NONE),
+          new ControlCommand(true, RFC2217.CONTROL_DTR_OFF),
+          new ControlCommand(true, RFC2217.CONTROL_RTS_OFF));
+    }
+
+    static int[][] subnegotiations(List<ComPortCommand> commands) {
+        final int[][] subnegotiations = new int[commands.size()][];
+        for (int i = 0; i < subnegotiations.length; i++)
+            subnegotiations[i] = commands.get(i).getBytes();
+        return subnegotiations;
+    }
+
+    // Independent encoding of the commands as telnet subnegotiations
+    static byte[] encode(List<? extends Object> commands) {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (Object command : commands) {
+            final int[] bytes = command instanceof ComPortCommand ? ((ComPortCommand)command).getBytes() : (int[])command;
+            buf.write(TelnetCodec.IAC);
+            buf.write(TelnetCodec.SB);
+            for (int b : bytes) {
+                buf.write(b);
+                if (b == TelnetCodec.IAC)
+                    buf.write(b);
+            }
+            buf.write(TelnetCodec.IAC);
+            buf.write(TelnetCodec.SE);
+        }
+        return buf.toByteArray();
+    }
+
+    // Count the IAC SB COM-PORT-OPTION sequences
+    static int countSubnegotiations(byte[] data) {
+        int count = 0;
+        for (int i = 0; i + 2 < data.length; i++) {
+            if (isSubnegotiation(data, i))
+                count++;
+        }
+        return count;
+    }
+
+    private static int indexOfSubnegotiation(byte[] data) {
+        for (int i = 0; i + 2 < data.length; i++) {
+            if (isSubnegotiation(data, i))
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean isSubnegotiation(byte[] data, int i) {
+        return (data[i] & 0xff) == TelnetCodec.IAC && (data[i + 1] & 0xff) == TelnetCodec.SB
+          && (data[i + 2] & 0xff) == RFC2217.COM_PORT_OPTION;
+    }
+
+    private static int countEscapedIAC(byte[] data) {
+        int count = 0;
+        for (int i = 0; i + 1 < data.length; i++) {
+            if ((data[i] & 0xff) == TelnetCodec.IAC && (data[i + 1] & 0xff) == TelnetCodec.IAC) {
+                count++;
+                i++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] slice(byte[] data, int from, int to) {
+        final byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+
+    // Transport that records what would have been sent
+    static class CountingTransport extends AbstractTelnetTransport {
+
+        final List<byte[]> sends = new ArrayList<byte[]>();
+
+        CountingTransport(TelnetSerialPort port) {
+            super(port, "VT100");
+        }
+
+        @Override
+        public void connect(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void send(ByteBuffer buf) {
+            final byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            this.sends.add(data);
+        }
+
+        @Override
+        protected void closeConnection(IOException cause) {
+        }
+
+        @Override
+        protected void inputDrained() {
+        }
+
+        @Override
+        protected void resetConnection() {
+        }
+    }
+
+    // Socket factory whose sockets record each write (as a byte[]) and each flush (as null)
+    static class CountingSocketFactory extends SocketFactory {
+
+        private final List<byte[]> events = new ArrayList<byte[]>();
+
+        List<byte[]> getEvents() {
+            synchronized (this.events) {
+                return new ArrayList<byte[]>(this.events);
+            }
+        }
+
+        // The peer can receive the data before the flush that sent it is recorded, so wait for that flush
+        List<byte[]> awaitFlushed(long timeout, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this.events) {
+                long remaining;
+                while (!this.events.isEmpty() && this.events.get(this.events.size() - 1) != null
+                  && (remaining = deadline - System.nanoTime()) > 0)
+                    TimeUnit.NANOSECONDS.timedWait(this.events, remaining);
+                return new ArrayList<byte[]>(this.events);
+            }
+        }
+
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+
+                private OutputStream output;
+
+                @Override
+                public synchronized OutputStream getOutputStream() throws IOException {
+                    if (this.output == null)
+                        this.output = new CountingOutputStream(super.getOutputStream());
+                    return this.output;
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        private class CountingOutputStream extends FilterOutputStream {
+
+            CountingOutputStream(OutputStream output) {
+                super(output);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                this.write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                synchronized (CountingSocketFactory.this.events) {
+                    CountingSocketFactory.this.events.add(slice(buf, off, off + len));
+                }
+                this.out.write(buf, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                synchronized (CountingSocketFactory.this.events) {
+                    CountingSocketFactory.this.events.add(null);
+                    CountingSocketFactory.this.events.notifyAll();
+                }
+                this.out.flush();
+            }
+        }
+    }
+}
+
@@ -0,0 +1,142 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Measures the {@link SerialPortEvent#DATA_AVAILABLE} event rate seen by an event-driven reader while the access server
+ * streams data in small chunks, with and without coalescing. The reader does a fixed amount of work per event,
+ * like a real application would, and counts the events that found nothing left to read.
+ */
+public class DataAvailableCoalescingBenchmark extends TestSupport {
+
+    private static final int CHUNK_SIZE = 64;
+    private static final int TOTAL_BYTES = 8 * 1024 * 1024;
+    private static final long TIMEOUT = 60;                         // seconds
+    private static final long WORK_NANOS = 20000;                   // application overhead per event
+
+    @DataProvider(name = "transports")
+    public Object[][] transports() {
+        return new Object[][] { { "socket" }, { "nio" } };
+    }
+
+    @Test(groups = "benchmark", dataProvider = "transports")
+    public void benchmarkEventRate(String transport) throws Exception {
+        final TestAccessServer server = new TestAccessServer();
+        final TelnetEventLoopGroup eventLoopGroup = new TelnetEventLoopGroup(1);
+        try {
+            this.run(server, eventLoopGroup, transport, "uncoalesced", 0, 0);
+            this.run(server, eventLoopGroup, transport, "coalesced", 1, 0);
+            this.run(server, eventLoopGroup, transport, "coalesced, minBytes=1024, maxDelay=1ms", 1024, 1);
+        } finally {
+            eventLoopGroup.shutdown();
+            server.close();
+        }
+    }
+
+    // A minBytes of zero means no coalescing
+    private void run(TestAccessServer server, TelnetEventLoopGroup eventLoopGroup, String transport, String label,
+      int minBytes, long maxDelay) throws Exception {
+        final TelnetSerialPort port = transport.equals("nio") ?
+          new TelnetSerialPort(eventLoopGroup) : new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            port.connect(server.getAddress(), server.getPort());
+            final TestAccessServer.Connection connection = server.awaitConnection(5, TimeUnit.SECONDS);
+            assertTrue(port.awaitEstablished(5, TimeUnit.SECONDS));
+            if (minBytes > 0)
+                port.enableDataAvailableCoalescing(minBytes, maxDelay, TimeUnit.MILLISECONDS);
+
+            // Event-driven reader: on each event, read until nothing is available
+            final InputStream input = port.getInputStream();
+            final Semaphore permits = new Semaphore(0);
+            final AtomicInteger events = new AtomicInteger();
+            final AtomicInteger emptyEvents = new AtomicInteger();
+            final AtomicLong received = new AtomicLong();
+            port.addEventListener(new SerialPortEventListener() {
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE) {
+                        events.incrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+            port.notifyOnDataAvailable(true);
+            final Thread reader = new Thread("event-driven reader") {
+                @Override
+                public void run() {
+                    final byte[] buf = new byte[8192];
+                    try {
+                        while (true) {
+                            permits.acquire();
+                            DataAvailableCoalescingBenchmark.work();
+                            int available = input.available();
+                            if (available == 0)
+                                emptyEvents.incrementAndGet();
+                            while (available > 0) {
+                                received.addAndGet(input.read(buf, 0, Math.min(available, buf.length)));
+                                available = input.available();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // done
+                    } catch (IOException e) {
+                        DataAvailableCoalescingBenchmark.this.log.error("reader failed", e);
+                    }
+                }
+            };
+            reader.start();
+
+            // Stream data
+            final byte[] chunk = new byte[CHUNK_SIZE];
+            this.random.nextBytes(chunk);
+            final long start = System.nanoTime();
+            for (int sent = 0; sent < TOTAL_BYTES; sent += CHUNK_SIZE)
+                connection.send(chunk);
+            final long deadline = start + TimeUnit.SECONDS.toNanos(TIMEOUT);
+            while (received.get() < TOTAL_BYTES && System.nanoTime() < deadline)
+                Thread.sleep(1);
+            final long nanos = System.nanoTime() - start;
+            reader.interrupt();
+            reader.join();
+            assertEquals(received.get(), (long)TOTAL_BYTES, "reader stalled");
+
+            // Report
+            final double seconds = nanos / 1e9;
+            this.log.info(String.format("%s %s: %d events (%d found no data), %.0f events/sec, %.0f bytes/event, %.1f MB/s",
+              transport, label, events.get(), emptyEvents.get(), events.get() / seconds, (double)TOTAL_BYTES / events.get(),
+              TOTAL_BYTES / seconds / (1024 * 1024)));
+        } finally {
+            port.close();
+        }
+    }
+
+    // Stand-in for the application's own per-event overhead
+    private static void work() {
+        final long deadline = System.nanoTime() + WORK_NANOS;
+        while (System.nanoTime() < deadline)
+            Thread.yield();
+    }
+}
+
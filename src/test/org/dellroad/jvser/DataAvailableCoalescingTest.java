@@ -0,0 +1,371 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for edge-triggered {@link SerialPortEvent#DATA_AVAILABLE} notification.
+ */
+public class DataAvailableCoalescingTest extends TestSupport {
+
+    private static final long SETTLE = 100;                         // time to let stray events show up (ms)
+    private static final long TIMEOUT = 5000;                       // ms
+
+    private TestAccessServer server;
+    private TelnetEventLoopGroup eventLoopGroup;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        this.server = new TestAccessServer();
+        this.eventLoopGroup = new TelnetEventLoopGroup(1);
+    }
+
+    @AfterClass
+    public void stopServer() {
+        this.eventLoopGroup.shutdown();
+        this.server.close();
+    }
+
+    @DataProvider(name = "transports")
+    public Object[][] transports() {
+        return new Object[][] { { "socket" }, { "nio" }, { "client" } };
+    }
+
+    @Test(dataProvider = "transports")
+    public void testOneEventPerUndrainedBurst(String transport) throws Exception {
+        final Fixture fixture = this.open(transport);
+        try {
+            fixture.port.enableDataAvailableCoalescing();
+            for (int i = 0; i < 10; i++)
+                fixture.sendAndAwait(8);
+            fixture.awaitEvents(1);
+            Thread.sleep(SETTLE);
+            assertEquals(fixture.events.get(), 1, "separate arrivals were not coalesced");
+
+            // Without coalescing, every arrival generates an event (a TelnetClient only reports arrivals in an empty buffer)
+            fixture.port.disableDataAvailableCoalescing();
+            if (!transport.equals("client")) {
+                for (int i = 0; i < 5; i++)
+                    fixture.sendAndAwait(8);
+                fixture.awaitEvents(6);
+            }
+            fixture.readAll();
+        } finally {
+            fixture.close();
+        }
+    }
+
+    @Test(dataProvider = "transports")
+    public void testRefireAfterDrain(String transport) throws Exception {
+        final Fixture fixture = this.open(transport);
+        try {
+            fixture.port.enableDataAvailableCoalescing();
+            fixture.sendAndAwait(16);
+            fixture.awaitEvents(1);
+
+            // A partial drain does not re-arm the event
+            fixture.read(8);
+            fixture.sendAndAwait(16);
+            Thread.sleep(SETTLE);
+            assertEquals(fixture.events.get(), 1, "event re-fired before the buffer was drained");
+
+            // Draining the buffer re-arms it, but there's nothing to report until more data arrives
+            fixture.read(24);
+            assertEquals(fixture.input.available(), 0);
+            Thread.sleep(SETTLE);
+            assertEquals(fixture.events.get(), 1);
+            fixture.sendAndAwait(4);
+            fixture.awaitEvents(2);
+            Thread.sleep(SETTLE);
+            assertEquals(fixture.events.get(), 2);
+            fixture.readAll();
+        } finally {
+            fixture.close();
+        }
+    }
+
+    @Test(dataProvider = "transports")
+    public void testTriggersDoNotLoseFinalEvent(String transport) throws Exception {
+        final Fixture fixture = this.open(transport);
+        try {
+
+            // Too few bytes: held back, then delivered by the max delay timer
+            // (the timer starts when the data arrives, so it can only have expired if we were slow to see the data)
+            fixture.port.enableDataAvailableCoalescing(100, 200, TimeUnit.MILLISECONDS);
+            final long start = System.nanoTime();
+            fixture.sendAndAwait(10);
+            final int events = fixture.events.get();
+            if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200))
+                assertEquals(events, 0, "event sent before minBytes or maxDelay");
+            fixture.awaitEvents(1);
+            fixture.readAll();
+
+            // No max delay: delivered once enough bytes arrive, or right away if we can't tell how many have arrived
+            fixture.port.enableDataAvailableCoalescing(100, 0, TimeUnit.MILLISECONDS);
+            fixture.sendAndAwait(60);
+            if (!transport.equals("client")) {
+                Thread.sleep(SETTLE);
+                assertEquals(fixture.events.get(), 0, "event sent before minBytes");
+                fixture.sendAndAwait(60);
+            }
+            fixture.awaitEvents(1);
+            fixture.readAll();
+
+            // An event-driven reader must see all of the data, whatever the timing of arrivals and drains
+            this.checkEventDrivenReader(fixture, 1, 0);
+            this.checkEventDrivenReader(fixture, 64, 20);
+        } finally {
+            fixture.close();
+        }
+    }
+
+    @Test
+    public void testRearmRace() throws Exception {
+
+        // Use a scripted transport, so that data can "arrive" at exactly the wrong moment
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        final ScriptedTransport transport = new ScriptedTransport(port);
+        final Field field = TelnetSerialPort.class.getDeclaredField("transport");
+        field.setAccessible(true);
+        field.set(port, transport);
+        final Field coalescerField = TelnetSerialPort.class.getDeclaredField("dataAvailableCoalescer");
+        coalescerField.setAccessible(true);
+        final Object coalescer = coalescerField.get(port);
+        final Field coalescerTransportField = coalescer.getClass().getDeclaredField("transport");
+        coalescerTransportField.setAccessible(true);
+        coalescerTransportField.set(coalescer, transport);
+        final AtomicInteger events = new AtomicInteger();
+        port.addEventListener(new SerialPortEventListener() {
+            @Override
+            public void serialEvent(SerialPortEvent event) {
+                if (event.getEventType() == SerialPortEvent.DATA_AVAILABLE)
+                    events.incrementAndGet();
+            }
+        });
+        port.notifyOnDataAvailable(true);
+        port.enableDataAvailableCoalescing();
+        try {
+            transport.available = 10;
+            port.dataAvailable();
+            assertEquals(events.get(), 1);
+
+            // The application drains the buffer, but just after it sees it empty, more data arrives. That arrival
+            // is not reported because the event isn't re-armed yet, so re-arming must notice the data itself.
+            transport.available = 0;
+            transport.onAvailable = new Runnable() {
+                @Override
+                public void run() {
+                    transport.available = 5;
+                    port.dataAvailable();
+                }
+            };
+            port.inputConsumed();
+            assertEquals(events.get(), 2, "data that arrived while re-arming was not reported");
+
+            // Further arrivals before the next drain are coalesced
+            transport.available = 12;
+            port.dataAvailable();
+            assertEquals(events.get(), 2);
+        } finally {
+            port.close();
+        }
+    }
+
+    private void checkEventDrivenReader(final Fixture fixture, final int minBytes, final long maxDelay) throws Exception {
+        fixture.port.enableDataAvailableCoalescing(minBytes, maxDelay, TimeUnit.MILLISECONDS);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicInteger receivedCount = new AtomicInteger();
+        final Thread reader = new Thread("event-driven reader") {
+            @Override
+            public void run() {
+                final byte[] buf = new byte[1024];
+                try {
+                    while (true) {
+                        fixture.permits.acquire();
+                        int available;
+                        while ((available = fixture.input.available()) > 0) {
+                            final int r = fixture.input.read(buf, 0, Math.min(available, buf.length));
+                            received.write(buf, 0, r);
+                            receivedCount.addAndGet(r);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                } catch (IOException e) {
+                    DataAvailableCoalescingTest.this.log.error("reader failed", e);
+                }
+            }
+        };
+        fixture.permits.drainPermits();
+        reader.start();
+        try {
+            final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT * 2);
+            for (int i = 0; i < 300; i++) {
+                final byte[] data = new byte[1 + this.random.nextInt(100)];
+                this.random.nextBytes(data);
+                fixture.connection.send(data);
+                sent.write(data);
+                if (this.random.nextInt(8) == 0)
+                    Thread.sleep(this.random.nextInt(3));
+                while (sent.size() - receivedCount.get() > 1024) {          // don't overrun the TelnetClient's buffer
+                    assertTrue(System.nanoTime() < deadline, "event-driven reader stalled after " + receivedCount.get()
+                      + " bytes (minBytes=" + minBytes + ", maxDelay=" + maxDelay + ")");
+                    Thread.sleep(1);
+                }
+            }
+
+            // The last few bytes are fewer than minBytes, so they depend on the timer (or the initial edge)
+            final byte[] last = new byte[] { 1, 2, 3 };
+            fixture.connection.send(last);
+            sent.write(last);
+            while (receivedCount.get() < sent.size() && System.nanoTime() < deadline)
+                Thread.sleep(5);
+            assertEquals(receivedCount.get(), sent.size(),
+              "event-driven reader stalled (minBytes=" + minBytes + ", maxDelay=" + maxDelay + ")");
+            reader.interrupt();
+            reader.join();
+            assertEquals(received.toByteArray(), sent.toByteArray());
+        } finally {
+            reader.interrupt();
+            reader.join();
+        }
+    }
+
+    private Fixture open(String transport) throws Exception {
+        final TelnetSerialPort port;
+        if (transport.equals("socket"))
+            port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        else if (transport.equals("nio"))
+            port = new TelnetSerialPort(this.eventLoopGroup);
+        else
+            port = new TelnetSerialPort();
+        port.connect(this.server.getAddress(), this.server.getPort());
+        final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+        return new Fixture(port, connection);
+    }
+
+    // Transport reporting a fixed number of available bytes, optionally running an action just after reporting it
+    private static class ScriptedTransport extends CommandBatchingTest.CountingTransport {
+
+        volatile int available;
+        volatile Runnable onAvailable;
+
+        ScriptedTransport(TelnetSerialPort port) {
+            super(port);
+        }
+
+        @Override
+        public int available() {
+            final int result = this.available;
+            final Runnable action = this.onAvailable;
+            this.onAvailable = null;
+            if (action != null)
+                action.run();
+            return result;
+        }
+
+        @Override
+        public InputRing getInputRing() {
+            return null;
+        }
+    }
+
+    private class Fixture {
+
+        final TelnetSerialPort port;
+        final TestAccessServer.Connection connection;
+        final InputStream input;
+        final AtomicInteger events = new AtomicInteger();
+        final Semaphore permits = new Semaphore(0);
+
+        private int expected;                                       // number of bytes sent but not yet read
+
+        Fixture(TelnetSerialPort port, TestAccessServer.Connection connection) throws Exception {
+            this.port = port;
+            this.connection = connection;
+            this.input = port.getInputStream();
+            port.addEventListener(new SerialPortEventListener() {
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE)
+                        return;
+                    Fixture.this.events.incrementAndGet();
+                    Fixture.this.permits.release();
+                }
+            });
+            port.notifyOnDataAvailable(true);
+        }
+
+        // Send random bytes and wait until they have all arrived, so each call is a separate arrival at the port
+        void sendAndAwait(int length) throws Exception {
+            final byte[] data = new byte[length];
+            DataAvailableCoalescingTest.this.random.nextBytes(data);
+            this.connection.send(data);
+            this.expected += length;
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (this.input.available() < this.expected) {
+                assertTrue(System.nanoTime() < deadline, "data not received");
+                Thread.sleep(1);
+            }
+        }
+
+        void awaitEvents(int count) throws Exception {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (this.events.get() < count) {
+                assertTrue(System.nanoTime() < deadline, "expected " + count + " events but got " + this.events.get());
+                Thread.sleep(1);
+            }
+            assertEquals(this.events.get(), count);
+        }
+
+        void read(int length) throws IOException {
+            final byte[] buf = new byte[length];
+            int total = 0;
+            while (total < length) {
+                final int r = this.input.read(buf, total, length - total);
+                assertTrue(r > 0);
+                total += r;
+            }
+            this.expected -= length;
+        }
+
+        // Read all remaining data and reset the event count
+        void readAll() throws IOException {
+            this.read(this.expected);
+            assertEquals(this.input.available(), 0);
+            this.events.set(0);
+            this.permits.drainPermits();
+        }
+
+        void close() {
+            this.port.close();
+        }
+    }
+}
+
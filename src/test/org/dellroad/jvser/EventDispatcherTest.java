@@ -0,0 +1,224 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.comm.SerialPortEvent;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests delivery of events via an {@linkplain TelnetSerialPort#setEventExecutor event executor}, including
+ * the {@linkplain TelnetSerialPort#setEventQueueCapacity queue overflow policies}.
+ */
+public class EventDispatcherTest extends TestSupport {
+
+    private static final long TIMEOUT = 5000;                       // milliseconds
+    private static final int NUM_EVENTS = 10000;
+
+    // Events are delivered in order and one at a time, even by an executor with many threads
+    @Test
+    public void testOrderedDelivery() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final AtomicInteger active = new AtomicInteger();
+            final AtomicInteger overlaps = new AtomicInteger();
+            final AtomicInteger outOfOrder = new AtomicInteger();
+            final AtomicInteger delivered = new AtomicInteger();
+            final Thread caller = Thread.currentThread();
+            port.setEventExecutor(executor);
+            port.setEventQueueCapacity(NUM_EVENTS, EventOverflowPolicy.DROP_NEWEST);
+            port.addEventListener(new TelnetSerialEventListener() {
+                private long lastSeq;
+                @Override
+                public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+                  long nanoTime, long seq) {
+                    if (active.incrementAndGet() != 1 || Thread.currentThread() == caller)
+                        overlaps.incrementAndGet();
+                    if (seq != this.lastSeq + 1 || newValue != ((seq & 1) != 0))
+                        outOfOrder.incrementAndGet();
+                    this.lastSeq = seq;
+                    delivered.incrementAndGet();
+                    active.decrementAndGet();
+                }
+            }, TelnetSerialPort.ALL_EVENTS);
+            for (int i = 1; i <= NUM_EVENTS; i++)
+                port.sendEvent(SerialPortEvent.CTS, (i & 1) != 0);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (delivered.get() < NUM_EVENTS) {
+                assertTrue(System.nanoTime() < deadline, "only " + delivered.get() + " events delivered");
+                Thread.sleep(1);
+            }
+            assertEquals(overlaps.get(), 0);
+            assertEquals(outOfOrder.get(), 0);
+            assertEquals(port.getDroppedEventCount(), 0);
+        } finally {
+            port.close();
+            executor.shutdown();
+        }
+    }
+
+    // Without an executor, events are delivered directly by the thread that generates them
+    @Test
+    public void testDirectDelivery() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<Long> seqs = this.record(port);
+            port.sendEvent(SerialPortEvent.DSR, true);
+            port.sendEvent(SerialPortEvent.DSR, false);
+            assertEquals(seqs, this.range(1, 2));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<Long> seqs = this.record(port);
+            port.setEventExecutor(executor);
+            port.setEventQueueCapacity(8, EventOverflowPolicy.DROP_OLDEST);
+            this.send(port, 6);
+
+            // Shrinking the queue drops the oldest queued events
+            port.setEventQueueCapacity(4, EventOverflowPolicy.DROP_OLDEST);
+            assertEquals(port.getDroppedEventCount(), 2);
+            this.send(port, 4);
+            assertEquals(port.getDroppedEventCount(), 6);
+            executor.runAll();
+            assertEquals(seqs, this.range(7, 10));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<Long> seqs = this.record(port);
+            port.setEventExecutor(executor);
+            port.setEventQueueCapacity(4, EventOverflowPolicy.DROP_NEWEST);
+            this.send(port, 10);
+            assertEquals(port.getDroppedEventCount(), 6);
+            executor.runAll();
+            assertEquals(seqs, this.range(1, 4));
+
+            // Once there is room again, new events are queued
+            this.send(port, 1);
+            executor.runAll();
+            assertEquals(seqs.get(seqs.size() - 1), Long.valueOf(11));
+        } finally {
+            port.close();
+        }
+    }
+
+    // A drain task yields to other ports after delivering a batch, resubmitting itself for the rest
+    @Test
+    public void testBatching() throws Exception {
+        final ManualExecutor executor = new ManualExecutor();
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<Long> seqs = this.record(port);
+            port.setEventExecutor(executor);
+            this.send(port, EventDispatcher.MAX_BATCH + 10);
+            assertEquals(executor.tasks.size(), 1);
+            executor.runNext();
+            assertEquals(seqs, this.range(1, EventDispatcher.MAX_BATCH));
+            assertEquals(executor.tasks.size(), 1);
+            executor.runNext();
+            assertEquals(seqs, this.range(1, EventDispatcher.MAX_BATCH + 10));
+            assertTrue(executor.tasks.isEmpty());
+        } finally {
+            port.close();
+        }
+    }
+
+    // Events are dropped and counted, not thrown at the caller, if the executor rejects the drain task
+    @Test
+    public void testRejected() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<Long> seqs = this.record(port);
+            port.setEventExecutor(new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    throw new RejectedExecutionException();
+                }
+            });
+            this.send(port, 3);
+            assertTrue(seqs.isEmpty());
+            assertEquals(port.getDroppedEventCount(), 3);
+            assertFalse(port.getEventExecutor() == null);
+        } finally {
+            port.close();
+        }
+    }
+
+    // Record the sequence numbers of delivered events
+    private List<Long> record(TelnetSerialPort port) {
+        final List<Long> seqs = new ArrayList<Long>();
+        port.addEventListener(new TelnetSerialEventListener() {
+            @Override
+            public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+              long nanoTime, long seq) {
+                seqs.add(seq);
+            }
+        }, TelnetSerialPort.ALL_EVENTS);
+        return seqs;
+    }
+
+    private void send(TelnetSerialPort port, int count) {
+        for (int i = 0; i < count; i++)
+            port.sendEvent(SerialPortEvent.RI, true);
+    }
+
+    private List<Long> range(long first, long last) {
+        final List<Long> list = new ArrayList<Long>();
+        for (long seq = first; seq <= last; seq++)
+            list.add(seq);
+        return list;
+    }
+
+    // Executor whose tasks are run by the test, one at a time
+    private static class ManualExecutor implements Executor {
+
+        final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable task) {
+            this.tasks.add(task);
+        }
+
+        void runNext() {
+            this.tasks.removeFirst().run();
+        }
+
+        void runAll() {
+            while (!this.tasks.isEmpty())
+                this.runNext();
+        }
+    }
+}
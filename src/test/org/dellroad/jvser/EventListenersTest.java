@@ -0,0 +1,223 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TooManyListenersException;
+import java.util.concurrent.Executors;
+
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests registering multiple event listeners with a {@link TelnetSerialPort}, each with its own event mask.
+ */
+public class EventListenersTest extends TestSupport {
+
+    // Each listener sees only the event types in its mask, and listeners are notified in registration order
+    @Test
+    public void testMasks() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<String> log = new ArrayList<String>();
+            port.addEventListener(new Recorder("cts", log), TelnetSerialPort.eventMask(SerialPortEvent.CTS));
+            port.addEventListener(new Recorder("modem", log),
+              TelnetSerialPort.eventMask(SerialPortEvent.CTS, SerialPortEvent.DSR, SerialPortEvent.CD, SerialPortEvent.RI));
+            port.addEventListener(new Recorder("all", log), TelnetSerialPort.ALL_EVENTS);
+            port.sendEvent(SerialPortEvent.CTS, true);
+            port.sendEvent(SerialPortEvent.DSR, true);
+            port.sendEvent(SerialPortEvent.DATA_AVAILABLE);
+            assertEquals(log, Arrays.asList(
+              "cts:" + SerialPortEvent.CTS, "modem:" + SerialPortEvent.CTS, "all:" + SerialPortEvent.CTS,
+              "modem:" + SerialPortEvent.DSR, "all:" + SerialPortEvent.DSR,
+              "all:" + SerialPortEvent.DATA_AVAILABLE));
+        } finally {
+            port.close();
+        }
+    }
+
+    // Registering a listener again replaces its mask, without moving it in the notification order
+    @Test
+    public void testReplaceAndRemove() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<String> log = new ArrayList<String>();
+            final Recorder first = new Recorder("first", log);
+            final Recorder second = new Recorder("second", log);
+            port.addEventListener(first, TelnetSerialPort.eventMask(SerialPortEvent.CTS));
+            port.addEventListener(second, TelnetSerialPort.ALL_EVENTS);
+            port.addEventListener(first, TelnetSerialPort.eventMask(SerialPortEvent.DSR));
+            port.sendEvent(SerialPortEvent.CTS, true);
+            port.sendEvent(SerialPortEvent.DSR, true);
+            assertEquals(log, Arrays.asList(
+              "second:" + SerialPortEvent.CTS, "first:" + SerialPortEvent.DSR, "second:" + SerialPortEvent.DSR));
+
+            log.clear();
+            assertTrue(port.removeEventListener(second));
+            assertFalse(port.removeEventListener(second));
+            port.sendEvent(SerialPortEvent.CTS, true);
+            port.sendEvent(SerialPortEvent.DSR, true);
+            assertEquals(log, Arrays.asList("first:" + SerialPortEvent.DSR));
+        } finally {
+            port.close();
+        }
+    }
+
+    // The javax.comm listener receives all event types, is limited to one, and is independent of the others
+    @Test
+    public void testPrimaryListener() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<SerialPortEvent> events = new ArrayList<SerialPortEvent>();
+            final SerialPortEventListener primary = new SerialPortEventListener() {
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                    events.add(event);
+                }
+            };
+            final List<String> log = new ArrayList<String>();
+            final Recorder other = new Recorder("other", log);
+            port.addEventListener(other, TelnetSerialPort.eventMask(SerialPortEvent.RI));
+            port.addEventListener(primary);
+            try {
+                port.addEventListener(primary);
+                fail("expected TooManyListenersException");
+            } catch (TooManyListenersException e) {
+                // expected
+            }
+
+            // The same listener may also be registered with a mask, separately from its primary registration
+            port.addEventListener(primary, TelnetSerialPort.eventMask(SerialPortEvent.CD));
+            port.sendEvent(SerialPortEvent.CD, false);
+            port.sendEvent(SerialPortEvent.RI, true);
+            assertEquals(events.size(), 3);
+            for (SerialPortEvent event : events)
+                assertSame(event.getSource(), port);
+            assertEquals(events.get(0).getEventType(), SerialPortEvent.CD);
+            assertTrue(events.get(0).getOldValue());
+            assertFalse(events.get(0).getNewValue());
+            assertEquals(events.get(1).getEventType(), SerialPortEvent.CD);
+            assertEquals(events.get(2).getEventType(), SerialPortEvent.RI);
+            assertEquals(log, Arrays.asList("other:" + SerialPortEvent.RI));
+
+            // Removing the primary listener leaves its masked registration and the other listeners alone
+            events.clear();
+            log.clear();
+            port.removeEventListener();
+            port.addEventListener(primary);
+            port.removeEventListener();
+            port.sendEvent(SerialPortEvent.CD, true);
+            port.sendEvent(SerialPortEvent.RI, true);
+            assertEquals(events.size(), 1);
+            assertEquals(events.get(0).getEventType(), SerialPortEvent.CD);
+            assertEquals(log, Arrays.asList("other:" + SerialPortEvent.RI));
+
+            // Removing all listeners includes the primary listener
+            port.addEventListener(primary);
+            port.removeAllEventListeners();
+            events.clear();
+            log.clear();
+            port.sendEvent(SerialPortEvent.CD, true);
+            port.sendEvent(SerialPortEvent.RI, true);
+            assertTrue(events.isEmpty());
+            assertTrue(log.isEmpty());
+            port.addEventListener(primary);
+        } finally {
+            port.close();
+        }
+    }
+
+    // An exception thrown by one listener does not prevent delivery to the others
+    @Test
+    public void testListenerException() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<String> log = new ArrayList<String>();
+            port.addEventListener(new TelnetSerialEventListener() {
+                @Override
+                public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+                  long nanoTime, long seq) {
+                    throw new RuntimeException("expected exception from test listener");
+                }
+            }, TelnetSerialPort.ALL_EVENTS);
+            port.addEventListener(new Recorder("after", log), TelnetSerialPort.ALL_EVENTS);
+            port.sendEvent(SerialPortEvent.BI);
+            assertEquals(log, Arrays.asList("after:" + SerialPortEvent.BI));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testInvalidMasks() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            assertEquals(TelnetSerialPort.eventMask(), 0);
+            assertEquals(TelnetSerialPort.eventMask(SerialPortEvent.DATA_AVAILABLE, SerialPortEvent.BI),
+              (1 << SerialPortEvent.DATA_AVAILABLE) | (1 << SerialPortEvent.BI));
+            for (int type : new int[] { -1, 0, 11, 32 }) {
+                try {
+                    TelnetSerialPort.eventMask(type);
+                    fail("expected IllegalArgumentException for event type " + type);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            for (int mask : new int[] { 1, 1 << 11, -1 }) {
+                try {
+                    port.addEventListener(new Recorder("bad", new ArrayList<String>()), mask);
+                    fail("expected IllegalArgumentException for event mask " + mask);
+                } catch (IllegalArgumentException e) {
+                    // expected
+                }
+            }
+            try {
+                port.addEventListener((TelnetSerialEventListener)null, TelnetSerialPort.ALL_EVENTS);
+                fail("expected IllegalArgumentException for null listener");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            port.close();
+        }
+        try {
+            port.addEventListener(new Recorder("closed", new ArrayList<String>()), TelnetSerialPort.ALL_EVENTS);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // Records "name:type" for each event received
+    private static class Recorder implements TelnetSerialEventListener {
+
+        private final String name;
+        private final List<String> log;
+
+        Recorder(String name, List<String> log) {
+            this.name = name;
+            this.log = log;
+        }
+
+        @Override
+        public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+          long nanoTime, long seq) {
+            this.log.add(this.name + ":" + type);
+        }
+    }
+}
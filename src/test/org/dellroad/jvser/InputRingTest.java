@@ -0,0 +1,551 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class InputRingTest extends TestSupport {
+
+    private static final long SHORT_DELAY = 100;                    // milliseconds; long enough to be sure we blocked
+
+    private ExecutorService executor;
+
+    @BeforeClass
+    public void createExecutor() {
+        this.executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterClass
+    public void shutdownExecutor() {
+        this.executor.shutdownNow();
+    }
+
+    // Buffering
+
+    @Test
+    public void testCapacity() {
+        final InputRing ring = new InputRing();
+        assertEquals(ring.getCapacity(), InputRing.DEFAULT_CAPACITY);
+        ring.setCapacity(1000);
+        assertEquals(ring.getCapacity(), 1024);
+        ring.setCapacity(16);
+        assertEquals(ring.getCapacity(), 16);
+        ring.start();
+        try {
+            ring.setCapacity(32);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            new InputRing().setCapacity(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWraparound() throws Exception {
+        final InputRing ring = this.newRing(16);
+        final ByteBuffer dst = ByteBuffer.allocate(16);
+        int next = 0;
+        int expected = 0;
+        for (int i = 0; i < 1000; i++) {
+
+            // Write a random amount, alternating single bytes and bulk transfers, which often straddles the end
+            final int len = 1 + this.random.nextInt(ring.room());
+            if (i % 2 == 0) {
+                for (int j = 0; j < len; j++)
+                    ring.put(next++);
+            } else {
+                final ByteBuffer src = ByteBuffer.allocate(len + 3);
+                src.put((byte)-1);
+                for (int j = 0; j < len; j++)
+                    src.put((byte)next++);
+                src.put((byte)-1).put((byte)-1).flip().position(1);
+                ring.put(src, len);
+                assertEquals(src.remaining(), 2);
+            }
+            assertEquals(ring.available(), ring.getOccupancy());
+
+            // Read a random amount, possibly leaving data behind
+            dst.clear().limit(1 + this.random.nextInt(ring.available()));
+            final int r = ring.read(dst);
+            assertEquals(r, dst.limit());
+            for (int j = 0; j < r; j++)
+                assertEquals(dst.get(j) & 0xff, expected++ & 0xff);
+        }
+
+        // Drain what's left
+        dst.clear();
+        final int left = ring.available();
+        assertEquals(ring.poll(dst), left);
+        for (int j = 0; j < left; j++)
+            assertEquals(dst.get(j) & 0xff, expected++ & 0xff);
+        assertEquals(expected, next);
+        assertEquals(ring.getOccupancy(), 0);
+        assertTrue(ring.getPeakOccupancy() > 0 && ring.getPeakOccupancy() <= 16);
+    }
+
+    // The InputStream methods copy straight out of the ring
+    @Test
+    public void testStreamReads() throws Exception {
+        final InputRing ring = this.newRing(16);
+        final byte[] data = new byte[20];
+        int next = 0;
+        int expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            final int len = 1 + this.random.nextInt(ring.room());
+            for (int j = 0; j < len; j++)
+                ring.put(next++);
+
+            // Single byte, then a random amount into the middle of the array, then possibly nothing
+            assertEquals(ring.read(), expected++ & 0xff);
+            if (ring.available() == 0)
+                continue;
+            final int off = this.random.nextInt(4);
+            final int r = ring.read(data, off, 1 + this.random.nextInt(ring.available()));
+            for (int j = 0; j < r; j++)
+                assertEquals(data[off + j] & 0xff, expected++ & 0xff);
+            assertEquals(ring.read(data, 0, 0), 0);
+        }
+        assertEquals(ring.available(), next - expected);
+
+        // Receive settings apply to array reads too
+        ring.poll(ByteBuffer.allocate(16));
+        ring.setReceiveFraming('\n');
+        this.putString(ring, "ab\ncd");
+        assertEquals(ring.read(data, 0, data.length), 3);
+        assertEquals(new String(data, 0, 3, "US-ASCII"), "ab\n");
+        ring.close();
+        assertEquals(ring.read(data, 0, data.length), 2);
+        assertEquals(ring.read(data, 0, data.length), -1);
+        assertEquals(ring.read(), -1);
+        try {
+            ring.read(data, 15, 6);
+            fail("expected IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFullRingBackpressure() throws Exception {
+        final InputRing ring = this.newRing(8);
+        final AtomicInteger drains = new AtomicInteger();
+        ring.setDrainListener(new Runnable() {
+            @Override
+            public void run() {
+                drains.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 8; i++)
+            ring.put(i);
+        assertEquals(ring.room(), 0);
+        assertEquals(ring.getPeakOccupancy(), 8);
+
+        // Producer blocks until the consumer frees some space
+        final Future<Void> producer = this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ring.awaitRoom();
+                ring.put(8);
+                return null;
+            }
+        });
+        this.assertBlocked(producer);
+        assertEquals(drains.get(), 0);
+        assertEquals(ring.read(), 0);
+        producer.get(1, TimeUnit.SECONDS);
+        assertTrue(drains.get() >= 1);
+        assertEquals(ring.read(), 1);
+        final ByteBuffer dst = ByteBuffer.allocate(8);
+        assertEquals(ring.read(dst), 7);
+        for (int i = 0; i < 7; i++)
+            assertEquals(dst.get(i), (byte)(i + 2));
+
+        // Drain listener only fires after room() has reported a full ring
+        final InputRing ring2 = this.newRing(8);
+        final AtomicInteger drains2 = new AtomicInteger();
+        ring2.setDrainListener(new Runnable() {
+            @Override
+            public void run() {
+                drains2.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < 7; i++)
+            ring2.put(i);
+        assertEquals(ring2.room(), 1);
+        ring2.read(ByteBuffer.allocate(8));
+        assertEquals(drains2.get(), 0);
+        for (int i = 0; i < 8; i++)
+            ring2.put(i);
+        assertEquals(ring2.room(), 0);
+        ring2.read(ByteBuffer.allocate(1));
+        assertEquals(drains2.get(), 1);
+        assertEquals(ring2.room(), 1);
+    }
+
+    @Test
+    public void testAwaitRoomWakesOnEOF() throws Exception {
+        final InputRing ring = this.newRing(4);
+        for (int i = 0; i < 4; i++)
+            ring.put(i);
+        final Future<Void> producer = this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                ring.awaitRoom();
+                return null;
+            }
+        });
+        this.assertBlocked(producer);
+        ring.close();
+        producer.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testEOF() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.put(1);
+        ring.put(2);
+        ring.setEOF();
+
+        // Buffered data is still readable after end of stream
+        assertEquals(ring.availableOrEOF(), 2);
+        final ByteBuffer dst = ByteBuffer.allocate(8);
+        assertEquals(ring.read(dst), 2);
+        assertEquals(ring.availableOrEOF(), -1);
+        assertEquals(ring.read(dst), -1);
+        assertEquals(ring.poll(dst), -1);
+        assertEquals(ring.read(), -1);
+    }
+
+    @Test
+    public void testReadWakesOnClose() throws Exception {
+        final InputRing ring = this.newRing(8);
+        final Future<Integer> reader = this.readAsync(ring, 8);
+        this.assertBlocked(reader);
+        ring.close();
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), -1);
+
+        // Same for a framed read
+        final InputRing ring2 = this.newRing(8);
+        ring2.setReceiveFraming('\n');
+        final Future<Integer> reader2 = this.readAsync(ring2, 8);
+        this.assertBlocked(reader2);
+        ring2.close();
+        assertEquals((int)reader2.get(1, TimeUnit.SECONDS), -1);
+    }
+
+    @Test
+    public void testReadWakesOnData() throws Exception {
+        final InputRing ring = this.newRing(8);
+        final Future<Integer> reader = this.readAsync(ring, 8);
+        this.assertBlocked(reader);
+        ring.put(42);
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 1);
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        final InputRing ring = this.newRing(8);
+        final Future<Integer> reader = this.readAsync(ring, 8);
+        this.assertBlocked(reader);
+        reader.cancel(true);
+        ring.put(1);
+        assertEquals(ring.available(), 1);                          // interrupted reader consumed nothing
+
+        final Thread thread = Thread.currentThread();
+        this.executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(SHORT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                thread.interrupt();
+            }
+        });
+        ring.poll(ByteBuffer.allocate(8));
+        try {
+            ring.read(ByteBuffer.allocate(8));
+            fail("expected InterruptedIOException");
+        } catch (InterruptedIOException e) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    // Receive threshold
+
+    @Test
+    public void testReceiveThreshold() throws Exception {
+        final InputRing ring = this.newRing(16);
+        ring.setReceiveThreshold(4);
+        final Future<Integer> reader = this.readAsync(ring, 10);
+        for (int i = 0; i < 3; i++) {
+            ring.put(i);
+            this.assertBlocked(reader);
+        }
+        ring.put(3);
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 4);
+
+        // Threshold is capped by the space remaining in the destination
+        for (int i = 0; i < 3; i++)
+            ring.put(i);
+        assertEquals(ring.read(ByteBuffer.allocate(2)), 2);
+
+        // More than the threshold is returned if already available
+        for (int i = 0; i < 5; i++)
+            ring.put(i);
+        assertEquals(ring.read(ByteBuffer.allocate(10)), 6);
+
+        // Zero threshold means any data
+        ring.setReceiveThreshold(0);
+        ring.put(1);
+        assertEquals(ring.read(ByteBuffer.allocate(10)), 1);
+    }
+
+    @Test
+    public void testThresholdLargerThanRing() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveThreshold(100);
+        final Future<Integer> reader = this.readAsync(ring, 100);
+        for (int i = 0; i < 7; i++)
+            ring.put(i);
+        this.assertBlocked(reader);
+        ring.put(7);                                                // a full ring always satisfies a read
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 8);
+    }
+
+    @Test
+    public void testThresholdEOF() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveThreshold(4);
+        final Future<Integer> reader = this.readAsync(ring, 8);
+        ring.put(1);
+        this.assertBlocked(reader);
+        ring.setEOF();
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 1);      // partial data, then end of stream
+        assertEquals(ring.read(ByteBuffer.allocate(8)), -1);
+    }
+
+    // Receive timeout
+
+    @Test
+    public void testReceiveTimeout() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveTimeout(TimeUnit.MILLISECONDS.toNanos(SHORT_DELAY));
+
+        // Nothing arrives: returns zero after (not before) the timeout
+        long start = System.nanoTime();
+        assertEquals(ring.read(ByteBuffer.allocate(8)), 0);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(SHORT_DELAY));
+        assertEquals(ring.read(), -1);                              // single byte read can't return zero
+
+        // With a threshold, whatever has arrived is returned when the timeout expires
+        ring.setReceiveThreshold(4);
+        ring.put(1);
+        ring.put(2);
+        start = System.nanoTime();
+        assertEquals(ring.read(ByteBuffer.allocate(8)), 2);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(SHORT_DELAY));
+
+        // Data arriving before the timeout returns immediately
+        ring.setReceiveThreshold(0);
+        ring.setReceiveTimeout(TimeUnit.SECONDS.toNanos(10));
+        final Future<Integer> reader = this.readAsync(ring, 8);
+        this.assertBlocked(reader);
+        ring.put(3);
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 1);
+
+        // Disabled again
+        ring.setReceiveTimeout(-1);
+        this.assertBlocked(this.readAsync(ring, 8));
+        ring.close();
+    }
+
+    @Test
+    public void testZeroTimeout() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveTimeout(0);
+        assertEquals(ring.read(ByteBuffer.allocate(8)), 0);
+        ring.put(5);
+        assertEquals(ring.read(), 5);
+    }
+
+    // Receive framing
+
+    @Test
+    public void testReceiveFraming() throws Exception {
+        final InputRing ring = this.newRing(16);
+        ring.setReceiveFraming('\n');
+
+        // Without a threshold, waits for the framing byte or a full destination
+        final Future<Integer> reader = this.readAsync(ring, 10);
+        this.putString(ring, "abc");
+        this.assertBlocked(reader);
+        this.putString(ring, "d\nef");
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 5);      // stops just after the framing byte
+        assertEquals(ring.available(), 2);
+
+        // Destination fills before the framing byte is seen
+        this.putString(ring, "ghij");
+        final ByteBuffer dst = ByteBuffer.allocate(4);
+        assertEquals(ring.read(dst), 4);
+        assertEquals(new String(dst.array(), "US-ASCII"), "efgh");
+
+        // Several frames already buffered are returned one at a time
+        this.putString(ring, "\nk\n");
+        assertEquals(this.readString(ring, 16), "ij\n");
+        assertEquals(this.readString(ring, 16), "k\n");
+        assertEquals(ring.available(), 0);
+    }
+
+    @Test
+    public void testFramingAcrossWrap() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveFraming(0xff);
+        for (int offset = 0; offset < 8; offset++) {
+
+            // Advance the head so the frame starts at every possible index and straddles the end
+            this.putString(ring, "xxxxxxx".substring(0, offset));
+            ring.poll(ByteBuffer.allocate(8));
+            for (int len = 1; len <= 8; len++) {
+                for (int i = 0; i < len - 1; i++)
+                    ring.put(0x7f);
+                ring.put(0xff);
+                final ByteBuffer dst = ByteBuffer.allocate(8);
+                assertEquals(ring.read(dst), len, "offset=" + offset + " len=" + len);
+                assertEquals(dst.get(len - 1), (byte)0xff);
+            }
+        }
+    }
+
+    @Test
+    public void testFramingIncremental() throws Exception {
+
+        // The framing byte arrives in a later chunk than the start of the frame; earlier data must not be missed
+        final InputRing ring = this.newRing(64);
+        ring.setReceiveFraming(';');
+        final Future<Integer> reader = this.readAsync(ring, 64);
+        for (String chunk : new String[] { "a", "bc", "def", "ghij" }) {
+            this.putString(ring, chunk);
+            this.assertBlocked(reader);
+        }
+        this.putString(ring, "k;lm");
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 12);
+        assertEquals(this.readString(ring, 2), "lm");
+    }
+
+    @Test
+    public void testFramingWithThreshold() throws Exception {
+        final InputRing ring = this.newRing(16);
+        ring.setReceiveFraming(';');
+        ring.setReceiveThreshold(3);
+
+        // Threshold reached before the framing byte
+        this.putString(ring, "abcd");
+        assertEquals(this.readString(ring, 16), "abcd");
+
+        // Framing byte arrives before the threshold
+        this.putString(ring, "e;");
+        assertEquals(this.readString(ring, 16), "e;");
+    }
+
+    @Test
+    public void testFramingTimeout() throws Exception {
+        final InputRing ring = this.newRing(16);
+        ring.setReceiveFraming(';');
+        ring.setReceiveTimeout(TimeUnit.MILLISECONDS.toNanos(SHORT_DELAY));
+        assertEquals(ring.read(ByteBuffer.allocate(16)), 0);
+        this.putString(ring, "abc");
+        final long start = System.nanoTime();
+        assertEquals(this.readString(ring, 16), "abc");
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(SHORT_DELAY));
+    }
+
+    @Test
+    public void testFramingFullRing() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveFraming(';');
+        final Future<Integer> reader = this.readAsync(ring, 100);
+        this.putString(ring, "abcdefg");
+        this.assertBlocked(reader);
+        ring.put('h');                                              // a full ring always satisfies a read
+        assertEquals((int)reader.get(1, TimeUnit.SECONDS), 8);
+    }
+
+    @Test
+    public void testFramingEOF() throws Exception {
+        final InputRing ring = this.newRing(8);
+        ring.setReceiveFraming(';');
+        this.putString(ring, "ab");
+        ring.setEOF();
+        assertEquals(this.readString(ring, 8), "ab");
+        assertEquals(ring.read(ByteBuffer.allocate(8)), -1);
+    }
+
+    // Helpers
+
+    private InputRing newRing(int capacity) {
+        final InputRing ring = new InputRing();
+        ring.setCapacity(capacity);
+        ring.start();
+        return ring;
+    }
+
+    private Future<Integer> readAsync(final InputRing ring, final int len) {
+        return this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return ring.read(ByteBuffer.allocate(len));
+            }
+        });
+    }
+
+    private void assertBlocked(Future<?> future) throws InterruptedException, ExecutionException {
+        try {
+            future.get(SHORT_DELAY, TimeUnit.MILLISECONDS);
+            fail("operation should have blocked");
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+
+    private void putString(InputRing ring, String s) throws Exception {
+        final byte[] data = s.getBytes("US-ASCII");
+        ring.put(ByteBuffer.wrap(data), data.length);
+    }
+
+    private String readString(InputRing ring, int len) throws Exception {
+        final ByteBuffer dst = ByteBuffer.allocate(len);
+        final int r = ring.read(dst);
+        return r <= 0 ? null : new String(dst.array(), 0, r, "US-ASCII");
+    }
+}
+
@@ -0,0 +1,192 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests {@link TelnetSerialPort#awaitModemState awaitModemState()} and
+ * {@link TelnetSerialPort#awaitModemStateAsync awaitModemStateAsync()}.
+ */
+public class ModemStateWaitersTest extends TestSupport {
+
+    private static final long SHORT_DELAY = 100;                    // milliseconds
+    private static final long TIMEOUT = 5000;                       // milliseconds
+
+    private ExecutorService executor;
+    private TestAccessServer server;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        this.server = new TestAccessServer();
+    }
+
+    @AfterClass
+    public void teardown() {
+        this.executor.shutdownNow();
+        this.server.close();
+    }
+
+    @Test
+    public void testMatch() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final TestAccessServer.Connection connection = this.connect(port);
+
+            // Already matching
+            final TelnetFuture<Integer> deasserted = port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS, 0, 0, TimeUnit.SECONDS);
+            assertTrue(deasserted.isDone());
+            assertEquals(deasserted.get(), Integer.valueOf(0));
+
+            // Only the masked bits are compared
+            final int mask = RFC2217.MODEMSTATE_DSR | RFC2217.MODEMSTATE_CARRIER_DETECT;
+            final TelnetFuture<Integer> dsr = port.awaitModemStateAsync(mask, RFC2217.MODEMSTATE_DSR, 0, TimeUnit.SECONDS);
+            connection.send(new NotifyModemStateCommand(false, RFC2217.MODEMSTATE_CTS));
+            this.awaitModemState(port, RFC2217.MODEMSTATE_CTS);
+            assertFalse(dsr.isDone());
+            connection.send(new NotifyModemStateCommand(false, mask));
+            this.awaitModemState(port, mask);
+            assertFalse(dsr.isDone());
+            final int state = RFC2217.MODEMSTATE_DSR | RFC2217.MODEMSTATE_RING_INDICATOR;
+            connection.send(new NotifyModemStateCommand(false, state));
+            assertEquals(dsr.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(state));
+
+            // Blocking version
+            final Future<Boolean> waiter = this.executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return port.awaitModemState(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS, TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            });
+            Thread.sleep(SHORT_DELAY);
+            assertFalse(waiter.isDone());
+            connection.send(new NotifyModemStateCommand(false, RFC2217.MODEMSTATE_CTS));
+            assertTrue(waiter.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testTimeoutAndCancel() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final TestAccessServer.Connection connection = this.connect(port);
+            final TelnetFuture<Integer> timed = port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS,
+              SHORT_DELAY, TimeUnit.MILLISECONDS);
+            try {
+                timed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected timeout");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException, "unexpected exception " + e.getCause());
+            }
+            assertFalse(port.awaitModemState(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS,
+              SHORT_DELAY, TimeUnit.MILLISECONDS));
+
+            // A cancelled wait is not completed by a later match
+            final TelnetFuture<Integer> cancelled = port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS,
+              RFC2217.MODEMSTATE_CTS, TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(cancelled.cancel(false));
+            connection.send(new NotifyModemStateCommand(false, RFC2217.MODEMSTATE_CTS));
+            this.awaitModemState(port, RFC2217.MODEMSTATE_CTS);
+            assertTrue(cancelled.isCancelled());
+            assertEquals(cancelled.getCause(), null);
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            this.connect(port);
+            final TelnetFuture<Integer> pending = port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS,
+              RFC2217.MODEMSTATE_CTS, TIMEOUT, TimeUnit.MILLISECONDS);
+            final Future<Boolean> waiter = this.executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return port.awaitModemState(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS, TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            });
+            Thread.sleep(SHORT_DELAY);
+            assertFalse(waiter.isDone());
+            port.close();
+            assertFalse(waiter.get(TIMEOUT, TimeUnit.MILLISECONDS));
+            try {
+                pending.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected exception");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AsynchronousCloseException, "unexpected exception " + e.getCause());
+            }
+            try {
+                port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS, 0, TimeUnit.SECONDS);
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test
+    public void testInvalidArguments() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            try {
+                port.awaitModemStateAsync(0x100, 0, 0, TimeUnit.SECONDS);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_DSR, 0, TimeUnit.SECONDS);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    private TestAccessServer.Connection connect(TelnetSerialPort port) throws Exception {
+        port.connect(this.server.getAddress(), this.server.getPort());
+        final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+        return connection;
+    }
+
+    // Wait for the port to see the given modem state, by polling so as not to involve any waiters
+    private void awaitModemState(TelnetSerialPort port, int modemState) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (port.getModemState() != modemState) {
+            assertTrue(System.nanoTime() < deadline, "modem state never became 0x" + Integer.toHexString(modemState));
+            Thread.sleep(1);
+        }
+    }
+}
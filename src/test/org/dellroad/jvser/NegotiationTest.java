@@ -0,0 +1,226 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.comm.SerialPort;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests {@code COM-PORT-OPTION} negotiation against access servers that accept, refuse and ignore the option, including
+ * {@linkplain TelnetSerialPort#setOptimisticNegotiation optimistic negotiation} and the
+ * {@linkplain TelnetSerialPort#setNegotiationTimeout negotiation deadline}.
+ */
+public class NegotiationTest extends TestSupport {
+
+    private static final long TIMEOUT = 5000;                       // milliseconds
+    private static final long SETTLE = 100;                         // milliseconds
+    private static final long DEADLINE = 200;                       // milliseconds
+
+    private TelnetEventLoopGroup eventLoopGroup;
+    private TestAccessServer server;
+    private TestAccessServer refusingServer;
+    private TestAccessServer silentServer;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.eventLoopGroup = new TelnetEventLoopGroup(1);
+        this.server = new TestAccessServer();
+        this.refusingServer = new TestAccessServer();
+        this.refusingServer.setComPortOptionRefused(true);
+        this.silentServer = new TestAccessServer();
+        this.silentServer.setComPortOptionIgnored(true);
+    }
+
+    @AfterClass
+    public void teardown() {
+        this.eventLoopGroup.shutdown();
+        this.server.close();
+        this.refusingServer.close();
+        this.silentServer.close();
+    }
+
+    @DataProvider(name = "transports")
+    public Object[][] transports() {
+        return new Object[][] { { "socket" }, { "nio" } };
+    }
+
+    // The configuration sent optimistically is not sent again once the access server accepts
+    @Test(dataProvider = "transports")
+    public void testOptimisticAccepted(String transport) throws Exception {
+        final TelnetSerialPort port = this.createPort(transport);
+        try {
+            port.setOptimisticNegotiation(true);
+            port.setSerialPortParams(19200, SerialPort.DATABITS_7, SerialPort.STOPBITS_2, SerialPort.PARITY_EVEN);
+            port.connect(this.server.getAddress(), this.server.getPort());
+            final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertSame(port.getReadyFuture().get(TIMEOUT, TimeUnit.MILLISECONDS), port);
+            assertTrue(port.isEstablished());
+            assertTrue(connection.isComPortOption());
+
+            // Commands arrive in order, so once the break arrives, any repeated configuration would have too
+            port.sendBreak(0);
+            this.awaitCommand(connection, ControlCommand.valueOf(true, RFC2217.CONTROL_BREAK_OFF));
+            assertEquals(this.countCommands(connection, new BaudRateCommand(true, 19200)), 1);
+        } finally {
+            port.close();
+        }
+    }
+
+    // A refusing access server fails the ready future, even though the configuration was already sent
+    @Test(dataProvider = "transports")
+    public void testOptimisticRefused(String transport) throws Exception {
+        final TelnetSerialPort port = this.createPort(transport);
+        try {
+            port.setOptimisticNegotiation(true);
+            port.connect(this.refusingServer.getAddress(), this.refusingServer.getPort());
+            final TestAccessServer.Connection connection
+              = this.refusingServer.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            try {
+                port.getReadyFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected ExecutionException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException, "wrong cause: " + e.getCause());
+            }
+            assertFalse(port.isEstablished());
+            assertFalse(connection.isComPortOption());
+            this.awaitCommand(connection, new BaudRateCommand(true, 9600));
+        } finally {
+            port.close();
+        }
+    }
+
+    // With raw fallback, a refusing access server leaves the port usable in raw data mode, sending no more commands
+    @Test(dataProvider = "transports")
+    public void testOptimisticRefusedRawFallback(String transport) throws Exception {
+        final TelnetSerialPort port = this.createPort(transport);
+        try {
+            port.setOptimisticNegotiation(true);
+            port.setRawFallback(true);
+            port.connect(this.refusingServer.getAddress(), this.refusingServer.getPort());
+            final TestAccessServer.Connection connection
+              = this.refusingServer.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertSame(port.getReadyFuture().get(TIMEOUT, TimeUnit.MILLISECONDS), port);
+            assertFalse(port.isEstablished());
+            this.awaitCommand(connection, new BaudRateCommand(true, 9600));
+            final int commands = connection.getCommands().size();
+
+            // Data flows both ways; configuration changes are only remembered
+            port.setSerialPortParams(19200, SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+            port.setDTR(false);
+            final OutputStream output = port.getOutputStream();
+            output.write(new byte[] { 1, 2, 3 });
+            output.flush();
+            connection.send(new byte[] { 4 });
+            assertEquals(port.getInputStream().read(), 4);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (connection.getData().length < 3) {
+                assertTrue(System.nanoTime() < deadline, "data never received");
+                Thread.sleep(1);
+            }
+            assertEquals(connection.getData(), new byte[] { 1, 2, 3 });
+            Thread.sleep(SETTLE);
+            assertEquals(connection.getCommands().size(), commands);
+            assertEquals(port.getBaudRate(), 19200);
+        } finally {
+            port.close();
+        }
+    }
+
+    // With raw fallback, an access server that never answers leaves the port in raw data mode once the deadline passes
+    @Test(dataProvider = "transports")
+    public void testDeadlineRawFallback(String transport) throws Exception {
+        final TelnetSerialPort port = this.createPort(transport);
+        try {
+            port.setNegotiationTimeout(DEADLINE, TimeUnit.MILLISECONDS);
+            port.setRawFallback(true);
+            final long start = System.nanoTime();
+            port.connect(this.silentServer.getAddress(), this.silentServer.getPort());
+            final TestAccessServer.Connection connection = this.silentServer.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertSame(port.getReadyFuture().get(TIMEOUT, TimeUnit.MILLISECONDS), port);
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed >= DEADLINE - 10, "ready after only " + elapsed + "ms");
+            assertFalse(port.isEstablished());
+            assertFalse(port.awaitEstablished(SETTLE, TimeUnit.MILLISECONDS));
+
+            // Data flows both ways
+            final OutputStream output = port.getOutputStream();
+            output.write(new byte[] { 1, 2, 3 });
+            output.flush();
+            connection.send(new byte[] { 4 });
+            assertEquals(port.getInputStream().read(), 4);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (connection.getData().length < 3) {
+                assertTrue(System.nanoTime() < deadline, "data never received");
+                Thread.sleep(1);
+            }
+            assertEquals(connection.getData(), new byte[] { 1, 2, 3 });
+        } finally {
+            port.close();
+        }
+    }
+
+    // Without raw fallback, the ready future fails once the deadline passes
+    @Test(dataProvider = "transports")
+    public void testDeadlineFails(String transport) throws Exception {
+        final TelnetSerialPort port = this.createPort(transport);
+        try {
+            port.setNegotiationTimeout(DEADLINE, TimeUnit.MILLISECONDS);
+            port.connect(this.silentServer.getAddress(), this.silentServer.getPort());
+            this.silentServer.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            try {
+                port.getReadyFuture().get(TIMEOUT, TimeUnit.MILLISECONDS);
+                fail("expected ExecutionException");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException, "wrong cause: " + e.getCause());
+            }
+            assertFalse(port.isEstablished());
+        } finally {
+            port.close();
+        }
+    }
+
+    private TelnetSerialPort createPort(String transport) {
+        return transport.equals("nio") ?
+          new TelnetSerialPort(this.eventLoopGroup) : new TelnetSerialPort(Executors.defaultThreadFactory());
+    }
+
+    private int countCommands(TestAccessServer.Connection connection, ComPortCommand command) {
+        int count = 0;
+        for (int[] bytes : connection.getCommands()) {
+            if (Arrays.equals(bytes, command.getBytes()))
+                count++;
+        }
+        return count;
+    }
+
+    private void awaitCommand(TestAccessServer.Connection connection, ComPortCommand command) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (this.countCommands(connection, command) == 0) {
+            assertTrue(System.nanoTime() < deadline, "never received " + command);
+            Thread.sleep(1);
+        }
+    }
+}
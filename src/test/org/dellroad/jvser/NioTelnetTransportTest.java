@@ -0,0 +1,152 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests how {@link NioTelnetTransport} behaves when its connection or event loop goes away underneath it.
+ */
+public class NioTelnetTransportTest extends TestSupport {
+
+    private static final long TIMEOUT = 5000;                       // milliseconds
+
+    private TestAccessServer server;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        this.server = new TestAccessServer();
+    }
+
+    @AfterClass
+    public void stopServer() {
+        this.server.close();
+    }
+
+    @Test
+    public void testKeyCancelledDuringSelect() throws Exception {
+        final TelnetEventLoopGroup eventLoopGroup = new TelnetEventLoopGroup(1);
+        final TelnetSerialPort port = new TelnetSerialPort(eventLoopGroup);
+        try {
+            final NioTelnetTransport transport = new NioTelnetTransport(port, eventLoopGroup.next(), "VT100");
+
+            // Simulate another thread closing the channel just after the event loop checked that the key was valid
+            final SelectionKey key = new CancelledSelectionKey();
+            final Field field = NioTelnetTransport.class.getDeclaredField("key");
+            field.setAccessible(true);
+            field.set(transport, key);
+            transport.handleSelect(key);
+        } finally {
+            port.close();
+            eventLoopGroup.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdownWhileReading() throws Exception {
+        final TelnetEventLoopGroup eventLoopGroup = new TelnetEventLoopGroup(1);
+        final TelnetSerialPort port = new TelnetSerialPort(eventLoopGroup);
+        try {
+            port.setInputBufferSize(64);
+            this.connect(port).send(new byte[1024]);
+
+            // Wait for the input buffer to fill up, so that reading from it will need to resume reading from the network
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+            while (port.getInputBufferOccupancy() < 64) {
+                assertTrue(System.nanoTime() < deadline, "input buffer never filled");
+                Thread.sleep(1);
+            }
+            eventLoopGroup.shutdown();
+
+            // Reading still works, and sees the end of the stream rather than an IllegalStateException
+            final InputStream input = port.getInputStream();
+            final byte[] buf = new byte[1024];
+            int total = 0;
+            int r;
+            while ((r = input.read(buf)) != -1)
+                total += r;
+            assertEquals(total, 64);
+
+            // Writing fails like it would on any other closed connection
+            try {
+                port.getOutputStream().write(buf);
+                port.getOutputStream().flush();
+                fail("expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            port.close();
+            eventLoopGroup.shutdown();
+        }
+    }
+
+    private TestAccessServer.Connection connect(TelnetSerialPort port) throws Exception {
+        port.connect(this.server.getAddress(), this.server.getPort());
+        final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+        return connection;
+    }
+
+    // A key that is still valid when first checked, but cancelled by the time its ready operations are examined
+    private static class CancelledSelectionKey extends SelectionKey {
+
+        private boolean checked;
+
+        @Override
+        public boolean isValid() {
+            final boolean valid = !this.checked;
+            this.checked = true;
+            return valid;
+        }
+
+        @Override
+        public int readyOps() {
+            throw new CancelledKeyException();
+        }
+
+        @Override
+        public int interestOps() {
+            throw new CancelledKeyException();
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops) {
+            throw new CancelledKeyException();
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+        @Override
+        public SelectableChannel channel() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Selector selector() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests {@link OutputBuffer} timer-initiated flushes.
+ */
+public class OutputBufferTest extends TestSupport {
+
+    private static final long LATENCY = 1;                          // milliseconds
+    private static final long TIMEOUT = 5000;                       // milliseconds
+
+    @Test
+    public void testTimerFlush() throws Exception {
+        final RecordingTransport transport = new RecordingTransport(null);
+        final OutputBuffer buffer = new OutputBuffer(transport, TimeUnit.MILLISECONDS.toNanos(LATENCY), Util.eventExecutor());
+        buffer.setSize(16);
+        buffer.write(new byte[] { 1, 2, 3 }, 0, 3);
+        final ByteBuffer sent = transport.sent.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(sent != null, "buffered data was never flushed");
+        assertEquals(sent.remaining(), 3);
+    }
+
+    // A timer flush that blocks on the network must not hold up other users of the shared timer
+    @Test
+    public void testBlockedFlushDoesNotStallTimer() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingTransport transport = new RecordingTransport(release);
+        final OutputBuffer buffer = new OutputBuffer(transport, TimeUnit.MILLISECONDS.toNanos(LATENCY), Util.eventExecutor());
+        try {
+            buffer.setSize(16);
+            buffer.write(42);
+            assertTrue(transport.blocked.await(TIMEOUT, TimeUnit.MILLISECONDS), "buffered data was never flushed");
+            assertEquals(Util.scheduler().schedule(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return true;
+                }
+            }, LATENCY, TimeUnit.MILLISECONDS).get(TIMEOUT, TimeUnit.MILLISECONDS), Boolean.TRUE);
+        } finally {
+            release.countDown();
+        }
+        assertEquals(transport.sent.poll(TIMEOUT, TimeUnit.MILLISECONDS).remaining(), 1);
+    }
+
+    // Transport that records what is sent, optionally blocking each send until released
+    private static class RecordingTransport extends AbstractTelnetTransport {
+
+        final LinkedBlockingQueue<ByteBuffer> sent = new LinkedBlockingQueue<ByteBuffer>();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        RecordingTransport(CountDownLatch release) {
+            super(new TelnetSerialPort(Executors.defaultThreadFactory()), "VT100");
+            this.release = release;
+        }
+
+        @Override
+        public void connect(InetAddress host, int tcpPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected void send(ByteBuffer buf) throws IOException {
+            if (this.release != null) {
+                this.blocked.countDown();
+                try {
+                    this.release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            this.sent.add(buf);
+        }
+
+        @Override
+        protected void closeConnection(IOException cause) {
+        }
+
+        @Override
+        protected void inputDrained() {
+        }
+
+        @Override
+        protected void resetConnection() {
+        }
+    }
+}
@@ -0,0 +1,278 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.comm.SerialPort;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests that {@link TelnetSerialPort} does not hold its lock where it shouldn't, and that signal state written by one
+ * thread is seen by others without locking.
+ */
+public class PortLockingTest extends TestSupport {
+
+    private static final long SHORT_DELAY = 100;                    // milliseconds; long enough to be sure we blocked
+    private static final long TIMEOUT = 5000;                       // milliseconds
+
+    private ExecutorService executor;
+    private TestAccessServer server;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        this.server = new TestAccessServer();
+    }
+
+    @AfterClass
+    public void teardown() {
+        this.executor.shutdownNow();
+        this.server.close();
+    }
+
+    // The reader thread runs on a platform thread, or on a virtual thread if the JVM supports them
+    @DataProvider(name = "threadFactories")
+    public Object[][] threadFactories() {
+        final List<Object[]> list = new ArrayList<Object[]>();
+        list.add(new Object[] { "platform", Executors.defaultThreadFactory() });
+        final ThreadFactory virtualThreadFactory = TelnetSerialPort.getVirtualThreadFactory();
+        if (virtualThreadFactory != null)
+            list.add(new Object[] { "virtual", virtualThreadFactory });
+        return list.toArray(new Object[list.size()][]);
+    }
+
+    @Test(dataProvider = "threadFactories")
+    public void testLockFreeGetters(String name, ThreadFactory threadFactory) throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(threadFactory);
+        this.connect(port);
+        try {
+            final ReentrantLock lock = getLock(port);
+            final CountDownLatch locked = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final Future<?> holder = this.executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    lock.lock();
+                    try {
+                        locked.countDown();
+                        release.await();
+                    } finally {
+                        lock.unlock();
+                    }
+                    return null;
+                }
+            });
+            assertTrue(locked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            try {
+
+                // These must not need the lock
+                final Future<Integer> getters = this.executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int count = 0;
+                        for (boolean value : new boolean[] {
+                          port.isDTR(), port.isRTS(), port.isCTS(), port.isDSR(), port.isRI(), port.isCD() }) {
+                            if (value)
+                                count++;
+                        }
+                        return count + port.getModemState() + port.getLineState();
+                    }
+                });
+                getters.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+                // Whereas this one does, which shows the lock really is held
+                final Future<Integer> locked2 = this.executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        return port.getBaudRate();
+                    }
+                });
+                this.assertBlocked(locked2);
+                release.countDown();
+                assertEquals(locked2.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(port.getBaudRate()));
+            } finally {
+                release.countDown();
+                holder.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test(dataProvider = "threadFactories")
+    public void testBlockedReadDoesNotHoldLock(String name, ThreadFactory threadFactory) throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(threadFactory);
+        final TestAccessServer.Connection connection = this.connect(port);
+        try {
+            final InputStream input = port.getInputStream();
+            final ReentrantLock lock = getLock(port);
+
+            // Block a reader, then use the port from another thread
+            Future<Integer> reader = this.readAsync(input);
+            this.assertBlocked(reader);
+            assertFalse(lock.isLocked(), "blocked reader holds the port lock");
+            final Future<Void> configure = this.executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    port.setSerialPortParams(19200, SerialPort.DATABITS_7, SerialPort.STOPBITS_2, SerialPort.PARITY_EVEN);
+                    port.setDTR(false);
+                    port.setRTS(false);
+                    port.getBaudRate();
+                    return null;
+                }
+            });
+            configure.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(port.getBaudRate(), 19200);
+            assertFalse(reader.isDone());
+
+            // Data still reaches the blocked reader
+            connection.send(new byte[] { 42 });
+            assertEquals(reader.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(42));
+
+            // Closing the port wakes up a blocked reader
+            reader = this.readAsync(input);
+            this.assertBlocked(reader);
+            port.close();
+            try {
+                assertEquals(reader.get(TIMEOUT, TimeUnit.MILLISECONDS), Integer.valueOf(-1));
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException, "unexpected exception " + e.getCause());
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    @Test(dataProvider = "threadFactories")
+    public void testSignalVisibility(String name, ThreadFactory threadFactory) throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(threadFactory);
+        final TestAccessServer.Connection connection = this.connect(port);
+        try {
+
+            // Another thread spins on isDTR() without any locking; it must see our change
+            port.setDTR(false);
+            final Future<Void> dtrSpinner = this.spinUntil(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return port.isDTR();
+                }
+            });
+            this.assertBlocked(dtrSpinner);
+            port.setDTR(true);
+            dtrSpinner.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+            // Modem state changes made by the I/O thread must be seen by polling threads and by waiters
+            assertFalse(port.isCTS());
+            final Future<Void> ctsSpinner = this.spinUntil(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return port.isCTS() && (port.getModemState() & RFC2217.MODEMSTATE_DSR) != 0;
+                }
+            });
+            final Future<Boolean> waiter = this.executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return port.awaitModemState(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS, TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            });
+            this.assertBlocked(ctsSpinner);
+            assertFalse(waiter.isDone());
+            connection.send(new NotifyModemStateCommand(false, RFC2217.MODEMSTATE_CTS | RFC2217.MODEMSTATE_DSR));
+            ctsSpinner.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(waiter.get(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(port.isDSR());
+            assertFalse(port.isCD());
+
+            // And when they go away again
+            final Future<Void> clearSpinner = this.spinUntil(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return !port.isCTS();
+                }
+            });
+            connection.send(new NotifyModemStateCommand(false, 0));
+            clearSpinner.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertEquals(port.getModemState(), 0);
+        } finally {
+            port.close();
+        }
+    }
+
+    // Helpers
+
+    private TestAccessServer.Connection connect(TelnetSerialPort port) throws Exception {
+        port.connect(this.server.getAddress(), this.server.getPort());
+        final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+        connection.awaitCommands(1, TIMEOUT, TimeUnit.MILLISECONDS);            // the port is established by now
+        return connection;
+    }
+
+    private static ReentrantLock getLock(TelnetSerialPort port) throws Exception {
+        final Field field = TelnetSerialPort.class.getDeclaredField("lock");
+        field.setAccessible(true);
+        return (ReentrantLock)field.get(port);
+    }
+
+    private Future<Integer> readAsync(final InputStream input) {
+        return this.executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return input.read();
+            }
+        });
+    }
+
+    // Busy-wait, without sleeping or locking, until the condition is true; gives up eventually so we don't leak a spinner
+    private Future<Void> spinUntil(final Callable<Boolean> condition) {
+        return this.executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT * 2);
+                long spins = 0;
+                while (!condition.call()) {
+                    if ((++spins & 0xfffff) == 0 && System.nanoTime() > deadline)
+                        throw new TimeoutException("condition never became true");
+                }
+                return null;
+            }
+        });
+    }
+
+    private void assertBlocked(Future<?> future) throws InterruptedException, ExecutionException {
+        try {
+            future.get(SHORT_DELAY, TimeUnit.MILLISECONDS);
+            fail("operation should have blocked");
+        } catch (TimeoutException e) {
+            assertFalse(future.isDone());
+        }
+    }
+}
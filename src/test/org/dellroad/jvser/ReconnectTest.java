@@ -0,0 +1,145 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.comm.SerialPort;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests {@link TelnetSerialPort#setAutoReconnect automatic reconnection}.
+ */
+public class ReconnectTest extends TestSupport {
+
+    private static final long TIMEOUT = 5000;                       // milliseconds
+    private static final long INITIAL_DELAY = 20;                   // milliseconds
+    private static final long MAX_DELAY = 80;                       // milliseconds
+    private static final long RETRY_PERIOD = 500;                   // milliseconds
+
+    private TelnetEventLoopGroup eventLoopGroup;
+    private TestAccessServer server;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.eventLoopGroup = new TelnetEventLoopGroup(1);
+        this.server = new TestAccessServer();
+    }
+
+    @AfterClass
+    public void teardown() {
+        this.eventLoopGroup.shutdown();
+        this.server.close();
+    }
+
+    @DataProvider(name = "transports")
+    public Object[][] transports() {
+        return new Object[][] { { "socket" }, { "nio" } };
+    }
+
+    // After reconnecting, options are negotiated from scratch and the port's configuration is sent again
+    @Test(dataProvider = "transports")
+    public void testReconnect(String transport) throws Exception {
+        final TelnetSerialPort port = transport.equals("nio") ?
+          new TelnetSerialPort(this.eventLoopGroup) : new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            port.setAutoReconnect(true);
+            port.setReconnectDelay(INITIAL_DELAY, MAX_DELAY, TimeUnit.MILLISECONDS);
+            port.connect(this.server.getAddress(), this.server.getPort());
+            final TestAccessServer.Connection connection1 = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+            port.setSerialPortParams(19200, SerialPort.DATABITS_7, SerialPort.STOPBITS_2, SerialPort.PARITY_EVEN);
+            port.setDTR(false);
+            final InputStream input = port.getInputStream();
+            connection1.send(new byte[] { 1 });
+            assertEquals(input.read(), 1);
+
+            // Lose the connection
+            connection1.close();
+            final TestAccessServer.Connection connection2 = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertTrue(connection2.isComPortOption());
+            this.awaitCommand(connection2, new BaudRateCommand(true, 19200));
+            this.awaitCommand(connection2, new ControlCommand(true, RFC2217.CONTROL_DTR_OFF));
+
+            // The same input stream reads from the new connection
+            connection2.send(new byte[] { 2 });
+            assertEquals(input.read(), 2);
+        } finally {
+            port.close();
+        }
+    }
+
+    // Attempts back off to the maximum delay, keep going while the access server is down, and stop on close()
+    @Test
+    public void testBackoff() throws Exception {
+        final TestAccessServer deadServer = new TestAccessServer();
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable action) {
+                threads.incrementAndGet();
+                return Executors.defaultThreadFactory().newThread(action);
+            }
+        };
+        final TelnetSerialPort port = new TelnetSerialPort(threadFactory);
+        try {
+            port.setAutoReconnect(true);
+            port.setReconnectDelay(INITIAL_DELAY, MAX_DELAY, TimeUnit.MILLISECONDS);
+            port.connect(deadServer.getAddress(), deadServer.getPort());
+            final TestAccessServer.Connection connection = deadServer.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(port.awaitEstablished(TIMEOUT, TimeUnit.MILLISECONDS));
+
+            // Take the access server down; each refused attempt runs in one new thread from the port's factory
+            deadServer.close();
+            connection.close();
+            while (port.isEstablished())
+                Thread.sleep(1);
+            final int before = threads.get();
+            Thread.sleep(RETRY_PERIOD);
+            final int attempts = threads.get() - before;
+            assertTrue(attempts >= RETRY_PERIOD / MAX_DELAY / 2, "too few attempts: " + attempts);
+            assertTrue(attempts <= RETRY_PERIOD / (MAX_DELAY / 2) + 4, "too many attempts: " + attempts);
+            assertFalse(port.isEstablished());
+        } finally {
+            port.close();
+        }
+
+        // Once closed, no more attempts
+        Thread.sleep(MAX_DELAY);
+        final int after = threads.get();
+        Thread.sleep(MAX_DELAY * 2);
+        assertEquals(threads.get(), after);
+    }
+
+    private void awaitCommand(TestAccessServer.Connection connection, ComPortCommand command) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (true) {
+            for (int[] bytes : connection.getCommands()) {
+                if (Arrays.equals(bytes, command.getBytes()))
+                    return;
+            }
+            assertTrue(System.nanoTime() < deadline, "never received " + command);
+            Thread.sleep(1);
+        }
+    }
+}
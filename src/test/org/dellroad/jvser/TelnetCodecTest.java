@@ -0,0 +1,243 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class TelnetCodecTest extends TestSupport {
+
+    private static final byte IAC = (byte)TelnetCodec.IAC;
+
+    // Bytes that differ from 0xff by a single bit, or sit on either side of the SWAR carry/borrow boundaries
+    private static final byte[] NEAR_MISSES = { (byte)0x7f, (byte)0x80, (byte)0xfe, (byte)0xef, (byte)0x00, (byte)0x01 };
+
+    @DataProvider(name = "buffers")
+    public Object[][] buffers() {
+        return new Object[][] {
+            { false, ByteOrder.BIG_ENDIAN },
+            { false, ByteOrder.LITTLE_ENDIAN },
+            { true, ByteOrder.BIG_ENDIAN },
+            { true, ByteOrder.LITTLE_ENDIAN },
+        };
+    }
+
+    @Test(dataProvider = "buffers")
+    public void testIACAtEveryOffset(boolean direct, ByteOrder order) {
+        for (int len = 1; len <= 24; len++) {
+            for (int offset = 0; offset < len; offset++) {
+                for (byte filler : NEAR_MISSES) {
+                    final byte[] data = fill(len, filler);
+                    data[offset] = IAC;
+                    final ByteBuffer buf = buffer(data, direct, order);
+                    assertEquals(TelnetCodec.indexOfIAC(buf, 0, len), offset,
+                      "len=" + len + " offset=" + offset + " filler=" + filler);
+                    assertEquals(TelnetCodec.countIAC(buf, 0, len), 1);
+                }
+            }
+        }
+    }
+
+    @Test(dataProvider = "buffers")
+    public void testIACInTail(boolean direct, ByteOrder order) {
+
+        // The IAC lies beyond the last whole word of the range, so only the byte-at-a-time loop can find it
+        for (int words = 0; words <= 2; words++) {
+            for (int tail = 1; tail < 8; tail++) {
+                final int len = words * 8 + tail;
+                final byte[] data = fill(len, (byte)0x7f);
+                data[len - 1] = IAC;
+                final ByteBuffer buf = buffer(data, direct, order);
+                assertEquals(TelnetCodec.indexOfIAC(buf, 0, len), len - 1);
+                assertEquals(TelnetCodec.indexOfIAC(buf, 0, len - 1), -1);
+                assertEquals(TelnetCodec.countIAC(buf, 0, len), 1);
+            }
+        }
+    }
+
+    @Test(dataProvider = "buffers")
+    public void testNoFalsePositives(boolean direct, ByteOrder order) {
+
+        // Every pair of near-miss bytes, at every alignment within a word
+        for (byte b1 : NEAR_MISSES) {
+            for (byte b2 : NEAR_MISSES) {
+                for (int offset = 0; offset < 15; offset++) {
+                    final byte[] data = fill(16, b1);
+                    data[offset + 1] = b2;
+                    final ByteBuffer buf = buffer(data, direct, order);
+                    assertEquals(TelnetCodec.indexOfIAC(buf, 0, 16), -1);
+                    assertEquals(TelnetCodec.countIAC(buf, 0, 16), 0);
+                }
+            }
+        }
+
+        // Each IAC adjacent to 0x7f and 0x80 must be counted exactly once and not smear into its neighbors
+        final byte[] data = new byte[] {
+            (byte)0x7f, IAC, (byte)0x80, IAC, IAC, (byte)0x7f, (byte)0x80, IAC,
+            (byte)0x80, (byte)0x7f, IAC, (byte)0xfe, (byte)0x7f, IAC, (byte)0x80, (byte)0x7f,
+        };
+        final ByteBuffer buf = buffer(data, direct, order);
+        assertEquals(TelnetCodec.countIAC(buf, 0, data.length), naiveCount(data, 0, data.length));
+        for (int from = 0; from <= data.length; from++) {
+            for (int to = from; to <= data.length; to++) {
+                assertEquals(TelnetCodec.indexOfIAC(buf, from, to), naiveIndexOf(data, from, to),
+                  "from=" + from + " to=" + to);
+                assertEquals(TelnetCodec.countIAC(buf, from, to), naiveCount(data, from, to));
+            }
+        }
+    }
+
+    @Test(dataProvider = "buffers")
+    public void testEmptyAndOddRanges(boolean direct, ByteOrder order) {
+        final byte[] data = fill(32, IAC);
+        final ByteBuffer buf = buffer(data, direct, order);
+        for (int from = 0; from <= data.length; from++) {
+            assertEquals(TelnetCodec.indexOfIAC(buf, from, from), -1);
+            assertEquals(TelnetCodec.countIAC(buf, from, from), 0);
+        }
+        for (int from = 0; from < 8; from++) {
+            for (int len = 1; len <= 23; len += 2) {
+                assertEquals(TelnetCodec.indexOfIAC(buf, from, from + len), from);
+                assertEquals(TelnetCodec.countIAC(buf, from, from + len), len);
+            }
+        }
+        assertEquals(TelnetCodec.encodedLength(ByteBuffer.allocate(0)), 0);
+        assertEquals(TelnetCodec.encode(new byte[0], 0, 0).remaining(), 0);
+    }
+
+    @Test(dataProvider = "buffers")
+    public void testRandom(boolean direct, ByteOrder order) {
+        for (int i = 0; i < 1000; i++) {
+            final byte[] data = new byte[this.random.nextInt(100)];
+            for (int j = 0; j < data.length; j++)
+                data[j] = this.random.nextInt(4) == 0 ? IAC : NEAR_MISSES[this.random.nextInt(NEAR_MISSES.length)];
+            final int from = data.length > 0 ? this.random.nextInt(data.length) : 0;
+            final int to = from + (data.length > from ? this.random.nextInt(data.length - from + 1) : 0);
+            final ByteBuffer buf = buffer(data, direct, order);
+            assertEquals(TelnetCodec.indexOfIAC(buf, from, to), naiveIndexOf(data, from, to));
+            assertEquals(TelnetCodec.countIAC(buf, from, to), naiveCount(data, from, to));
+            this.checkEncode(data, buffer(data, direct, order));
+        }
+    }
+
+    // The general search must find any byte value, including ones whose neighbors differ by one bit or by carry
+    @Test(dataProvider = "buffers")
+    public void testIndexOfAnyByte(boolean direct, ByteOrder order) {
+        for (int target = 0; target < 256; target++) {
+            final byte b = (byte)target;
+            final byte[] nearMisses = { (byte)(b ^ 0x01), (byte)(b ^ 0x80), (byte)(b + 1), (byte)(b - 1), (byte)~b };
+            for (int i = 0; i < 20; i++) {
+                final byte[] data = new byte[this.random.nextInt(40)];
+                for (int j = 0; j < data.length; j++)
+                    data[j] = this.random.nextInt(8) == 0 ? b : nearMisses[this.random.nextInt(nearMisses.length)];
+                final int from = data.length > 0 ? this.random.nextInt(data.length) : 0;
+                final int to = from + (data.length > from ? this.random.nextInt(data.length - from + 1) : 0);
+                assertEquals(TelnetCodec.indexOf(buffer(data, direct, order), from, to, b), naiveIndexOf(data, from, to, b),
+                  "target=" + target + " from=" + from + " to=" + to);
+            }
+        }
+    }
+
+    @Test
+    public void testEncode() {
+        this.checkEncode(new byte[0], ByteBuffer.allocate(0));
+        this.checkEncode(new byte[] { IAC }, ByteBuffer.wrap(new byte[] { IAC }));
+        this.checkEncode(new byte[] { 1, 2, 3 }, ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        final byte[] data = new byte[] { IAC, 1, (byte)0x7f, IAC, IAC, (byte)0x80, 2, 3, 4, 5, IAC };
+        this.checkEncode(data, ByteBuffer.wrap(data.clone()));
+
+        // Offsets into a larger array
+        final ByteBuffer encoded = TelnetCodec.encode(data, 3, 5);
+        assertEquals(toArray(encoded), new byte[] { IAC, IAC, IAC, IAC, (byte)0x80, 2, 3 });
+
+        // Gathering version consumes all buffers
+        final ByteBuffer[] srcs = new ByteBuffer[] {
+            ByteBuffer.wrap(new byte[] { 9 }), ByteBuffer.wrap(data.clone()), ByteBuffer.wrap(new byte[] { IAC })
+        };
+        final ByteBuffer gathered = TelnetCodec.encode(srcs, 1, 2);
+        assertEquals(toArray(gathered), naiveEncode(concat(data, new byte[] { IAC })));
+        assertEquals(srcs[0].remaining(), 1);
+        assertEquals(srcs[1].remaining(), 0);
+        assertEquals(srcs[2].remaining(), 0);
+    }
+
+    private void checkEncode(byte[] data, ByteBuffer src) {
+        final byte[] expected = naiveEncode(data);
+        assertEquals(TelnetCodec.encodedLength(src), expected.length);
+        final ByteBuffer dst = ByteBuffer.allocate(expected.length);
+        TelnetCodec.encode(src, dst);
+        assertEquals(src.remaining(), 0);
+        assertEquals(dst.remaining(), 0);
+        assertEquals(dst.array(), expected);
+        assertEquals(toArray(TelnetCodec.encode(data, 0, data.length)), expected);
+    }
+
+    private static ByteBuffer buffer(byte[] data, boolean direct, ByteOrder order) {
+        final ByteBuffer buf = direct ? ByteBuffer.allocateDirect(data.length) : ByteBuffer.allocate(data.length);
+        buf.put(data).flip();
+        return buf.order(order);
+    }
+
+    private static byte[] fill(int len, byte value) {
+        final byte[] data = new byte[len];
+        for (int i = 0; i < len; i++)
+            data[i] = value;
+        return data;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        final byte[] data = new byte[buf.remaining()];
+        buf.duplicate().get(data);
+        return data;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        final byte[] c = new byte[a.length + b.length];
+        System.arraycopy(a, 0, c, 0, a.length);
+        System.arraycopy(b, 0, c, a.length, b.length);
+        return c;
+    }
+
+    private static int naiveIndexOf(byte[] data, int from, int to) {
+        return naiveIndexOf(data, from, to, IAC);
+    }
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    private static int naiveCount(byte[] data, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (data[i] == IAC)
+                count++;
+        }
+        return count;
+    }
+
+    private static byte[] naiveEncode(byte[] data) {
+        final byte[] encoded = new byte[data.length + naiveCount(data, 0, data.length)];
+        int j = 0;
+        for (byte b : data) {
+            encoded[j++] = b;
+            if (b == IAC)
+                encoded[j++] = IAC;
+        }
+        return encoded;
+    }
+}
+
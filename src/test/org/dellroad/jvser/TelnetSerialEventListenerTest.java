@@ -0,0 +1,163 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import javax.comm.SerialPortEvent;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests the timestamps, sequence numbers and allocation-free delivery of {@link TelnetSerialEventListener} events.
+ */
+public class TelnetSerialEventListenerTest extends TestSupport {
+
+    private static final long DELAY = 20;                           // milliseconds
+    private static final int NUM_EVENTS = 100000;
+
+    @Test
+    public void testValues() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<long[]> events = this.record(port, TelnetSerialPort.ALL_EVENTS);
+            final long[] times = new long[4];
+            times[0] = System.nanoTime();
+            port.sendEvent(SerialPortEvent.CTS, true);
+            times[1] = System.nanoTime();
+            port.sendEvent(SerialPortEvent.CTS, false);
+            times[2] = System.nanoTime();
+            port.sendEvent(SerialPortEvent.OE);
+            times[3] = System.nanoTime();
+            assertEquals(events.size(), 3);
+            this.check(events.get(0), SerialPortEvent.CTS, true, 1);
+            this.check(events.get(1), SerialPortEvent.CTS, false, 2);
+            this.check(events.get(2), SerialPortEvent.OE, true, 3);
+            for (int i = 0; i < 3; i++) {
+                final long nanoTime = events.get(i)[3];
+                assertTrue(nanoTime - times[i] >= 0 && times[i + 1] - nanoTime >= 0, "event " + i + " timestamp out of range");
+            }
+        } finally {
+            port.close();
+        }
+    }
+
+    // Events are timestamped when generated, not when an executor gets around to delivering them
+    @Test
+    public void testTimestampedWhenGenerated() throws Exception {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<long[]> events = this.record(port, TelnetSerialPort.ALL_EVENTS);
+            port.setEventExecutor(new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    tasks.add(task);
+                }
+            });
+            port.sendEvent(SerialPortEvent.DSR, true);
+            final long generated = System.nanoTime();
+            Thread.sleep(DELAY);
+            final long delivering = System.nanoTime();
+            assertEquals(tasks.size(), 1);
+            tasks.remove(0).run();
+            assertEquals(events.size(), 1);
+            this.check(events.get(0), SerialPortEvent.DSR, true, 1);
+            assertTrue(generated - events.get(0)[3] >= 0, "timestamp is later than generation");
+            assertTrue(delivering - events.get(0)[3] > 0, "timestamp is delivery time");
+        } finally {
+            port.close();
+        }
+    }
+
+    // Event types no listener is interested in are not generated at all, so they don't use up sequence numbers
+    @Test
+    public void testSequenceSkipsUninteresting() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final List<long[]> events = this.record(port, TelnetSerialPort.eventMask(SerialPortEvent.RI));
+            port.sendEvent(SerialPortEvent.CD, true);
+            port.sendEvent(SerialPortEvent.RI, true);
+            port.sendEvent(SerialPortEvent.DATA_AVAILABLE);
+            port.sendEvent(SerialPortEvent.RI, false);
+            assertEquals(events.size(), 2);
+            this.check(events.get(0), SerialPortEvent.RI, true, 1);
+            this.check(events.get(1), SerialPortEvent.RI, false, 2);
+        } finally {
+            port.close();
+        }
+    }
+
+    // Delivery allocates nothing, either directly or via the event ring
+    @Test
+    public void testNoAllocation() throws Exception {
+        final TelnetSerialPort port = new TelnetSerialPort(Executors.defaultThreadFactory());
+        try {
+            final long[] sum = new long[1];
+            port.addEventListener(new TelnetSerialEventListener() {
+                @Override
+                public void onSerialEvent(TelnetSerialPort port, int type, boolean oldValue, boolean newValue,
+                  long nanoTime, long seq) {
+                    sum[0] += seq;
+                }
+            }, TelnetSerialPort.ALL_EVENTS);
+            this.checkNoAllocation(port, "direct");
+            port.setEventExecutor(new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                    task.run();
+                }
+            });
+            this.checkNoAllocation(port, "via ring");
+            assertTrue(sum[0] > 0);
+        } finally {
+            port.close();
+        }
+    }
+
+    private void checkNoAllocation(TelnetSerialPort port, String what) {
+        for (int i = 0; i < NUM_EVENTS; i++)                        // warm up
+            port.sendEvent(SerialPortEvent.CTS, (i & 1) != 0);
+        final long before = CaptureJournalBenchmark.allocatedBytes();
+        if (before == -1)                                           // JVM can't tell us
+            return;
+        for (int i = 0; i < NUM_EVENTS; i++)
+            port.sendEvent(SerialPortEvent.CTS, (i & 1) != 0);
+        final long allocated = CaptureJournalBenchmark.allocatedBytes() - before;
+        // Allow for incidental JVM allocations; allocating even the smallest object per event would be 16+ bytes/event
+        assertTrue(allocated < NUM_EVENTS, what + ": " + allocated + " bytes allocated for " + NUM_EVENTS + " events");
+    }
+
+    // Record each event as { type, old value, new value, nanoTime, seq }
+    private List<long[]> record(final TelnetSerialPort port, int eventMask) {
+        final List<long[]> events = new ArrayList<long[]>();
+        port.addEventListener(new TelnetSerialEventListener() {
+            @Override
+            public void onSerialEvent(TelnetSerialPort source, int type, boolean oldValue, boolean newValue,
+              long nanoTime, long seq) {
+                assertSame(source, port);
+                events.add(new long[] { type, oldValue ? 1 : 0, newValue ? 1 : 0, nanoTime, seq });
+            }
+        }, eventMask);
+        return events;
+    }
+
+    private void check(long[] event, int type, boolean newValue, long seq) {
+        assertEquals(event[0], type);
+        assertEquals(event[1], newValue ? 0 : 1);
+        assertEquals(event[2], newValue ? 1 : 0);
+        assertEquals(event[4], seq);
+    }
+}
@@ -0,0 +1,241 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+import javax.comm.SerialPort;
+import javax.comm.SerialPortEvent;
+import javax.comm.SerialPortEventListener;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests {@link TelnetSerialPortPool} leasing, releasing, and resetting ports between leases.
+ */
+public class TelnetSerialPortPoolTest extends TestSupport {
+
+    private static final long SHORT_DELAY = 100;                    // milliseconds
+    private static final long TIMEOUT = 5000;                       // milliseconds
+
+    private TelnetEventLoopGroup eventLoopGroup;
+    private TestAccessServer server;
+    private String host;
+    private int tcpPort;
+
+    @BeforeClass
+    public void setup() throws IOException {
+        this.eventLoopGroup = new TelnetEventLoopGroup(1);
+        this.server = new TestAccessServer();
+        this.host = this.server.getAddress().getHostAddress();
+        this.tcpPort = this.server.getPort();
+    }
+
+    @AfterClass
+    public void teardown() {
+        this.eventLoopGroup.shutdown();
+        this.server.close();
+    }
+
+    @Test
+    public void testLeaseAndRelease() throws Exception {
+        final TelnetSerialPortPool pool = new TelnetSerialPortPool(this.eventLoopGroup, 1);
+        try {
+            final TelnetSerialPort port1 = this.lease(pool);
+            this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            assertTrue(port1.isEstablished());
+            assertEquals(pool.getIdleCount(this.host, this.tcpPort), 0);
+
+            // Released ports are reused without reconnecting
+            pool.release(port1);
+            assertEquals(pool.getIdleCount(this.host, this.tcpPort), 1);
+            assertSame(this.lease(pool), port1);
+            assertEquals(pool.getIdleCount(this.host, this.tcpPort), 0);
+            try {
+                pool.release(port1);
+                pool.release(port1);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+
+            // When the pool already has enough idle ports, released ports are closed
+            assertSame(this.lease(pool), port1);
+            final TelnetSerialPort port2 = this.lease(pool);
+            assertNotSame(port2, port1);
+            final TestAccessServer.Connection connection2 = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            pool.release(port2);
+            pool.release(port1);
+            assertEquals(pool.getIdleCount(this.host, this.tcpPort), 1);
+            assertFalse(port2.isClosed());
+            assertTrue(port1.isClosed());
+
+            // Ports whose connection has been lost are closed when released, and not leased
+            final TelnetSerialPort port3 = this.lease(pool);
+            assertSame(port3, port2);
+            connection2.close();
+            assertEquals(port3.getInputStream().read(), -1);
+            pool.release(port3);
+            assertTrue(port3.isClosed());
+            assertEquals(pool.getIdleCount(this.host, this.tcpPort), 0);
+        } finally {
+            pool.close();
+        }
+        try {
+            this.lease(pool);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        final TelnetSerialPortPool pool = new TelnetSerialPortPool(this.eventLoopGroup, 1);
+        try {
+            final TelnetSerialPort port = this.lease(pool);
+            this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            final int baudRate = port.getBaudRate();
+            final boolean dtr = port.isDTR();
+            final long reconnectInitialDelay = port.getReconnectInitialDelay(TimeUnit.NANOSECONDS);
+            final long reconnectMaxDelay = port.getReconnectMaxDelay(TimeUnit.NANOSECONDS);
+            final int outputBufferSize = port.getOutputBufferSize();
+            final long outputBufferLatency = port.getOutputBufferLatency(TimeUnit.NANOSECONDS);
+            final int inputBufferSize = port.getInputBufferSize();
+
+            // The first user changes everything and leaves operations pending
+            port.setSerialPortParams(19200, SerialPort.DATABITS_7, SerialPort.STOPBITS_2, SerialPort.PARITY_EVEN);
+            port.setDTR(!dtr);
+            port.addEventListener(new SerialPortEventListener() {
+                @Override
+                public void serialEvent(SerialPortEvent event) {
+                }
+            });
+            port.notifyOnDataAvailable(true);
+            port.enableReceiveThreshold(10);
+            port.enableDataAvailableCoalescing(100, 1, TimeUnit.SECONDS);
+            port.setAutoReconnect(true);
+            port.setReconnectDelay(1, 2, TimeUnit.SECONDS);
+            port.setOptimisticNegotiation(true);
+            port.setNegotiationTimeout(3, TimeUnit.SECONDS);
+            port.setRawFallback(true);
+            port.setOutputBufferSize(outputBufferSize + 100);
+            port.setOutputBufferLatency(5, TimeUnit.MILLISECONDS);
+            final TelnetFuture<Integer> read = port.readAsync(ByteBuffer.allocate(16), TIMEOUT, TimeUnit.MILLISECONDS);
+            final TelnetFuture<Integer> wait = port.awaitModemStateAsync(RFC2217.MODEMSTATE_CTS, RFC2217.MODEMSTATE_CTS,
+              0, TimeUnit.MILLISECONDS);
+            pool.release(port);
+
+            // Pending operations were cancelled
+            assertCancelled(read);
+            assertCancelled(wait);
+
+            // The next user gets the original configuration
+            assertSame(this.lease(pool), port);
+            assertEquals(port.getBaudRate(), baudRate);
+            assertEquals(port.getDataBits(), SerialPort.DATABITS_8);
+            assertEquals(port.isDTR(), dtr);
+            assertFalse(port.isReceiveThresholdEnabled());
+            assertFalse(port.isDataAvailableCoalescing());
+            assertFalse(port.isAutoReconnect());
+            assertEquals(port.getReconnectInitialDelay(TimeUnit.NANOSECONDS), reconnectInitialDelay);
+            assertEquals(port.getReconnectMaxDelay(TimeUnit.NANOSECONDS), reconnectMaxDelay);
+            assertFalse(port.isOptimisticNegotiation());
+            assertEquals(port.getNegotiationTimeout(TimeUnit.NANOSECONDS), 0);
+            assertFalse(port.isRawFallback());
+            assertEquals(port.getOutputBufferSize(), outputBufferSize);
+            assertEquals(port.getOutputBufferLatency(TimeUnit.NANOSECONDS), outputBufferLatency);
+            assertEquals(port.getInputBufferSize(), inputBufferSize);
+            pool.release(port);
+        } finally {
+            pool.close();
+        }
+    }
+
+    // Data the access server sent before purging, but which arrives after we asked it to, must not reach the next user
+    @Test
+    public void testPurgeWaitsForAcknowledgement() throws Exception {
+        final TelnetSerialPortPool pool = new TelnetSerialPortPool(this.eventLoopGroup, 1);
+        try {
+            final TelnetSerialPort port = this.lease(pool);
+            final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            connection.setPurgeData(new byte[100]);
+            pool.release(port);
+            this.checkPurged(pool, port, connection);
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPurgeWithoutAcknowledgement() throws Exception {
+        final TelnetSerialPortPool pool = new TelnetSerialPortPool(this.eventLoopGroup, 1);
+        try {
+            final TelnetSerialPort port = this.lease(pool);
+            final TestAccessServer.Connection connection = this.server.awaitConnection(TIMEOUT, TimeUnit.MILLISECONDS);
+            connection.setPurgeAcknowledged(false);
+            connection.setPurgeData(new byte[100]);
+            final long start = System.nanoTime();
+            pool.release(port);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1), "release waited too long");
+            this.checkPurged(pool, port, connection);
+        } finally {
+            pool.close();
+        }
+    }
+
+    private void checkPurged(TelnetSerialPortPool pool, TelnetSerialPort port, TestAccessServer.Connection connection)
+      throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (!this.containsPurge(connection.getCommands())) {
+            assertTrue(System.nanoTime() < deadline, "no PURGE-DATA sent");
+            Thread.sleep(1);
+        }
+        assertSame(this.lease(pool), port);
+        Thread.sleep(SHORT_DELAY);
+        assertEquals(port.getInputStream().available(), 0);
+        connection.send(new byte[] { 7 });
+        assertEquals(port.getInputStream().read(), 7);
+        pool.release(port);
+    }
+
+    private boolean containsPurge(List<int[]> commands) {
+        for (int[] command : commands) {
+            if (command[1] == RFC2217.PURGE_DATA)
+                return true;
+        }
+        return false;
+    }
+
+    private TelnetSerialPort lease(TelnetSerialPortPool pool) throws IOException {
+        return pool.lease(this.host, this.tcpPort, TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertCancelled(TelnetFuture<Integer> future) throws Exception {
+        assertTrue(future.isCancelled());
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,470 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import static org.dellroad.jvser.TelnetCodec.DO;
+import static org.dellroad.jvser.TelnetCodec.DONT;
+import static org.dellroad.jvser.TelnetCodec.IAC;
+import static org.dellroad.jvser.TelnetCodec.SB;
+import static org.dellroad.jvser.TelnetCodec.SE;
+import static org.dellroad.jvser.TelnetCodec.WILL;
+import static org.dellroad.jvser.TelnetCodec.WONT;
+
+/**
+ * Minimal in-process access server for tests.
+ *
+ * <p>
+ * Listens on a loopback port and services any number of connections from a single selector thread. Agrees to
+ * {@code TRANSMIT-BINARY}, {@code SUPPRESS-GO-AHEAD} and {@code COM-PORT-OPTION} (unless configured to
+ * {@linkplain #setComPortOptionRefused refuse} or {@linkplain #setComPortOptionIgnored ignore} it), refuses
+ * everything else, and records the serial data and {@code COM-PORT-OPTION} commands received on each connection.
+ * Tests send serial data and commands to the port via the {@link Connection}. {@code PURGE-DATA} commands are
+ * acknowledged, as RFC 2217 requires, unless {@linkplain Connection#setPurgeAcknowledged disabled}.
+ * </p>
+ */
+class TestAccessServer implements Closeable, Runnable {
+
+    private static final int OPTION_BINARY = TransmitBinaryOptionHandler.TRANSMIT_BINARY_OPTION;
+    private static final int OPTION_SGA = 3;
+
+    private final Logger log = Logger.getLogger(getClass());
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Connection> writers = new ConcurrentLinkedQueue<Connection>();
+    private final LinkedBlockingQueue<Connection> accepted = new LinkedBlockingQueue<Connection>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+    private volatile boolean closed;
+    private volatile boolean comPortOptionRefused;
+    private volatile boolean comPortOptionIgnored;
+
+    TestAccessServer() throws IOException {
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0), 4096);
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.thread = new Thread(this, "test access server");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    InetAddress getAddress() {
+        return this.serverChannel.socket().getInetAddress();
+    }
+
+    int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Configure whether to refuse {@code COM-PORT-OPTION}, like a plain telnet server. Default false.
+     */
+    void setComPortOptionRefused(boolean comPortOptionRefused) {
+        this.comPortOptionRefused = comPortOptionRefused;
+    }
+
+    /**
+     * Configure whether to never answer {@code COM-PORT-OPTION}, like a broken or overloaded server. Default false.
+     */
+    void setComPortOptionIgnored(boolean comPortOptionIgnored) {
+        this.comPortOptionIgnored = comPortOptionIgnored;
+    }
+
+    /**
+     * Get the next accepted connection, in the order accepted.
+     *
+     * @throws AssertionError if no connection arrives in time
+     */
+    Connection awaitConnection(long timeout, TimeUnit unit) throws InterruptedException {
+        final Connection connection = this.accepted.poll(timeout, unit);
+        if (connection == null)
+            throw new AssertionError("no connection received");
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.selector.wakeup();
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!this.closed) {
+                Connection connection;
+                while ((connection = this.writers.poll()) != null)
+                    connection.flush();
+                this.selector.select();
+                for (Iterator<SelectionKey> i = this.selector.selectedKeys().iterator(); i.hasNext(); ) {
+                    final SelectionKey key = i.next();
+                    i.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        this.accept();
+                        continue;
+                    }
+                    connection = (Connection)key.attachment();
+                    try {
+                        if (key.isReadable())
+                            connection.read();
+                        if (key.isValid() && key.isWritable())
+                            connection.flush();
+                    } catch (IOException e) {
+                        connection.closeChannel();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            this.log.error("test access server failed", e);
+        } finally {
+            for (SelectionKey key : new ArrayList<SelectionKey>(this.selector.keys())) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = this.serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Connection connection = new Connection(channel);
+            connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+            this.accepted.add(connection);
+        }
+    }
+
+    /**
+     * One connection from a port.
+     */
+    final class Connection {
+
+        // Decoder states
+        private static final int STATE_DATA = 0;
+        private static final int STATE_IAC = 1;
+        private static final int STATE_OPTION = 2;
+        private static final int STATE_SB = 3;
+        private static final int STATE_SB_IAC = 4;
+
+        private final SocketChannel channel;
+        private final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<ByteBuffer>();
+        private final boolean[] localEnabled = new boolean[256];
+        private final boolean[] remoteEnabled = new boolean[256];
+        private final ByteArrayOutputStream subnegotiation = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();   // protected by "this"
+        private final List<int[]> commands = new ArrayList<int[]>();              // protected by "this"
+
+        private SelectionKey key;
+        private int state;
+        private int optionCommand;
+        private volatile boolean comPortOption;
+        private volatile boolean disconnected;
+        private volatile boolean purgeAcknowledged = true;
+        private volatile byte[] purgeData;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Determine whether the client has agreed to {@code COM-PORT-OPTION}.
+         */
+        boolean isComPortOption() {
+            return this.comPortOption;
+        }
+
+        /**
+         * Determine whether the client has closed the connection.
+         */
+        boolean isDisconnected() {
+            return this.disconnected;
+        }
+
+        /**
+         * Send serial data to the port, doubling {@code IAC} bytes.
+         */
+        void send(byte[] bytes) {
+            this.sendRaw(TelnetCodec.encode(bytes, 0, bytes.length));
+        }
+
+        /**
+         * Send a {@code COM-PORT-OPTION} command to the port.
+         */
+        void send(ComPortCommand command) {
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            buf.write(IAC);
+            buf.write(SB);
+            for (int b : command.getBytes()) {
+                buf.write(b);
+                if (b == IAC)
+                    buf.write(b);
+            }
+            buf.write(IAC);
+            buf.write(SE);
+            this.sendRaw(ByteBuffer.wrap(buf.toByteArray()));
+        }
+
+        /**
+         * Send already-encoded bytes to the port.
+         */
+        void sendRaw(ByteBuffer buf) {
+            this.output.add(buf);
+            TestAccessServer.this.writers.add(this);
+            TestAccessServer.this.selector.wakeup();
+        }
+
+        /**
+         * Get the serial data received so far.
+         */
+        synchronized byte[] getData() {
+            return this.data.toByteArray();
+        }
+
+        /**
+         * Get the {@code COM-PORT-OPTION} commands received so far, each starting with the {@code COM-PORT-OPTION} byte.
+         */
+        synchronized List<int[]> getCommands() {
+            return new ArrayList<int[]>(this.commands);
+        }
+
+        /**
+         * Wait until at least the given number of {@code COM-PORT-OPTION} commands have been received.
+         *
+         * @throws AssertionError if they don't arrive in time
+         */
+        synchronized List<int[]> awaitCommands(int count, long timeout, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long remaining;
+            while (this.commands.size() < count) {
+                if ((remaining = deadline - System.nanoTime()) <= 0)
+                    throw new AssertionError("expected " + count + " commands but only received " + this.commands.size());
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return new ArrayList<int[]>(this.commands);
+        }
+
+        /**
+         * Configure whether {@code PURGE-DATA} commands are acknowledged. Default true.
+         */
+        void setPurgeAcknowledged(boolean purgeAcknowledged) {
+            this.purgeAcknowledged = purgeAcknowledged;
+        }
+
+        /**
+         * Configure serial data to send when the next {@code PURGE-DATA} command is received, before acknowledging it.
+         * This simulates data that was already on its way when the access server purged its buffers.
+         */
+        void setPurgeData(byte[] purgeData) {
+            this.purgeData = purgeData;
+        }
+
+        /**
+         * Close this connection from the server side.
+         */
+        void close() {
+            this.sendRaw(CLOSE_MARKER);
+        }
+
+        // Selector thread only below here
+
+        void flush() throws IOException {
+            if (!this.channel.isOpen())
+                return;
+            ByteBuffer buf;
+            while ((buf = this.output.peek()) != null) {
+                if (buf == CLOSE_MARKER) {
+                    this.closeChannel();
+                    return;
+                }
+                this.channel.write(buf);
+                if (buf.hasRemaining()) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.output.poll();
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            final ByteBuffer buf = TestAccessServer.this.readBuffer;
+            buf.clear();
+            if (this.channel.read(buf) == -1) {
+                this.closeChannel();
+                return;
+            }
+            buf.flip();
+            while (buf.hasRemaining())
+                this.decode(buf.get() & 0xff);
+            this.flush();
+        }
+
+        void closeChannel() {
+            this.disconnected = true;
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+
+        private void decode(int b) {
+            switch (this.state) {
+            case STATE_DATA:
+                if (b == IAC)
+                    this.state = STATE_IAC;
+                else
+                    this.addData(b);
+                break;
+            case STATE_IAC:
+                switch (b) {
+                case IAC:
+                    this.addData(b);
+                    this.state = STATE_DATA;
+                    break;
+                case WILL:
+                case WONT:
+                case DO:
+                case DONT:
+                    this.optionCommand = b;
+                    this.state = STATE_OPTION;
+                    break;
+                case SB:
+                    this.subnegotiation.reset();
+                    this.state = STATE_SB;
+                    break;
+                default:
+                    this.state = STATE_DATA;
+                    break;
+                }
+                break;
+            case STATE_OPTION:
+                this.state = STATE_DATA;
+                this.handleOption(this.optionCommand, b);
+                break;
+            case STATE_SB:
+                if (b == IAC)
+                    this.state = STATE_SB_IAC;
+                else
+                    this.subnegotiation.write(b);
+                break;
+            case STATE_SB_IAC:
+                if (b == IAC) {
+                    this.subnegotiation.write(b);
+                    this.state = STATE_SB;
+                    break;
+                }
+                this.state = STATE_DATA;
+                if (b == SE)
+                    this.handleSubnegotiation(this.subnegotiation.toByteArray());
+                break;
+            default:
+                throw new RuntimeException("impossible case");
+            }
+        }
+
+        private synchronized void addData(int b) {
+            this.data.write(b);
+        }
+
+        private void handleOption(int command, int option) {
+            final boolean supported = option == OPTION_BINARY || option == OPTION_SGA
+              || (option == RFC2217.COM_PORT_OPTION && !TestAccessServer.this.comPortOptionRefused);
+            switch (command) {
+            case WILL:
+                if (this.remoteEnabled[option])
+                    break;
+                if (option == RFC2217.COM_PORT_OPTION && TestAccessServer.this.comPortOptionIgnored)
+                    break;
+                this.remoteEnabled[option] = true;
+                this.reply(supported ? DO : DONT, option);
+                if (supported && option == RFC2217.COM_PORT_OPTION)
+                    this.comPortOption = true;
+                break;
+            case DO:
+                if (this.localEnabled[option])
+                    break;
+                this.localEnabled[option] = true;
+                this.reply(supported && option != RFC2217.COM_PORT_OPTION ? WILL : WONT, option);
+                break;
+            default:
+                break;
+            }
+        }
+
+        private void handleSubnegotiation(byte[] bytes) {
+            if (bytes.length == 0 || (bytes[0] & 0xff) != RFC2217.COM_PORT_OPTION)
+                return;
+            final int[] command = new int[bytes.length];
+            for (int i = 0; i < bytes.length; i++)
+                command[i] = bytes[i] & 0xff;
+            synchronized (this) {
+                this.commands.add(command);
+                this.notifyAll();
+            }
+            if (command.length == 3 && command[1] == RFC2217.PURGE_DATA) {
+                final byte[] data = this.purgeData;
+                if (data != null) {
+                    this.purgeData = null;
+                    this.output.add(TelnetCodec.encode(data, 0, data.length));
+                }
+                if (this.purgeAcknowledged) {
+                    this.output.add(ByteBuffer.wrap(new byte[] { (byte)IAC, (byte)SB, (byte)RFC2217.COM_PORT_OPTION,
+                      (byte)(RFC2217.PURGE_DATA + RFC2217.SERVER_OFFSET), (byte)command[2], (byte)IAC, (byte)SE }));
+                }
+            }
+        }
+
+        private void reply(int command, int option) {
+            this.output.add(ByteBuffer.wrap(new byte[] { (byte)IAC, (byte)command, (byte)option }));
+        }
+    }
+
+    private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+}
+
@@ -27,13 +27,13 @@ public abstract class TestSupport {
 
     protected Random random;
 
-    @BeforeClass
+    @BeforeClass(alwaysRun = true)
     @Parameters({ "randomSeed" })
     public void seedRandom(String randomSeed) {
         this.random = getRandom(randomSeed);
     }
 
-    @BeforeClass
+    @BeforeClass(alwaysRun = true)
     @Parameters({ "logLevel", "logPattern" })
     public void setupLogging(String logLevel, String logPattern) {
         ConsoleAppender consoleAppender = new ConsoleAppender(
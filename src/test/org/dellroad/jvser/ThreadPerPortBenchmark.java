@@ -0,0 +1,149 @@
+
+/*
+ * Copyright (C) 2010 Archie L. Cobbs. All rights reserved.
+ *
+ * $Id$
+ */
+
+package org.dellroad.jvser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.Optional;
+import org.testng.annotations.Parameters;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Compares platform and virtual threads for simple thread-per-port applications, where each port has a reader thread
+ * created by the {@link TelnetSerialPort#TelnetSerialPort(ThreadFactory) ThreadFactory} and an application thread
+ * blocked in {@link TelnetSerialPort#getInputStream getInputStream().read()}.
+ *
+ * <p>
+ * For each port count, measures the time to connect all ports, the time for a byte sent to every port to be read by
+ * every application thread, and the number of platform threads and heap used. Virtual threads are skipped if the JVM
+ * doesn't support them, and port counts needing more file descriptors than are available are skipped.
+ * </p>
+ */
+public class ThreadPerPortBenchmark extends TestSupport {
+
+    private static final int ROUNDS = 10;
+    private static final long TIMEOUT = 120;                        // seconds
+    private static final int FDS_PER_PORT = 2;                      // client and server end of each connection
+    private static final int SPARE_FDS = 256;
+
+    @Test(groups = "benchmark")
+    @Parameters({ "threadPerPortCounts" })
+    public void benchmarkThreadPerPort(@Optional("1000,10000") String portCounts) throws Exception {
+        final ThreadFactory virtualThreadFactory = TelnetSerialPort.getVirtualThreadFactory();
+        if (virtualThreadFactory == null)
+            this.log.info("virtual threads are not supported by this JVM; measuring platform threads only");
+        for (String portCount : portCounts.split(",")) {
+            final int numPorts = Integer.parseInt(portCount.trim());
+            final long maxFds = maxFileDescriptors();
+            if (maxFds != -1 && (long)numPorts * FDS_PER_PORT + SPARE_FDS > maxFds) {
+                this.log.info(String.format("skipping %d ports: needs about %d file descriptors but the limit is %d",
+                  numPorts, numPorts * FDS_PER_PORT + SPARE_FDS, maxFds));
+                continue;
+            }
+            this.run("platform", Executors.defaultThreadFactory(), numPorts);
+            if (virtualThreadFactory != null)
+                this.run("virtual", virtualThreadFactory, numPorts);
+        }
+    }
+
+    private void run(String label, ThreadFactory threadFactory, int numPorts) throws Exception {
+        final TestAccessServer server = new TestAccessServer();
+        final List<TelnetSerialPort> ports = new ArrayList<TelnetSerialPort>(numPorts);
+        final List<TestAccessServer.Connection> connections = new ArrayList<TestAccessServer.Connection>(numPorts);
+        final List<Thread> threads = new ArrayList<Thread>(numPorts);
+        final AtomicReference<CountDownLatch> roundLatch = new AtomicReference<CountDownLatch>();
+        final AtomicInteger failures = new AtomicInteger();
+        try {
+
+            // Connect all ports
+            final int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < numPorts; i++) {
+                final TelnetSerialPort port = new TelnetSerialPort(threadFactory);
+                ports.add(port);
+                port.connect(server.getAddress(), server.getPort());
+                connections.add(server.awaitConnection(TIMEOUT, TimeUnit.SECONDS));
+            }
+            for (TestAccessServer.Connection connection : connections)
+                connection.awaitCommands(1, TIMEOUT, TimeUnit.SECONDS);     // the port is established by now
+            final long connectNanos = System.nanoTime() - start;
+
+            // Start an application thread per port that blocks reading one byte at a time
+            for (TelnetSerialPort port : ports) {
+                final InputStream input = port.getInputStream();
+                final Thread thread = threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (input.read() != -1)
+                                roundLatch.get().countDown();
+                        } catch (IOException e) {
+                            // port closed
+                        } catch (RuntimeException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                });
+                threads.add(thread);
+                thread.start();
+            }
+
+            // Send a byte to every port and wait for every application thread to read it
+            final byte[] data = new byte[] { 1 };
+            long roundNanos = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                final CountDownLatch latch = new CountDownLatch(numPorts);
+                roundLatch.set(latch);
+                start = System.nanoTime();
+                for (TestAccessServer.Connection connection : connections)
+                    connection.send(data);
+                assertTrue(latch.await(TIMEOUT, TimeUnit.SECONDS), "not all ports received data");
+                roundNanos += System.nanoTime() - start;
+            }
+            assertEquals(failures.get(), 0);
+
+            // Report
+            final int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+            System.gc();
+            final Runtime runtime = Runtime.getRuntime();
+            final long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+            this.log.info(String.format("%s threads, %d ports: connect %.0f ms, all ports read %.1f ms/round,"
+              + " %d platform threads added, %.1f MB heap used", label, numPorts, connectNanos / 1e6,
+              roundNanos / 1e6 / ROUNDS, threadsAfter - threadsBefore, heapUsed / (1024.0 * 1024.0)));
+        } finally {
+            for (TelnetSerialPort port : ports)
+                port.close();
+            for (Thread thread : threads)
+                thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+            server.close();
+        }
+    }
+
+    // Get the maximum number of open files for this process, or -1 if unknown
+    private static long maxFileDescriptors() {
+        final OperatingSystemMXBean osMXBean = ManagementFactory.getOperatingSystemMXBean();
+        if (!(osMXBean instanceof com.sun.management.UnixOperatingSystemMXBean))
+            return -1;
+        return ((com.sun.management.UnixOperatingSystemMXBean)osMXBean).getMaxFileDescriptorCount();
+    }
+}
+